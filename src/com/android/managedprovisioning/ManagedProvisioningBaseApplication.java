@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.app.Application;
 import android.content.ComponentName;
 
+import com.android.managedprovisioning.analytics.DeferredMetricsAppender;
 import com.android.managedprovisioning.preprovisioning.EncryptionController;
 
 /**
@@ -46,6 +47,13 @@ public abstract class ManagedProvisioningBaseApplication extends Application {
                         getActivityClassForScreen(ManagedProvisioningScreens.POST_ENCRYPT)));
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The process may be killed soon, don't lose the buffered metrics.
+        DeferredMetricsAppender.flushAllAsync();
+    }
+
     public final EncryptionController getEncryptionController() {
         return mEncryptionController;
     }
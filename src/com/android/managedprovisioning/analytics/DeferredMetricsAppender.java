@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.DevicePolicyProtos.DevicePolicyEvent;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends the events of {@link DeferredMetricsWriter} to their file, on a single background
+ * thread.
+ *
+ * <p>Each file is kept open, and its events are buffered. The buffer is written to the file once
+ * it holds {@link #FLUSH_BYTES}, or {@link #FLUSH_DELAY_MILLIS} after the first event it holds,
+ * so that the many events of a provisioning flow don't each open and write the file.
+ *
+ * <p>The buffer is also written, and the file synced, by {@link #flush(File)} before the file is
+ * handed off to {@link DeferredMetricsReader}, by {@link #rotate(File, File)} before it is read,
+ * and by {@link #flushAllAsync()} when the system is low on memory.
+ */
+public final class DeferredMetricsAppender {
+
+    @VisibleForTesting
+    static final int FLUSH_BYTES = 4 * 1024;
+    @VisibleForTesting
+    static final long FLUSH_DELAY_MILLIS = 2000;
+
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private static final Map<File, DeferredMetricsAppender> sAppenders = new HashMap<>();
+    private static final Object sStatsLock = new Object();
+    private static long sEvents;
+    private static long sWrites;
+    private static long sSyncs;
+
+    private final File mFile;
+    // Only used on sExecutor.
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(FLUSH_BYTES);
+    private FileOutputStream mStream;
+    private ScheduledFuture<?> mScheduledWrite;
+
+    private DeferredMetricsAppender(File file) {
+        mFile = file;
+    }
+
+    /** Returns the appender of {@code file}. */
+    static DeferredMetricsAppender forFile(File file) {
+        File key = file.getAbsoluteFile();
+        synchronized (sAppenders) {
+            DeferredMetricsAppender appender = sAppenders.get(key);
+            if (appender == null) {
+                appender = new DeferredMetricsAppender(key);
+                sAppenders.put(key, appender);
+            }
+            return appender;
+        }
+    }
+
+    /** Queues {@code events} to be appended to the file. */
+    void append(List<DevicePolicyEvent> events) {
+        sExecutor.execute(() -> appendOnExecutor(events));
+    }
+
+    /**
+     * Blocks until the events queued for {@code file} are written and synced to it, e.g. before
+     * scheduling the job that reads it.
+     */
+    static void flush(File file) {
+        DeferredMetricsAppender appender = forFile(file);
+        await(sExecutor.submit(() -> appender.writeBuffer(/* sync= */ true)));
+    }
+
+    /**
+     * Blocks until the events queued for {@code file} are written to it, closes it and renames it
+     * to {@code destination}, so that it can be read and deleted. Later events go to a new file.
+     *
+     * <p>The file is renamed on the thread that appends to it, so that no event is appended to it
+     * once it is renamed, and then lost when it is deleted.
+     */
+    static void rotate(File file, File destination) {
+        DeferredMetricsAppender appender = forFile(file);
+        await(sExecutor.submit(() -> appender.rotateOnExecutor(destination)));
+    }
+
+    /**
+     * Writes the buffered events of every file, syncs and closes them, without waiting for it.
+     * Called when the system is low on memory, as the process may be killed soon.
+     */
+    public static void flushAllAsync() {
+        List<DeferredMetricsAppender> appenders;
+        synchronized (sAppenders) {
+            appenders = new ArrayList<>(sAppenders.values());
+        }
+        for (DeferredMetricsAppender appender : appenders) {
+            sExecutor.execute(appender::closeOnExecutor);
+        }
+    }
+
+    /**
+     * Prints how many events were appended, and how many writes and syncs of the file that took.
+     */
+    public static void dump(PrintWriter pw) {
+        synchronized (sStatsLock) {
+            pw.println("Deferred metrics: " + sEvents + " events, " + sWrites + " writes, "
+                    + sSyncs + " syncs");
+        }
+    }
+
+    @VisibleForTesting
+    static long getWrites() {
+        synchronized (sStatsLock) {
+            return sWrites;
+        }
+    }
+
+    @VisibleForTesting
+    static long getSyncs() {
+        synchronized (sStatsLock) {
+            return sSyncs;
+        }
+    }
+
+    private void appendOnExecutor(List<DevicePolicyEvent> events) {
+        for (DevicePolicyEvent event : events) {
+            try {
+                event.writeDelimitedTo(mBuffer);
+            } catch (IOException e) {
+                ProvisionLogger.loge("Failed to write DevicePolicyEvent to OutputStream.", e);
+            }
+        }
+        synchronized (sStatsLock) {
+            sEvents += events.size();
+        }
+        if (mBuffer.size() >= FLUSH_BYTES) {
+            writeBuffer(/* sync= */ false);
+        } else if (mScheduledWrite == null && mBuffer.size() > 0) {
+            mScheduledWrite = sExecutor.schedule(() -> writeBuffer(/* sync= */ false),
+                    FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writeBuffer(boolean sync) {
+        if (mScheduledWrite != null) {
+            mScheduledWrite.cancel(/* mayInterruptIfRunning= */ false);
+            mScheduledWrite = null;
+        }
+        if (mBuffer.size() == 0 && (!sync || mStream == null)) {
+            return;
+        }
+        try {
+            if (mStream == null) {
+                mStream = new FileOutputStream(mFile, /* append= */ true);
+            }
+            if (mBuffer.size() > 0) {
+                mBuffer.writeTo(mStream);
+                synchronized (sStatsLock) {
+                    sWrites++;
+                }
+            }
+            if (sync) {
+                mStream.getFD().sync();
+                synchronized (sStatsLock) {
+                    sSyncs++;
+                }
+            }
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to write deferred metrics to " + mFile, e);
+        } finally {
+            // Events that couldn't be written are dropped, as they were before.
+            mBuffer.reset();
+        }
+    }
+
+    private void closeOnExecutor() {
+        writeBuffer(/* sync= */ true);
+        if (mStream == null) {
+            return;
+        }
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to close OutputStream.", e);
+        }
+        mStream = null;
+    }
+
+    private void rotateOnExecutor(File destination) {
+        closeOnExecutor();
+        if (mFile.exists() && !mFile.renameTo(destination)) {
+            ProvisionLogger.loge("Failed to rename " + mFile + " to " + destination);
+        }
+    }
+
+    private static void await(Future<?> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                ProvisionLogger.loge("Failed to wait for deferred metrics to be written", e);
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
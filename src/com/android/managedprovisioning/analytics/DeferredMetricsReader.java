@@ -51,6 +51,8 @@ public class DeferredMetricsReader {
     }
 
     public void scheduleDumpMetrics(Context context) {
+        // The job may run in another process, after a reboot.
+        DeferredMetricsAppender.flush(mFile);
         final JobInfo jobInfo = new JobInfo.Builder(JOB_ID, PROCESS_METRICS_SERVICE_COMPONENT)
                 .setExtras(PersistableBundle.forPair(EXTRA_FILE_PATH, mFile.getAbsolutePath()))
                 .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
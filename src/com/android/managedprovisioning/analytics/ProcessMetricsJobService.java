@@ -23,32 +23,63 @@ import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.os.AsyncTask;
 import android.os.PersistableBundle;
+import android.util.AtomicFile;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.DevicePolicyProtos.DevicePolicyEvent;
 import com.android.managedprovisioning.common.ProvisionLogger;
 
-
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A {@link JobService} that reads the logs from the {@link InputStream} written to by
  * {@link DeferredMetricsWriter} and writes them using another {@link MetricsWriter}.
  *
+ * <p>The file is first renamed, so that the logs written meanwhile go to a new file. The logs are
+ * replayed in batches, at the rate a {@link TokenBucket} allows. How far the renamed file was
+ * replayed is checkpointed next to it, so that a job that is stopped is rescheduled and resumes
+ * where it stopped.
+ *
  * @see DeferredMetricsWriter
  */
 public class ProcessMetricsJobService extends JobService {
 
     static String EXTRA_FILE_PATH = "extra_file_path";
 
+    /**
+     * statsd cannot handle too many metrics at once, this is the rate the logs used to be
+     * replayed at, one every 10 ms.
+     */
+    private static final double EVENTS_PER_SECOND = 100;
+    private static final int MAX_BATCH_SIZE = 20;
+    @VisibleForTesting
+    static final int CHECKPOINT_INTERVAL_EVENTS = 200;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String REPLAY_SUFFIX = ".replay";
+
     private final MetricsWriter mMetricsWriter;
+    private final TokenBucket mTokenBucket;
+    private ReadDeferredMetricsAsyncTask mTask;
 
     @VisibleForTesting
     ProcessMetricsJobService(MetricsWriter metricsWriter) {
+        this(metricsWriter, new TokenBucket(EVENTS_PER_SECOND, MAX_BATCH_SIZE));
+    }
+
+    @VisibleForTesting
+    ProcessMetricsJobService(MetricsWriter metricsWriter, TokenBucket tokenBucket) {
         mMetricsWriter = metricsWriter;
+        mTokenBucket = checkNotNull(tokenBucket);
     }
 
     public ProcessMetricsJobService() {
@@ -62,7 +93,7 @@ public class ProcessMetricsJobService extends JobService {
             return false;
         }
         final File metrics = new File(extras.getString(EXTRA_FILE_PATH));
-        if (!metrics.exists()) {
+        if (!metrics.exists() && !getReplayFile(metrics).exists()) {
             return false;
         }
         executeReadDeferredMetrics(params, metrics);
@@ -72,12 +103,29 @@ public class ProcessMetricsJobService extends JobService {
     @VisibleForTesting
     void executeReadDeferredMetrics(JobParameters params,
             File metricsFile) {
-        new ReadDeferredMetricsAsyncTask(params, metricsFile, mMetricsWriter).execute();
+        mTask = new ReadDeferredMetricsAsyncTask(params, metricsFile, mMetricsWriter);
+        mTask.execute();
     }
 
     @Override
     public boolean onStopJob(JobParameters params) {
-        return false;
+        if (mTask == null) {
+            return false;
+        }
+        // The task checkpoints how far it got, the job resumes from there when rescheduled.
+        mTask.stop();
+        return true;
+    }
+
+    @VisibleForTesting
+    static File getCheckpointFile(File metricsFile) {
+        return new File(metricsFile.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /** Returns the file {@code metricsFile} is renamed to while its logs are replayed. */
+    @VisibleForTesting
+    static File getReplayFile(File metricsFile) {
+        return new File(metricsFile.getPath() + REPLAY_SUFFIX);
     }
 
     /**
@@ -86,56 +134,152 @@ public class ProcessMetricsJobService extends JobService {
      *
      * <p>The {@link File} will be deleted after they are written to the {@link MetricsWriter}.
      */
-    private class ReadDeferredMetricsAsyncTask extends AsyncTask<Void, Void, Void> {
-        private static final int METRICS_INTERVAL_MILLIS = 10;
+    private class ReadDeferredMetricsAsyncTask extends AsyncTask<Void, Void, Boolean> {
         private final MetricsWriter mMetricsWriter;
         private final File mFile;
+        private final File mReplayFile;
+        private final AtomicFile mCheckpointFile;
         private final JobParameters mJobParameters;
+        private volatile boolean mStopped;
 
         ReadDeferredMetricsAsyncTask(JobParameters params,
                 File file,
                 MetricsWriter metricsWriter) {
             mFile = checkNotNull(file);
+            mReplayFile = getReplayFile(file);
+            mCheckpointFile = new AtomicFile(getCheckpointFile(file));
             mMetricsWriter = metricsWriter;
             mJobParameters = params;
         }
 
+        void stop() {
+            mStopped = true;
+        }
+
+        /**
+         * Returns whether the job should be rescheduled, because it was stopped or interrupted
+         * before all the logs were replayed.
+         */
         @Override
-        protected Void doInBackground(Void... voids) {
-            try (InputStream inputStream =  new FileInputStream(mFile)) {
-                DevicePolicyEvent event;
-                while ((event = DevicePolicyEvent.parseDelimitedFrom(inputStream)) != null) {
-                    delayProcessMetric();
-                    mMetricsWriter.write(devicePolicyEventToLogger(event));
+        protected Boolean doInBackground(Void... voids) {
+            // A job that was stopped left a renamed file, which is resumed first.
+            if (mReplayFile.exists() && replayFile()) {
+                return true;
+            }
+            // Writes the events still buffered, and lets the next ones go to a new file.
+            DeferredMetricsAppender.rotate(mFile, mReplayFile);
+            return mReplayFile.exists() && replayFile();
+        }
+
+        /**
+         * Writes the logs of the renamed file from the checkpoint, and deletes it if they were
+         * all written.
+         *
+         * @return whether the task was stopped or interrupted before the end
+         */
+        private boolean replayFile() {
+            long offset = readCheckpoint();
+            try (FileInputStream fileStream = new FileInputStream(mReplayFile)) {
+                if (offset > fileStream.getChannel().size()) {
+                    ProvisionLogger.logw("Checkpoint is past the end of " + mReplayFile
+                            + ", replaying it from the start");
+                    offset = 0;
+                }
+                fileStream.getChannel().position(offset);
+                CountingInputStream inputStream =
+                        new CountingInputStream(new BufferedInputStream(fileStream), offset);
+                if (replay(inputStream)) {
+                    // Stopped or interrupted, keeps the file to resume from the checkpoint.
+                    return true;
                 }
             } catch (IOException e) {
                 ProvisionLogger.loge(
                         "Could not parse DevicePolicyEvent while reading from stream.", e);
-            } finally {
-                mFile.delete();
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            jobFinished(mJobParameters, false);
+            mReplayFile.delete();
+            mCheckpointFile.delete();
+            return false;
         }
 
         /**
-         * Waits for {@link #METRICS_INTERVAL_MILLIS}.
-         * <p>statsd cannot handle too many metrics at once, so we must wait between each
-         * {@link MetricsWriter#write(DevicePolicyEventLogger...)} call.
+         * Writes the logs from {@code inputStream} until its end, or until the task is stopped.
+         *
+         * @return whether the task was stopped or interrupted before the end
          */
-        private void delayProcessMetric() {
+        private boolean replay(CountingInputStream inputStream) throws IOException {
+            final List<DevicePolicyEventLogger> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            int eventsSinceCheckpoint = 0;
+            while (true) {
+                if (mStopped) {
+                    writeCheckpoint(inputStream.getCount());
+                    return true;
+                }
+                final int batchSize;
+                try {
+                    batchSize = mTokenBucket.acquire(MAX_BATCH_SIZE);
+                } catch (InterruptedException e) {
+                    ProvisionLogger.loge("Thread interrupted while waiting to log metrics.", e);
+                    writeCheckpoint(inputStream.getCount());
+                    return true;
+                }
+                DevicePolicyEvent event = null;
+                batch.clear();
+                while (batch.size() < batchSize
+                        && (event = DevicePolicyEvent.parseDelimitedFrom(inputStream)) != null) {
+                    batch.add(devicePolicyEventToLogger(event));
+                }
+                if (!batch.isEmpty()) {
+                    mMetricsWriter.write(batch.toArray(new DevicePolicyEventLogger[0]));
+                    eventsSinceCheckpoint += batch.size();
+                }
+                if (event == null) {
+                    return false;
+                }
+                if (eventsSinceCheckpoint >= CHECKPOINT_INTERVAL_EVENTS) {
+                    // Bounds how many logs are written again if the process is killed.
+                    writeCheckpoint(inputStream.getCount());
+                    eventsSinceCheckpoint = 0;
+                }
+            }
+        }
+
+        private long readCheckpoint() {
+            if (!mCheckpointFile.exists()) {
+                return 0;
+            }
+            try (DataInputStream in = new DataInputStream(mCheckpointFile.openRead())) {
+                return Math.max(0, in.readLong());
+            } catch (IOException e) {
+                ProvisionLogger.loge("Could not read the checkpoint of " + mFile, e);
+                return 0;
+            }
+        }
+
+        private void writeCheckpoint(long offset) {
+            FileOutputStream stream = null;
             try {
-                Thread.sleep(METRICS_INTERVAL_MILLIS);
-            } catch (InterruptedException e) {
-                ProvisionLogger.loge(
-                        "Thread interrupted while waiting to log metric.", e);
+                stream = mCheckpointFile.startWrite();
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeLong(offset);
+                out.flush();
+                mCheckpointFile.finishWrite(stream);
+            } catch (IOException e) {
+                ProvisionLogger.loge("Could not write the checkpoint of " + mFile, e);
+                if (stream != null) {
+                    mCheckpointFile.failWrite(stream);
+                }
             }
         }
 
+        @Override
+        protected void onPostExecute(Boolean reschedule) {
+            if (mStopped) {
+                // The job is already over, onStopJob asked for it to be rescheduled.
+                return;
+            }
+            jobFinished(mJobParameters, reschedule);
+        }
+
         private DevicePolicyEventLogger devicePolicyEventToLogger(DevicePolicyEvent event) {
             final DevicePolicyEventLogger eventLogger = DevicePolicyEventLogger
                     .createEvent(event.getEventId())
@@ -149,4 +293,46 @@ public class ProcessMetricsJobService extends JobService {
             return eventLogger;
         }
     }
+
+    /**
+     * Stream counting the offset in the file of the bytes read, so that the logs can be resumed
+     * from the last one fully read.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in, long initialCount) {
+            super(in);
+            mCount = initialCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                mCount += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
 }
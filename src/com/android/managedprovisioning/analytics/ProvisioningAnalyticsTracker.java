@@ -46,12 +46,16 @@ import android.app.admin.DevicePolicyManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.stats.devicepolicy.DevicePolicyEnums;
 
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.AbstractProvisioningTask;
+import com.android.managedprovisioning.task.PackageDownloadStats;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -82,6 +86,13 @@ public class ProvisioningAnalyticsTracker {
     private static final int DPC_SETUP_ACTION_PROVISIONING_SUCCESSFUL = 2;
     private static final int DPC_SETUP_ACTION_ADMIN_POLICY_COMPLIANCE = 3;
 
+    // Ids of the events DevicePolicyEnums has no entry for. They are past the ids it uses, and
+    // must be added to it before these events are uploaded. Do not change these values, that
+    // will break historical data.
+    public static final int PROVISIONING_TASK_ATTEMPT_FAILED = 10_001;
+    public static final int PROVISIONING_PACKAGE_DOWNLOAD_STATS = 10_002;
+    public static final int PROVISIONING_PACKAGE_CACHE_LOOKUP = 10_003;
+
     private final MetricsWriter mMetricsWriter;
 
     public ProvisioningAnalyticsTracker(MetricsWriter metricsWriter,
@@ -232,6 +243,98 @@ public class ProvisioningAnalyticsTracker {
                 .setTimePeriod(AnalyticsUtils.getProvisioningTime(mSharedPreferences)));
     }
 
+    /**
+     * Logs an attempt of a provisioning task operation that failed and is retried. Unlike
+     * {@link #logProvisioningError}, provisioning carries on.
+     *
+     * @param task Provisioning task whose attempt failed
+     * @param errorCode Code indicating the type of error the attempt failed with
+     * @param attempt Number of the attempt that failed, 0 for the first one
+     * @param latencyMillis How long the attempt took before it failed
+     */
+    public void logTaskAttemptFailed(AbstractProvisioningTask task, int errorCode, int attempt,
+            long latencyMillis) {
+        mMetricsWriter.write(DevicePolicyEventLogger
+                .createEvent(PROVISIONING_TASK_ATTEMPT_FAILED)
+                .setStrings(AnalyticsUtils.getErrorString(task, errorCode))
+                .setInt(attempt)
+                .setTimePeriod(latencyMillis));
+    }
+
+    /**
+     * Logs a lookup of the management app package in the package cache, as a
+     * {@link #PROVISIONING_PACKAGE_CACHE_LOOKUP} event. Its boolean value tells whether the
+     * package was cached, and its int value is the size in KB of the cached package, which wasn't
+     * downloaded.
+     *
+     * @param hit Whether the package was cached
+     * @param bytesSaved Size of the cached package, 0 if it wasn't cached
+     */
+    public void logPackageCacheLookup(boolean hit, long bytesSaved) {
+        mMetricsWriter.write(DevicePolicyEventLogger
+                .createEvent(PROVISIONING_PACKAGE_CACHE_LOOKUP)
+                .setBoolean(hit)
+                .setInt(toKilobytes(bytesSaved)));
+    }
+
+    /**
+     * Logs how a download of the management app package went, as a
+     * {@link #PROVISIONING_PACKAGE_DOWNLOAD_STATS} event. Its boolean value tells whether the
+     * download succeeded, its int value is the median throughput in KB/s, and its time period is
+     * the length of the download. Its strings are {@code key=value} pairs:
+     * <ul>
+     *     <li>{@code attempt}: the number of the attempt, 0 for the first one
+     *     <li>{@code throughput_p10_kbps}, {@code throughput_p50_kbps} and
+     *     {@code throughput_p90_kbps}: the percentiles of the throughput samples
+     *     <li>{@code stalls} and {@code stalled_ms}: how many reads from the network stalled, and
+     *     for how long in total
+     *     <li>{@code ttfb_ms}: the time until the first bytes arrived
+     *     <li>{@code connections} and {@code failovers}
+     *     <li>{@code kb} and {@code wire_kb}: the size of the package, and what was received for
+     *     it before decoding
+     *     <li>{@code network_ms}, {@code decode_ms} and {@code storage_ms}: how the time was split
+     *     between the network, decoding and the storage
+     *     <li>{@code mirror_<i>_kbps} and {@code mirror_<i>_completed}, for each location
+     *     {@code <i>} the package was downloaded from: how fast it sent, and whether the download
+     *     completed from it, 0 being the primary location
+     * </ul>
+     *
+     * @param stats Stats of the finished download
+     * @param attempt Number of the attempt, 0 for the first one
+     */
+    public void logPackageDownloadStats(PackageDownloadStats stats, int attempt) {
+        List<String> strings = new ArrayList<>(Arrays.asList(
+                "attempt=" + attempt,
+                "throughput_p10_kbps=" + toKilobytes(stats.getThroughputPercentile(10)),
+                "throughput_p50_kbps=" + toKilobytes(stats.getThroughputPercentile(50)),
+                "throughput_p90_kbps=" + toKilobytes(stats.getThroughputPercentile(90)),
+                "stalls=" + stats.getStalls(),
+                "stalled_ms=" + stats.getStalledMillis(),
+                "ttfb_ms=" + stats.getTimeToFirstByteMillis(),
+                "connections=" + stats.getConnections(),
+                "failovers=" + stats.getFailovers(),
+                "kb=" + toKilobytes(stats.getBytes()),
+                "wire_kb=" + toKilobytes(stats.getWireBytes()),
+                "network_ms=" + stats.getNetworkMillis(),
+                "decode_ms=" + stats.getDecodeMillis(),
+                "storage_ms=" + stats.getStorageMillis()));
+        for (PackageDownloadStats.SourceStats source : stats.getSources()) {
+            String mirror = "mirror_" + source.getLocationIndex();
+            strings.add(mirror + "_kbps=" + toKilobytes(source.getThroughput()));
+            strings.add(mirror + "_completed=" + source.isCompleted());
+        }
+        mMetricsWriter.write(DevicePolicyEventLogger
+                .createEvent(PROVISIONING_PACKAGE_DOWNLOAD_STATS)
+                .setBoolean(stats.isSucceeded())
+                .setInt(toKilobytes(stats.getThroughputPercentile(50)))
+                .setTimePeriod(stats.getDurationMillis(SystemClock.elapsedRealtime()))
+                .setStrings(strings.toArray(new String[0])));
+    }
+
+    private static int toKilobytes(long bytes) {
+        return (int) Math.min(bytes / 1024, Integer.MAX_VALUE);
+    }
+
     public void logTimeLoggerEvent(int devicePolicyEvent, int time) {
         mMetricsWriter.write(DevicePolicyEventLogger
                 .createEvent(devicePolicyEvent)
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Rate limiter that lets callers take tokens at a steady rate, with bursts of up to its capacity.
+ *
+ * <p>Callers only wait when the bucket is empty, and then until as many tokens as they asked for
+ * have accumulated, so that they work in batches instead of waiting for each token.
+ */
+final class TokenBucket {
+
+    /** Source of time, replaced in tests so that they don't wait. */
+    @VisibleForTesting
+    interface Ticker {
+        long elapsedRealtimeNanos();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    private static final Ticker SYSTEM_TICKER = new Ticker() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        }
+    };
+
+    private final double mTokensPerNano;
+    private final int mCapacity;
+    private final Ticker mTicker;
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    TokenBucket(double tokensPerSecond, int capacity) {
+        this(tokensPerSecond, capacity, SYSTEM_TICKER);
+    }
+
+    @VisibleForTesting
+    TokenBucket(double tokensPerSecond, int capacity, Ticker ticker) {
+        if (tokensPerSecond <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid rate " + tokensPerSecond
+                    + " or capacity " + capacity);
+        }
+        mTokensPerNano = tokensPerSecond / 1e9;
+        mCapacity = capacity;
+        mTicker = ticker;
+        mTokens = capacity;
+        mLastRefillNanos = ticker.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Takes up to {@code max} tokens. If there are none, waits until there are {@code max}, or as
+     * many as the bucket holds.
+     *
+     * @return the number of tokens taken, at least 1
+     */
+    int acquire(int max) throws InterruptedException {
+        refill();
+        if (mTokens < 1) {
+            int wanted = Math.max(1, Math.min(max, mCapacity));
+            mTicker.sleepNanos((long) Math.ceil((wanted - mTokens) / mTokensPerNano));
+            refill();
+        }
+        int taken = (int) Math.max(1, Math.min(max, Math.floor(mTokens)));
+        mTokens -= taken;
+        return taken;
+    }
+
+    private void refill() {
+        long nowNanos = mTicker.elapsedRealtimeNanos();
+        mTokens = Math.min(mCapacity, mTokens + (nowNanos - mLastRefillNanos) * mTokensPerNano);
+        mLastRefillNanos = nowNanos;
+    }
+}
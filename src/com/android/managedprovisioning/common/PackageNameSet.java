@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of package names, stored as a sorted array of names interned by
+ * {@link PackageNameTable}.
+ *
+ * <p>It takes a reference per package instead of a hash set entry per package, and the set
+ * operations are linear merges of the sorted names, so that comparing the system apps of every
+ * user on an OTA stays cheap. As it is a {@link java.util.Set}, it can be handed as is to the APIs
+ * that take package names.
+ */
+public final class PackageNameSet extends AbstractSet<String> {
+
+    public static final PackageNameSet EMPTY = new PackageNameSet(new String[0]);
+
+    /** The names of the packages, sorted and without duplicates. */
+    private final String[] mNames;
+
+    private PackageNameSet(String[] names) {
+        mNames = names;
+    }
+
+    /** Returns the set of the given package names. */
+    public static PackageNameSet of(Collection<String> packageNames) {
+        if (packageNames instanceof PackageNameSet) {
+            return (PackageNameSet) packageNames;
+        }
+        if (packageNames.isEmpty()) {
+            return EMPTY;
+        }
+        String[] names = new String[packageNames.size()];
+        int count = 0;
+        for (String packageName : packageNames) {
+            names[count++] = PackageNameTable.intern(packageName);
+        }
+        Arrays.sort(names);
+        return new PackageNameSet(dedup(names));
+    }
+
+    @Override
+    public int size() {
+        return mNames.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mNames.length == 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && Arrays.binarySearch(mNames, o) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < mNames.length;
+            }
+
+            @Override
+            public String next() {
+                if (mIndex >= mNames.length) {
+                    throw new NoSuchElementException();
+                }
+                return mNames[mIndex++];
+            }
+        };
+    }
+
+    /** Returns the packages that are in this set or in {@code other}. */
+    public PackageNameSet union(PackageNameSet other) {
+        String[] result = new String[mNames.length + other.mNames.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < mNames.length && j < other.mNames.length) {
+            int comparison = mNames[i].compareTo(other.mNames[j]);
+            if (comparison < 0) {
+                result[count++] = mNames[i++];
+            } else if (comparison > 0) {
+                result[count++] = other.mNames[j++];
+            } else {
+                result[count++] = mNames[i++];
+                j++;
+            }
+        }
+        while (i < mNames.length) {
+            result[count++] = mNames[i++];
+        }
+        while (j < other.mNames.length) {
+            result[count++] = other.mNames[j++];
+        }
+        return create(result, count);
+    }
+
+    /** Returns the packages that are in this set and in {@code other}. */
+    public PackageNameSet intersect(PackageNameSet other) {
+        String[] result = new String[Math.min(mNames.length, other.mNames.length)];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < mNames.length && j < other.mNames.length) {
+            int comparison = mNames[i].compareTo(other.mNames[j]);
+            if (comparison < 0) {
+                i++;
+            } else if (comparison > 0) {
+                j++;
+            } else {
+                result[count++] = mNames[i++];
+                j++;
+            }
+        }
+        return create(result, count);
+    }
+
+    /** Returns the packages that are in this set but not in {@code other}. */
+    public PackageNameSet minus(PackageNameSet other) {
+        String[] result = new String[mNames.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < mNames.length && j < other.mNames.length) {
+            int comparison = mNames[i].compareTo(other.mNames[j]);
+            if (comparison < 0) {
+                result[count++] = mNames[i++];
+            } else if (comparison > 0) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        while (i < mNames.length) {
+            result[count++] = mNames[i++];
+        }
+        return create(result, count);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof PackageNameSet) {
+            return Arrays.equals(mNames, ((PackageNameSet) o).mNames);
+        }
+        return super.equals(o);
+    }
+
+    private static PackageNameSet create(String[] names, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        return new PackageNameSet(count == names.length ? names : Arrays.copyOf(names, count));
+    }
+
+    private static String[] dedup(String[] sortedNames) {
+        int count = 1;
+        for (int i = 1; i < sortedNames.length; i++) {
+            if (!sortedNames[i].equals(sortedNames[count - 1])) {
+                sortedNames[count++] = sortedNames[i];
+            }
+        }
+        return count == sortedNames.length ? sortedNames : Arrays.copyOf(sortedNames, count);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide table of the package names held by {@link PackageNameSet}s, so that each name is
+ * kept once however many users and snapshots it appears in.
+ *
+ * <p>Names are only referenced weakly, and leave the table once no set holds them anymore.
+ */
+public final class PackageNameTable {
+
+    private static final WeakHashMap<String, WeakReference<String>> sNames = new WeakHashMap<>();
+
+    private PackageNameTable() {}
+
+    /** Returns the instance of {@code packageName} kept in the table, adding it if needed. */
+    static synchronized String intern(String packageName) {
+        WeakReference<String> reference = sNames.get(packageName);
+        String name = reference == null ? null : reference.get();
+        if (name == null) {
+            name = packageName;
+            sNames.put(name, new WeakReference<>(name));
+        }
+        return name;
+    }
+
+    /** Returns how many package names are in the table. */
+    public static synchronized int size() {
+        return sNames.size();
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Sets of package names, each stored under a key, in a compact binary file.
+ *
+ * <p>The file starts with a header, followed by records. Each record has a type, the length of
+ * its payload and the CRC32 of its payload, and holds the build fingerprint and the time it was
+ * written. The first record holds all the sets, and is written with {@link AtomicFile}. Each
+ * later record holds the packages added to and removed from each set since, and is appended to
+ * the file, so that an update doesn't rewrite the whole sets. After {@link #MAX_DELTA_RECORDS}
+ * of them, the sets are rewritten as a single record.
+ *
+ * <p>A record that was only partly appended when the process died fails its checksum, and the
+ * sets are read as they were before that record.
+ */
+class PackageSetFile {
+
+    @VisibleForTesting
+    static final int MAX_DELTA_RECORDS = 8;
+
+    private static final int MAGIC = 0x4d505053; // "MPPS"
+    // Version 1 held a single set, without the fingerprint and the time.
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 9;
+    private static final byte RECORD_FULL = 0;
+    private static final byte RECORD_DELTA = 1;
+
+    private final File mFile;
+    private final AtomicFile mAtomicFile;
+    /** The number of records appended since the last full record, as last read or written. */
+    private int mDeltaRecords;
+    /** The length of the complete records, as last read or written. */
+    private long mValidLength;
+
+    PackageSetFile(File file) {
+        mFile = checkNotNull(file);
+        mAtomicFile = new AtomicFile(file);
+    }
+
+    boolean exists() {
+        return mAtomicFile.exists();
+    }
+
+    /**
+     * Returns the sets stored in the file, as of its last complete record.
+     *
+     * @throws IOException if the file can't be read, or has no complete record
+     */
+    Content read() throws IOException {
+        // Also restores the last full write if it was interrupted.
+        byte[] bytes = mAtomicFile.readFully();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < FILE_HEADER_LENGTH || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a package set file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported package set file version " + version);
+        }
+
+        Content content = null;
+        int deltaRecords = 0;
+        long validLength = FILE_HEADER_LENGTH;
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            byte type = buffer.get();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            int payloadStart = buffer.position();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, payloadStart, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream payload = new DataInputStream(
+                    new ByteArrayInputStream(bytes, payloadStart, length));
+            if (type == RECORD_FULL) {
+                content = readFullRecord(payload);
+                deltaRecords = 0;
+            } else if (type == RECORD_DELTA && content != null) {
+                readDeltaRecord(payload, content);
+                deltaRecords++;
+            } else {
+                throw new IOException("Unexpected package set record type " + type);
+            }
+            buffer.position(payloadStart + length);
+            validLength = buffer.position();
+        }
+        if (content == null) {
+            throw new IOException("Package set file has no complete record");
+        }
+        if (validLength < bytes.length) {
+            ProvisionLogger.logw("Package set " + mFile + " ends with an incomplete record,"
+                    + " ignoring it");
+        }
+        mDeltaRecords = deltaRecords;
+        mValidLength = validLength;
+        return content;
+    }
+
+    /**
+     * Stores {@code content}, by appending what changed since {@code previous} if possible.
+     *
+     * @param previous the content that was last read from or written to the file, or {@code null}
+     *                 if the file must be rewritten
+     */
+    void write(Content previous, Content content) throws IOException {
+        if (previous == null || mDeltaRecords >= MAX_DELTA_RECORDS) {
+            writeFull(content);
+        } else {
+            appendDelta(previous, content);
+        }
+    }
+
+    void delete() {
+        mAtomicFile.delete();
+    }
+
+    private void writeFull(Content content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeUTF(content.mFingerprint);
+        payloadOut.writeLong(content.mTimestampMillis);
+        payloadOut.writeInt(content.mSets.size());
+        for (Map.Entry<String, PackageNameSet> entry : content.mSets.entrySet()) {
+            payloadOut.writeUTF(entry.getKey());
+            writeNames(payloadOut, entry.getValue());
+        }
+        payloadOut.flush();
+        writeRecord(out, RECORD_FULL, payload.toByteArray());
+
+        FileOutputStream stream = mAtomicFile.startWrite();
+        try {
+            stream.write(bytes.toByteArray());
+            mAtomicFile.finishWrite(stream);
+        } catch (IOException e) {
+            mAtomicFile.failWrite(stream);
+            throw e;
+        }
+        mDeltaRecords = 0;
+        mValidLength = bytes.size();
+    }
+
+    private void appendDelta(Content previous, Content content) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        // The fingerprint is only repeated when an OTA changed it.
+        boolean fingerprintChanged = !content.mFingerprint.equals(previous.mFingerprint);
+        payloadOut.writeBoolean(fingerprintChanged);
+        if (fingerprintChanged) {
+            payloadOut.writeUTF(content.mFingerprint);
+        }
+        payloadOut.writeLong(content.mTimestampMillis);
+        int changedSets = 0;
+        ByteArrayOutputStream sets = new ByteArrayOutputStream();
+        DataOutputStream setsOut = new DataOutputStream(sets);
+        for (Map.Entry<String, PackageNameSet> entry : content.mSets.entrySet()) {
+            PackageNameSet previousSet = previous.mSets.get(entry.getKey());
+            if (entry.getValue().equals(previousSet)) {
+                continue;
+            }
+            if (previousSet == null) {
+                previousSet = PackageNameSet.EMPTY;
+            }
+            changedSets++;
+            setsOut.writeUTF(entry.getKey());
+            writeNames(setsOut, entry.getValue().minus(previousSet));
+            writeNames(setsOut, previousSet.minus(entry.getValue()));
+        }
+        setsOut.flush();
+        payloadOut.writeInt(changedSets);
+        payloadOut.write(sets.toByteArray());
+        payloadOut.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRecord(new DataOutputStream(bytes), RECORD_DELTA, payload.toByteArray());
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            // Drops what is left of a record that was only partly appended.
+            file.setLength(mValidLength);
+            file.seek(mValidLength);
+            file.write(bytes.toByteArray());
+            file.getFD().sync();
+        }
+        mDeltaRecords++;
+        mValidLength += bytes.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] payload)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        out.flush();
+    }
+
+    private static void writeNames(DataOutputStream out, PackageNameSet names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static Content readFullRecord(DataInputStream in) throws IOException {
+        Content content = new Content(in.readUTF(), in.readLong(), new HashMap<>());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            content.mSets.put(key, readNames(in));
+        }
+        return content;
+    }
+
+    private static void readDeltaRecord(DataInputStream in, Content content) throws IOException {
+        if (in.readBoolean()) {
+            content.mFingerprint = in.readUTF();
+        }
+        content.mTimestampMillis = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            PackageNameSet packages = content.mSets.getOrDefault(key, PackageNameSet.EMPTY);
+            PackageNameSet added = readNames(in);
+            PackageNameSet removed = readNames(in);
+            content.mSets.put(key, packages.union(added).minus(removed));
+        }
+    }
+
+    private static PackageNameSet readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return PackageNameSet.of(names);
+    }
+
+    /** The sets stored in the file, with the build fingerprint and the time they were written. */
+    static final class Content {
+        final Map<String, PackageNameSet> mSets;
+        String mFingerprint;
+        long mTimestampMillis;
+
+        Content(String fingerprint, long timestampMillis, Map<String, PackageNameSet> sets) {
+            mFingerprint = fingerprint;
+            mTimestampMillis = timestampMillis;
+            mSets = sets;
+        }
+    }
+}
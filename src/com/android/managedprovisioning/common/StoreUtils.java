@@ -30,6 +30,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.IllformedLocaleException;
 import java.util.Locale;
 import java.util.function.Function;
@@ -49,6 +50,9 @@ public class StoreUtils {
     public static final String DIR_PROVISIONING_PARAMS_FILE_CACHE =
             "provisioning_params_file_cache";
 
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
     private static final String ATTR_ACCOUNT_NAME = "account-name";
     private static final String ATTR_ACCOUNT_TYPE = "account-type";
 
@@ -199,15 +203,39 @@ public class StoreUtils {
         }
     }
 
+    /**
+     * Copies {@code in} to {@code out}.
+     *
+     * <p>Between file streams, the data is transferred with {@link FileChannel#transferTo}, which
+     * lets the kernel copy it without going through a buffer on the Java heap.
+     */
     public static void copyStream(final InputStream in,
             final OutputStream out) throws IOException {
-        final byte buffer[] = new byte[1024];
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            transferFileChannel(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel());
+        }
+        // Copies what could not be transferred, e.g. everything if the input is a pipe.
+        final byte buffer[] = new byte[COPY_BUFFER_SIZE];
         int bytesReadCount;
         while ((bytesReadCount = in.read(buffer)) != -1) {
             out.write(buffer, 0, bytesReadCount);
         }
     }
 
+    private static void transferFileChannel(FileChannel in, FileChannel out) throws IOException {
+        final long start = in.position();
+        long position = start;
+        long transferredCount;
+        // transferTo() stops at the size of the input, which is 0 if it isn't a regular file.
+        while ((transferredCount = in.transferTo(position, TRANSFER_CHUNK_SIZE, out)) > 0) {
+            position += transferredCount;
+        }
+        if (position != start) {
+            in.position(position);
+        }
+    }
+
     public interface TextFileReader {
         String read(File file) throws IOException;
     }
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.UserManager;
+import android.util.Xml;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the sets of packages that are tracked for a user across OTAs, e.g. the system apps and
+ * the default cross-profile apps, in a single file per user serial number.
+ *
+ * <p>Each file is a {@link PackageSetFile}, so that an update only appends the packages added
+ * to and removed from each set.
+ *
+ * <p>The content of each file is cached, so that the tasks run for a user on an OTA read it
+ * once. The sets are cached as {@link PackageNameSet}s, so that the package names all the users
+ * share are only kept once. Between {@link #beginBatch()} and {@link #commitBatch()}, updates
+ * are only kept in memory and are then written with a single record per user.
+ *
+ * <p>Sets stored as XML by earlier versions are still read, and deleted once the sets of the user
+ * are written.
+ */
+public final class UserAppStateStore {
+
+    /** The system apps that were on the device, see {@code SystemAppsSnapshot}. */
+    public static final String KEY_SYSTEM_APPS = "system_apps";
+    /** The default cross-profile apps, see {@code CrossProfileAppsSnapshot}. */
+    public static final String KEY_CROSS_PROFILE_APPS = "cross_profile_apps";
+
+    private static final String FOLDER_NAME = "app_state";
+    private static final String LEGACY_SYSTEM_APPS_FOLDER_NAME = "system_apps_v2";
+    private static final String LEGACY_CROSS_PROFILE_APPS_FOLDER_NAME = "cross_profile_apps";
+    private static final String TAG_PACKAGE_LIST_ITEM = "item";
+    private static final String ATTR_VALUE = "value";
+
+    /** The state of each user, by file. */
+    private static final Map<File, UserState> sStates = new HashMap<>();
+    private static int sBatchDepth;
+    private static int sReads;
+    private static int sCacheHits;
+    private static int sWrites;
+
+    private UserAppStateStore() {}
+
+    /**
+     * Returns whether a set of packages is stored under {@code key} for the given user.
+     */
+    public static synchronized boolean hasPackages(Context context, int userId, String key) {
+        return getState(context, userId).mCurrent.containsKey(key);
+    }
+
+    /**
+     * Returns the set of packages stored under {@code key} for the given user, or an empty set if
+     * there is none.
+     */
+    public static synchronized PackageNameSet getPackages(
+            Context context, int userId, String key) {
+        return getState(context, userId).mCurrent.getOrDefault(key, PackageNameSet.EMPTY);
+    }
+
+    /**
+     * Stores {@code packages} under {@code key} for the given user. They are written at once,
+     * or by {@link #commitBatch()} if a batch was begun.
+     */
+    public static synchronized void putPackages(
+            Context context, int userId, String key, PackageNameSet packages) {
+        UserState state = getState(context, userId);
+        state.mCurrent.put(key, packages);
+        state.mDirty = true;
+        if (sBatchDepth == 0) {
+            write(state);
+        }
+    }
+
+    /**
+     * Keeps the updates in memory until {@link #commitBatch()} is called, so that all the
+     * updates of a user are written together.
+     */
+    public static synchronized void beginBatch() {
+        sBatchDepth++;
+    }
+
+    /**
+     * Writes the updates made since {@link #beginBatch()}, with a single record per user.
+     */
+    public static synchronized void commitBatch() {
+        if (sBatchDepth == 0) {
+            throw new IllegalStateException("No batch was begun");
+        }
+        if (--sBatchDepth > 0) {
+            return;
+        }
+        for (UserState state : sStates.values()) {
+            if (state.mDirty) {
+                write(state);
+            }
+        }
+    }
+
+    /**
+     * Prints how often the files were read and written, and the metadata of the cached users.
+     */
+    public static synchronized void dump(PrintWriter pw) {
+        pw.println("User app state: " + sReads + " reads, " + sCacheHits + " cache hits, "
+                + sWrites + " writes");
+        for (UserState state : sStates.values()) {
+            pw.println("  " + state.mFile.getName() + ": " + state.mCurrent.keySet()
+                    + ", fingerprint " + state.mFingerprint + ", written at "
+                    + state.mTimestampMillis);
+        }
+    }
+
+    @VisibleForTesting
+    public static File getFile(Context context, int userSerialNumber) {
+        return new File(new File(context.getFilesDir(), FOLDER_NAME),
+                userSerialNumber + ".state");
+    }
+
+    @VisibleForTesting
+    static synchronized int getReads() {
+        return sReads;
+    }
+
+    @VisibleForTesting
+    static synchronized int getWrites() {
+        return sWrites;
+    }
+
+    @VisibleForTesting
+    public static synchronized void clear() {
+        sStates.clear();
+        sBatchDepth = 0;
+        sReads = 0;
+        sCacheHits = 0;
+        sWrites = 0;
+    }
+
+    private static UserState getState(Context context, int userId) {
+        int userSerialNumber = getUserSerialNumber(context, userId);
+        File file = getFile(context, userSerialNumber).getAbsoluteFile();
+        UserState state = sStates.get(file);
+        if (state != null && (state.mDirty || state.matches())) {
+            sCacheHits++;
+            return state;
+        }
+        state = read(context, file, userSerialNumber);
+        sStates.put(file, state);
+        return state;
+    }
+
+    private static UserState read(Context context, File file, int userSerialNumber) {
+        long startMillis = SystemClock.elapsedRealtime();
+        sReads++;
+        UserState state = new UserState(file, userSerialNumber, context.getFilesDir());
+        if (state.mSetFile.exists()) {
+            try {
+                PackageSetFile.Content content = state.mSetFile.read();
+                state.mCommitted.putAll(content.mSets);
+                state.mFingerprint = content.mFingerprint;
+                state.mTimestampMillis = content.mTimestampMillis;
+            } catch (IOException e) {
+                ProvisionLogger.loge("Rewriting unreadable app state " + file, e);
+                state = new UserState(file, userSerialNumber, context.getFilesDir());
+                state.mNeedsFullRecord = true;
+            }
+        } else {
+            readLegacyFiles(state);
+        }
+        state.mCurrent.putAll(state.mCommitted);
+        state.recordFileAttributes();
+        ProvisionLogger.logd("Read app state of user " + userSerialNumber + " in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        return state;
+    }
+
+    private static void write(UserState state) {
+        long startMillis = SystemClock.elapsedRealtime();
+        PackageSetFile.Content previous = state.mNeedsFullRecord ? null
+                : new PackageSetFile.Content(
+                        state.mFingerprint, state.mTimestampMillis, state.mCommitted);
+        PackageSetFile.Content content = new PackageSetFile.Content(
+                Build.FINGERPRINT, System.currentTimeMillis(), state.mCurrent);
+        try {
+            state.mFile.getParentFile().mkdirs(); // Creating the folder if it does not exist
+            state.mSetFile.write(previous, content);
+            state.mFingerprint = content.mFingerprint;
+            state.mTimestampMillis = content.mTimestampMillis;
+            state.mCommitted.clear();
+            state.mCommitted.putAll(state.mCurrent);
+            state.mDirty = false;
+            state.mNeedsFullRecord = false;
+            state.recordFileAttributes();
+            sWrites++;
+            // The XML files of an earlier version are superseded.
+            state.getLegacyFile(LEGACY_SYSTEM_APPS_FOLDER_NAME).delete();
+            state.getLegacyFile(LEGACY_CROSS_PROFILE_APPS_FOLDER_NAME).delete();
+        } catch (IOException e) {
+            ProvisionLogger.loge("IOException trying to write the app state " + state.mFile, e);
+            // The file may be partly written, don't append to it.
+            state.mNeedsFullRecord = true;
+            return;
+        }
+        ProvisionLogger.logd("Wrote app state of user " + state.mUserSerialNumber + " in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+    }
+
+    private static void readLegacyFiles(UserState state) {
+        File systemAppsFile = state.getLegacyFile(LEGACY_SYSTEM_APPS_FOLDER_NAME);
+        if (systemAppsFile.exists()) {
+            state.mCommitted.put(KEY_SYSTEM_APPS,
+                    PackageNameSet.of(readPackageListXml(systemAppsFile)));
+        }
+        File crossProfileAppsFile = state.getLegacyFile(LEGACY_CROSS_PROFILE_APPS_FOLDER_NAME);
+        if (crossProfileAppsFile.exists()) {
+            state.mCommitted.put(KEY_CROSS_PROFILE_APPS,
+                    PackageNameSet.of(readPackageListXml(crossProfileAppsFile)));
+        }
+        state.mNeedsFullRecord = true;
+    }
+
+    /** Reads a set of packages stored as XML by an earlier version. */
+    @VisibleForTesting
+    static Set<String> readPackageListXml(File file) {
+        Set<String> result = new HashSet<>();
+        try (FileInputStream stream = new FileInputStream(file)) {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(stream, null);
+            parser.next();
+
+            int type;
+            int outerDepth = parser.getDepth();
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                    && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                    continue;
+                }
+                String tag = parser.getName();
+                if (tag.equals(TAG_PACKAGE_LIST_ITEM)) {
+                    result.add(parser.getAttributeValue(null, ATTR_VALUE));
+                } else {
+                    ProvisionLogger.loge("Unknown tag: " + tag);
+                }
+            }
+        } catch (IOException e) {
+            ProvisionLogger.loge("IOException trying to read the packages in " + file, e);
+        } catch (XmlPullParserException e) {
+            ProvisionLogger.loge("XmlPullParserException trying to read the packages in " + file,
+                    e);
+        }
+        return result;
+    }
+
+    private static int getUserSerialNumber(Context context, int userId) {
+        UserManager userManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        int userSerialNumber = userManager.getUserSerialNumber(userId);
+        if (userSerialNumber == -1 ) {
+            throw new IllegalArgumentException("Invalid userId : " + userId);
+        }
+        return userSerialNumber;
+    }
+
+    private static final class UserState {
+        final File mFile;
+        final PackageSetFile mSetFile;
+        final int mUserSerialNumber;
+        final File mFilesDir;
+        /** The sets as written to the file. */
+        final Map<String, PackageNameSet> mCommitted = new HashMap<>();
+        /** The sets including the updates that weren't written yet. */
+        final Map<String, PackageNameSet> mCurrent = new HashMap<>();
+        String mFingerprint;
+        long mTimestampMillis;
+        boolean mDirty;
+        /** Whether the next write must rewrite the file rather than append to it. */
+        boolean mNeedsFullRecord;
+        long mLength;
+        long mLastModified;
+
+        UserState(File file, int userSerialNumber, File filesDir) {
+            mFile = file;
+            mSetFile = new PackageSetFile(file);
+            mUserSerialNumber = userSerialNumber;
+            mFilesDir = filesDir;
+        }
+
+        File getLegacyFile(String folderName) {
+            return new File(new File(mFilesDir, folderName), mUserSerialNumber + ".xml");
+        }
+
+        void recordFileAttributes() {
+            mLength = mFile.length();
+            mLastModified = mFile.lastModified();
+        }
+
+        /**
+         * Returns whether the cached sets can still be used: they were read from or written to
+         * the file, which wasn't changed since.
+         */
+        boolean matches() {
+            return !mNeedsFullRecord
+                    && mFile.length() == mLength && mFile.lastModified() == mLastModified;
+        }
+    }
+}
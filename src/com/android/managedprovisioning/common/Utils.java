@@ -59,6 +59,7 @@ import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
+import android.util.ArrayMap;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewTreeObserver;
@@ -81,11 +82,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.function.Consumer;
 
 /**
@@ -94,6 +95,15 @@ import java.util.function.Consumer;
 public class Utils {
     public static final String SHA256_TYPE = "SHA-256";
 
+    // Files are hashed in chunks of this size, large enough for the per-read overhead not to
+    // matter.
+    @VisibleForTesting
+    static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    // Looking up a MessageDigest is costly compared to hashing a signature, so they're reused.
+    private static final ThreadLocal<Map<String, MessageDigest>> sMessageDigests =
+            ThreadLocal.withInitial(ArrayMap::new);
+
     // value chosen to match UX designs; when updating check status bar icon colors
     private static final int THRESHOLD_BRIGHT_COLOR = 190;
 
@@ -108,8 +118,8 @@ public class Utils {
      * @param ipm an {@link IPackageManager} object
      * @param userId the id of the user to check the apps for
      */
-    public Set<String> getCurrentSystemApps(IPackageManager ipm, int userId) {
-        Set<String> apps = new HashSet<>();
+    public PackageNameSet getCurrentSystemApps(IPackageManager ipm, int userId) {
+        List<String> apps = new ArrayList<>();
         List<ApplicationInfo> aInfos = null;
         try {
             aInfos = ipm.getInstalledApplications(
@@ -123,7 +133,7 @@ public class Utils {
                 apps.add(aInfo.packageName);
             }
         }
-        return apps;
+        return PackageNameSet.of(apps);
     }
 
     /**
@@ -616,56 +626,78 @@ public class Utils {
      */
     @Nullable
     public byte[] computeHashOfByteArray(byte[] bytes) {
-        try {
-            MessageDigest md = MessageDigest.getInstance(SHA256_TYPE);
-            md.update(bytes);
-            return md.digest();
-        } catch (NoSuchAlgorithmException e) {
-            ProvisionLogger.loge("Hashing algorithm " + SHA256_TYPE + " not supported.", e);
+        MessageDigest md = getMessageDigest(SHA256_TYPE);
+        if (md == null) {
             return null;
         }
+        return md.digest(bytes);
     }
 
     /**
      * Computes a hash of a file with a spcific hash algorithm.
      */
-    // TODO: Add unit tests
     @Nullable
     public byte[] computeHashOfFile(String fileLocation, String hashType) {
-        InputStream fis = null;
-        MessageDigest md;
-        byte hash[] = null;
-        try {
-            md = MessageDigest.getInstance(hashType);
-        } catch (NoSuchAlgorithmException e) {
-            ProvisionLogger.loge("Hashing algorithm " + hashType + " not supported.", e);
-            return null;
-        }
-        try {
-            fis = new FileInputStream(fileLocation);
+        Map<String, byte[]> hashes = computeHashesOfFile(fileLocation, hashType);
+        return hashes == null ? null : hashes.get(hashType);
+    }
 
-            byte[] buffer = new byte[256];
-            int n = 0;
-            while (n != -1) {
-                n = fis.read(buffer);
-                if (n > 0) {
+    /**
+     * Computes hashes of a file with several hash algorithms, e.g. {@link #SHA256_TYPE} and
+     * SHA-1, reading the file only once.
+     *
+     * @return the hashes keyed by hash algorithm, or {@code null} if one of the algorithms is not
+     * supported or the file can't be read
+     */
+    @Nullable
+    public Map<String, byte[]> computeHashesOfFile(String fileLocation, String... hashTypes) {
+        // Keyed by hash type, so that a hash type given twice is only computed once.
+        Map<String, MessageDigest> digests = new ArrayMap<>(hashTypes.length);
+        for (String hashType : hashTypes) {
+            MessageDigest md = getMessageDigest(hashType);
+            if (md == null) {
+                return null;
+            }
+            digests.put(hashType, md);
+        }
+        try (InputStream fis = new FileInputStream(fileLocation)) {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            int n;
+            while ((n = fis.read(buffer)) != -1) {
+                for (MessageDigest md : digests.values()) {
                     md.update(buffer, 0, n);
                 }
             }
-            hash = md.digest();
         } catch (IOException e) {
             ProvisionLogger.loge("IO error.", e);
-        } finally {
-            // Close input stream quietly.
+            return null;
+        }
+        Map<String, byte[]> hashes = new ArrayMap<>(digests.size());
+        for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().digest());
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns this thread's {@link MessageDigest} for {@code hashType}, reset, or {@code null} if
+     * the hash algorithm is not supported.
+     */
+    @Nullable
+    private static MessageDigest getMessageDigest(String hashType) {
+        Map<String, MessageDigest> digests = sMessageDigests.get();
+        MessageDigest md = digests.get(hashType);
+        if (md == null) {
             try {
-                if (fis != null) {
-                    fis.close();
-                }
-            } catch (IOException e) {
-                // Ignore.
+                md = MessageDigest.getInstance(hashType);
+            } catch (NoSuchAlgorithmException e) {
+                ProvisionLogger.loge("Hashing algorithm " + hashType + " not supported.", e);
+                return null;
             }
+            digests.put(hashType, md);
         }
-        return hash;
+        md.reset();
+        return md;
     }
 
     /**
@@ -34,6 +34,7 @@ import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.model.ProvisioningParamsWriter;
 import com.android.managedprovisioning.provisioning.Constants;
 
 import java.io.File;
@@ -191,7 +192,7 @@ public final class FinalizationController {
     final void clearParamsFile() {
         final File file = mProvisioningParamsUtils.getProvisioningParamsFile(mActivity);
         if (file != null) {
-            file.delete();
+            ProvisioningParamsWriter.delete(file);
         }
     }
 
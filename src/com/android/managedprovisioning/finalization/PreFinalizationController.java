@@ -27,6 +27,7 @@ import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.model.ProvisioningParamsWriter;
 
 /**
  * This controller is invoked, via a call to
@@ -118,6 +119,8 @@ public final class PreFinalizationController {
     }
 
     private void storeProvisioningParams(ProvisioningParams params) {
-        params.save(mProvisioningParamsUtils.getProvisioningParamsFile(mContext));
+        // ProvisioningActivity waits for the flush before it hands off to the DPC.
+        ProvisioningParamsWriter.saveAsync(
+                params, mProvisioningParamsUtils.getProvisioningParamsFile(mContext));
     }
 }
@@ -32,7 +32,10 @@ import com.android.internal.annotations.Immutable;
 import com.android.managedprovisioning.common.PersistableBundlable;
 import com.android.managedprovisioning.common.StoreUtils;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -48,6 +51,22 @@ public final class PackageDownloadInfo extends PersistableBundlable {
     // Always download packages if no minimum version given.
     public static final int DEFAULT_MINIMUM_VERSION = Integer.MAX_VALUE;
 
+    /**
+     * Extra with urls the package can also be downloaded from, separated by whitespace. It is
+     * parsed along the platform's download extras.
+     */
+    public static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS =
+            "com.android.managedprovisioning.extra."
+                    + "PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS";
+
+    /**
+     * Extra with the split apks installed along the package, separated by whitespace. Each is
+     * given as {@code <checksum>:<url>}, the checksum being the url-safe Base64 encoded SHA-256
+     * hash of the split apk.
+     */
+    public static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS =
+            "com.android.managedprovisioning.extra.PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS";
+
     public static final Parcelable.Creator<PackageDownloadInfo> CREATOR
             = new Parcelable.Creator<PackageDownloadInfo>() {
         @Override
@@ -66,6 +85,16 @@ public final class PackageDownloadInfo extends PersistableBundlable {
      * location specified.
      */
     public final String location;
+    /**
+     * Other urls the same package can be downloaded from, in order of preference, or an empty
+     * list. The package downloaded from any of them is verified against the same checksum.
+     */
+    public final List<String> mirrorLocations;
+    /**
+     * Split apks of the package, such as config or ABI splits, installed in the same session as
+     * the package. Empty if the package is a single apk.
+     */
+    public final List<Split> splits;
     /** Cookie header for http request. */
     @Nullable
     public final String cookieHeader;
@@ -81,6 +110,10 @@ public final class PackageDownloadInfo extends PersistableBundlable {
 
     private PackageDownloadInfo(Builder builder) {
         location = builder.mLocation;
+        mirrorLocations = Collections.unmodifiableList(new ArrayList<>(
+                checkNotNull(builder.mMirrorLocations, "mirror locations can't be null")));
+        splits = Collections.unmodifiableList(new ArrayList<>(
+                checkNotNull(builder.mSplits, "splits can't be null")));
         cookieHeader = builder.mCookieHeader;
         packageChecksum = checkNotNull(builder.mPackageChecksum, "package checksum can't be null");
         signatureChecksum = checkNotNull(builder.mSignatureChecksum,
@@ -99,12 +132,72 @@ public final class PackageDownloadInfo extends PersistableBundlable {
         if (TextUtils.isEmpty(location)) {
             throw new IllegalArgumentException("Download location must not be empty.");
         }
+        for (String mirrorLocation : mirrorLocations) {
+            if (TextUtils.isEmpty(mirrorLocation)) {
+                throw new IllegalArgumentException("Mirror locations must not be empty.");
+            }
+        }
+        for (Split split : splits) {
+            if (TextUtils.isEmpty(split.location) || split.checksum.length == 0) {
+                throw new IllegalArgumentException("Splits must have a location and a checksum.");
+            }
+        }
         if (packageChecksum.length == 0 && signatureChecksum.length == 0) {
             throw new IllegalArgumentException("Package checksum or signature checksum must be "
                     + "provided.");
         }
     }
 
+    /**
+     * Returns {@link #location} followed by the {@link #mirrorLocations}.
+     */
+    public List<String> getLocations() {
+        List<String> locations = new ArrayList<>(mirrorLocations.size() + 1);
+        locations.add(location);
+        locations.addAll(mirrorLocations);
+        return locations;
+    }
+
+    /**
+     * Parses the value of
+     * {@link #EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS}.
+     */
+    public static List<String> parseMirrorLocations(@Nullable String mirrorLocations) {
+        if (mirrorLocations == null || mirrorLocations.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(mirrorLocations.trim().split("\\s+"));
+    }
+
+    /**
+     * Parses the value of {@link #EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS}.
+     *
+     * @throws IllegalArgumentException if a split is malformed
+     */
+    public static List<Split> parseSplits(@Nullable String splits) {
+        if (splits == null || splits.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Split> result = new ArrayList<>();
+        for (String split : splits.trim().split("\\s+")) {
+            result.add(Split.parse(split));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the info to download the split at {@code index} in {@link #splits} with. It is
+     * requested with the same cookie header as the package.
+     */
+    public PackageDownloadInfo getSplitDownloadInfo(int index) {
+        Split split = splits.get(index);
+        return new Builder()
+                .setLocation(split.location)
+                .setCookieHeader(cookieHeader)
+                .setPackageChecksum(split.checksum)
+                .build();
+    }
+
     /* package */ static PackageDownloadInfo fromPersistableBundle(PersistableBundle bundle) {
         return createBuilderFromPersistableBundle(bundle).build();
     }
@@ -114,6 +207,19 @@ public final class PackageDownloadInfo extends PersistableBundlable {
         builder.setMinVersion(bundle.getInt(EXTRA_PROVISIONING_DEVICE_ADMIN_MINIMUM_VERSION_CODE));
         builder.setLocation(bundle.getString(
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION));
+        String[] mirrorLocations = bundle.getStringArray(
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS);
+        if (mirrorLocations != null) {
+            builder.setMirrorLocations(Arrays.asList(mirrorLocations));
+        }
+        String[] splits = bundle.getStringArray(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS);
+        if (splits != null) {
+            List<Split> splitList = new ArrayList<>(splits.length);
+            for (String split : splits) {
+                splitList.add(Split.parse(split));
+            }
+            builder.setSplits(splitList);
+        }
         builder.setCookieHeader(bundle.getString(
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER));
         builder.setPackageChecksum(StoreUtils.stringToByteArray(bundle.getString(
@@ -129,6 +235,17 @@ public final class PackageDownloadInfo extends PersistableBundlable {
         bundle.putInt(EXTRA_PROVISIONING_DEVICE_ADMIN_MINIMUM_VERSION_CODE,
                 minVersion);
         bundle.putString(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION, location);
+        if (!mirrorLocations.isEmpty()) {
+            bundle.putStringArray(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS,
+                    mirrorLocations.toArray(new String[0]));
+        }
+        if (!splits.isEmpty()) {
+            String[] splitStrings = new String[splits.size()];
+            for (int i = 0; i < splitStrings.length; i++) {
+                splitStrings[i] = splits.get(i).toString();
+            }
+            bundle.putStringArray(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS, splitStrings);
+        }
         bundle.putString(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER,
                 cookieHeader);
         bundle.putString(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM,
@@ -140,6 +257,8 @@ public final class PackageDownloadInfo extends PersistableBundlable {
 
     public final static class Builder {
         private String mLocation;
+        private List<String> mMirrorLocations = Collections.emptyList();
+        private List<Split> mSplits = Collections.emptyList();
         private String mCookieHeader;
         private byte[] mPackageChecksum = DEFAULT_PACKAGE_CHECKSUM;
         private byte[] mSignatureChecksum = DEFAULT_SIGNATURE_CHECKSUM;
@@ -150,6 +269,16 @@ public final class PackageDownloadInfo extends PersistableBundlable {
             return this;
         }
 
+        public Builder setMirrorLocations(List<String> mirrorLocations) {
+            mMirrorLocations = mirrorLocations;
+            return this;
+        }
+
+        public Builder setSplits(List<Split> splits) {
+            mSplits = splits;
+            return this;
+        }
+
         public Builder setCookieHeader(String cookieHeader) {
             mCookieHeader = cookieHeader;
             return this;
@@ -178,4 +307,58 @@ public final class PackageDownloadInfo extends PersistableBundlable {
             return new Builder();
         }
     }
+
+    /**
+     * A split apk of the package.
+     */
+    @Immutable
+    public static final class Split {
+        /** Url where the split apk can be downloaded from. */
+        public final String location;
+        /** SHA-256 hash of the split apk. */
+        public final byte[] checksum;
+
+        public Split(String location, byte[] checksum) {
+            this.location = checkNotNull(location, "split location can't be null");
+            this.checksum = checkNotNull(checksum, "split checksum can't be null");
+        }
+
+        /**
+         * Parses a split given as {@code <checksum>:<url>}.
+         *
+         * @throws IllegalArgumentException if the split is malformed
+         */
+        static Split parse(String split) {
+            // The checksum is Base64 encoded, so the first colon ends it.
+            int colon = split.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid split: " + split);
+            }
+            return new Split(split.substring(colon + 1),
+                    StoreUtils.stringToByteArray(split.substring(0, colon)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Split)) {
+                return false;
+            }
+            Split split = (Split) o;
+            return location.equals(split.location) && Arrays.equals(checksum, split.checksum);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * location.hashCode() + Arrays.hashCode(checksum);
+        }
+
+        /** Returns the split as {@code <checksum>:<url>}. */
+        @Override
+        public String toString() {
+            return StoreUtils.byteArrayToString(checksum) + ":" + location;
+        }
+    }
 }
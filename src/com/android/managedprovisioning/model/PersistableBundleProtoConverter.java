@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import android.os.PersistableBundle;
+
+import com.android.managedprovisioning.ProvisioningParamsProtos.PersistableBundleProto;
+import com.android.managedprovisioning.ProvisioningParamsProtos.PersistableBundleProto.Entry;
+
+import java.util.List;
+
+/**
+ * Converts a {@link PersistableBundle} to and from a {@link PersistableBundleProto}, for the
+ * value types a {@link PersistableBundle} supports.
+ */
+final class PersistableBundleProtoConverter {
+
+    private PersistableBundleProtoConverter() {}
+
+    static PersistableBundleProto toProto(PersistableBundle bundle) {
+        PersistableBundleProto.Builder proto = PersistableBundleProto.newBuilder();
+        for (String key : bundle.keySet()) {
+            proto.addEntries(toEntry(key, bundle.get(key)));
+        }
+        return proto.build();
+    }
+
+    private static Entry toEntry(String key, Object value) {
+        Entry.Builder entry = Entry.newBuilder().setKey(key);
+        if (value == null) {
+            entry.setNullValue(true);
+        } else if (value instanceof Integer) {
+            entry.setIntValue((Integer) value);
+        } else if (value instanceof Long) {
+            entry.setLongValue((Long) value);
+        } else if (value instanceof Double) {
+            entry.setDoubleValue((Double) value);
+        } else if (value instanceof String) {
+            entry.setStringValue((String) value);
+        } else if (value instanceof Boolean) {
+            entry.setBooleanValue((Boolean) value);
+        } else if (value instanceof int[]) {
+            PersistableBundleProto.IntArray.Builder array =
+                    PersistableBundleProto.IntArray.newBuilder();
+            for (int element : (int[]) value) {
+                array.addValues(element);
+            }
+            entry.setIntArrayValue(array);
+        } else if (value instanceof long[]) {
+            PersistableBundleProto.LongArray.Builder array =
+                    PersistableBundleProto.LongArray.newBuilder();
+            for (long element : (long[]) value) {
+                array.addValues(element);
+            }
+            entry.setLongArrayValue(array);
+        } else if (value instanceof double[]) {
+            PersistableBundleProto.DoubleArray.Builder array =
+                    PersistableBundleProto.DoubleArray.newBuilder();
+            for (double element : (double[]) value) {
+                array.addValues(element);
+            }
+            entry.setDoubleArrayValue(array);
+        } else if (value instanceof String[]) {
+            PersistableBundleProto.StringArray.Builder array =
+                    PersistableBundleProto.StringArray.newBuilder();
+            String[] elements = (String[]) value;
+            for (int i = 0; i < elements.length; i++) {
+                if (elements[i] == null) {
+                    array.addValues("").addNullIndices(i);
+                } else {
+                    array.addValues(elements[i]);
+                }
+            }
+            entry.setStringArrayValue(array);
+        } else if (value instanceof boolean[]) {
+            PersistableBundleProto.BooleanArray.Builder array =
+                    PersistableBundleProto.BooleanArray.newBuilder();
+            for (boolean element : (boolean[]) value) {
+                array.addValues(element);
+            }
+            entry.setBooleanArrayValue(array);
+        } else if (value instanceof PersistableBundle) {
+            entry.setBundleValue(toProto((PersistableBundle) value));
+        } else {
+            throw new IllegalArgumentException("Unsupported value type "
+                    + value.getClass().getName() + " for key " + key);
+        }
+        return entry.build();
+    }
+
+    static PersistableBundle fromProto(PersistableBundleProto proto) {
+        PersistableBundle bundle = new PersistableBundle(proto.getEntriesCount());
+        for (Entry entry : proto.getEntriesList()) {
+            putEntry(bundle, entry);
+        }
+        return bundle;
+    }
+
+    private static void putEntry(PersistableBundle bundle, Entry entry) {
+        String key = entry.getKey();
+        switch (entry.getValueCase()) {
+            case NULL_VALUE:
+                bundle.putString(key, null);
+                break;
+            case INT_VALUE:
+                bundle.putInt(key, entry.getIntValue());
+                break;
+            case LONG_VALUE:
+                bundle.putLong(key, entry.getLongValue());
+                break;
+            case DOUBLE_VALUE:
+                bundle.putDouble(key, entry.getDoubleValue());
+                break;
+            case STRING_VALUE:
+                bundle.putString(key, entry.getStringValue());
+                break;
+            case BOOLEAN_VALUE:
+                bundle.putBoolean(key, entry.getBooleanValue());
+                break;
+            case INT_ARRAY_VALUE:
+                bundle.putIntArray(key, toIntArray(entry.getIntArrayValue().getValuesList()));
+                break;
+            case LONG_ARRAY_VALUE:
+                bundle.putLongArray(key, toLongArray(entry.getLongArrayValue().getValuesList()));
+                break;
+            case DOUBLE_ARRAY_VALUE:
+                bundle.putDoubleArray(key,
+                        toDoubleArray(entry.getDoubleArrayValue().getValuesList()));
+                break;
+            case STRING_ARRAY_VALUE:
+                bundle.putStringArray(key, toStringArray(entry.getStringArrayValue()));
+                break;
+            case BOOLEAN_ARRAY_VALUE:
+                bundle.putBooleanArray(key,
+                        toBooleanArray(entry.getBooleanArrayValue().getValuesList()));
+                break;
+            case BUNDLE_VALUE:
+                bundle.putPersistableBundle(key, fromProto(entry.getBundleValue()));
+                break;
+            default:
+                // Written by a newer version with a value type this one doesn't know.
+                break;
+        }
+    }
+
+    private static int[] toIntArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static long[] toLongArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static double[] toDoubleArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static boolean[] toBooleanArray(List<Boolean> values) {
+        boolean[] array = new boolean[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static String[] toStringArray(PersistableBundleProto.StringArray proto) {
+        String[] array = proto.getValuesList().toArray(new String[0]);
+        for (int index : proto.getNullIndicesList()) {
+            if (index >= 0 && index < array.length) {
+                array[index] = null;
+            }
+        }
+        return array;
+    }
+}
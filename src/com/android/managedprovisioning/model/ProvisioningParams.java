@@ -52,12 +52,15 @@ import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.util.AtomicFile;
 import android.util.Xml;
 
 import androidx.annotation.Nullable;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.managedprovisioning.ProvisioningParamsProtos.ProvisioningParamsFile;
 import com.android.managedprovisioning.common.IllegalProvisioningArgumentException;
 import com.android.managedprovisioning.common.PersistableBundlable;
 import com.android.managedprovisioning.common.ProvisionLogger;
@@ -68,10 +71,12 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.charset.StandardCharsets;
@@ -125,6 +130,13 @@ public final class ProvisioningParams extends PersistableBundlable {
     @Retention(RetentionPolicy.SOURCE)
     public @interface FlowType {}
 
+    /**
+     * Version of the format written by {@link #save}. Increment it when a change to the format
+     * can't be read by older versions, which then ignore the file.
+     */
+    @VisibleForTesting
+    static final int FILE_FORMAT_VERSION = 1;
+
     private static final String TAG_PROVISIONING_ID = "provisioning-id";
     private static final String TAG_PROVISIONING_PARAMS = "provisioning-params";
     private static final String TAG_WIFI_INFO = "wifi-info";
@@ -518,12 +530,45 @@ public final class ProvisioningParams extends PersistableBundlable {
     }
 
     /**
-     * Saves the ProvisioningParams to the specified file.
+     * Saves the ProvisioningParams to the specified file, as a {@link ProvisioningParamsFile}.
+     *
+     * <p>The params are also kept in the {@link ProvisioningParamsCache}, so that loading them
+     * again from the file in this process doesn't read it.
      */
     public void save(File file) {
         ProvisionLogger.logd("Saving ProvisioningParams to " + file);
         AtomicFile atomicFile = null;
         FileOutputStream stream = null;
+        try {
+            atomicFile = new AtomicFile(file);
+            stream = atomicFile.startWrite();
+            ProvisioningParamsFile.newBuilder()
+                    .setVersion(FILE_FORMAT_VERSION)
+                    .setParams(PersistableBundleProtoConverter.toProto(toPersistableBundle()))
+                    .build()
+                    .writeTo(stream);
+            atomicFile.finishWrite(stream);
+            ProvisioningParamsCache.put(file, this, /* loadMillis= */ 0);
+        } catch (IOException e) {
+            ProvisionLogger.loge("Caught exception while trying to save Provisioning Params to "
+                    + " file " + file, e);
+            ProvisioningParamsCache.invalidate(file, this);
+            file.delete();
+            if (atomicFile != null) {
+                atomicFile.failWrite(stream);
+            }
+        }
+    }
+
+    /**
+     * Saves the ProvisioningParams to the specified file in the XML format used before
+     * {@link ProvisioningParamsFile}, which {@link #load} still reads.
+     */
+    @VisibleForTesting
+    void saveAsXml(File file) {
+        ProvisioningParamsCache.invalidate(file);
+        AtomicFile atomicFile = null;
+        FileOutputStream stream = null;
         try {
             atomicFile = new AtomicFile(file);
             stream = atomicFile.startWrite();
@@ -553,16 +598,33 @@ public final class ProvisioningParams extends PersistableBundlable {
 
     /**
      * Loads the ProvisioningParams From the specified file.
+     *
+     * <p>Files saved in the XML format used before {@link ProvisioningParamsFile}, e.g. before an
+     * update, are read too. They are saved in the current format the next time the params are
+     * saved.
      */
     public static ProvisioningParams load(File file) {
+        // Also returns the params queued by ProvisioningParamsWriter but not written yet.
+        ProvisioningParams cached = ProvisioningParamsCache.get(file);
+        if (cached != null) {
+            return cached;
+        }
         if (!file.exists()) {
             return null;
         }
         ProvisionLogger.logd("Loading ProvisioningParams from " + file);
-        try (FileInputStream stream = new FileInputStream(file)) {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(stream, null);
-            return load(parser);
+        long startMillis = SystemClock.elapsedRealtime();
+        try (BufferedInputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            stream.mark(1);
+            int firstByte = stream.read();
+            stream.reset();
+            ProvisioningParams params = firstByte == '<' ? loadXml(stream) : loadProto(stream);
+            long loadMillis = SystemClock.elapsedRealtime() - startMillis;
+            ProvisionLogger.logd("Loaded ProvisioningParams in " + loadMillis + " ms");
+            if (params != null) {
+                ProvisioningParamsCache.put(file, params, loadMillis);
+            }
+            return params;
         } catch (IOException | XmlPullParserException e) {
             ProvisionLogger.loge("Caught exception while trying to load the provisioning params"
                     + " from file " + file, e);
@@ -570,6 +632,28 @@ public final class ProvisioningParams extends PersistableBundlable {
         }
     }
 
+    private static ProvisioningParams loadProto(InputStream stream) throws IOException {
+        ProvisioningParamsFile paramsFile = ProvisioningParamsFile.parseFrom(stream);
+        if (!paramsFile.hasParams()) {
+            ProvisionLogger.loge("Provisioning params file is empty");
+            return null;
+        }
+        if (paramsFile.getVersion() > FILE_FORMAT_VERSION) {
+            ProvisionLogger.loge("Can't read provisioning params saved with format version "
+                    + paramsFile.getVersion());
+            return null;
+        }
+        return createBuilderFromPersistableBundle(
+                PersistableBundleProtoConverter.fromProto(paramsFile.getParams())).build();
+    }
+
+    private static ProvisioningParams loadXml(InputStream stream) throws IOException,
+            XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(stream, null);
+        return load(parser);
+    }
+
     private static ProvisioningParams load(XmlPullParser parser) throws XmlPullParserException,
             IOException {
         int type;
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the {@link ProvisioningParams} last saved to or loaded from each file,
+ * used by {@link ProvisioningParams#load} and {@link ProvisioningParams#save}.
+ *
+ * <p>A cached instance is only returned while the length and last modified time of its file are
+ * the ones recorded when it was saved or loaded, so that a file written by other means is read
+ * again. Params queued by {@link ProvisioningParamsWriter} are returned until they are written.
+ */
+public final class ProvisioningParamsCache {
+
+    private static final Map<File, Entry> sEntries = new HashMap<>();
+    private static int sHits;
+    private static int sMisses;
+    private static long sLoadMillis;
+
+    private ProvisioningParamsCache() {}
+
+    /**
+     * Returns the params cached for {@code file}, or {@code null} if there are none or the file
+     * changed since.
+     */
+    static synchronized ProvisioningParams get(File file) {
+        Entry entry = sEntries.get(file.getAbsoluteFile());
+        if (entry != null && entry.matches(file)) {
+            sHits++;
+            return entry.mParams;
+        }
+        sMisses++;
+        return null;
+    }
+
+    /**
+     * Caches {@code params} as the content of {@code file}, which was just saved or loaded.
+     *
+     * @param loadMillis how long loading the file took, or 0 if it was saved
+     */
+    static synchronized void put(File file, ProvisioningParams params, long loadMillis) {
+        sLoadMillis += loadMillis;
+        Entry entry = sEntries.get(file.getAbsoluteFile());
+        if (entry != null && entry.mPending && entry.mParams != params) {
+            // Newer params are queued to be written over these.
+            return;
+        }
+        sEntries.put(file.getAbsoluteFile(),
+                new Entry(params, file.length(), file.lastModified(), /* pending= */ false));
+    }
+
+    /**
+     * Caches {@code params} as the content of {@code file} until they are written to it, see
+     * {@link #put}.
+     */
+    static synchronized void putPending(File file, ProvisioningParams params) {
+        sEntries.put(file.getAbsoluteFile(),
+                new Entry(params, /* length= */ -1, /* lastModified= */ -1, /* pending= */ true));
+    }
+
+    /** Drops the params cached for {@code file}. */
+    static synchronized void invalidate(File file) {
+        sEntries.remove(file.getAbsoluteFile());
+    }
+
+    /**
+     * Drops the params cached for {@code file} if they are {@code params}, or they aren't queued
+     * to be written.
+     */
+    static synchronized void invalidate(File file, ProvisioningParams params) {
+        Entry entry = sEntries.get(file.getAbsoluteFile());
+        if (entry != null && (!entry.mPending || entry.mParams == params)) {
+            sEntries.remove(file.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Prints how often the cache was hit, and roughly how much loading time that saved.
+     */
+    public static synchronized void dump(PrintWriter pw) {
+        // Each hit saves about as long as a miss took to load.
+        long savedMillis = sMisses == 0 ? 0 : sHits * sLoadMillis / sMisses;
+        pw.println("ProvisioningParams cache: " + sHits + " hits, " + sMisses + " misses, saved ~"
+                + savedMillis + " ms of loading");
+    }
+
+    @VisibleForTesting
+    static synchronized int getHits() {
+        return sHits;
+    }
+
+    @VisibleForTesting
+    static synchronized void clear() {
+        sEntries.clear();
+        sHits = 0;
+        sMisses = 0;
+        sLoadMillis = 0;
+    }
+
+    private static final class Entry {
+        final ProvisioningParams mParams;
+        final long mLength;
+        final long mLastModified;
+        final boolean mPending;
+
+        Entry(ProvisioningParams params, long length, long lastModified, boolean pending) {
+            mParams = params;
+            mLength = length;
+            mLastModified = lastModified;
+            mPending = pending;
+        }
+
+        boolean matches(File file) {
+            return mPending
+                    || (file.length() == mLength && file.lastModified() == mLastModified);
+        }
+    }
+}
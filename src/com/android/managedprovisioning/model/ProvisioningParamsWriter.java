@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Saves {@link ProvisioningParams} on a background thread, so that callers on the main thread
+ * don't wait for the file to be written and synced.
+ *
+ * <p>A single thread writes the files in the order the saves were requested. If params are saved
+ * to a file again before the previous params were written, only the latest are written. Until
+ * then, {@link ProvisioningParams#load} returns them from the {@link ProvisioningParamsCache}.
+ *
+ * <p>Before handing off to a component that may read the file from another process or after a
+ * restart, e.g. before a reboot, wait for {@link #flush(Runnable)} so that the params are on disk.
+ * The main thread keeps running meanwhile.
+ */
+public final class ProvisioningParamsWriter {
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    /** The params waiting to be written, by file. */
+    private static final Map<File, ProvisioningParams> sPending = new HashMap<>();
+    private static int sWrites;
+    private static int sCoalesced;
+
+    private ProvisioningParamsWriter() {}
+
+    /**
+     * Queues {@code params} to be saved to {@code file}, see {@link ProvisioningParams#save}.
+     */
+    public static void saveAsync(ProvisioningParams params, File file) {
+        File key = file.getAbsoluteFile();
+        synchronized (sPending) {
+            ProvisioningParamsCache.putPending(key, params);
+            if (sPending.put(key, params) != null) {
+                // Replaces params that weren't written yet, the write queued for them saves these.
+                sCoalesced++;
+                return;
+            }
+        }
+        sExecutor.execute(() -> write(key));
+    }
+
+    private static void write(File file) {
+        ProvisioningParams params;
+        synchronized (sPending) {
+            params = sPending.remove(file);
+            if (params == null) {
+                // Dropped by delete().
+                return;
+            }
+            sWrites++;
+        }
+        params.save(file);
+    }
+
+    /**
+     * Runs {@code onFlushed} on the main thread once the params queued so far are written to
+     * disk.
+     *
+     * <p>This is a durability barrier: hand off to a component that may read the params file
+     * from another process or after a restart from {@code onFlushed}.
+     */
+    public static void flush(Runnable onFlushed) {
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        // The writes queued before are done once this runs.
+        sExecutor.execute(() -> mainHandler.post(onFlushed));
+    }
+
+    /**
+     * Blocks until the params queued so far are written to disk.
+     */
+    @VisibleForTesting
+    static void flush() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                // The writes queued before are done once this runs.
+                sExecutor.submit(() -> {}).get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                ProvisionLogger.loge("Failed to wait for provisioning params to be saved", e);
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drops the params queued to be saved to {@code file}, and deletes it.
+     */
+    public static void delete(File file) {
+        File key = file.getAbsoluteFile();
+        synchronized (sPending) {
+            sPending.remove(key);
+            ProvisioningParamsCache.invalidate(key);
+        }
+        // A write that already started would create the file again.
+        flush();
+        file.delete();
+    }
+
+    /**
+     * Prints how many writes were done, and how many saves were coalesced into later ones.
+     */
+    public static void dump(PrintWriter pw) {
+        synchronized (sPending) {
+            pw.println("ProvisioningParams writer: " + sWrites + " writes, " + sCoalesced
+                    + " coalesced, " + sPending.size() + " pending");
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.UserInfo;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.ArraySet;
@@ -38,8 +39,10 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.PackageNameTable;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.UserAppStateStore;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.DeleteNonRequiredAppsTask;
 import com.android.managedprovisioning.task.DisallowAddUserTask;
@@ -95,35 +98,52 @@ public class OtaController {
         if (mContext.getUserId() != UserHandle.USER_SYSTEM) {
             return;
         }
+        final long startMillis = SystemClock.elapsedRealtime();
+        final long startHeapBytes = getUsedHeapBytes();
         // Migrate snapshot files to use user serial number as file name.
         mTaskExecutor.execute(
                 UserHandle.USER_SYSTEM, new MigrateSystemAppsSnapshotTask(
                         mContext, mTaskExecutor, mProvisioningAnalyticsTracker));
 
-        // Check for device owner.
-        final int deviceOwnerUserId = mDevicePolicyManager.getDeviceOwnerUserId();
-        if (deviceOwnerUserId != UserHandle.USER_NULL) {
-            addDeviceOwnerTasks(deviceOwnerUserId, mContext);
-        }
+        // The snapshots taken by the tasks below are written together once they are all done.
+        UserAppStateStore.beginBatch();
+        try {
+            // Check for device owner.
+            final int deviceOwnerUserId = mDevicePolicyManager.getDeviceOwnerUserId();
+            if (deviceOwnerUserId != UserHandle.USER_NULL) {
+                addDeviceOwnerTasks(deviceOwnerUserId, mContext);
+            }
 
-        for (UserInfo userInfo : mUserManager.getUsers()) {
-            if (userInfo.isManagedProfile()) {
-                addManagedProfileTasks(userInfo.id, mContext);
-            } else if (mDevicePolicyManager.getProfileOwnerAsUser(userInfo.id) != null) {
-                addManagedUserTasks(userInfo.id, mContext);
-            } else {
-                // if this user has managed profiles, reset the cross-profile intent filters between
-                // this user and its managed profiles.
-                mDevicePolicyManager.resetDefaultCrossProfileIntentFilters(userInfo.id);
+            for (UserInfo userInfo : mUserManager.getUsers()) {
+                if (userInfo.isManagedProfile()) {
+                    addManagedProfileTasks(userInfo.id, mContext);
+                } else if (mDevicePolicyManager.getProfileOwnerAsUser(userInfo.id) != null) {
+                    addManagedUserTasks(userInfo.id, mContext);
+                } else {
+                    // if this user has managed profiles, reset the cross-profile intent filters
+                    // between this user and its managed profiles.
+                    mDevicePolicyManager.resetDefaultCrossProfileIntentFilters(userInfo.id);
+                }
             }
+
+            mTaskExecutor.execute(mContext.getUserId(), new UpdateInteractAcrossProfilesAppOpTask(
+                    mContext,
+                    /* params= */ null,
+                    mTaskExecutor,
+                    mProvisioningAnalyticsTracker
+            ));
+        } finally {
+            UserAppStateStore.commitBatch();
         }
+        // This runs at PreBoot for every user, while memory is tight.
+        ProvisionLogger.logi("OTA tasks took " + (SystemClock.elapsedRealtime() - startMillis)
+                + " ms, used heap grew by " + (getUsedHeapBytes() - startHeapBytes) / 1024
+                + " KB, " + PackageNameTable.size() + " package names interned");
+    }
 
-        mTaskExecutor.execute(mContext.getUserId(), new UpdateInteractAcrossProfilesAppOpTask(
-                mContext,
-                /* params= */ null,
-                mTaskExecutor,
-                mProvisioningAnalyticsTracker
-        ));
+    private static long getUsedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 
     void addDeviceOwnerTasks(final int userId, Context context) {
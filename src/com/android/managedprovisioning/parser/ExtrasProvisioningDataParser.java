@@ -69,6 +69,8 @@ import static android.nfc.NfcAdapter.ACTION_NDEF_DISCOVERED;
 import static com.android.internal.util.Preconditions.checkNotNull;
 import static com.android.managedprovisioning.common.Globals.ACTION_PROVISION_MANAGED_DEVICE_SILENTLY;
 import static com.android.managedprovisioning.common.Globals.ACTION_RESUME_PROVISIONING;
+import static com.android.managedprovisioning.model.PackageDownloadInfo.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS;
+import static com.android.managedprovisioning.model.PackageDownloadInfo.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS;
 import static com.android.managedprovisioning.model.ProvisioningParams.DEFAULT_EXTRA_PROVISIONING_SKIP_EDUCATION_SCREENS;
 import static com.android.managedprovisioning.model.ProvisioningParams.DEFAULT_EXTRA_PROVISIONING_USE_MOBILE_DATA;
 
@@ -209,6 +211,13 @@ public class ExtrasProvisioningDataParser implements ProvisioningDataParser {
     static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER_SHORT =
             "a.a.e.PDAPDCH";
 
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS_SHORT =
+            "c.a.m.e.PDAPDML";
+
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS_SHORT = "c.a.m.e.PDAPS";
+
     @VisibleForTesting
     static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM_SHORT = "a.a.e.PDAPC";
 
@@ -312,6 +321,12 @@ public class ExtrasProvisioningDataParser implements ProvisioningDataParser {
         shorterExtras.put(
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER,
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER_SHORT);
+        shorterExtras.put(
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS,
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS_SHORT);
+        shorterExtras.put(
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS,
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS_SHORT);
         shorterExtras.put(
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM,
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM_SHORT);
@@ -760,6 +775,11 @@ public class ExtrasProvisioningDataParser implements ProvisioningDataParser {
                         PackageDownloadInfo.DEFAULT_MINIMUM_VERSION))
                 .setLocation(getStringExtraFromLongName(
                         intent, EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION))
+                .setMirrorLocations(PackageDownloadInfo.parseMirrorLocations(
+                        getStringExtraFromLongName(intent,
+                                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS)))
+                .setSplits(PackageDownloadInfo.parseSplits(getStringExtraFromLongName(intent,
+                        EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS)))
                 .setCookieHeader(getStringExtraFromLongName(
                         intent, EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER));
         String packageHash =
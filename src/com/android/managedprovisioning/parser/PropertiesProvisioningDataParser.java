@@ -50,6 +50,8 @@ import static android.app.admin.DevicePolicyManager.MIME_TYPE_PROVISIONING_NFC;
 import static android.nfc.NfcAdapter.ACTION_NDEF_DISCOVERED;
 
 import static com.android.internal.util.Preconditions.checkNotNull;
+import static com.android.managedprovisioning.model.PackageDownloadInfo.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS;
+import static com.android.managedprovisioning.model.PackageDownloadInfo.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -266,6 +268,11 @@ public class PropertiesProvisioningDataParser implements ProvisioningDataParser
         PackageDownloadInfo.Builder builder = PackageDownloadInfo.Builder.builder()
                 .setLocation(getPropertyFromLongName(props,
                         EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION))
+                .setMirrorLocations(PackageDownloadInfo.parseMirrorLocations(
+                        getPropertyFromLongName(props,
+                                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_MIRROR_LOCATIONS)))
+                .setSplits(PackageDownloadInfo.parseSplits(getPropertyFromLongName(props,
+                        EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLITS)))
                 .setCookieHeader(getPropertyFromLongName(props,
                         EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER));
         // For parsing non-string parameters.
@@ -79,11 +79,11 @@ public class EncryptDeviceActivity extends SetupGlifLayoutActivity {
         GlifLayout layout = findViewById(R.id.setup_wizard_layout);
         layout.setDescriptionText(mainTextRes);
         Utils.addEncryptButton(layout, (View view) -> {
-            getEncryptionController().setEncryptionReminder(mParams);
             // Use settings so user confirms password/pattern and its passed
             // to encryption tool.
-            getTransitionHelper().startActivityWithTransition(
-                    EncryptDeviceActivity.this, new Intent(ACTION_START_ENCRYPTION));
+            getEncryptionController().setEncryptionReminder(mParams, () ->
+                    getTransitionHelper().startActivityWithTransition(
+                            EncryptDeviceActivity.this, new Intent(ACTION_START_ENCRYPTION)));
         });
     }
 }
\ No newline at end of file
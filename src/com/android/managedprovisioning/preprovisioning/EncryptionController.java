@@ -36,6 +36,7 @@ import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.TransitionHelper;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.model.ProvisioningParamsWriter;
 
 import java.io.File;
 import java.util.function.Consumer;
@@ -116,11 +117,14 @@ public class EncryptionController {
      * using the stored intent.
      *
      * @param params the params to be stored.
+     * @param onReminderSet run on the main thread once the params are on disk, encryption may
+     *                      only be started then.
      */
-    public void setEncryptionReminder(ProvisioningParams params) {
+    public void setEncryptionReminder(ProvisioningParams params, Runnable onReminderSet) {
         ProvisionLogger.logd("Setting provisioning reminder for action: "
                 + params.provisioningAction);
-        params.save(getProvisioningParamsFile(mContext));
+        // Written while the HOME intent receiver is enabled.
+        ProvisioningParamsWriter.saveAsync(params, getProvisioningParamsFile(mContext));
         // Only enable the HOME intent receiver for flows inside SUW, as showing the notification
         // for non-SUW flows is less time cricital.
         if (!mSettingsFacade.isUserSetupCompleted(mContext)) {
@@ -130,6 +134,8 @@ public class EncryptionController {
             // restrictions.
             mPackageManager.flushPackageRestrictionsAsUser(mUserId);
         }
+        // The params must be on disk before encryption reboots the device.
+        ProvisioningParamsWriter.flush(onReminderSet);
     }
 
     /**
@@ -137,7 +143,7 @@ public class EncryptionController {
      */
     public void cancelEncryptionReminder() {
         ProvisionLogger.logd("Cancelling provisioning reminder.");
-        getProvisioningParamsFile(mContext).delete();
+        ProvisioningParamsWriter.delete(getProvisioningParamsFile(mContext));
         mUtils.disableComponent(mHomeReceiver, mUserId);
     }
 
@@ -370,6 +370,7 @@ public class PreProvisioningActivity extends SetupGlifLayoutActivity implements
 
     private void onProvisioningAborted() {
         setResult(Activity.RESULT_CANCELED);
+        mController.discardPrefetchedPackage();
         mController.logPreProvisioningCancelled();
         getTransitionHelper().finishActivity(this);
     }
@@ -107,6 +107,7 @@ import com.android.managedprovisioning.model.ProvisioningParams.FlowType;
 import com.android.managedprovisioning.parser.DisclaimerParser;
 import com.android.managedprovisioning.parser.DisclaimersParserImpl;
 import com.android.managedprovisioning.preprovisioning.PreProvisioningViewModel.PreProvisioningViewModelFactory;
+import com.android.managedprovisioning.task.PackageDownloadPrefetcher;
 
 import java.util.IllformedLocaleException;
 import java.util.List;
@@ -136,6 +137,8 @@ public class PreProvisioningActivityController {
 
     private final PreProvisioningViewModel mViewModel;
     private final BiFunction<Context, Long, DisclaimerParser> mDisclaimerParserProvider;
+    private final PackageDownloadPrefetcher mPackageDownloadPrefetcher =
+            PackageDownloadPrefetcher.getInstance();
 
     public PreProvisioningActivityController(
             @NonNull ComponentActivity activity,
@@ -350,6 +353,20 @@ public class PreProvisioningActivityController {
         }
     }
 
+    /**
+     * Starts downloading the management app while the user reads the consent screen, if
+     * prefetching is enabled. The download is adopted by {@link
+     * com.android.managedprovisioning.task.DownloadPackageTask}, or discarded if the user doesn't
+     * consent.
+     */
+    private void maybePrefetchDeviceAdminPackage(ProvisioningParams params) {
+        if (!mPackageDownloadPrefetcher.isEnabled() || params.deviceAdminDownloadInfo == null) {
+            return;
+        }
+        mPackageDownloadPrefetcher.prefetch(mContext, params.deviceAdminDownloadInfo,
+                params.inferDeviceAdminPackageName(), mUtils);
+    }
+
     private boolean isIntentActionValid(String action) {
         return !ACTION_PROVISION_MANAGED_DEVICE.equals(action);
     }
@@ -437,6 +454,8 @@ public class PreProvisioningActivityController {
 
         mUi.initiateUi(uiParams);
         mViewModel.onShowUserConsent();
+        // Only once provisioning is known to be allowed.
+        maybePrefetchDeviceAdminPackage(mViewModel.getParams());
     }
 
     boolean updateProvisioningParamsFromIntent(Intent resultIntent) {
@@ -907,6 +926,14 @@ public class PreProvisioningActivityController {
         mViewModel.getTimeLogger().stop();
     }
 
+    /**
+     * Discards the management app downloaded ahead of provisioning, if any, because provisioning
+     * won't start.
+     */
+    public void discardPrefetchedPackage() {
+        mPackageDownloadPrefetcher.discard(mContext);
+    }
+
     /**
      * Log if PreProvisioning was cancelled.
      */
@@ -20,6 +20,7 @@ import static com.android.internal.util.Preconditions.checkNotNull;
 
 import android.annotation.MainThread;
 import android.content.Context;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -28,6 +29,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.AnalyticsUtils;
 import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
@@ -36,29 +38,63 @@ import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.AbstractProvisioningTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
+import com.android.managedprovisioning.task.DownloadSplitsTask;
 import com.android.managedprovisioning.task.InstallExistingPackageTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
+import com.android.managedprovisioning.task.ProvisioningTaskStats;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
 import com.android.managedprovisioning.task.VerifyPackageTask;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Controller that manages the provisioning process. It controls the order of provisioning tasks,
  * reacts to errors and user cancellation.
+ *
+ * <p>Tasks are kept in a {@link ProvisioningTaskGraph}. A task is run as soon as all the tasks it
+ * depends on have completed, so independent tasks are in flight at the same time, up to
+ * {@link #MAX_CONCURRENT_TASKS}. All tasks run on the same worker looper, so running them at the
+ * same time overlaps the waits of the asynchronous ones (downloads, installs) with other tasks,
+ * not their work on the worker thread.
+ *
+ * <p>Task completions are recorded in a {@link ProvisioningTaskJournal}. If the process died
+ * during provisioning, the restarted controller skips the resumable tasks that already completed.
+ *
+ * <p>A {@link ProvisioningTaskWatchdog} fails provisioning with
+ * {@link AbstractProvisioningTask#ERROR_TIMED_OUT} if a task hangs past its deadline.
+ *
+ * <p>Every task is run with a {@link CancellationSignal} that is cancelled when provisioning is
+ * cancelled or fails, so that running tasks abort their work rather than finish it for nothing.
  */
-public abstract class AbstractProvisioningController implements AbstractProvisioningTask.Callback {
+public abstract class AbstractProvisioningController implements AbstractProvisioningTask.Callback,
+        ProvisioningTaskWatchdog.Callback {
 
     @VisibleForTesting
     static final int MSG_RUN_TASK = 1;
 
+    /**
+     * Maximum number of tasks that may be in flight at the same time. Most tasks spend their time
+     * waiting for a system callback (download, install, network), so a small bound is enough to
+     * overlap those waits.
+     */
+    @VisibleForTesting
+    static final int MAX_CONCURRENT_TASKS = 3;
+
     protected final Context mContext;
     protected final ProvisioningParams mParams;
     protected int mUserId;
 
     private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
     private final ProvisioningControllerCallback mCallback;
+    private final ProvisioningTaskJournal mTaskJournal;
+    private final ProvisioningTaskWatchdog.DeadlinePolicy mDeadlinePolicy;
+    private final AnalyticsUtils mAnalyticsUtils = new AnalyticsUtils();
+    private final Map<AbstractProvisioningTask, CancellationSignal> mCancellationSignals =
+            new HashMap<>();
+    private ProvisioningTaskStats mTaskStats;
     private Handler mWorkerHandler;
+    private ProvisioningTaskWatchdog mWatchdog;
 
     // Provisioning hasn't started yet
     private static final int STATUS_NOT_STARTED = 0;
@@ -74,39 +110,85 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
     private static final int STATUS_CLEANED_UP = 5;
 
     private int mStatus = STATUS_NOT_STARTED;
-    private List<AbstractProvisioningTask> mTasks = new ArrayList<>();
-
-    protected int mCurrentTaskIndex;
+    private final ProvisioningTaskGraph mTaskGraph = new ProvisioningTaskGraph();
+    private AbstractProvisioningTask mLastAddedTask;
 
     AbstractProvisioningController(
             Context context,
             ProvisioningParams params,
             int userId,
             ProvisioningControllerCallback callback) {
+        this(context, params, userId, callback,
+                new ProvisioningTaskJournal(context, params.provisioningId),
+                ProvisioningTaskWatchdog.DeadlinePolicy.createDefault());
+    }
+
+    @VisibleForTesting
+    AbstractProvisioningController(
+            Context context,
+            ProvisioningParams params,
+            int userId,
+            ProvisioningControllerCallback callback,
+            ProvisioningTaskJournal taskJournal,
+            ProvisioningTaskWatchdog.DeadlinePolicy deadlinePolicy) {
         mContext = checkNotNull(context);
         mParams = checkNotNull(params);
         mUserId = userId;
         mCallback = checkNotNull(callback);
+        mTaskJournal = checkNotNull(taskJournal);
+        mDeadlinePolicy = checkNotNull(deadlinePolicy);
         mProvisioningAnalyticsTracker = new ProvisioningAnalyticsTracker(
                 MetricsWriterFactory.getMetricsWriter(mContext, new SettingsFacade()),
                 new ManagedProvisioningSharedPreferences(context));
+        mTaskStats = new ProvisioningTaskStats(mProvisioningAnalyticsTracker);
     }
 
+    /**
+     * Adds tasks that run sequentially: each task depends on the task added right before it.
+     */
     @MainThread
     protected synchronized void addTasks(AbstractProvisioningTask... tasks) {
         for (AbstractProvisioningTask task : tasks) {
-            mTasks.add(task);
+            if (mLastAddedTask == null) {
+                addTask(task);
+            } else {
+                addTask(task, mLastAddedTask);
+            }
         }
     }
 
+    /**
+     * Adds a task that is run once all of {@code dependencies} have completed. A task without
+     * dependencies is run as soon as provisioning starts.
+     *
+     * @param task the task to add
+     * @param dependencies the tasks whose outputs {@code task} consumes, they must have been added
+     *                     before
+     */
+    @MainThread
+    protected synchronized void addTask(AbstractProvisioningTask task,
+            AbstractProvisioningTask... dependencies) {
+        mTaskGraph.addTask(task, dependencies);
+        mLastAddedTask = task;
+    }
+
+    /**
+     * Sets where the tasks and the watchdog record what they did, usually shared by the
+     * successive controllers of a provisioning flow. Must be called before {@link #start}. By
+     * default, it is only recorded for this controller.
+     */
+    synchronized void setTaskStats(ProvisioningTaskStats taskStats) {
+        mTaskStats = checkNotNull(taskStats);
+    }
+
     protected abstract void setUpTasks();
     protected abstract int getErrorTitle();
     protected abstract int getErrorMsgId(AbstractProvisioningTask task, int errorCode);
     protected abstract boolean getRequireFactoryReset(AbstractProvisioningTask task, int errorCode);
 
     /**
-     * Start the provisioning process. The tasks loaded in {@link #setUpTasks()} ()} will be
-     * processed one by one and the respective callbacks will be given to the UI.
+     * Start the provisioning process. The tasks loaded in {@link #setUpTasks()} will be
+     * processed in dependency order and the respective callbacks will be given to the UI.
      */
     @MainThread
     public synchronized void start(Looper looper) {
@@ -119,9 +201,11 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
             return;
         }
         mWorkerHandler = checkNotNull(handler);
+        mWatchdog = new ProvisioningTaskWatchdog(mWorkerHandler, mDeadlinePolicy, this,
+                mTaskStats);
 
         mStatus = STATUS_RUNNING;
-        runTask(0);
+        runReadyTasks();
     }
 
     /**
@@ -132,23 +216,72 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
     public synchronized void cancel() {
         ProvisionLogger.logd("Cancel called, current status is " + mStatus);
         mStatus = STATUS_CANCELLING;
+        mTaskJournal.delete();
         cleanup(STATUS_CLEANED_UP);
     }
 
-    private void runTask(int index) {
-        if (mTasks.isEmpty()) {
-            tasksCompleted();
-            return;
+    private void runReadyTasks() {
+        boolean restoredTask;
+        do {
+            if (mTaskGraph.isComplete()) {
+                tasksCompleted();
+                return;
+            }
+            restoredTask = false;
+            for (AbstractProvisioningTask task : mTaskGraph.getReadyTasks()) {
+                if (maybeRestoreCompletedTask(task)) {
+                    // Tasks depending on the restored task may have become ready.
+                    restoredTask = true;
+                    continue;
+                }
+                if (mTaskGraph.getRunningTaskCount() >= MAX_CONCURRENT_TASKS) {
+                    return;
+                }
+                runTask(task);
+            }
+        } while (restoredTask);
+    }
+
+    /**
+     * Marks {@code task} as completed without running it if it is resumable and completed in an
+     * earlier, interrupted run of this provisioning session.
+     */
+    private boolean maybeRestoreCompletedTask(AbstractProvisioningTask task) {
+        if (!task.isResumable()) {
+            return false;
         }
-        AbstractProvisioningTask nextTask = mTasks.get(index);
+        String taskKey = getTaskKey(task);
+        Map<String, String> outputs = mTaskJournal.getCompletedTaskOutputs(taskKey);
+        if (outputs == null || !task.restoreOutputs(outputs)) {
+            return false;
+        }
+        ProvisionLogger.logi("Skipping task " + taskKey + ", it completed before a restart.");
+        mTaskGraph.markStarted(task);
+        mTaskGraph.markCompleted(task);
+        return true;
+    }
+
+    /**
+     * Returns a key identifying {@code task} across process restarts. Tasks are set up
+     * deterministically from the provisioning params, so the position of a task is stable.
+     */
+    private String getTaskKey(AbstractProvisioningTask task) {
+        return mTaskGraph.getTasks().indexOf(task) + "/" + task.getClass().getSimpleName();
+    }
+
+    private void runTask(AbstractProvisioningTask task) {
+        mTaskGraph.markStarted(task);
+        task.setTaskStats(mTaskStats);
+        mCancellationSignals.put(task, new CancellationSignal());
+        mWatchdog.startWatching(task);
         Message msg = mWorkerHandler.obtainMessage(MSG_RUN_TASK, mUserId, 0 /* arg2 not used */,
-                nextTask);
+                task);
         mWorkerHandler.sendMessage(msg);
     }
 
     private void tasksCompleted() {
         mStatus = STATUS_TASKS_COMPLETED;
-        mCurrentTaskIndex = -1;
+        mTaskJournal.delete();
         mCallback.provisioningTasksCompleted();
     }
 
@@ -158,39 +291,86 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
         if (mStatus != STATUS_RUNNING) {
             return;
         }
-
-        mCurrentTaskIndex++;
-        if (mCurrentTaskIndex == mTasks.size()) {
-            tasksCompleted();
-        } else {
-            runTask(mCurrentTaskIndex);
+        if (mTaskGraph.isCompleted(task)) {
+            // Some tasks may report success more than once. Only act the first time.
+            return;
         }
+        mWatchdog.stopWatching(task);
+        mCancellationSignals.remove(task);
+
+        mTaskGraph.markCompleted(task);
+        Map<String, String> outputs = new HashMap<>();
+        task.saveOutputs(outputs);
+        mTaskJournal.recordTaskCompleted(getTaskKey(task), outputs);
+        runReadyTasks();
     }
 
     @Override
     // Note that this callback might come on the main thread
     public synchronized void onError(AbstractProvisioningTask task, int errorCode) {
+        mWatchdog.stopWatching(task);
+        mCancellationSignals.remove(task);
+        if (mStatus == STATUS_ERROR) {
+            // A task that timed out may still fail later on, only report the first error.
+            return;
+        }
         mStatus = STATUS_ERROR;
+        mTaskJournal.delete();
         cleanup(STATUS_ERROR);
         mProvisioningAnalyticsTracker.logProvisioningError(mContext, task, errorCode);
         mCallback.error(getErrorTitle(), getErrorMsgId(task, errorCode),
                 getRequireFactoryReset(task, errorCode));
     }
 
+    @Override
+    // Called on the worker thread
+    public synchronized void onTaskTimedOut(AbstractProvisioningTask task) {
+        if (mStatus != STATUS_RUNNING) {
+            return;
+        }
+        onError(task, AbstractProvisioningTask.ERROR_TIMED_OUT);
+    }
+
     private void cleanup(final int newStatus) {
+        if (mWatchdog != null) {
+            mWatchdog.stopWatchingAll();
+        }
+        long cancelTime = mAnalyticsUtils.elapsedRealTime();
+        cancelRunningTasks();
+        // The running tasks abort on the worker thread, before this runs.
         mWorkerHandler.post(() -> {
+                long latencyMillis = mAnalyticsUtils.elapsedRealTime() - cancelTime;
+                ProvisionLogger.logi("Running tasks aborted within " + latencyMillis + " ms");
                 mStatus = newStatus;
                 mCallback.cleanUpCompleted();
             });
     }
 
+    private void cancelRunningTasks() {
+        for (CancellationSignal cancellationSignal : mCancellationSignals.values()) {
+            cancellationSignal.cancel();
+        }
+        mCancellationSignals.clear();
+    }
+
+    private synchronized CancellationSignal getCancellationSignal(AbstractProvisioningTask task) {
+        CancellationSignal cancellationSignal = mCancellationSignals.get(task);
+        if (cancellationSignal == null) {
+            // Provisioning was cancelled before the task got to run.
+            cancellationSignal = new CancellationSignal();
+            cancellationSignal.cancel();
+        }
+        return cancellationSignal;
+    }
+
     protected final void addDownloadAndInstallDeviceOwnerPackageTasks() {
         if (mParams.deviceAdminDownloadInfo == null) return;
 
-        DownloadPackageTask downloadTask = new DownloadPackageTask(mContext, mParams, this);
-        addTasks(downloadTask,
-                new VerifyPackageTask(downloadTask, mContext, mParams, this),
-                new InstallPackageTask(downloadTask, mContext, mParams, this));
+        if (StreamingInstallPackageTask.isEnabled(mParams)) {
+            addTasks(new StreamingInstallPackageTask(mContext, mParams, this));
+        } else {
+            addDownloadVerifyAndInstallTasks();
+        }
 
         // TODO(b/170333009): add unit test for headless system user mode
         if (UserManager.isHeadlessSystemUserMode() && mUserId != UserHandle.USER_SYSTEM) {
@@ -201,13 +381,38 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
         }
     }
 
+    private void addDownloadVerifyAndInstallTasks() {
+        AbstractProvisioningTask previousTask = mLastAddedTask;
+        DownloadPackageTask downloadTask = new DownloadPackageTask(mContext, mParams, this);
+        // Both tasks consume the downloaded file through PackageLocationProvider, and the package
+        // must be verified before it is installed.
+        VerifyPackageTask verifyTask = new VerifyPackageTask(downloadTask, mContext, mParams, this);
+        addTasks(downloadTask);
+        addTask(verifyTask, downloadTask);
+        if (mParams.deviceAdminDownloadInfo.splits.isEmpty()) {
+            addTask(new InstallPackageTask(downloadTask, mContext, mParams, this),
+                    downloadTask, verifyTask);
+            return;
+        }
+
+        // The splits are downloaded while the base apk is, and installed in the same session.
+        DownloadSplitsTask splitsTask = new DownloadSplitsTask(mContext, mParams, this);
+        if (previousTask == null) {
+            addTask(splitsTask);
+        } else {
+            addTask(splitsTask, previousTask);
+        }
+        addTask(new InstallPackageTask(downloadTask, splitsTask, mContext, mParams, this),
+                downloadTask, verifyTask, splitsTask);
+    }
+
     /**
      * Handler that runs the provisioning tasks.
      *
      * <p>We're using a {@link HandlerThread} for all the provisioning tasks in order to not
      * block the UI thread.</p>
      */
-    protected static class ProvisioningTaskHandler extends Handler {
+    protected class ProvisioningTaskHandler extends Handler {
         public ProvisioningTaskHandler(Looper looper) {
             super(looper);
         }
@@ -218,7 +423,7 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
                 int userId = msg.arg1;
                 ProvisionLogger.logd("Running task: " + task.getClass().getSimpleName()
                         + " for user " + userId);
-                task.run(userId);
+                task.run(userId, getCancellationSignal(task));
             } else {
                 ProvisionLogger.loge("Unknown message: " + msg.what);
             }
@@ -28,7 +28,9 @@ import com.android.managedprovisioning.task.AbstractProvisioningTask;
 import com.android.managedprovisioning.task.AddWifiNetworkTask;
 import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
+import com.android.managedprovisioning.task.DownloadSplitsTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
 import com.android.managedprovisioning.task.VerifyPackageTask;
 
 import java.util.Objects;
@@ -101,6 +103,13 @@ public class AdminIntegratedFlowPrepareController extends AbstractProvisioningCo
                 case DownloadPackageTask.ERROR_OTHER:
                     return R.string.cant_set_up_device;
             }
+        } else if (task instanceof DownloadSplitsTask) {
+            switch (errorCode) {
+                case DownloadSplitsTask.ERROR_DOWNLOAD_FAILED:
+                    return R.string.error_download_failed;
+                case DownloadSplitsTask.ERROR_HASH_MISMATCH:
+                    return R.string.error_hash_mismatch;
+            }
         } else if (task instanceof VerifyPackageTask) {
             switch (errorCode) {
                 case VerifyPackageTask.ERROR_HASH_MISMATCH:
@@ -115,6 +124,17 @@ public class AdminIntegratedFlowPrepareController extends AbstractProvisioningCo
                 case InstallPackageTask.ERROR_INSTALLATION_FAILED:
                     return R.string.error_installation_failed;
             }
+        } else if (task instanceof StreamingInstallPackageTask) {
+            switch (errorCode) {
+                case StreamingInstallPackageTask.ERROR_DOWNLOAD_FAILED:
+                    return R.string.error_download_failed;
+                case StreamingInstallPackageTask.ERROR_HASH_MISMATCH:
+                    return R.string.error_hash_mismatch;
+                case StreamingInstallPackageTask.ERROR_DEVICE_ADMIN_MISSING:
+                    return R.string.error_package_invalid;
+                case StreamingInstallPackageTask.ERROR_INSTALLATION_FAILED:
+                    return R.string.error_installation_failed;
+            }
         }
 
         return R.string.cant_set_up_device;
@@ -23,6 +23,7 @@ import static com.android.managedprovisioning.analytics.ProvisioningAnalyticsTra
 import static java.util.Objects.requireNonNull;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.os.UserHandle;
 
 import com.android.internal.annotations.GuardedBy;
@@ -35,7 +36,9 @@ import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.ProvisioningTaskStats;
 
+import java.io.PrintWriter;
 import java.util.Objects;
 
 /**
@@ -50,6 +53,7 @@ class AdminIntegratedFlowPrepareManager implements ProvisioningControllerCallbac
 
     private final Context mContext;
     private final ProvisioningManagerHelper mHelper;
+    private final ProvisioningTaskStats mTaskStats;
     private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
     private final TimeLogger mTimeLogger;
     private final Utils mUtils;
@@ -88,6 +92,7 @@ class AdminIntegratedFlowPrepareManager implements ProvisioningControllerCallbac
         mContext = requireNonNull(context);
         mHelper = requireNonNull(helper);
         mProvisioningAnalyticsTracker = requireNonNull(analyticsTracker);
+        mTaskStats = new ProvisioningTaskStats(mProvisioningAnalyticsTracker);
         mTimeLogger = requireNonNull(timeLogger);
         mUtils = requireNonNull(utils);
         mSettingsFacade = requireNonNull(settingsFacade);
@@ -155,14 +160,24 @@ class AdminIntegratedFlowPrepareManager implements ProvisioningControllerCallbac
         mHelper.error(titleId, messageId, factoryResetRequired);
     }
 
+    /**
+     * Prints what the preparation tasks did, over all the preparations since the process started.
+     */
+    void dump(PrintWriter pw) {
+        mTaskStats.dump(pw, SystemClock.elapsedRealtime());
+    }
+
     private AbstractProvisioningController getController(ProvisioningParams params) {
-        return AdminIntegratedFlowPrepareController.createInstance(
-                mContext,
-                params,
-                UserHandle.myUserId(),
-                this,
-                mUtils,
-                mSettingsFacade);
+        AbstractProvisioningController controller =
+                AdminIntegratedFlowPrepareController.createInstance(
+                        mContext,
+                        params,
+                        UserHandle.myUserId(),
+                        this,
+                        mUtils,
+                        mSettingsFacade);
+        controller.setTaskStats(mTaskStats);
+        return controller;
     }
 
     private void clearControllerLocked() {
@@ -25,8 +25,10 @@ import com.android.managedprovisioning.task.AbstractProvisioningTask;
 import com.android.managedprovisioning.task.AddWifiNetworkTask;
 import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
+import com.android.managedprovisioning.task.DownloadSplitsTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
 import com.android.managedprovisioning.task.ProvisionFullyManagedDeviceTask;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
 import com.android.managedprovisioning.task.VerifyPackageTask;
 
 /**
@@ -85,6 +87,10 @@ public class DeviceOwnerProvisioningController extends AbstractProvisioningContr
 
     @Override
     protected int getErrorMsgId(AbstractProvisioningTask task, int errorCode) {
+        // Reported by the watchdog for any task, so it isn't one of the task's own error codes.
+        if (errorCode == AbstractProvisioningTask.ERROR_TIMED_OUT) {
+            return R.string.error_timed_out;
+        }
         if (task instanceof AddWifiNetworkTask) {
             return R.string.error_wifi;
         } else if (task instanceof DownloadPackageTask) {
@@ -94,6 +100,13 @@ public class DeviceOwnerProvisioningController extends AbstractProvisioningContr
                 case DownloadPackageTask.ERROR_OTHER:
                     return R.string.cant_set_up_device;
             }
+        } else if (task instanceof DownloadSplitsTask) {
+            switch (errorCode) {
+                case DownloadSplitsTask.ERROR_DOWNLOAD_FAILED:
+                    return R.string.error_download_failed;
+                case DownloadSplitsTask.ERROR_HASH_MISMATCH:
+                    return R.string.error_hash_mismatch;
+            }
         } else if (task instanceof VerifyPackageTask) {
             switch (errorCode) {
                 case VerifyPackageTask.ERROR_HASH_MISMATCH:
@@ -108,6 +121,17 @@ public class DeviceOwnerProvisioningController extends AbstractProvisioningContr
                 case InstallPackageTask.ERROR_INSTALLATION_FAILED:
                     return R.string.error_installation_failed;
             }
+        } else if (task instanceof StreamingInstallPackageTask) {
+            switch (errorCode) {
+                case StreamingInstallPackageTask.ERROR_DOWNLOAD_FAILED:
+                    return R.string.error_download_failed;
+                case StreamingInstallPackageTask.ERROR_HASH_MISMATCH:
+                    return R.string.error_hash_mismatch;
+                case StreamingInstallPackageTask.ERROR_DEVICE_ADMIN_MISSING:
+                    return R.string.error_package_invalid;
+                case StreamingInstallPackageTask.ERROR_INSTALLATION_FAILED:
+                    return R.string.error_installation_failed;
+            }
         }
 
         return R.string.cant_set_up_device;
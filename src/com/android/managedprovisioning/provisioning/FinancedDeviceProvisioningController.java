@@ -62,9 +62,11 @@ public final class FinancedDeviceProvisioningController extends AbstractProvisio
 
         addDownloadAndInstallDeviceOwnerPackageTasks();
 
-        addTasks(
-                new SetDeviceOwnerPolicyTask(mContext, mParams, this),
-                new DisallowAddUserTask(mContext, mParams, this));
+        addTasks(new SetDeviceOwnerPolicyTask(mContext, mParams, this));
+
+        // Restricting users doesn't need the device admin, so it runs while it is downloaded and
+        // installed.
+        addTask(new DisallowAddUserTask(mContext, mParams, this));
     }
 
     @Override
@@ -71,6 +71,9 @@ public class ProfileOwnerProvisioningController extends AbstractProvisioningCont
 
     @Override
     protected int getErrorMsgId(AbstractProvisioningTask task, int errorCode) {
+        if (errorCode == AbstractProvisioningTask.ERROR_TIMED_OUT) {
+            return R.string.managed_provisioning_error_timed_out;
+        }
         return R.string.managed_provisioning_error_text;
     }
 
@@ -50,6 +50,7 @@ import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.finalization.PreFinalizationController;
 import com.android.managedprovisioning.finalization.UserProvisioningStateHelper;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.model.ProvisioningParamsWriter;
 import com.android.managedprovisioning.provisioning.TransitionAnimationHelper.TransitionAnimationCallback;
 import com.android.managedprovisioning.provisioning.TransitionAnimationHelper.TransitionAnimationStateManager;
 
@@ -300,6 +301,12 @@ public class ProvisioningActivity extends AbstractProvisioningActivity
     private void markDeviceManagementEstablishedAndFinish() {
         new PreFinalizationController(this, mUserProvisioningStateHelper)
                 .deviceManagementEstablished(mParams);
+        // Finalization may read the stored params after this process is gone, so the activity
+        // finishes once they are on disk.
+        ProvisioningParamsWriter.flush(this::finishAfterDeviceManagementEstablished);
+    }
+
+    private void finishAfterDeviceManagementEstablished() {
         if (mParams.flowType == ProvisioningParams.FLOW_TYPE_ADMIN_INTEGRATED) {
             if (mUtils.isProfileOwnerAction(mParams.provisioningAction)) {
                 setResult(RESULT_CODE_WORK_PROFILE_CREATED);
@@ -23,6 +23,7 @@ import static java.util.Objects.requireNonNull;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.ViewModelProvider;
@@ -39,6 +40,9 @@ import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.provisioning.ProvisioningViewModel.ProvisioningViewModelFactory;
 import com.android.managedprovisioning.provisioning.TransitionAnimationHelper.TransitionAnimationState;
+import com.android.managedprovisioning.task.ProvisioningTaskStats;
+
+import java.io.PrintWriter;
 
 /**
  * Singleton instance that provides communications between the ongoing provisioning process and the
@@ -59,6 +63,7 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
     private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
     private final TimeLogger mTimeLogger;
     private final ProvisioningManagerHelper mHelper;
+    private final ProvisioningTaskStats mTaskStats;
     private ProvisioningViewModel mViewModel;
 
     @GuardedBy("this")
@@ -90,6 +95,7 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
         mContext = requireNonNull(context);
         mFactory = requireNonNull(factory);
         mProvisioningAnalyticsTracker = requireNonNull(analyticsTracker);
+        mTaskStats = new ProvisioningTaskStats(mProvisioningAnalyticsTracker);
         mTimeLogger = requireNonNull(timeLogger);
         mHelper = new ProvisioningManagerHelper();
     }
@@ -188,8 +194,19 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
         return mViewModel.restoreTransitionAnimationState();
     }
 
+    /**
+     * Prints what the provisioning tasks did, over all the provisioning sessions since the process
+     * started.
+     */
+    void dump(PrintWriter pw) {
+        mTaskStats.dump(pw, SystemClock.elapsedRealtime());
+    }
+
     private AbstractProvisioningController getController(ProvisioningParams params) {
-        return mFactory.createProvisioningController(mContext, params, this);
+        AbstractProvisioningController controller =
+                mFactory.createProvisioningController(mContext, params, this);
+        controller.setTaskStats(mTaskStats);
+        return controller;
     }
 
     private void clearControllerLocked() {
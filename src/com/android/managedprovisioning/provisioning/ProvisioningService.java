@@ -20,8 +20,22 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 
+import com.android.managedprovisioning.analytics.DeferredMetricsAppender;
+import com.android.managedprovisioning.common.UserAppStateStore;
+import com.android.managedprovisioning.model.ProvisioningParamsCache;
+import com.android.managedprovisioning.model.ProvisioningParamsWriter;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Service that keeps the provisioning process alive.
+ *
+ * <p>Its dump shows how the recent package downloads went, how often the package cache saved a
+ * download, how the provisioning params, the app state of the users and the deferred metrics are
+ * cached and saved, how close the tasks came to their deadlines, and how often they retried:
+ * {@code adb shell dumpsys activity service
+ * com.android.managedprovisioning/.provisioning.ProvisioningService}.
  */
 public class ProvisioningService extends Service {
 
@@ -29,4 +43,16 @@ public class ProvisioningService extends Service {
     public IBinder onBind(Intent intent) {
         return null;
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        ProvisioningParamsCache.dump(pw);
+        ProvisioningParamsWriter.dump(pw);
+        UserAppStateStore.dump(pw);
+        DeferredMetricsAppender.dump(pw);
+        pw.println("Provisioning:");
+        ProvisioningManager.getInstance(this).dump(pw);
+        pw.println("Admin integrated flow preparation:");
+        AdminIntegratedFlowPrepareManager.getInstance(this).dump(pw);
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static com.android.internal.util.Preconditions.checkArgument;
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dependency graph of the provisioning tasks run by an {@link AbstractProvisioningController}.
+ *
+ * <p>Each task declares the tasks whose outputs it consumes. A task becomes ready to run once all
+ * of its dependencies have completed, so tasks that don't depend on each other may run at the
+ * same time. Dependencies must be added to the graph before the tasks that depend on them, which
+ * guarantees the graph is acyclic.
+ *
+ * <p>This class is not thread safe, callers are expected to synchronize access.
+ */
+final class ProvisioningTaskGraph {
+
+    private final Map<AbstractProvisioningTask, Set<AbstractProvisioningTask>> mDependencies =
+            new LinkedHashMap<>();
+    private final Set<AbstractProvisioningTask> mStartedTasks = new HashSet<>();
+    private final Set<AbstractProvisioningTask> mCompletedTasks = new HashSet<>();
+
+    /**
+     * Adds {@code task} to the graph.
+     *
+     * @param task the task to add, must not already be part of the graph
+     * @param dependencies the tasks that must complete before {@code task} can be run, all of them
+     *                     must already be part of the graph
+     */
+    void addTask(AbstractProvisioningTask task, AbstractProvisioningTask... dependencies) {
+        checkNotNull(task);
+        checkArgument(!mDependencies.containsKey(task), "Task already added: " + task);
+        Set<AbstractProvisioningTask> taskDependencies = new HashSet<>();
+        for (AbstractProvisioningTask dependency : dependencies) {
+            checkArgument(mDependencies.containsKey(dependency),
+                    "Dependency must be added before the task depending on it: " + dependency);
+            taskDependencies.add(dependency);
+        }
+        mDependencies.put(task, taskDependencies);
+    }
+
+    /**
+     * Returns the tasks that have not been started yet and whose dependencies have all completed,
+     * in the order they were added.
+     */
+    List<AbstractProvisioningTask> getReadyTasks() {
+        List<AbstractProvisioningTask> readyTasks = new ArrayList<>();
+        for (Map.Entry<AbstractProvisioningTask, Set<AbstractProvisioningTask>> entry
+                : mDependencies.entrySet()) {
+            if (!mStartedTasks.contains(entry.getKey())
+                    && mCompletedTasks.containsAll(entry.getValue())) {
+                readyTasks.add(entry.getKey());
+            }
+        }
+        return readyTasks;
+    }
+
+    /** Returns the tasks {@code task} directly depends on. */
+    Set<AbstractProvisioningTask> getDependencies(AbstractProvisioningTask task) {
+        Set<AbstractProvisioningTask> dependencies = mDependencies.get(task);
+        return dependencies == null
+                ? Collections.emptySet()
+                : Collections.unmodifiableSet(dependencies);
+    }
+
+    /** Records that {@code task} has been handed over for execution. */
+    void markStarted(AbstractProvisioningTask task) {
+        checkArgument(mDependencies.containsKey(task), "Unknown task: " + task);
+        mStartedTasks.add(task);
+    }
+
+    /** Records that {@code task} has finished successfully. */
+    void markCompleted(AbstractProvisioningTask task) {
+        checkArgument(mStartedTasks.contains(task), "Task was never started: " + task);
+        mCompletedTasks.add(task);
+    }
+
+    /** Returns the number of tasks that have been started but have not completed yet. */
+    int getRunningTaskCount() {
+        return mStartedTasks.size() - mCompletedTasks.size();
+    }
+
+    /** Returns whether {@code task} has finished successfully. */
+    boolean isCompleted(AbstractProvisioningTask task) {
+        return mCompletedTasks.contains(task);
+    }
+
+    /** Returns whether every task in the graph has completed. */
+    boolean isComplete() {
+        return mCompletedTasks.size() == mDependencies.size();
+    }
+
+    /** Returns all the tasks of the graph, in the order they were added. */
+    List<AbstractProvisioningTask> getTasks() {
+        return new ArrayList<>(mDependencies.keySet());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+import static com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences.DEFAULT_PROVISIONING_ID;
+
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.ProvisioningTaskJournalProtos.TaskCompletionRecord;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the provisioning tasks that completed for a provisioning session.
+ *
+ * <p>The journal is keyed by {@link com.android.managedprovisioning.model.ProvisioningParams
+ * #provisioningId}. If the process dies in the middle of provisioning, a restarted
+ * {@link AbstractProvisioningController} reads it back to skip the tasks that already completed.
+ *
+ * <p>Every record is written with {@link TaskCompletionRecord#writeDelimitedTo} and synced to
+ * disk before the next task starts. A record that was only partly written when the process died
+ * is dropped on the next read.
+ */
+public class ProvisioningTaskJournal {
+
+    @VisibleForTesting
+    static final String JOURNAL_DIR = "provisioning_task_journal";
+
+    private final File mJournalDir;
+    private final File mFile;
+    private final long mProvisioningId;
+
+    private Map<String, Map<String, String>> mCompletedTasks;
+
+    public ProvisioningTaskJournal(Context context, long provisioningId) {
+        this(new File(context.getFilesDir(), JOURNAL_DIR), provisioningId);
+    }
+
+    @VisibleForTesting
+    ProvisioningTaskJournal(File journalDir, long provisioningId) {
+        mJournalDir = checkNotNull(journalDir);
+        mFile = new File(journalDir, Long.toString(provisioningId));
+        mProvisioningId = provisioningId;
+    }
+
+    /**
+     * Returns the outputs recorded for the task identified by {@code taskKey}, or {@code null} if
+     * the task did not complete in an earlier run of this provisioning session.
+     */
+    public synchronized Map<String, String> getCompletedTaskOutputs(String taskKey) {
+        if (!isEnabled()) {
+            return null;
+        }
+        loadIfNeeded();
+        return mCompletedTasks.get(taskKey);
+    }
+
+    /**
+     * Durably records that the task identified by {@code taskKey} has completed.
+     *
+     * <p>Failing to write the journal is not fatal: provisioning continues, it just can't be
+     * resumed past this task.
+     */
+    public synchronized void recordTaskCompleted(String taskKey, Map<String, String> outputs) {
+        if (!isEnabled()) {
+            return;
+        }
+        loadIfNeeded();
+        TaskCompletionRecord record = TaskCompletionRecord.newBuilder()
+                .setProvisioningId(mProvisioningId)
+                .setTaskKey(taskKey)
+                .putAllOutputs(outputs)
+                .build();
+        mJournalDir.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(mFile, /* append= */ true)) {
+            record.writeDelimitedTo(out);
+            out.getFD().sync();
+            mCompletedTasks.put(taskKey, Collections.unmodifiableMap(new HashMap<>(outputs)));
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to write provisioning task journal.", e);
+        }
+    }
+
+    /**
+     * Deletes the journal. Called once the provisioning session can no longer be resumed, i.e.
+     * after the tasks completed, failed or were cancelled.
+     */
+    public synchronized void delete() {
+        mCompletedTasks = new HashMap<>();
+        if (mFile.exists() && !mFile.delete()) {
+            ProvisionLogger.loge("Failed to delete provisioning task journal " + mFile);
+        }
+    }
+
+    private boolean isEnabled() {
+        // Provisioning sessions that were never assigned an id can't be told apart.
+        return mProvisioningId != DEFAULT_PROVISIONING_ID;
+    }
+
+    private void loadIfNeeded() {
+        if (mCompletedTasks != null) {
+            return;
+        }
+        mCompletedTasks = new HashMap<>();
+        deleteStaleJournals();
+        if (!mFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            // The input is deliberately unbuffered so that the channel position always points
+            // right after the last record that was parsed.
+            TaskCompletionRecord record;
+            while ((record = TaskCompletionRecord.parseDelimitedFrom(in)) != null) {
+                if (record.getProvisioningId() == mProvisioningId) {
+                    mCompletedTasks.put(record.getTaskKey(), record.getOutputsMap());
+                }
+                validLength = in.getChannel().position();
+            }
+        } catch (IOException e) {
+            ProvisionLogger.logw("Provisioning task journal is truncated after " + validLength
+                    + " bytes, dropping the incomplete record.");
+            truncate(validLength);
+        }
+        ProvisionLogger.logi("Read " + mCompletedTasks.size()
+                + " completed tasks from provisioning task journal.");
+    }
+
+    private void truncate(long length) {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to truncate provisioning task journal.", e);
+        }
+    }
+
+    private void deleteStaleJournals() {
+        File[] journals = mJournalDir.listFiles();
+        if (journals == null) {
+            return;
+        }
+        for (File journal : journals) {
+            if (!journal.equals(mFile)) {
+                journal.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static com.android.internal.util.Preconditions.checkArgument;
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.os.Handler;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.AnalyticsUtils;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+import com.android.managedprovisioning.task.AddWifiNetworkTask;
+import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
+import com.android.managedprovisioning.task.DownloadPackageTask;
+import com.android.managedprovisioning.task.DownloadSplitsTask;
+import com.android.managedprovisioning.task.InstallPackageTask;
+import com.android.managedprovisioning.task.ProvisioningTaskStats;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces a deadline on every running provisioning task.
+ *
+ * <p>A task that neither succeeded nor failed within the deadline given by its
+ * {@link DeadlinePolicy} is reported to the {@link Callback}. When a task finishes in time, the
+ * share of its deadline it used is logged and recorded in the {@link ProvisioningTaskStats}, whose
+ * dump tells how much headroom the deadlines have.
+ */
+class ProvisioningTaskWatchdog {
+
+    interface Callback {
+        /** Called on the watchdog handler when {@code task} exceeded its deadline. */
+        void onTaskTimedOut(AbstractProvisioningTask task);
+    }
+
+    private final Handler mHandler;
+    private final DeadlinePolicy mPolicy;
+    private final Callback mCallback;
+    private final ProvisioningTaskStats mTaskStats;
+    private final AnalyticsUtils mAnalyticsUtils;
+    private final Map<AbstractProvisioningTask, WatchedTask> mWatchedTasks = new HashMap<>();
+
+    ProvisioningTaskWatchdog(
+            Handler handler,
+            DeadlinePolicy policy,
+            Callback callback,
+            ProvisioningTaskStats taskStats) {
+        this(handler, policy, callback, taskStats, new AnalyticsUtils());
+    }
+
+    @VisibleForTesting
+    ProvisioningTaskWatchdog(
+            Handler handler,
+            DeadlinePolicy policy,
+            Callback callback,
+            ProvisioningTaskStats taskStats,
+            AnalyticsUtils analyticsUtils) {
+        mHandler = checkNotNull(handler);
+        mPolicy = checkNotNull(policy);
+        mCallback = checkNotNull(callback);
+        mTaskStats = checkNotNull(taskStats);
+        mAnalyticsUtils = checkNotNull(analyticsUtils);
+    }
+
+    /** Starts the deadline of {@code task}. */
+    synchronized void startWatching(AbstractProvisioningTask task) {
+        long deadlineMillis = mPolicy.getDeadlineMillis(task);
+        WatchedTask watchedTask = new WatchedTask(
+                task, mAnalyticsUtils.elapsedRealTime(), deadlineMillis);
+        mWatchedTasks.put(task, watchedTask);
+        mHandler.postDelayed(watchedTask, deadlineMillis);
+    }
+
+    /**
+     * Stops the deadline of {@code task} and records how much of it was used. Does nothing if the
+     * task isn't watched.
+     */
+    synchronized void stopWatching(AbstractProvisioningTask task) {
+        WatchedTask watchedTask = mWatchedTasks.remove(task);
+        if (watchedTask == null) {
+            return;
+        }
+        mHandler.removeCallbacks(watchedTask);
+        long elapsedMillis = mAnalyticsUtils.elapsedRealTime() - watchedTask.mStartTime;
+        int deadlinePercentage = (int) (elapsedMillis * 100 / watchedTask.mDeadlineMillis);
+        ProvisionLogger.logi(task.getClass().getSimpleName() + " took " + elapsedMillis
+                + " ms, " + deadlinePercentage + "% of its " + watchedTask.mDeadlineMillis
+                + " ms deadline");
+        mTaskStats.onTaskFinished(task, deadlinePercentage);
+    }
+
+    /** Stops the deadlines of all the tasks, without recording them. */
+    synchronized void stopWatchingAll() {
+        for (WatchedTask watchedTask : mWatchedTasks.values()) {
+            mHandler.removeCallbacks(watchedTask);
+        }
+        mWatchedTasks.clear();
+    }
+
+    private synchronized boolean onDeadlineExceeded(WatchedTask watchedTask) {
+        return mWatchedTasks.remove(watchedTask.mTask, watchedTask);
+    }
+
+    private final class WatchedTask implements Runnable {
+        private final AbstractProvisioningTask mTask;
+        private final long mStartTime;
+        private final long mDeadlineMillis;
+
+        WatchedTask(AbstractProvisioningTask task, long startTime, long deadlineMillis) {
+            mTask = task;
+            mStartTime = startTime;
+            mDeadlineMillis = deadlineMillis;
+        }
+
+        @Override
+        public void run() {
+            if (!onDeadlineExceeded(this)) {
+                return;
+            }
+            ProvisionLogger.loge(mTask.getClass().getSimpleName() + " did not finish within "
+                    + mDeadlineMillis + " ms");
+            mCallback.onTaskTimedOut(mTask);
+        }
+    }
+
+    /**
+     * Deadlines of the provisioning tasks, per task class.
+     */
+    static class DeadlinePolicy {
+        // Tasks that don't wait on the network or on the package manager usually finish within
+        // seconds.
+        @VisibleForTesting
+        static final long DEFAULT_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+        private final Map<Class<? extends AbstractProvisioningTask>, Long> mDeadlines =
+                new HashMap<>();
+        private final long mDefaultDeadlineMillis;
+
+        DeadlinePolicy(long defaultDeadlineMillis) {
+            checkArgument(defaultDeadlineMillis > 0);
+            mDefaultDeadlineMillis = defaultDeadlineMillis;
+        }
+
+        /**
+         * Returns the default policy. The deadlines of the tasks with their own timeout are well
+         * above that timeout, so that the watchdog only catches tasks that hang.
+         */
+        static DeadlinePolicy createDefault() {
+            return new DeadlinePolicy(DEFAULT_DEADLINE_MILLIS)
+                    // Up to ~30 s of retries to add the network, then a 60 s connection timeout.
+                    .setDeadline(AddWifiNetworkTask.class, TimeUnit.MINUTES.toMillis(3))
+                    // 10 min connection timeout.
+                    .setDeadline(ConnectMobileNetworkTask.class, TimeUnit.MINUTES.toMillis(12))
+                    .setDeadline(DownloadPackageTask.class, TimeUnit.MINUTES.toMillis(30))
+                    .setDeadline(DownloadSplitsTask.class, TimeUnit.MINUTES.toMillis(30))
+                    .setDeadline(InstallPackageTask.class, TimeUnit.MINUTES.toMillis(10))
+                    // Downloads and installs the package at once.
+                    .setDeadline(StreamingInstallPackageTask.class,
+                            TimeUnit.MINUTES.toMillis(40));
+        }
+
+        /** Sets the deadline of the tasks of the given class. */
+        DeadlinePolicy setDeadline(
+                Class<? extends AbstractProvisioningTask> clazz, long deadlineMillis) {
+            checkArgument(deadlineMillis > 0);
+            mDeadlines.put(checkNotNull(clazz), deadlineMillis);
+            return this;
+        }
+
+        long getDeadlineMillis(AbstractProvisioningTask task) {
+            Long deadline = mDeadlines.get(task.getClass());
+            return deadline == null ? mDefaultDeadlineMillis : deadline;
+        }
+    }
+}
@@ -20,6 +20,9 @@ import static com.android.internal.logging.nano.MetricsProto.MetricsEvent.VIEW_U
 import static com.android.internal.util.Preconditions.checkNotNull;
 
 import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.analytics.AnalyticsUtils;
@@ -28,17 +31,37 @@ import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.analytics.TimeLogger;
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
+import java.util.Map;
+import java.util.Random;
+
 /**
  * Base class for all provisioning tasks.
  */
 public abstract class AbstractProvisioningTask {
+    /**
+     * Error code reported for a task that did not finish within its deadline. Tasks use
+     * non-negative error codes for their own errors.
+     */
+    public static final int ERROR_TIMED_OUT = -1;
+
     protected final Context mContext;
     protected final ProvisioningParams mProvisioningParams;
     private final Callback mCallback;
+    private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
+    private final AnalyticsUtils mAnalyticsUtils = new AnalyticsUtils();
+    private final Random mRandom = new Random();
     private TimeLogger mTimeLogger;
+    private ProvisioningTaskStats mTaskStats;
+
+    private RetryPolicy mRetryPolicy = RetryPolicy.NO_RETRIES;
+    private Handler mRetryHandler;
+    private int mRetryCount;
+    private long mAttemptStartTime;
+    private volatile CancellationSignal mCancellationSignal;
 
     /**
      * Constructor for a provisioning task
@@ -66,10 +89,11 @@ public abstract class AbstractProvisioningTask {
         mContext = checkNotNull(context);
         mProvisioningParams = provisioningParams;
         mCallback = checkNotNull(callback);
+        mProvisioningAnalyticsTracker = checkNotNull(provisioningAnalyticsTracker);
+        mTaskStats = new ProvisioningTaskStats(mProvisioningAnalyticsTracker);
 
         mTimeLogger = new TimeLogger(context, getMetricsCategory(), new MetricsLoggerWrapper(),
-                new AnalyticsUtils(),
-                checkNotNull(provisioningAnalyticsTracker));
+                mAnalyticsUtils, mProvisioningAnalyticsTracker);
     }
 
     /**
@@ -88,6 +112,83 @@ public abstract class AbstractProvisioningTask {
         mCallback.onError(this, resultCode);
     }
 
+    /**
+     * Sets how the task retries operations that fail transiently, see {@link #retry}.
+     */
+    public final void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = checkNotNull(retryPolicy);
+    }
+
+    /**
+     * Sets where the task records what it did, see {@link ProvisioningTaskStats}. By default, it
+     * is only recorded for this task.
+     */
+    public final void setTaskStats(ProvisioningTaskStats taskStats) {
+        mTaskStats = checkNotNull(taskStats);
+    }
+
+    /** Returns where the task records what it did. */
+    protected final ProvisioningTaskStats getTaskStats() {
+        return mTaskStats;
+    }
+
+    /**
+     * Sets the handler retries are scheduled on. By default, they are scheduled on the looper of
+     * the thread calling {@link #retry}.
+     */
+    @VisibleForTesting
+    final void setRetryHandler(Handler handler) {
+        mRetryHandler = checkNotNull(handler);
+    }
+
+    /**
+     * Marks the start of the first attempt of an operation that may be retried with
+     * {@link #retry}. The start of the following attempts is marked automatically.
+     */
+    protected final void startAttempt() {
+        mRetryCount = 0;
+        mAttemptStartTime = mAnalyticsUtils.elapsedRealTime();
+    }
+
+    /**
+     * Schedules another attempt of an operation that failed transiently, after the backoff delay
+     * given by the {@link RetryPolicy} of the task. This does not block the calling thread. The
+     * retry is logged and recorded with the latency of the failed attempt in the
+     * {@link ProvisioningTaskStats} of the task, but the last failed attempt isn't, as the task
+     * then reports the error.
+     *
+     * @param errorCode the error the attempt failed with
+     * @param attempt runs the next attempt of the operation
+     * @return {@code false} if the retry budget of the task is exhausted, in which case the task
+     * should report the error. Nothing is scheduled, but {@code true} is returned, if the task
+     * was cancelled.
+     */
+    protected final boolean retry(int errorCode, Runnable attempt) {
+        if (isCancelled()) {
+            // Nobody is waiting for the result anymore.
+            return true;
+        }
+        if (mRetryCount >= mRetryPolicy.getMaxRetries()) {
+            return false;
+        }
+        long attemptLatencyMillis = mAnalyticsUtils.elapsedRealTime() - mAttemptStartTime;
+        long delayMillis = mRetryPolicy.getDelayMillis(mRetryCount, mRandom);
+        mTaskStats.onRetry(this, errorCode, mRetryCount, attemptLatencyMillis);
+        mRetryCount++;
+        ProvisionLogger.logw(getClass().getSimpleName() + " failed with error " + errorCode
+                + " after " + attemptLatencyMillis + " ms, attempt " + (mRetryCount + 1) + " of "
+                + (mRetryPolicy.getMaxRetries() + 1) + " in " + delayMillis + " ms");
+        Handler handler = mRetryHandler != null ? mRetryHandler : new Handler(Looper.myLooper());
+        handler.postDelayed(() -> {
+            if (isCancelled()) {
+                return;
+            }
+            mAttemptStartTime = mAnalyticsUtils.elapsedRealTime();
+            attempt.run();
+        }, delayMillis);
+        return true;
+    }
+
     protected void startTaskTimer() {
         mTimeLogger.start();
     }
@@ -100,6 +201,30 @@ public abstract class AbstractProvisioningTask {
         return VIEW_UNKNOWN;
     }
 
+    /**
+     * Returns whether the task can be skipped when a provisioning session that was interrupted,
+     * e.g. because the process died, is resumed and the task had already completed. Such a task
+     * must be able to restore its outputs in {@link #restoreOutputs(Map)}.
+     */
+    public boolean isResumable() {
+        return false;
+    }
+
+    /**
+     * Saves the outputs of a successful run that later tasks consume, so that they can be restored
+     * with {@link #restoreOutputs(Map)} if provisioning is resumed.
+     */
+    public void saveOutputs(Map<String, String> outputs) {}
+
+    /**
+     * Restores the outputs saved by {@link #saveOutputs(Map)} in an earlier run of the task.
+     *
+     * @return whether the outputs are still valid. If not, the task is run again.
+     */
+    public boolean restoreOutputs(Map<String, String> outputs) {
+        return false;
+    }
+
     /**
      * Run the task.
      *
@@ -107,6 +232,41 @@ public abstract class AbstractProvisioningTask {
      */
     public abstract void run(int userId);
 
+    /**
+     * Runs the task so that it can be cancelled through {@code cancellationSignal}.
+     *
+     * <p>On cancellation, {@link #onCancelled()} is called on the looper of the calling thread.
+     * Nothing is run if the signal was already cancelled.
+     *
+     * @param userId the id of the user the action should be performed on.
+     * @param cancellationSignal signal cancelling this run of the task
+     */
+    public final void run(int userId, CancellationSignal cancellationSignal) {
+        mCancellationSignal = checkNotNull(cancellationSignal);
+        if (cancellationSignal.isCanceled()) {
+            return;
+        }
+        Handler handler = new Handler(Looper.myLooper());
+        cancellationSignal.setOnCancelListener(() -> handler.post(this::onCancelled));
+        run(userId);
+    }
+
+    /**
+     * Returns whether the current run of the task was cancelled. Work that is still pending, e.g.
+     * scheduled retries, should then be dropped.
+     */
+    protected final boolean isCancelled() {
+        CancellationSignal cancellationSignal = mCancellationSignal;
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+
+    /**
+     * Called when the current run of the task was cancelled. Tasks waiting on work done outside
+     * of the app, e.g. a download, should abort that work here. The task doesn't need to report a
+     * result afterwards.
+     */
+    protected void onCancelled() {}
+
     /**
      * Callback class for provisioning tasks.
      *
@@ -42,8 +42,8 @@ import com.android.managedprovisioning.task.wifi.WifiConfigurationProvider;
  */
 public class AddWifiNetworkTask extends AbstractProvisioningTask
         implements NetworkMonitor.NetworkConnectedCallback {
-    private static final int RETRY_SLEEP_DURATION_BASE_MS = 500;
-    private static final int RETRY_SLEEP_MULTIPLIER = 2;
+    private static final int RETRY_DELAY_BASE_MS = 500;
+    private static final int RETRY_DELAY_MULTIPLIER = 2;
     private static final int MAX_RETRIES = 6;
     private static final int RECONNECT_TIMEOUT_MS = 60000;
     @VisibleForTesting  static final int ADD_NETWORK_FAIL = -1;
@@ -57,7 +57,6 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
 
     private final Utils mUtils;
     private Runnable mTimeoutRunnable;
-    private Injector mInjector;
 
     public AddWifiNetworkTask(
             Context context,
@@ -66,7 +65,7 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         this(
                 new NetworkMonitor(context, /* waitForValidated */ false),
                 new WifiConfigurationProvider(),
-                context, provisioningParams, callback, new Utils(), new Injector(),
+                context, provisioningParams, callback, new Utils(),
                 new ProvisioningAnalyticsTracker(
                         MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
                         new ManagedProvisioningSharedPreferences(context)));
@@ -80,7 +79,6 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
             ProvisioningParams provisioningParams,
             Callback callback,
             Utils utils,
-            Injector injector,
             ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
         super(context, provisioningParams, callback, provisioningAnalyticsTracker);
 
@@ -88,7 +86,11 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         mWifiConfigurationProvider = checkNotNull(wifiConfigurationProvider);
         mWifiManager  = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         mUtils = checkNotNull(utils);
-        mInjector = checkNotNull(injector);
+        setRetryPolicy(RetryPolicy.builder()
+                .setMaxRetries(MAX_RETRIES)
+                .setInitialDelayMillis(RETRY_DELAY_BASE_MS)
+                .setBackoffMultiplier(RETRY_DELAY_MULTIPLIER)
+                .build());
     }
 
     @Override
@@ -125,11 +127,22 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
             return;
         }
 
-        int netId = tryAddingNetwork(wifiConf);
+        startAttempt();
+        addNetwork(wifiConf);
+    }
+
+    private void addNetwork(WifiConfiguration wifiConf) {
+        if (mTaskDone) {
+            return;
+        }
+        int netId = mWifiManager.addNetwork(wifiConf);
 
         if (netId == ADD_NETWORK_FAIL) {
-            ProvisionLogger.loge("Unable to add network after trying " +  MAX_RETRIES + " times.");
-            error(0);
+            if (!retry(0, () -> addNetwork(wifiConf))) {
+                ProvisionLogger.loge("Unable to add network after trying " + (MAX_RETRIES + 1)
+                        + " times.");
+                error(0);
+            }
             return;
         }
 
@@ -150,23 +163,16 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         mHandler.postDelayed(mTimeoutRunnable, RECONNECT_TIMEOUT_MS);
     }
 
-    private int tryAddingNetwork(WifiConfiguration wifiConf) {
-        int netId = mWifiManager.addNetwork(wifiConf);
-        int retriesLeft = MAX_RETRIES;
-        int durationNextSleep = RETRY_SLEEP_DURATION_BASE_MS;
-
-        while(netId == -1 && retriesLeft > 0) {
-            ProvisionLogger.loge("Retrying in " + durationNextSleep + " ms.");
-            try {
-                mInjector.threadSleep(durationNextSleep);
-            } catch (InterruptedException e) {
-                ProvisionLogger.loge("Retry interrupted.");
-            }
-            durationNextSleep *= RETRY_SLEEP_MULTIPLIER;
-            retriesLeft--;
-            netId = mWifiManager.addNetwork(wifiConf);
+    @Override
+    protected synchronized void onCancelled() {
+        if (mTaskDone || mHandler == null) {
+            return;
+        }
+        mTaskDone = true;
+        if (mTimeoutRunnable != null) {
+            mHandler.removeCallbacks(mTimeoutRunnable);
         }
-        return netId;
+        mNetworkMonitor.stopListening();
     }
 
     private boolean enableWifi() {
@@ -216,11 +222,4 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         }
         return true;
     }
-
-    @VisibleForTesting
-    static class Injector {
-        public void threadSleep(long milliseconds) throws InterruptedException {
-            Thread.sleep(milliseconds);
-        }
-    }
 }
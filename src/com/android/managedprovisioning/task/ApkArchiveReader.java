@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import android.annotation.Nullable;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser.SigningDetails;
+import android.content.pm.Signature;
+import android.content.pm.parsing.result.ParseResult;
+import android.content.pm.parsing.result.ParseTypeImpl;
+import android.util.apk.ApkSignatureVerifier;
+
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.StoreUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads what {@link VerifyPackageTask} checks in an apk, its package name, receivers and signing
+ * certificates, without {@link PackageManager#getPackageArchiveInfo} parsing the whole apk.
+ *
+ * <p>The signing certificates are those {@link ApkSignatureVerifier} verified, as the package
+ * installer does, so that they can be trusted before the apk is installed. Only the package name
+ * and the receivers are decoded from the binary manifest.
+ *
+ * <p>The returned {@link PackageInfo} matches what {@link PackageManager#getPackageArchiveInfo}
+ * returns with {@link PackageManager#GET_SIGNATURES} and {@link PackageManager#GET_RECEIVERS}
+ * for these fields. Apks that can't be read this way, e.g. apks with resource references in the
+ * attributes read, are reported as unreadable so that callers fall back to
+ * {@link PackageManager#getPackageArchiveInfo}.
+ */
+public class ApkArchiveReader {
+
+    private static final String MANIFEST_ENTRY_NAME = "AndroidManifest.xml";
+
+    // Binary XML chunks, see ResourceTypes.h.
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int STRING_POOL_UTF8_FLAG = 1 << 8;
+    private static final int NO_INDEX = -1;
+    private static final int TYPE_STRING = 0x03;
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    private static final String TAG_MANIFEST = "manifest";
+    private static final String TAG_APPLICATION = "application";
+    private static final String TAG_RECEIVER = "receiver";
+    private static final String ATTR_PACKAGE = "package";
+
+    /**
+     * Returns the package name, receivers and signatures of {@code apk}, as
+     * {@link PackageManager#getPackageArchiveInfo} would, or {@code null} if the apk can't be
+     * read this way.
+     */
+    @Nullable
+    public PackageInfo getPackageInfo(File apk) {
+        try {
+            Signature[] signatures = readSignatures(apk);
+            if (signatures == null) {
+                return null;
+            }
+            PackageInfo packageInfo = readManifest(apk);
+            packageInfo.signatures = signatures;
+            return packageInfo;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            ProvisionLogger.logw("Can't read apk " + apk, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the package name and receivers of the apk read from {@code apk}, as
+     * {@link PackageManager#getPackageArchiveInfo} would, or {@code null} if its manifest can't
+     * be read this way. The apk is read sequentially, e.g. from an install session, up to its
+     * manifest. Its signatures are not read.
+     */
+    @Nullable
+    public PackageInfo getManifestInfo(InputStream apk) {
+        try {
+            ZipInputStream zip = new ZipInputStream(apk);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (MANIFEST_ENTRY_NAME.equals(entry.getName())) {
+                    return parseManifest(readFully(zip));
+                }
+            }
+            throw new IOException("No manifest");
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            ProvisionLogger.logw("Can't read apk manifest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the verified signing certificates of {@code apk}, with only the oldest certificate
+     * of the lineage if the signing key was rotated, which is what {@link PackageInfo#signatures}
+     * contains.
+     */
+    @Nullable
+    private static Signature[] readSignatures(File apk) {
+        ParseResult<SigningDetails> result = ApkSignatureVerifier.verify(
+                ParseTypeImpl.forDefaultParsing(), apk.getAbsolutePath(),
+                SigningDetails.SignatureSchemeVersion.JAR);
+        if (result.isError()) {
+            ProvisionLogger.logw("Can't verify the signatures of " + apk + ": "
+                    + result.getErrorMessage());
+            return null;
+        }
+        SigningDetails signingDetails = result.getResult();
+        if (signingDetails.hasPastSigningCertificates()) {
+            return new Signature[] {signingDetails.pastSigningCertificates[0]};
+        }
+        return signingDetails.signatures;
+    }
+
+    private static PackageInfo readManifest(File apk) throws IOException {
+        try (ZipFile zipFile = new ZipFile(apk)) {
+            ZipEntry entry = zipFile.getEntry(MANIFEST_ENTRY_NAME);
+            if (entry == null) {
+                throw new IOException("No manifest");
+            }
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                return parseManifest(readFully(in));
+            }
+        }
+    }
+
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StoreUtils.copyStream(in, out);
+        return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static PackageInfo parseManifest(ByteBuffer xml) throws IOException {
+        if ((xml.getShort() & 0xffff) != RES_XML_TYPE) {
+            throw new IOException("Manifest is not binary XML");
+        }
+        xml.position(xml.getShort() & 0xffff);
+
+        String[] strings = null;
+        int[] resourceIds = new int[0];
+        // Names of the elements from the root to the current element.
+        List<String> path = new ArrayList<>();
+        String packageName = null;
+        String applicationPermission = null;
+        List<ActivityInfo> receivers = new ArrayList<>();
+        while (xml.remaining() >= CHUNK_HEADER_SIZE) {
+            int chunkStart = xml.position();
+            int type = xml.getShort() & 0xffff;
+            int headerSize = xml.getShort() & 0xffff;
+            int chunkSize = xml.getInt();
+            if (chunkSize < CHUNK_HEADER_SIZE || chunkSize > xml.limit() - chunkStart) {
+                throw new IOException("Invalid chunk size: " + chunkSize);
+            }
+            switch (type) {
+                case RES_STRING_POOL_TYPE:
+                    strings = readStringPool(xml, chunkStart, headerSize);
+                    break;
+                case RES_XML_RESOURCE_MAP_TYPE:
+                    resourceIds = new int[(chunkSize - headerSize) / Integer.BYTES];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = xml.getInt(chunkStart + headerSize + i * Integer.BYTES);
+                    }
+                    break;
+                case RES_XML_START_ELEMENT_TYPE: {
+                    Element element =
+                            new Element(xml, chunkStart + headerSize, strings, resourceIds);
+                    path.add(element.mName);
+                    if (isAt(path, TAG_MANIFEST)) {
+                        packageName = element.getAttribute(null, ATTR_PACKAGE, 0);
+                    } else if (isAt(path, TAG_MANIFEST, TAG_APPLICATION)) {
+                        applicationPermission = element.getAttribute(ANDROID_NAMESPACE,
+                                "permission", android.R.attr.permission);
+                    } else if (isAt(path, TAG_MANIFEST, TAG_APPLICATION, TAG_RECEIVER)) {
+                        receivers.add(createReceiver(packageName, applicationPermission,
+                                element));
+                    }
+                    break;
+                }
+                case RES_XML_END_ELEMENT_TYPE:
+                    if (path.isEmpty()) {
+                        throw new IOException("Unbalanced element");
+                    }
+                    path.remove(path.size() - 1);
+                    break;
+            }
+            xml.position(chunkStart + chunkSize);
+        }
+        if (packageName == null) {
+            throw new IOException("No package name in manifest");
+        }
+
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = packageName;
+        // Like PackageManager, there are no receivers rather than an empty array of them.
+        packageInfo.receivers =
+                receivers.isEmpty() ? null : receivers.toArray(new ActivityInfo[0]);
+        return packageInfo;
+    }
+
+    private static boolean isAt(List<String> path, String... elementNames) {
+        return path.equals(Arrays.asList(elementNames));
+    }
+
+    private static ActivityInfo createReceiver(String packageName, String applicationPermission,
+            Element element) throws IOException {
+        String name = element.getAttribute(ANDROID_NAMESPACE, "name", android.R.attr.name);
+        if (packageName == null || name == null || name.isEmpty()) {
+            throw new IOException("Receiver without a name");
+        }
+        String permission = element.getAttribute(ANDROID_NAMESPACE, "permission",
+                android.R.attr.permission);
+        ActivityInfo receiver = new ActivityInfo();
+        receiver.packageName = packageName;
+        receiver.name = buildClassName(packageName, name);
+        // Components inherit the permission of the application, see PackageParser.
+        receiver.permission = permission != null ? permission : applicationPermission;
+        return receiver;
+    }
+
+    /** Resolves a component name relative to its package, the way PackageParser does. */
+    private static String buildClassName(String packageName, String className) {
+        if (className.startsWith(".")) {
+            return packageName + className;
+        }
+        if (className.indexOf('.') < 0) {
+            return packageName + "." + className;
+        }
+        return className;
+    }
+
+    private static String[] readStringPool(ByteBuffer xml, int chunkStart, int headerSize) {
+        int stringCount = xml.getInt();
+        xml.getInt(); // Style count.
+        int flags = xml.getInt();
+        int stringsStart = chunkStart + xml.getInt();
+        boolean utf8 = (flags & STRING_POOL_UTF8_FLAG) != 0;
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int offset = stringsStart + xml.getInt(chunkStart + headerSize + i * Integer.BYTES);
+            strings[i] = utf8 ? readUtf8String(xml, offset) : readUtf16String(xml, offset);
+        }
+        return strings;
+    }
+
+    private static String readUtf8String(ByteBuffer xml, int offset) {
+        // The UTF-16 length, then the UTF-8 length, each on one or two bytes.
+        offset += (xml.get(offset) & 0x80) != 0 ? 2 : 1;
+        int length = xml.get(offset++) & 0xff;
+        if ((length & 0x80) != 0) {
+            length = ((length & 0x7f) << 8) | (xml.get(offset++) & 0xff);
+        }
+        if (offset + length > xml.limit()) {
+            throw new IndexOutOfBoundsException("String out of bounds");
+        }
+        return new String(xml.array(), xml.arrayOffset() + offset, length,
+                StandardCharsets.UTF_8);
+    }
+
+    private static String readUtf16String(ByteBuffer xml, int offset) {
+        int length = xml.getShort(offset) & 0xffff;
+        offset += 2;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (xml.getShort(offset) & 0xffff);
+            offset += 2;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = xml.getChar(offset + i * Character.BYTES);
+        }
+        return new String(chars);
+    }
+
+    /** A start element of a binary XML document. */
+    private static class Element {
+        private static final int ATTRIBUTE_NAMESPACE_OFFSET = 0;
+        private static final int ATTRIBUTE_NAME_OFFSET = 4;
+        private static final int ATTRIBUTE_RAW_VALUE_OFFSET = 8;
+        private static final int ATTRIBUTE_DATA_TYPE_OFFSET = 15;
+        private static final int ATTRIBUTE_DATA_OFFSET = 16;
+
+        final String mName;
+        private final ByteBuffer mXml;
+        private final String[] mStrings;
+        private final int[] mResourceIds;
+        private final int mAttributesStart;
+        private final int mAttributeSize;
+        private final int mAttributeCount;
+
+        Element(ByteBuffer xml, int start, String[] strings, int[] resourceIds)
+                throws IOException {
+            if (strings == null) {
+                throw new IOException("Element before the string pool");
+            }
+            mXml = xml;
+            mStrings = strings;
+            mResourceIds = resourceIds;
+            // The namespace, then the name.
+            mName = getString(xml.getInt(start + 4));
+            mAttributesStart = start + (xml.getShort(start + 8) & 0xffff);
+            mAttributeSize = xml.getShort(start + 10) & 0xffff;
+            mAttributeCount = xml.getShort(start + 12) & 0xffff;
+        }
+
+        /**
+         * Returns the string value of an attribute, or {@code null} if the element doesn't have
+         * it. Attributes are matched by resource id if they have one, as the platform does.
+         *
+         * @throws IOException if the attribute has a value that isn't a string
+         */
+        @Nullable
+        String getAttribute(@Nullable String namespace, String name, int resourceId)
+                throws IOException {
+            for (int i = 0; i < mAttributeCount; i++) {
+                int attribute = mAttributesStart + i * mAttributeSize;
+                int nameIndex = mXml.getInt(attribute + ATTRIBUTE_NAME_OFFSET);
+                if (!matches(attribute, nameIndex, namespace, name, resourceId)) {
+                    continue;
+                }
+                int rawValue = mXml.getInt(attribute + ATTRIBUTE_RAW_VALUE_OFFSET);
+                if (rawValue != NO_INDEX) {
+                    return getString(rawValue);
+                }
+                if (mXml.get(attribute + ATTRIBUTE_DATA_TYPE_OFFSET) == TYPE_STRING) {
+                    return getString(mXml.getInt(attribute + ATTRIBUTE_DATA_OFFSET));
+                }
+                throw new IOException("Unsupported value for attribute " + name);
+            }
+            return null;
+        }
+
+        private boolean matches(int attribute, int nameIndex, @Nullable String namespace,
+                String name, int resourceId) {
+            if (resourceId != 0 && mResourceIds.length > 0) {
+                return nameIndex >= 0 && nameIndex < mResourceIds.length
+                        && mResourceIds[nameIndex] == resourceId;
+            }
+            int namespaceIndex = mXml.getInt(attribute + ATTRIBUTE_NAMESPACE_OFFSET);
+            String attributeNamespace =
+                    namespaceIndex == NO_INDEX ? null : getString(namespaceIndex);
+            return Objects.equals(namespace, attributeNamespace)
+                    && name.equals(getString(nameIndex));
+        }
+
+        private String getString(int index) {
+            if (index < 0 || index >= mStrings.length) {
+                throw new IndexOutOfBoundsException("Invalid string index: " + index);
+            }
+            return mStrings[index];
+        }
+    }
+}
@@ -105,6 +105,16 @@ public class ConnectMobileNetworkTask extends AbstractProvisioningTask
         }
     }
 
+    @Override
+    protected synchronized void onCancelled() {
+        if (mTaskDone || mHandler == null) {
+            return;
+        }
+        mTaskDone = true;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mNetworkMonitor.stopListening();
+    }
+
     private boolean isLegacyConnected() {
         return !mProvisioningParams.isNfc
                 && !mProvisioningParams.isQrProvisioning
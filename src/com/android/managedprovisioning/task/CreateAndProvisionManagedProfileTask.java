@@ -21,6 +21,7 @@ import static java.util.Objects.requireNonNull;
 import android.annotation.UserIdInt;
 import android.app.admin.DevicePolicyManager;
 import android.app.admin.ManagedProfileProvisioningParams;
+import android.app.admin.ProvisioningException;
 import android.content.ComponentName;
 import android.content.Context;
 import android.os.UserHandle;
@@ -47,6 +48,8 @@ public class CreateAndProvisionManagedProfileTask extends AbstractProvisioningTa
     private final SystemAppsSnapshot mSystemAppsSnapshot;
     private final CrossProfileAppsSnapshot mCrossProfileAppsSnapshot;
     private final Utils mUtils;
+    private static final int MAX_RETRIES = 2;
+
     private int mProfileUserId;
 
     public CreateAndProvisionManagedProfileTask(
@@ -79,12 +82,12 @@ public class CreateAndProvisionManagedProfileTask extends AbstractProvisioningTa
         mUtils = requireNonNull(utils);
         mSystemAppsSnapshot = requireNonNull(systemAppsSnapshot);
         mCrossProfileAppsSnapshot = requireNonNull(crossProfileAppsSnapshot);
+        setRetryPolicy(RetryPolicy.builder().setMaxRetries(MAX_RETRIES).build());
     }
 
     @Override
     public void run(@UserIdInt int userId) {
         startTaskTimer();
-        UserHandle profile;
         ManagedProfileProvisioningParams params;
 
         try {
@@ -96,8 +99,24 @@ public class CreateAndProvisionManagedProfileTask extends AbstractProvisioningTa
             return;
         }
 
+        startAttempt();
+        createAndProvisionManagedProfile(userId, params);
+    }
+
+    private void createAndProvisionManagedProfile(
+            @UserIdInt int userId, ManagedProfileProvisioningParams params) {
+        UserHandle profile;
         try {
             profile = mDpm.createAndProvisionManagedProfile(params);
+        } catch (ProvisioningException e) {
+            ProvisionLogger.loge("Failure provisioning managed profile.", e);
+            // Nothing was set up if the profile could not be created, so it is safe to try again.
+            if (e.getProvisioningError() != ProvisioningException.ERROR_PROFILE_CREATION_FAILED
+                    || !retry(/* errorCode= */ 0,
+                            () -> createAndProvisionManagedProfile(userId, params))) {
+                error(/* resultCode= */ 0);
+            }
+            return;
         } catch (Exception e) {
             // Catching all Exceptions to allow Managed Provisioning to handle any failure
             // during provisioning properly and perform any necessary cleanup.
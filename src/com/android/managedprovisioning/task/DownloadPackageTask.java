@@ -20,15 +20,7 @@ import static android.provider.Settings.Secure.MANAGED_PROVISIONING_DPC_DOWNLOAD
 import static com.android.internal.logging.nano.MetricsProto.MetricsEvent.PROVISIONING_DOWNLOAD_PACKAGE_TASK_MS;
 import static com.android.internal.util.Preconditions.checkNotNull;
 
-import android.app.DownloadManager;
-import android.app.DownloadManager.Query;
-import android.app.DownloadManager.Request;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
@@ -36,7 +28,6 @@ import android.provider.Settings;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.Globals;
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
@@ -45,27 +36,46 @@ import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
 import java.io.File;
+import java.util.Map;
 
 /**
  * Downloads the management app apk from the url provided by {@link PackageDownloadInfo#location}.
  * The location of the downloaded file can be read via {@link PackageLocationProvider
- * #getDownloadLocation()}}.
+ * #getDownloadLocation()}}, and its SHA-256 digest via {@link PackageLocationProvider
+ * #getPackageSha256()}.
+ *
+ * <p>If the package was provisioned before, it is taken from the {@link PackageCache} instead.
+ * A download that fails part way through is resumed by the next attempt rather than started
+ * over, see {@link PackageDownloader}.
  */
 public class DownloadPackageTask extends AbstractProvisioningTask
-        implements PackageLocationProvider {
+        implements PackageLocationProvider, PackageDownloader.Callback {
     public static final int ERROR_DOWNLOAD_FAILED = 0;
     public static final int ERROR_OTHER = 1;
 
-    private BroadcastReceiver mReceiver;
-    private final DownloadManager mDownloadManager;
+    private static final int MAX_RETRIES = 3;
+    private static final int RETRY_DELAY_BASE_MS = 2000;
+
+    private static final String DOWNLOAD_DIR = "download_cache";
+    private static final String DOWNLOAD_FILE_NAME = "managed_provisioning_downloaded_app.apk";
+
+    private static final String OUTPUT_PACKAGE_LOCATION = "package_location";
+    private static final String OUTPUT_PACKAGE_SIZE = "package_size";
+
+    private final PackageDownloader mDownloader;
     private final String mPackageName;
     private final PackageDownloadInfo mPackageDownloadInfo;
-    private long mDownloadId;
+    private PackageDownloader.Download mDownload;
+    private Handler mHandler;
 
     private final Utils mUtils;
+    private final PackageDownloadPrefetcher mPrefetcher;
+    private final PackageCache mPackageCache;
 
     private File mDownloadLocationTo; //local file where the package is downloaded.
+    private byte[] mPackageSha256;
     private boolean mDoneDownloading;
+    private int mDownloadAttempts;
 
     public DownloadPackageTask(
             Context context,
@@ -84,13 +94,33 @@ public class DownloadPackageTask extends AbstractProvisioningTask
             ProvisioningParams provisioningParams,
             Callback callback,
             ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+        this(utils, context, provisioningParams, callback, provisioningAnalyticsTracker,
+                PackageDownloadPrefetcher.getInstance(), new PackageDownloader(),
+                new PackageCache(context));
+    }
+
+    @VisibleForTesting
+    DownloadPackageTask(
+            Utils utils,
+            Context context,
+            ProvisioningParams provisioningParams,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            PackageDownloadPrefetcher prefetcher,
+            PackageDownloader downloader,
+            PackageCache packageCache) {
         super(context, provisioningParams, callback, provisioningAnalyticsTracker);
 
         mUtils = checkNotNull(utils);
-        mDownloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-        mDownloadManager.setAccessFilename(true);
+        mPrefetcher = checkNotNull(prefetcher);
+        mDownloader = checkNotNull(downloader);
+        mPackageCache = checkNotNull(packageCache);
         mPackageName = provisioningParams.inferDeviceAdminPackageName();
         mPackageDownloadInfo = checkNotNull(provisioningParams.deviceAdminDownloadInfo);
+        setRetryPolicy(RetryPolicy.builder()
+                .setMaxRetries(MAX_RETRIES)
+                .setInitialDelayMillis(RETRY_DELAY_BASE_MS)
+                .build());
     }
 
     @Override
@@ -103,7 +133,12 @@ public class DownloadPackageTask extends AbstractProvisioningTask
             success();
             return;
         }
-        if (!mUtils.isConnectedToNetwork(mContext)) {
+        if (maybeUseCachedPackage()) {
+            return;
+        }
+        PackageDownloader.Download prefetchedDownload =
+                mPrefetcher.adopt(mContext, mPackageDownloadInfo);
+        if (prefetchedDownload == null && !mUtils.isConnectedToNetwork(mContext)) {
             ProvisionLogger.loge("DownloadPackageTask: not connected to the network, can't download"
                     + " the package");
             error(ERROR_OTHER);
@@ -112,36 +147,58 @@ public class DownloadPackageTask extends AbstractProvisioningTask
 
         setDpcDownloadedSetting(mContext);
 
-        mReceiver = createDownloadReceiver();
-        // register the receiver on the worker thread to avoid threading issues with respect to
-        // the location variable
-        mContext.registerReceiver(mReceiver,
-                new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE),
-                null,
-                new Handler(Looper.myLooper()));
-
-        if (Globals.DEBUG) {
-            ProvisionLogger.logd("Starting download from " + mPackageDownloadInfo.location);
+        // Deliver the download result on the worker thread to avoid threading issues with respect
+        // to the location variable
+        mHandler = new Handler(Looper.myLooper());
+        startAttempt();
+        if (prefetchedDownload != null) {
+            // The prefetch may have completed already, the result is then delivered right away.
+            mDownload = prefetchedDownload;
+            mDownload.observe(this, mHandler);
+        } else {
+            startDownload();
         }
+    }
 
-        Request request = new Request(Uri.parse(mPackageDownloadInfo.location));
-
-        // Note that the apk may not actually be downloaded to this path. This could happen if
-        // this file already exists.
-        String path = mContext.getExternalFilesDir(null)
-                + "/download_cache/managed_provisioning_downloaded_app.apk";
-        File downloadedFile = new File(path);
-        downloadedFile.getParentFile().mkdirs(); // If the folder doesn't exists it is created
-        request.setDestinationUri(Uri.fromFile(downloadedFile));
-
-        if (mPackageDownloadInfo.cookieHeader != null) {
-            request.addRequestHeader("Cookie", mPackageDownloadInfo.cookieHeader);
-            if (Globals.DEBUG) {
-                ProvisionLogger.logd("Downloading with http cookie header: "
-                        + mPackageDownloadInfo.cookieHeader);
-            }
+    /**
+     * Uses the package from the {@link PackageCache} if it was provisioned before. It is still
+     * verified by {@link VerifyPackageTask}.
+     *
+     * @return whether the package was cached
+     */
+    private boolean maybeUseCachedPackage() {
+        File destination = getDownloadFile(mContext, DOWNLOAD_FILE_NAME);
+        if (!mPackageCache.get(mPackageDownloadInfo, destination)) {
+            getTaskStats().onPackageCacheLookup(/* hit= */ false, /* bytesSaved= */ 0);
+            return false;
         }
-        mDownloadId = mDownloadManager.enqueue(request);
+        getTaskStats().onPackageCacheLookup(/* hit= */ true, destination.length());
+        mPrefetcher.discard(mContext);
+        setDpcDownloadedSetting(mContext);
+        mDownloadLocationTo = destination;
+        mDoneDownloading = true;
+        stopTaskTimer();
+        success();
+        return true;
+    }
+
+    private void startDownload() {
+        // A retry continues where the failed download, possibly a prefetch, stopped. A download
+        // interrupted by a restart is resumed as well.
+        File destination = mDownload != null
+                ? mDownload.getDestination()
+                : getDownloadFile(mContext, DOWNLOAD_FILE_NAME);
+        mDownload = mDownloader.start(mPackageDownloadInfo, destination);
+        mDownload.observe(this, mHandler);
+    }
+
+    /**
+     * Returns the file named {@code fileName} in the directory packages are downloaded to. It is
+     * in the internal storage of the app, so that other apps can't modify the package after it
+     * was verified.
+     */
+    static File getDownloadFile(Context context, String fileName) {
+        return new File(new File(context.getFilesDir(), DOWNLOAD_DIR), fileName);
     }
 
     /**
@@ -149,7 +206,7 @@ public class DownloadPackageTask extends AbstractProvisioningTask
      *
      * <p>See b/132261064.
      */
-    private static void setDpcDownloadedSetting(Context context) {
+    static void setDpcDownloadedSetting(Context context) {
         Settings.Secure.putInt(
                 context.getContentResolver(), MANAGED_PROVISIONING_DPC_DOWNLOADED, 1);
     }
@@ -159,70 +216,97 @@ public class DownloadPackageTask extends AbstractProvisioningTask
         return PROVISIONING_DOWNLOAD_PACKAGE_TASK_MS;
     }
 
-    private BroadcastReceiver createDownloadReceiver() {
-        return new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(intent.getAction())) {
-                    Query q = new Query();
-                    q.setFilterById(mDownloadId);
-                    Cursor c = mDownloadManager.query(q);
-                    if (c.moveToFirst()) {
-                        int columnIndex = c.getColumnIndex(DownloadManager.COLUMN_STATUS);
-                        if (DownloadManager.STATUS_SUCCESSFUL == c.getInt(columnIndex)) {
-                            mDownloadLocationTo = new File(c.getString(
-                                    c.getColumnIndex(DownloadManager.COLUMN_LOCAL_FILENAME)));
-                            c.close();
-                            onDownloadSuccess();
-                        } else if (DownloadManager.STATUS_FAILED == c.getInt(columnIndex)) {
-                            final int reason =
-                                    c.getInt(c.getColumnIndex(DownloadManager.COLUMN_REASON));
-                            c.close();
-                            onDownloadFail(reason);
-                        }
-                    }
-                }
-            }
-        };
-    }
-
-    /**
-     * For a successful download, check that the downloaded file is the expected file.
-     * If the package hash is provided then that is used, otherwise a signature hash is used.
-     */
-    private void onDownloadSuccess() {
+    @Override
+    public void onDownloadComplete(File file, byte[] sha256) {
         if (mDoneDownloading) {
-            // DownloadManager can send success more than once. Only act first time.
             return;
         }
 
-        ProvisionLogger.logd("Downloaded successfully to: "
-                + mDownloadLocationTo.getAbsolutePath());
+        ProvisionLogger.logd("Downloaded successfully to: " + file.getAbsolutePath());
+        mDownloadLocationTo = file;
+        mPackageSha256 = sha256;
         mDoneDownloading = true;
+        recordDownloadStats();
         stopTaskTimer();
         success();
     }
 
+    @Override
+    public void onDownloadFailed(int reason) {
+        ProvisionLogger.loge("Downloading package failed, reason: " + reason);
+        recordDownloadStats();
+        if (PackageDownloader.isTransientFailure(reason)
+                && retry(ERROR_DOWNLOAD_FAILED, this::startDownload)) {
+            return;
+        }
+        error(ERROR_DOWNLOAD_FAILED);
+    }
+
+    private void recordDownloadStats() {
+        getTaskStats().onPackageDownloadFinished(mDownload.getStats(), mDownloadAttempts++);
+    }
+
+    @Override
+    protected void onCancelled() {
+        if (!mDoneDownloading && mDownload != null) {
+            // Stops the transfer and deletes the partly downloaded file.
+            ProvisionLogger.logd("Cancelling download");
+            mDownload.cancel();
+        }
+    }
+
     @Override
     public File getPackageLocation() {
         return mDownloadLocationTo;
     }
 
-    private void onDownloadFail(int errorCode) {
-        ProvisionLogger.loge("Downloading package failed (download id " + mDownloadId
-                + "). COLUMN_REASON in DownloadManager response has value: " + errorCode);
-        error(ERROR_DOWNLOAD_FAILED);
+    @Override
+    public byte[] getPackageSha256() {
+        return mPackageSha256;
     }
 
-    public void cleanUp() {
-        if (mReceiver != null) {
-            //Unregister receiver.
-            mContext.unregisterReceiver(mReceiver);
-            mReceiver = null;
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
+    @Override
+    public void saveOutputs(Map<String, String> outputs) {
+        if (mDownloadLocationTo == null) {
+            // Nothing was downloaded, so there is nothing to resume from.
+            return;
+        }
+        outputs.put(OUTPUT_PACKAGE_LOCATION, mDownloadLocationTo.getAbsolutePath());
+        outputs.put(OUTPUT_PACKAGE_SIZE, Long.toString(mDownloadLocationTo.length()));
+    }
+
+    @Override
+    public boolean restoreOutputs(Map<String, String> outputs) {
+        String location = outputs.get(OUTPUT_PACKAGE_LOCATION);
+        String size = outputs.get(OUTPUT_PACKAGE_SIZE);
+        if (location == null || size == null) {
+            return false;
+        }
+        File downloadedFile = new File(location);
+        // This only checks that the download is still in place and complete. Its digest isn't
+        // restored, so that VerifyPackageTask hashes the file that is on disk now.
+        if (!downloadedFile.isFile() || downloadedFile.length() != Long.parseLong(size)) {
+            ProvisionLogger.logi("Previously downloaded package is gone or incomplete: "
+                    + location);
+            return false;
         }
+        ProvisionLogger.logi("Reusing package downloaded before a restart: " + location);
+        mDownloadLocationTo = downloadedFile;
+        mPackageSha256 = null;
+        mDoneDownloading = true;
+        return true;
+    }
 
-        boolean removeSuccess = mDownloadManager.remove(mDownloadId) == 1;
-        if (removeSuccess) {
+    public void cleanUp() {
+        if (mDownload != null) {
+            PackageDownloader.delete(mDownload.getDestination());
+        }
+        if (mDownloadLocationTo != null && mDownloadLocationTo.delete()) {
             ProvisionLogger.logd("Successfully removed installer file.");
         } else {
             ProvisionLogger.loge("Could not remove installer file.");
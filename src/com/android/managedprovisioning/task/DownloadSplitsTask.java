@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.android.internal.logging.nano.MetricsProto.MetricsEvent.PROVISIONING_DOWNLOAD_PACKAGE_TASK_MS;
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.MetricsWriterFactory;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Downloads the split apks of the management app listed in {@link PackageDownloadInfo#splits},
+ * and verifies each against its own checksum. The downloaded splits can be read via
+ * {@link SplitLocationProvider#getSplitLocations()}.
+ *
+ * <p>Up to {@link #MAX_PARALLEL_DOWNLOADS} splits are downloaded at once. The task doesn't depend
+ * on {@link DownloadPackageTask}, so that the splits are downloaded while the base apk is.
+ */
+public class DownloadSplitsTask extends AbstractProvisioningTask
+        implements SplitLocationProvider {
+    public static final int ERROR_DOWNLOAD_FAILED = 0;
+    public static final int ERROR_HASH_MISMATCH = 1;
+
+    @VisibleForTesting
+    static final int MAX_PARALLEL_DOWNLOADS = 3;
+
+    private static final int MAX_RETRIES = 3;
+    private static final int RETRY_DELAY_BASE_MS = 2000;
+
+    private final Utils mUtils;
+    private final PackageDownloader mDownloader;
+    private final String mPackageName;
+    private final PackageDownloadInfo mPackageDownloadInfo;
+
+    private Handler mHandler;
+    private PackageDownloader.Download[] mDownloads;
+    private File[] mSplitLocations;
+    private int mNextSplit;
+    private int mDownloadedSplits;
+    private boolean mFinished;
+
+    public DownloadSplitsTask(
+            Context context,
+            ProvisioningParams provisioningParams,
+            Callback callback) {
+        this(new Utils(), context, provisioningParams, callback,
+                new ProvisioningAnalyticsTracker(
+                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
+                        new ManagedProvisioningSharedPreferences(context)),
+                new PackageDownloader());
+    }
+
+    @VisibleForTesting
+    DownloadSplitsTask(
+            Utils utils,
+            Context context,
+            ProvisioningParams provisioningParams,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            PackageDownloader downloader) {
+        super(context, provisioningParams, callback, provisioningAnalyticsTracker);
+
+        mUtils = checkNotNull(utils);
+        mDownloader = checkNotNull(downloader);
+        mPackageName = provisioningParams.inferDeviceAdminPackageName();
+        mPackageDownloadInfo = checkNotNull(provisioningParams.deviceAdminDownloadInfo);
+        setRetryPolicy(RetryPolicy.builder()
+                .setMaxRetries(MAX_RETRIES)
+                .setInitialDelayMillis(RETRY_DELAY_BASE_MS)
+                .build());
+    }
+
+    @Override
+    public void run(int userId) {
+        startTaskTimer();
+        int splitCount = mPackageDownloadInfo.splits.size();
+        // The splits are only installed along the package, see DownloadPackageTask.
+        if (splitCount == 0 || !mUtils.packageRequiresUpdate(mPackageName,
+                mPackageDownloadInfo.minVersion, mContext)) {
+            success();
+            return;
+        }
+        if (!mUtils.isConnectedToNetwork(mContext)) {
+            ProvisionLogger.loge("DownloadSplitsTask: not connected to the network, can't download"
+                    + " the splits");
+            error(ERROR_DOWNLOAD_FAILED);
+            return;
+        }
+
+        mHandler = new Handler(Looper.myLooper());
+        mDownloads = new PackageDownloader.Download[splitCount];
+        mSplitLocations = new File[splitCount];
+        startAttempt();
+        while (mNextSplit < Math.min(splitCount, MAX_PARALLEL_DOWNLOADS)) {
+            startDownload(mNextSplit++);
+        }
+    }
+
+    private void startDownload(int index) {
+        // A retry continues where the failed download stopped.
+        File destination = mDownloads[index] != null
+                ? mDownloads[index].getDestination()
+                : DownloadPackageTask.getDownloadFile(mContext, "split_" + index + ".apk");
+        ProvisionLogger.logi("Downloading split " + index + " from "
+                + mPackageDownloadInfo.splits.get(index).location);
+        mDownloads[index] = mDownloader.start(
+                mPackageDownloadInfo.getSplitDownloadInfo(index), destination);
+        mDownloads[index].observe(new SplitCallback(index), mHandler);
+    }
+
+    private void onSplitDownloaded(int index, File file, byte[] sha256) {
+        if (mFinished) {
+            return;
+        }
+        byte[] checksum = mPackageDownloadInfo.splits.get(index).checksum;
+        if (!MessageDigest.isEqual(sha256, checksum)) {
+            ProvisionLogger.loge("SHA-256 hash of split " + index + " doesn't match, expected: "
+                    + StoreUtils.byteArrayToString(checksum));
+            PackageDownloader.delete(file);
+            fail(ERROR_HASH_MISMATCH);
+            return;
+        }
+        mSplitLocations[index] = file;
+        mDownloadedSplits++;
+        if (mNextSplit < mSplitLocations.length) {
+            startDownload(mNextSplit++);
+        } else if (mDownloadedSplits == mSplitLocations.length) {
+            mFinished = true;
+            stopTaskTimer();
+            success();
+        }
+    }
+
+    private void onSplitDownloadFailed(int index, int reason) {
+        if (mFinished) {
+            return;
+        }
+        ProvisionLogger.loge("Downloading split " + index + " failed, reason: " + reason);
+        if (PackageDownloader.isTransientFailure(reason)
+                && retry(ERROR_DOWNLOAD_FAILED, () -> startDownload(index))) {
+            return;
+        }
+        fail(ERROR_DOWNLOAD_FAILED);
+    }
+
+    private void fail(int errorCode) {
+        mFinished = true;
+        cleanUp();
+        error(errorCode);
+    }
+
+    @Override
+    protected void onCancelled() {
+        mFinished = true;
+        cleanUp();
+    }
+
+    @Override
+    protected int getMetricsCategory() {
+        return PROVISIONING_DOWNLOAD_PACKAGE_TASK_MS;
+    }
+
+    @Override
+    public List<File> getSplitLocations() {
+        if (mSplitLocations == null || mDownloadedSplits < mSplitLocations.length) {
+            return new ArrayList<>();
+        }
+        return Arrays.asList(mSplitLocations);
+    }
+
+    /**
+     * Stops the downloads still running and deletes the downloaded splits.
+     */
+    private void cleanUp() {
+        if (mDownloads == null) {
+            return;
+        }
+        for (PackageDownloader.Download download : mDownloads) {
+            if (download != null) {
+                download.cancel();
+                PackageDownloader.delete(download.getDestination());
+            }
+        }
+    }
+
+    private class SplitCallback implements PackageDownloader.Callback {
+        private final int mIndex;
+
+        SplitCallback(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onDownloadComplete(File file, byte[] sha256) {
+            onSplitDownloaded(mIndex, file, sha256);
+        }
+
+        @Override
+        public void onDownloadFailed(int reason) {
+            onSplitDownloadFailed(mIndex, reason);
+        }
+    }
+}
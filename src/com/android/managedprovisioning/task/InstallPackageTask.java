@@ -24,7 +24,6 @@ import static com.android.internal.logging.nano.MetricsProto.MetricsEvent.PROVIS
 
 import static java.util.Objects.requireNonNull;
 
-import android.annotation.NonNull;
 import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
 import android.content.BroadcastReceiver;
@@ -33,6 +32,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
+import android.os.ParcelFileDescriptor;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.analytics.MetricsWriterFactory;
@@ -44,17 +44,17 @@ import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 
 /**
  * Installs the management app apk from a download location provided by
- * {@link PackageLocationProvider#getPackageLocation()}.
+ * {@link PackageLocationProvider#getPackageLocation()}, along with the split apks provided by
+ * {@link SplitLocationProvider#getSplitLocations()} in the same session.
  */
 public class InstallPackageTask extends AbstractProvisioningTask {
     private static final String ACTION_INSTALL_DONE = InstallPackageTask.class.getName() + ".DONE.";
@@ -63,6 +63,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
     public static final int ERROR_INSTALLATION_FAILED = 1;
 
     private final PackageLocationProvider mPackageLocationProvider;
+    private final SplitLocationProvider mSplitLocationProvider;
 
     private final PackageManager mPm;
     private final DevicePolicyManager mDpm;
@@ -70,10 +71,16 @@ public class InstallPackageTask extends AbstractProvisioningTask {
     private final String mPackageName;
     private final Utils mUtils;
 
+    private static final int MAX_RETRIES = 1;
+
     private static final int SUCCESS_INSTALLED_BROADCAST = 1;
     private static final int SUCCESS_INSTALLED_CALLBACK = 2;
     private final Set<Integer> mSuccessCodes = new HashSet<>();
 
+    private File mPackageLocation;
+    private List<File> mSplitLocations = Collections.emptyList();
+    private volatile int mSessionId;
+
     /**
      * Create an InstallPackageTask. When run, this will attempt to install the device admin package
      * if it is non-null.
@@ -85,7 +92,20 @@ public class InstallPackageTask extends AbstractProvisioningTask {
             Context context,
             ProvisioningParams params,
             Callback callback) {
-        this(packageLocationProvider, context, params, callback,
+        this(packageLocationProvider, Collections::emptyList, context, params, callback);
+    }
+
+    /**
+     * Create an InstallPackageTask that also installs the split apks provided by
+     * {@code splitLocationProvider}.
+     */
+    public InstallPackageTask(
+            PackageLocationProvider packageLocationProvider,
+            SplitLocationProvider splitLocationProvider,
+            Context context,
+            ProvisioningParams params,
+            Callback callback) {
+        this(packageLocationProvider, splitLocationProvider, context, params, callback,
                 new ProvisioningAnalyticsTracker(
                         MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
                         new ManagedProvisioningSharedPreferences(context)),
@@ -100,22 +120,28 @@ public class InstallPackageTask extends AbstractProvisioningTask {
             Callback callback,
             ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
             Utils utils) {
+        this(packageLocationProvider, Collections::emptyList, context, params, callback,
+                provisioningAnalyticsTracker, utils);
+    }
+
+    @VisibleForTesting
+    InstallPackageTask(
+            PackageLocationProvider packageLocationProvider,
+            SplitLocationProvider splitLocationProvider,
+            Context context,
+            ProvisioningParams params,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            Utils utils) {
         super(context, params, callback, provisioningAnalyticsTracker);
 
         mPm = context.getPackageManager();
         mDpm = context.getSystemService(DevicePolicyManager.class);
         mPackageLocationProvider = requireNonNull(packageLocationProvider);
+        mSplitLocationProvider = requireNonNull(splitLocationProvider);
         mPackageName = requireNonNull(mProvisioningParams.inferDeviceAdminPackageName());
         mUtils = requireNonNull(utils);
-    }
-
-    private static void copyStream(@NonNull InputStream in, @NonNull OutputStream out)
-            throws IOException {
-        byte[] buffer = new byte[16 * 1024];
-        int numRead;
-        while ((numRead = in.read(buffer)) != -1) {
-            out.write(buffer, 0, numRead);
-        }
+        setRetryPolicy(RetryPolicy.builder().setMaxRetries(MAX_RETRIES).build());
     }
 
     /**
@@ -137,7 +163,20 @@ public class InstallPackageTask extends AbstractProvisioningTask {
             success();
             return;
         }
+        mPackageLocation = packageLocation;
+        mSplitLocations = mSplitLocationProvider.getSplitLocations();
+        if (!mSplitLocations.isEmpty()) {
+            ProvisionLogger.logi("Installing " + mSplitLocations.size() + " splits along");
+        }
+
+        mContext.registerReceiver(
+                new PackageAddedReceiver(mPackageName),
+                createPackageAddedIntentFilter());
+        startAttempt();
+        installPackage();
+    }
 
+    private void installPackage() {
         int installFlags = INSTALL_REPLACE_EXISTING;
         // Current device owner (if exists) must be test-only, so it is fine to replace it with a
         // test-only package of same package name. No need to further verify signature as
@@ -151,34 +190,34 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         params.installFlags |= installFlags;
 
         try {
-            installPackage(packageLocation, mPackageName, params, mContext, mSessionCallback);
+            installPackage(mPackageLocation, mSplitLocations, params, mContext, mSessionCallback);
         } catch (IOException e) {
             ProvisionLogger.loge("Installing package " + mPackageName + " failed.", e);
-            error(ERROR_INSTALLATION_FAILED);
-        } finally {
-            packageLocation.delete();
+            onInstallationFailed();
         }
     }
 
     private void installPackage(
             File source,
-            String packageName,
+            List<File> splits,
             PackageInstaller.SessionParams params,
             Context context,
             PackageInstaller.SessionCallback sessionCallback)
             throws IOException {
         PackageInstaller pi = context.getPackageManager().getPackageInstaller();
-        context.registerReceiver(
-                new PackageAddedReceiver(packageName),
-                createPackageAddedIntentFilter());
         pi.registerSessionCallback(sessionCallback);
         int sessionId = pi.createSession(params);
+        mSessionId = sessionId;
         try (PackageInstaller.Session session = pi.openSession(sessionId)) {
-            try (FileInputStream in = new FileInputStream(source);
-                 OutputStream out = session.openWrite(source.getName(), 0, -1)) {
-                copyStream(in, out);
+            try {
+                // The base apk and its splits are committed together, as one package.
+                writeToSession(session, source);
+                for (File split : splits) {
+                    writeToSession(session, split);
+                }
             } catch (IOException e) {
                 session.abandon();
+                pi.unregisterSessionCallback(sessionCallback);
                 throw e;
             }
 
@@ -192,6 +231,64 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         }
     }
 
+    private static void writeToSession(PackageInstaller.Session session, File file)
+            throws IOException {
+        // The installer reads the package from the file descriptor, so that it isn't copied
+        // through this process.
+        try (ParcelFileDescriptor fd =
+                     ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)) {
+            session.write(file.getName(), 0, fd.getStatSize(), fd);
+        }
+    }
+
+    private boolean packageFilesExist() {
+        if (!mPackageLocation.exists()) {
+            return false;
+        }
+        for (File split : mSplitLocations) {
+            if (!split.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deletePackageFiles() {
+        mPackageLocation.delete();
+        for (File split : mSplitLocations) {
+            split.delete();
+        }
+    }
+
+    @Override
+    protected void onCancelled() {
+        if (mPackageLocation == null) {
+            return;
+        }
+        PackageInstaller packageInstaller = mPm.getPackageInstaller();
+        packageInstaller.unregisterSessionCallback(mSessionCallback);
+        try {
+            packageInstaller.abandonSession(mSessionId);
+            ProvisionLogger.logd("Abandoned install session " + mSessionId);
+        } catch (SecurityException | IllegalStateException e) {
+            // The session is already finished, there is nothing left to abort.
+            ProvisionLogger.logd("Install session " + mSessionId + " can't be abandoned.");
+        }
+        deletePackageFiles();
+    }
+
+    /**
+     * Retries the installation if the retry budget allows it, reports the error otherwise. A
+     * package file that is gone can't be installed on a retry either.
+     */
+    private void onInstallationFailed() {
+        if (packageFilesExist() && retry(ERROR_INSTALLATION_FAILED, this::installPackage)) {
+            return;
+        }
+        deletePackageFiles();
+        error(ERROR_INSTALLATION_FAILED);
+    }
+
     private IntentFilter createPackageAddedIntentFilter() {
         IntentFilter intentFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
         intentFilter.addDataScheme("package");
@@ -208,6 +305,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         if (mSuccessCodes.contains(SUCCESS_INSTALLED_BROADCAST)
                 && mSuccessCodes.contains(SUCCESS_INSTALLED_CALLBACK)) {
             ProvisionLogger.logd("Package " + mPackageName + " is successfully installed.");
+            deletePackageFiles();
             stopTaskTimer();
             success();
         }
@@ -255,6 +353,10 @@ public class InstallPackageTask extends AbstractProvisioningTask {
 
         @Override
         public void onFinished(int sessionId, boolean success) {
+            if (sessionId != mSessionId) {
+                // A session of an earlier attempt, or of another installer.
+                return;
+            }
             PackageInstaller packageInstaller = mPm.getPackageInstaller();
             packageInstaller.unregisterSessionCallback(mSessionCallback);
             if (!success) {
@@ -263,6 +365,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
                 if (packageInstalled) {
                     ProvisionLogger.logd("Current version of " + mPackageName
                             + " higher than the version to be installed. It was not reinstalled.");
+                    deletePackageFiles();
                     // If the package is already at a higher version: success.
                     // Do not log time if package is already at a higher version, as that isn't
                     // useful.
@@ -270,7 +373,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
                     return;
                 } else {
                     ProvisionLogger.logd("Installing package " + mPackageName + " failed.");
-                    error(ERROR_INSTALLATION_FAILED);
+                    onInstallationFailed();
                     return;
                 }
             }
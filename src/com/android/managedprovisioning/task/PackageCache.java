@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static java.util.Objects.requireNonNull;
+
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Bounded on-device cache of the management app packages that were downloaded and verified, so
+ * that provisioning the same package again doesn't download it again.
+ *
+ * <p>Packages are keyed by {@link PackageDownloadInfo#packageChecksum}, or by
+ * {@link PackageDownloadInfo#signatureChecksum} and {@link PackageDownloadInfo#minVersion} if
+ * there is no package checksum. Packages are added once {@link VerifyPackageTask} verified them,
+ * and a cached package is verified again before it is installed. The least recently used packages
+ * are evicted once there are more than {@link #MAX_ENTRIES} of them or they take more than
+ * {@link #MAX_SIZE_BYTES}.
+ *
+ * <p>Packages are hard linked in and out of the cache, which doesn't copy them, and lets the
+ * provisioning tasks delete their copy as usual.
+ *
+ * <p>How often packages are found in the cache is recorded by the {@link ProvisioningTaskStats} of
+ * the task that looks them up.
+ */
+public class PackageCache {
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 4;
+    @VisibleForTesting
+    static final long MAX_SIZE_BYTES = 200L * 1024 * 1024;
+
+    private static final String CACHE_DIR = "package_cache";
+    private static final String TEMP_FILE_PREFIX = "tmp.";
+
+    // Tasks of the same provisioning flow may use the cache concurrently.
+    private static final Object LOCK = new Object();
+
+    private final File mCacheDir;
+    private final int mMaxEntries;
+    private final long mMaxSizeBytes;
+
+    public PackageCache(Context context) {
+        this(new File(context.getFilesDir(), CACHE_DIR), MAX_ENTRIES, MAX_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    PackageCache(File cacheDir, int maxEntries, long maxSizeBytes) {
+        mCacheDir = requireNonNull(cacheDir);
+        mMaxEntries = maxEntries;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Makes the cached package described by {@code downloadInfo} available at
+     * {@code destination}, replacing it.
+     *
+     * @return whether the package was cached
+     */
+    public boolean get(PackageDownloadInfo downloadInfo, File destination) {
+        synchronized (LOCK) {
+            File entry = getEntry(downloadInfo);
+            if (!entry.isFile()) {
+                return false;
+            }
+            try {
+                destination.getParentFile().mkdirs();
+                Files.deleteIfExists(destination.toPath());
+                linkOrCopy(entry, destination);
+            } catch (IOException e) {
+                ProvisionLogger.logw("Failed to read package from cache.", e);
+                return false;
+            }
+            entry.setLastModified(System.currentTimeMillis());
+            ProvisionLogger.logi("Package found in cache: " + entry.getName() + ", "
+                    + entry.length() + " bytes not downloaded");
+            return true;
+        }
+    }
+
+    /**
+     * Adds {@code file}, the verified package described by {@code downloadInfo}, to the cache.
+     */
+    public void put(PackageDownloadInfo downloadInfo, File file) {
+        synchronized (LOCK) {
+            File entry = getEntry(downloadInfo);
+            File tempFile = new File(mCacheDir, TEMP_FILE_PREFIX + entry.getName());
+            try {
+                mCacheDir.mkdirs();
+                Files.deleteIfExists(tempFile.toPath());
+                linkOrCopy(file, tempFile);
+                Files.move(tempFile.toPath(), entry.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                entry.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                ProvisionLogger.logw("Failed to add package to cache.", e);
+                tempFile.delete();
+                return;
+            }
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the package described by {@code downloadInfo} from the cache, e.g. because it
+     * failed verification.
+     */
+    public void remove(PackageDownloadInfo downloadInfo) {
+        synchronized (LOCK) {
+            getEntry(downloadInfo).delete();
+        }
+    }
+
+    private File getEntry(PackageDownloadInfo downloadInfo) {
+        return new File(mCacheDir, getKey(downloadInfo));
+    }
+
+    @VisibleForTesting
+    static String getKey(PackageDownloadInfo downloadInfo) {
+        if (downloadInfo.packageChecksum.length > 0) {
+            return "sha256-" + StoreUtils.byteArrayToString(downloadInfo.packageChecksum);
+        }
+        return "signature-" + StoreUtils.byteArrayToString(downloadInfo.signatureChecksum)
+                + "-" + downloadInfo.minVersion;
+    }
+
+    private void evictIfNeeded() {
+        File[] entries = mCacheDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        // Most recently used first.
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+        long size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            long length = entries[i].length();
+            if (i >= mMaxEntries || size + length > mMaxSizeBytes) {
+                ProvisionLogger.logi("Evicting package from cache: " + entries[i].getName());
+                entries[i].delete();
+            } else {
+                size += length;
+            }
+        }
+    }
+
+    private static void linkOrCopy(File source, File destination) throws IOException {
+        try {
+            Files.createLink(destination.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), destination.toPath());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static java.util.Objects.requireNonNull;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Starts downloading the management app while the user is still going through the
+ * pre-provisioning screens.
+ *
+ * <p>The download is handed over to {@link DownloadPackageTask} once provisioning starts, whether
+ * it already finished or not. The downloaded package is verified by {@link VerifyPackageTask} as
+ * usual, prefetching only saves the download time. If provisioning is aborted before, the
+ * download is discarded.
+ *
+ * <p>Whether the package needs to be downloaded at all is checked on a background thread, as it
+ * queries the package manager and the connectivity service.
+ *
+ * <p>Prefetching is opt-in, with the {@link #PROPERTY_PREFETCH_ENABLED} system property.
+ */
+public class PackageDownloadPrefetcher {
+
+    @VisibleForTesting
+    static final String PROPERTY_PREFETCH_ENABLED = "persist.managed_provisioning.prefetch_dpc";
+
+    private static final String PREFETCH_FILE_NAME = "managed_provisioning_prefetched_app.apk";
+
+    private static final Object LOCK = new Object();
+    private static PackageDownloadPrefetcher sInstance;
+
+    private final PackageDownloader mDownloader;
+    private final Executor mExecutor;
+    // The package requested by the last prefetch, whose download may not have started yet.
+    private PackageDownloadInfo mRequestedDownloadInfo;
+    private PackageDownloader.Download mDownload;
+
+    /**
+     * Returns the instance shared by the pre-provisioning screens and the provisioning tasks.
+     */
+    public static PackageDownloadPrefetcher getInstance() {
+        synchronized (LOCK) {
+            if (sInstance == null) {
+                sInstance = new PackageDownloadPrefetcher();
+            }
+            return sInstance;
+        }
+    }
+
+    private PackageDownloadPrefetcher() {
+        this(new PackageDownloader(), AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @VisibleForTesting
+    PackageDownloadPrefetcher(PackageDownloader downloader, Executor executor) {
+        mDownloader = requireNonNull(downloader);
+        mExecutor = requireNonNull(executor);
+    }
+
+    /**
+     * Returns whether prefetching was enabled on this device.
+     */
+    public boolean isEnabled() {
+        return SystemProperties.getBoolean(PROPERTY_PREFETCH_ENABLED, false);
+    }
+
+    /**
+     * Starts downloading the package described by {@code downloadInfo} in the background, unless
+     * it is already being prefetched, or {@code packageName} is installed at its min version. A
+     * prefetch of another package is discarded.
+     */
+    public synchronized void prefetch(Context context, PackageDownloadInfo downloadInfo,
+            String packageName, Utils utils) {
+        requireNonNull(downloadInfo);
+        if (downloadInfo.equals(mRequestedDownloadInfo)) {
+            return;
+        }
+        discard(context);
+        mRequestedDownloadInfo = downloadInfo;
+        mExecutor.execute(() -> startDownload(context, downloadInfo, packageName, utils));
+    }
+
+    private void startDownload(Context context, PackageDownloadInfo downloadInfo,
+            String packageName, Utils utils) {
+        if (!utils.packageRequiresUpdate(packageName, downloadInfo.minVersion, context)) {
+            ProvisionLogger.logi("Not prefetching the management app, it is up to date.");
+            return;
+        }
+        if (!utils.isConnectedToNetwork(context)) {
+            ProvisionLogger.logi("Not prefetching the management app, there is no network.");
+            return;
+        }
+        synchronized (this) {
+            if (!downloadInfo.equals(mRequestedDownloadInfo) || mDownload != null) {
+                // The prefetch was discarded or adopted meanwhile.
+                return;
+            }
+            ProvisionLogger.logi("Prefetching the management app.");
+            mDownload = mDownloader.start(downloadInfo,
+                    DownloadPackageTask.getDownloadFile(context, PREFETCH_FILE_NAME));
+        }
+    }
+
+    /**
+     * Hands the prefetched download of {@code downloadInfo} over to the caller, who becomes
+     * responsible for it.
+     *
+     * @return the download, which may still be running, or {@code null} if that package wasn't
+     * prefetched
+     */
+    synchronized PackageDownloader.Download adopt(
+            Context context, PackageDownloadInfo downloadInfo) {
+        // A prefetch that didn't start yet won't, the caller downloads the package itself.
+        mRequestedDownloadInfo = null;
+        if (mDownload == null) {
+            return null;
+        }
+        if (!mDownload.getDownloadInfo().equals(downloadInfo)) {
+            // The package to install changed, e.g. with the params returned by the admin app.
+            discard(context);
+            return null;
+        }
+        PackageDownloader.Download download = mDownload;
+        mDownload = null;
+        ProvisionLogger.logi("Adopting prefetched download.");
+        return download;
+    }
+
+    /**
+     * Stops the prefetch, if any, and deletes what was downloaded.
+     */
+    public synchronized void discard(Context context) {
+        mRequestedDownloadInfo = null;
+        if (mDownload == null) {
+            return;
+        }
+        ProvisionLogger.logi("Discarding prefetched download.");
+        mDownload.cancel();
+        PackageDownloader.delete(
+                DownloadPackageTask.getDownloadFile(context, PREFETCH_FILE_NAME));
+        mDownload = null;
+    }
+}
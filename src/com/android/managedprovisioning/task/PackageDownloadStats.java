@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static java.util.Objects.requireNonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a package download, sampled while it runs: the time to the first byte, the
+ * throughput, the stalls, the bytes received before they are decoded, how the time was split
+ * between reading from the network, decoding and writing to the storage, and how much each
+ * location the package was downloaded from sent.
+ *
+ * <p>Finished downloads are reported through the {@link ProvisioningTaskStats} of the task that
+ * ran them.
+ */
+public class PackageDownloadStats {
+
+    /** The throughput is sampled over windows of this length. */
+    @VisibleForTesting
+    static final long SAMPLE_INTERVAL_MILLIS = 500;
+
+    /** A read from the network blocking for at least this long counts as a stall. */
+    @VisibleForTesting
+    static final long STALL_THRESHOLD_MILLIS = 2_000;
+
+    private final String mLocation;
+    private final long mStartMillis;
+    private long mEndMillis = -1;
+    private boolean mSucceeded;
+
+    private long mTimeToFirstByteMillis = -1;
+    private int mConnections;
+    private int mFailovers;
+    private long mBytes;
+    private long mWireBytes;
+    private long mNetworkNanos;
+    private long mDecodeNanos;
+    private long mStorageNanos;
+    private int mStalls;
+    private long mStalledNanos;
+
+    private final List<SourceStats> mSources = new ArrayList<>();
+    private final List<Long> mThroughputSamples = new ArrayList<>();
+    private long mSampleStartMillis = -1;
+    private long mSampleBytes;
+
+    /**
+     * @param location the location the package is downloaded from
+     * @param startMillis when the download started, in {@link
+     *        android.os.SystemClock#elapsedRealtime} time base
+     */
+    PackageDownloadStats(String location, long startMillis) {
+        mLocation = requireNonNull(location);
+        mStartMillis = startMillis;
+    }
+
+    /**
+     * Records that a connection to a location was established and sent its first bytes at
+     * {@code firstByteMillis}.
+     */
+    synchronized void onConnected(long firstByteMillis) {
+        mConnections++;
+        if (mTimeToFirstByteMillis < 0) {
+            mTimeToFirstByteMillis = firstByteMillis - mStartMillis;
+        }
+        if (mSampleStartMillis < 0) {
+            mSampleStartMillis = firstByteMillis;
+        }
+    }
+
+    /** Records that the download switched to another location after a failure. */
+    synchronized void onFailover() {
+        mFailovers++;
+    }
+
+    /**
+     * Records {@code count} decoded bytes read from the network.
+     *
+     * @param wireBytes how many bytes were received for them, before they were decoded
+     * @param networkNanos how long the read blocked on the network
+     * @param decodeNanos how long decoding the bytes took
+     * @param nowMillis when the read returned
+     */
+    synchronized void onRead(int count, long wireBytes, long networkNanos, long decodeNanos,
+            long nowMillis) {
+        mBytes += count;
+        mWireBytes += wireBytes;
+        mNetworkNanos += networkNanos;
+        mDecodeNanos += decodeNanos;
+        if (networkNanos >= TimeUnit.MILLISECONDS.toNanos(STALL_THRESHOLD_MILLIS)) {
+            mStalls++;
+            mStalledNanos += networkNanos;
+        }
+        if (mSampleStartMillis < 0) {
+            mSampleStartMillis = nowMillis;
+        }
+        mSampleBytes += count;
+        if (nowMillis - mSampleStartMillis >= SAMPLE_INTERVAL_MILLIS) {
+            addSample(nowMillis);
+        }
+    }
+
+    /**
+     * Records the time spent writing what was downloaded to the storage, including syncs.
+     */
+    synchronized void onWrite(long writeNanos) {
+        mStorageNanos += writeNanos;
+    }
+
+    /** Records that the download stopped reading from a location. */
+    synchronized void onSourceFinished(SourceStats source) {
+        mSources.add(requireNonNull(source));
+    }
+
+    /** Records the end of the download. */
+    synchronized void onFinished(boolean succeeded, long nowMillis) {
+        mEndMillis = nowMillis;
+        mSucceeded = succeeded;
+        if (mSampleBytes > 0 && nowMillis > mSampleStartMillis) {
+            addSample(nowMillis);
+        }
+    }
+
+    private void addSample(long nowMillis) {
+        mThroughputSamples.add(mSampleBytes * 1000 / (nowMillis - mSampleStartMillis));
+        mSampleStartMillis = nowMillis;
+        mSampleBytes = 0;
+    }
+
+    /** Returns whether the download completed, valid once it finished. */
+    public synchronized boolean isSucceeded() {
+        return mSucceeded;
+    }
+
+    /** Returns how long the download took, or has taken so far if it is still running. */
+    public synchronized long getDurationMillis(long nowMillis) {
+        return (mEndMillis < 0 ? nowMillis : mEndMillis) - mStartMillis;
+    }
+
+    /** Returns the time until the first bytes arrived, or -1 if none did. */
+    public synchronized long getTimeToFirstByteMillis() {
+        return mTimeToFirstByteMillis;
+    }
+
+    /** Returns how many connections sent bytes, including the one to the first location. */
+    public synchronized int getConnections() {
+        return mConnections;
+    }
+
+    /** Returns how many times the download switched to another location after a failure. */
+    public synchronized int getFailovers() {
+        return mFailovers;
+    }
+
+    /** Returns the number of bytes received, once decoded. */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of bytes received before they were decoded, less than
+     * {@link #getBytes()} if the package was sent compressed.
+     */
+    public synchronized long getWireBytes() {
+        return mWireBytes;
+    }
+
+    /**
+     * Returns how much each location the package was downloaded from sent, and how fast, in the
+     * order they were used.
+     */
+    public synchronized List<SourceStats> getSources() {
+        return new ArrayList<>(mSources);
+    }
+
+    /** Returns how many throughput samples were taken. */
+    public synchronized int getSampleCount() {
+        return mThroughputSamples.size();
+    }
+
+    /**
+     * Returns the throughput in bytes per second that {@code percentile} percent of the samples
+     * are at or below, or 0 if no samples were taken.
+     */
+    public synchronized long getThroughputPercentile(int percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        if (mThroughputSamples.isEmpty()) {
+            return 0;
+        }
+        List<Long> samples = new ArrayList<>(mThroughputSamples);
+        Collections.sort(samples);
+        int rank = (int) Math.ceil(percentile / 100.0 * samples.size());
+        return samples.get(Math.max(rank - 1, 0));
+    }
+
+    /** Returns how many reads from the network blocked for a stall. */
+    public synchronized int getStalls() {
+        return mStalls;
+    }
+
+    /** Returns the total time reads from the network stalled. */
+    public synchronized long getStalledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mStalledNanos);
+    }
+
+    /** Returns the total time spent waiting for the network. */
+    public synchronized long getNetworkMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mNetworkNanos);
+    }
+
+    /** Returns the total time spent decoding what was received. */
+    public synchronized long getDecodeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mDecodeNanos);
+    }
+
+    /** Returns the total time spent writing to the storage. */
+    public synchronized long getStorageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mStorageNanos);
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix, long nowMillis) {
+        pw.println(prefix + mLocation + ": " + (mEndMillis < 0 ? "running"
+                : mSucceeded ? "succeeded" : "failed"));
+        pw.println(prefix + "  started: " + (nowMillis - mStartMillis) + " ms ago, took "
+                + getDurationMillis(nowMillis) + " ms");
+        pw.println(prefix + "  bytes: " + mBytes + ", on the wire: " + mWireBytes
+                + ", connections: " + mConnections + ", failovers: " + mFailovers);
+        pw.println(prefix + "  time to first byte: " + mTimeToFirstByteMillis + " ms");
+        pw.println(prefix + "  throughput (bytes/s): p10=" + getThroughputPercentile(10)
+                + " p50=" + getThroughputPercentile(50) + " p90=" + getThroughputPercentile(90)
+                + " over " + mThroughputSamples.size() + " samples");
+        pw.println(prefix + "  stalls: " + mStalls + ", " + getStalledMillis() + " ms");
+        pw.println(prefix + "  network: " + getNetworkMillis() + " ms, decoding: "
+                + getDecodeMillis() + " ms, storage: " + getStorageMillis() + " ms");
+        for (SourceStats source : mSources) {
+            pw.println(prefix + "  location " + source.getLocationIndex() + ": "
+                    + source.getBytes() + " bytes in " + source.getDurationMillis() + " ms"
+                    + (source.isCompleted() ? ", completed" : ""));
+        }
+    }
+
+    /**
+     * How much a location sent while the package was downloaded from it, and how fast.
+     */
+    public static class SourceStats {
+        private final int mLocationIndex;
+        private final long mBytes;
+        private final long mDurationMillis;
+        private final boolean mCompleted;
+
+        SourceStats(int locationIndex, long bytes, long durationMillis, boolean completed) {
+            mLocationIndex = locationIndex;
+            mBytes = bytes;
+            mDurationMillis = durationMillis;
+            mCompleted = completed;
+        }
+
+        /**
+         * Returns the index of the location in {@link PackageDownloadInfo#getLocations}, 0 being
+         * {@link PackageDownloadInfo#location}.
+         */
+        public int getLocationIndex() {
+            return mLocationIndex;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        /** Returns how many bytes per second the location sent, or 0 if it took no time. */
+        public long getThroughput() {
+            return mDurationMillis > 0 ? mBytes * 1000 / mDurationMillis : 0;
+        }
+
+        /** Returns whether the download completed from this location. */
+        public boolean isCompleted() {
+            return mCompleted;
+        }
+    }
+}
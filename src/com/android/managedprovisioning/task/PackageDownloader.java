@@ -0,0 +1,937 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static java.util.Objects.requireNonNull;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.ProvisioningTaskJournalProtos.PartialDownloadRecord;
+import com.android.managedprovisioning.common.Globals;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads a package over HTTP(S) on a background thread.
+ *
+ * <p>The SHA-256 digest of the package is computed while its bytes are written to disk, so that
+ * {@link VerifyPackageTask} can check the package checksum without reading the file again.
+ *
+ * <p>Downloads are resumable. The package is written to a partial file next to its destination,
+ * and the server's validator and the number of bytes synced to disk are regularly recorded in a
+ * {@link PartialDownloadRecord} next to it. If a download to the same destination is started
+ * again, e.g. on a retry or after a restart, it continues from there with an HTTP range request.
+ * The partial file is only moved to the destination once it is complete.
+ *
+ * <p>If the package has {@link PackageDownloadInfo#mirrorLocations}, all locations are requested
+ * at once and the download continues from the one that sends the first bytes, the others are
+ * dropped. If that source stalls or fails part way through, the download continues from the
+ * fastest of the remaining locations. The package downloaded from any of them is verified against
+ * the same checksum.
+ *
+ * <p>The package is requested gzip encoded, and decoded as it is received: what is written and
+ * hashed is always the package itself. Since a range of an encoded response covers the encoded
+ * bytes, a download is resumed without encoding.
+ */
+class PackageDownloader {
+
+    /** Failure reason of a download that failed without an HTTP error status. */
+    static final int REASON_IO_ERROR = -1;
+
+    private static final String PARTIAL_FILE_SUFFIX = ".partial";
+    private static final String PARTIAL_RECORD_SUFFIX = ".partial_record";
+
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final String WEAK_ETAG_PREFIX = "W/";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CHECKPOINT_INTERVAL_BYTES = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 30_000;
+    private static final int READ_TIMEOUT_MS = 60_000;
+    // With other locations to switch to, a source that sends nothing for this long is dropped.
+    private static final int STALL_TIMEOUT_MS = 10_000;
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_IDENTITY = "identity";
+    // As many as DownloadManager follows.
+    private static final int MAX_REDIRECTS = 5;
+
+    private static final Executor sExecutor = Executors.newCachedThreadPool();
+
+    private final Executor mExecutor;
+
+    PackageDownloader() {
+        this(sExecutor);
+    }
+
+    @VisibleForTesting
+    PackageDownloader(Executor executor) {
+        mExecutor = requireNonNull(executor);
+    }
+
+    /**
+     * Starts downloading the package described by {@code downloadInfo} to {@code destination}.
+     * The result is delivered to the callback set with {@link Download#observe}.
+     *
+     * <p>If an earlier download of the same package to {@code destination} was interrupted, it is
+     * resumed.
+     */
+    Download start(PackageDownloadInfo downloadInfo, File destination) {
+        Download download = new Download(downloadInfo, destination, mExecutor);
+        mExecutor.execute(download::run);
+        return download;
+    }
+
+    /**
+     * Deletes {@code destination}, and what was downloaded to it by an interrupted download.
+     */
+    static void delete(File destination) {
+        destination.delete();
+        getPartialFile(destination).delete();
+        new AtomicFile(getPartialRecordFile(destination)).delete();
+    }
+
+    @VisibleForTesting
+    static File getPartialFile(File destination) {
+        return new File(destination.getPath() + PARTIAL_FILE_SUFFIX);
+    }
+
+    private static File getPartialRecordFile(File destination) {
+        return new File(destination.getPath() + PARTIAL_RECORD_SUFFIX);
+    }
+
+    interface Callback {
+        /**
+         * Called when the package was downloaded.
+         *
+         * @param file the downloaded package
+         * @param sha256 the SHA-256 digest of {@code file}
+         */
+        void onDownloadComplete(File file, byte[] sha256);
+
+        /**
+         * Called when the download failed.
+         *
+         * @param reason the HTTP status code the server replied with, or
+         * {@link #REASON_IO_ERROR}
+         */
+        void onDownloadFailed(int reason);
+    }
+
+    /**
+     * A download started with {@link #start}.
+     */
+    static class Download {
+        private final PackageDownloadInfo mDownloadInfo;
+        private final Executor mExecutor;
+        private final File mDestination;
+        private final File mPartialFile;
+        private final AtomicFile mPartialRecordFile;
+        private volatile boolean mCancelled;
+
+        private boolean mFinished;
+        private byte[] mSha256;
+        private int mFailureReason;
+        private Callback mCallback;
+        private Handler mHandler;
+        private final PackageDownloadStats mStats;
+        // The connections that are open, closed to abort blocked reads on cancellation.
+        private final List<HttpURLConnection> mConnections = new ArrayList<>();
+
+        private Download(PackageDownloadInfo downloadInfo, File destination, Executor executor) {
+            mDownloadInfo = requireNonNull(downloadInfo);
+            mExecutor = requireNonNull(executor);
+            mDestination = requireNonNull(destination);
+            mPartialFile = getPartialFile(destination);
+            mPartialRecordFile = new AtomicFile(getPartialRecordFile(destination));
+            mStats = new PackageDownloadStats(downloadInfo.location,
+                    SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * Sets the callback the result is delivered to on {@code handler}. If the download has
+         * already finished, the result is delivered right away.
+         */
+        synchronized void observe(Callback callback, Handler handler) {
+            mCallback = requireNonNull(callback);
+            mHandler = requireNonNull(handler);
+            if (mFinished) {
+                deliverResult();
+            }
+        }
+
+        /**
+         * Stops the download and deletes what was downloaded. No result is delivered afterwards.
+         */
+        void cancel() {
+            mCancelled = true;
+            synchronized (this) {
+                mCallback = null;
+            }
+            // A read blocked on the network only fails once its connection is closed. This may be
+            // called on the main thread, so they are closed on the executor.
+            mExecutor.execute(this::disconnectAll);
+        }
+
+        PackageDownloadInfo getDownloadInfo() {
+            return mDownloadInfo;
+        }
+
+        /**
+         * Returns the file the package is downloaded to. Starting a download to the same file
+         * resumes this one if it fails.
+         */
+        File getDestination() {
+            return mDestination;
+        }
+
+        /**
+         * Returns the progress of the download so far, final once the result was delivered.
+         */
+        PackageDownloadStats getStats() {
+            return mStats;
+        }
+
+        private void run() {
+            try {
+                byte[] sha256 = download();
+                mStats.onFinished(/* succeeded= */ true, SystemClock.elapsedRealtime());
+                finish(sha256, 0);
+            } catch (DownloadFailedException e) {
+                ProvisionLogger.loge("Downloading package failed with HTTP status " + e.mReason);
+                mStats.onFinished(/* succeeded= */ false, SystemClock.elapsedRealtime());
+                finish(null, e.mReason);
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    ProvisionLogger.loge("Downloading package failed.", e);
+                }
+                mStats.onFinished(/* succeeded= */ false, SystemClock.elapsedRealtime());
+                finish(null, REASON_IO_ERROR);
+            }
+            if (mCancelled) {
+                delete(mDestination);
+            }
+        }
+
+        private byte[] download() throws IOException {
+            List<String> locations = new ArrayList<>(mDownloadInfo.getLocations());
+            while (true) {
+                PartialDownloadRecord record = readPartialDownloadRecord();
+                Source source = connect(locations, record);
+                mStats.onConnected(source.mFirstByteMillis);
+                try {
+                    if (!source.mResumed) {
+                        // Either nothing was downloaded yet or the package changed, start over.
+                        mPartialRecordFile.delete();
+                        record = createPartialDownloadRecord(source);
+                    }
+                    mDestination.getParentFile().mkdirs();
+                    return writeToPartialFile(source, record);
+                } catch (IOException e) {
+                    locations.remove(source.mLocation);
+                    if (mCancelled || locations.isEmpty()) {
+                        throw e;
+                    }
+                    // What was received is kept, the next source resumes from there if it can.
+                    mStats.onFailover();
+                    ProvisionLogger.logw("Downloading package from " + source.mLocation
+                            + " failed, switching to another location.", e);
+                } finally {
+                    disconnect(source.mConnection);
+                    addSourceStats(source);
+                }
+            }
+        }
+
+        /**
+         * Connects to the location that is the first to send the package, among
+         * {@code locations}.
+         *
+         * @param record the record of the partial download to resume, or {@code null}
+         */
+        private Source connect(List<String> locations, PartialDownloadRecord record)
+                throws IOException {
+            if (locations.size() == 1) {
+                try {
+                    return probe(locations.get(0), record, READ_TIMEOUT_MS);
+                } catch (RangeNotSatisfiedException e) {
+                    // E.g. the package got smaller. The next attempt starts over.
+                    discardPartialDownload();
+                    throw e;
+                }
+            }
+
+            CompletionService<Source> race = new ExecutorCompletionService<>(mExecutor);
+            List<Future<Source>> probes = new ArrayList<>();
+            for (String location : locations) {
+                probes.add(race.submit(() -> probe(location, record, STALL_TIMEOUT_MS)));
+            }
+            Source winner = null;
+            IOException failure = null;
+            boolean rangeNotSatisfied = false;
+            try {
+                for (int i = 0; i < probes.size() && winner == null && !mCancelled; i++) {
+                    try {
+                        winner = race.take().get();
+                    } catch (ExecutionException e) {
+                        rangeNotSatisfied |= e.getCause() instanceof RangeNotSatisfiedException;
+                        // Report an HTTP error status over a network error.
+                        if (failure == null || e.getCause() instanceof DownloadFailedException) {
+                            failure = e.getCause() instanceof IOException
+                                    ? (IOException) e.getCause()
+                                    : new IOException(e.getCause());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Interrupted while connecting");
+            } finally {
+                // The slower sources are dropped, including those still connecting.
+                final Source fastest = winner;
+                for (Future<Source> probe : probes) {
+                    mExecutor.execute(() -> {
+                        try {
+                            Source source = probe.get();
+                            if (source != fastest) {
+                                disconnect(source.mConnection);
+                            }
+                        } catch (ExecutionException | InterruptedException e) {
+                            // The probe failed, it already disconnected.
+                        }
+                    });
+                }
+            }
+            if (winner != null) {
+                ProvisionLogger.logi("Downloading package from " + winner.mLocation + ", first to"
+                        + " respond out of " + locations.size() + " locations.");
+                return winner;
+            }
+            if (rangeNotSatisfied) {
+                discardPartialDownload();
+            }
+            throw failure != null ? failure : new IOException("Download cancelled");
+        }
+
+        /**
+         * Requests the package from {@code location}, resuming the partial download if there is
+         * one, and waits for its first bytes.
+         */
+        private Source probe(String location, PartialDownloadRecord record, int readTimeoutMs)
+                throws IOException {
+            if (Globals.DEBUG) {
+                ProvisionLogger.logd("Starting download from " + location
+                        + (record == null ? "" : " at offset " + record.getOffset()));
+            }
+            long startMillis = SystemClock.elapsedRealtime();
+            Consumer<HttpURLConnection> onOpened = opened -> {
+                opened.setReadTimeout(readTimeoutMs);
+                addConnection(opened);
+            };
+            HttpURLConnection connection = record == null
+                    ? connect(mDownloadInfo, location, 0, null, onOpened)
+                    : connect(mDownloadInfo, location, record.getOffset(),
+                            record.hasEtag() ? record.getEtag() : record.getLastModified(),
+                            onOpened);
+            try {
+                int status = connection.getResponseCode();
+                boolean resumed;
+                if (status == HttpURLConnection.HTTP_PARTIAL && record != null
+                        && getRangeStart(connection) == record.getOffset()
+                        && !isEncoded(connection)) {
+                    ProvisionLogger.logi("Resuming download at offset " + record.getOffset());
+                    resumed = true;
+                } else if (status == HttpURLConnection.HTTP_OK) {
+                    resumed = false;
+                } else if (status == HttpURLConnection.HTTP_PARTIAL
+                        || status == HTTP_RANGE_NOT_SATISFIABLE) {
+                    throw new RangeNotSatisfiedException(status);
+                } else {
+                    throw new DownloadFailedException(status);
+                }
+                return new Source(location, connection, resumed, startMillis);
+            } catch (IOException e) {
+                disconnect(connection);
+                throw e;
+            }
+        }
+
+        private void addConnection(HttpURLConnection connection) {
+            synchronized (mConnections) {
+                mConnections.add(connection);
+            }
+            if (mCancelled) {
+                // The download was cancelled while connecting.
+                disconnectAll();
+            }
+        }
+
+        private void disconnect(HttpURLConnection connection) {
+            synchronized (mConnections) {
+                mConnections.remove(connection);
+            }
+            connection.disconnect();
+        }
+
+        private void disconnectAll() {
+            List<HttpURLConnection> connections;
+            synchronized (mConnections) {
+                connections = new ArrayList<>(mConnections);
+                mConnections.clear();
+            }
+            for (HttpURLConnection connection : connections) {
+                connection.disconnect();
+            }
+        }
+
+        private byte[] writeToPartialFile(Source source, PartialDownloadRecord record)
+                throws IOException {
+            MessageDigest digest = createSha256Digest();
+            long length = record == null ? 0 : record.getOffset();
+            if (length > 0) {
+                // Drop what was written after the last checkpoint, it may not have been synced.
+                try (RandomAccessFile file = new RandomAccessFile(mPartialFile, "rw")) {
+                    file.setLength(length);
+                }
+                hashPartialFile(digest);
+            }
+            long contentLength = getDecodedContentLength(source.mConnection);
+            long expectedLength = contentLength < 0 ? -1 : length + contentLength;
+            long checkpointLength = length;
+            try (InputStream input = source.mInput;
+                 FileOutputStream out = new FileOutputStream(mPartialFile, length > 0)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                long wireBytes = 0;
+                long wireNanos = 0;
+                try {
+                    while (true) {
+                        long readStartNanos = System.nanoTime();
+                        count = input.read(buffer);
+                        long writeStartNanos = System.nanoTime();
+                        if (count == -1) {
+                            break;
+                        }
+                        // What isn't spent waiting for the network is spent decoding.
+                        long networkNanos = source.mWire.getNanos() - wireNanos;
+                        mStats.onRead(count, source.mWire.getCount() - wireBytes, networkNanos,
+                                writeStartNanos - readStartNanos - networkNanos,
+                                SystemClock.elapsedRealtime());
+                        wireBytes = source.mWire.getCount();
+                        wireNanos = source.mWire.getNanos();
+                        if (mCancelled) {
+                            throw new IOException("Download cancelled");
+                        }
+                        digest.update(buffer, 0, count);
+                        out.write(buffer, 0, count);
+                        length += count;
+                        source.mBytesReceived += count;
+                        if (length - checkpointLength >= CHECKPOINT_INTERVAL_BYTES) {
+                            checkpoint(out, record, length);
+                            checkpointLength = length;
+                        }
+                        mStats.onWrite(System.nanoTime() - writeStartNanos);
+                    }
+                    if (expectedLength >= 0 && length < expectedLength) {
+                        throw new IOException("Connection closed after " + length + " bytes out"
+                                + " of " + expectedLength);
+                    }
+                } catch (IOException e) {
+                    if (!mCancelled && length > checkpointLength) {
+                        // Keep everything received so far for the next attempt.
+                        checkpoint(out, record, length);
+                    }
+                    throw e;
+                }
+                // Later tasks may be skipped on a restart based on this file being complete.
+                long syncStartNanos = System.nanoTime();
+                out.getFD().sync();
+                mStats.onWrite(System.nanoTime() - syncStartNanos);
+            }
+            if (expectedLength >= 0 && length > expectedLength) {
+                discardPartialDownload();
+                throw new IOException("Downloaded " + length + " bytes out of "
+                        + expectedLength);
+            }
+            if (!mPartialFile.renameTo(mDestination)) {
+                throw new IOException("Failed to move " + mPartialFile + " to " + mDestination);
+            }
+            mPartialRecordFile.delete();
+            source.mCompleted = true;
+            ProvisionLogger.logd("Downloaded " + length + " bytes to " + mDestination);
+            return digest.digest();
+        }
+
+        private void addSourceStats(Source source) {
+            PackageDownloadStats.SourceStats stats = new PackageDownloadStats.SourceStats(
+                    mDownloadInfo.getLocations().indexOf(source.mLocation),
+                    source.mBytesReceived,
+                    SystemClock.elapsedRealtime() - source.mStartMillis,
+                    source.mCompleted);
+            ProvisionLogger.logi("Received " + stats.getBytes() + " bytes in "
+                    + stats.getDurationMillis() + " ms from location " + stats.getLocationIndex());
+            mStats.onSourceFinished(stats);
+        }
+
+        private void hashPartialFile(MessageDigest digest) throws IOException {
+            try (FileInputStream in = new FileInputStream(mPartialFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+        }
+
+        /**
+         * Syncs the partial file and records that its first {@code length} bytes can be resumed
+         * from.
+         */
+        private void checkpoint(FileOutputStream out, PartialDownloadRecord record, long length) {
+            if (record == null) {
+                // The server sent no validator, the download can't be resumed safely.
+                return;
+            }
+            FileOutputStream recordOut = null;
+            try {
+                out.getFD().sync();
+                recordOut = mPartialRecordFile.startWrite();
+                record.toBuilder().setOffset(length).build().writeTo(recordOut);
+                mPartialRecordFile.finishWrite(recordOut);
+            } catch (IOException e) {
+                ProvisionLogger.logw("Failed to record partial download.", e);
+                if (recordOut != null) {
+                    mPartialRecordFile.failWrite(recordOut);
+                }
+            }
+        }
+
+        /**
+         * Returns the record of an interrupted download of the same package that can be resumed,
+         * or {@code null}.
+         */
+        private PartialDownloadRecord readPartialDownloadRecord() {
+            if (!mPartialRecordFile.exists()) {
+                return null;
+            }
+            try {
+                PartialDownloadRecord record =
+                        PartialDownloadRecord.parseFrom(mPartialRecordFile.readFully());
+                // The validator of a location is tried on all of them, as they may share it.
+                if (mDownloadInfo.getLocations().contains(record.getLocation())
+                        && record.getOffset() > 0
+                        && mPartialFile.length() >= record.getOffset()) {
+                    return record;
+                }
+            } catch (IOException e) {
+                ProvisionLogger.logw("Failed to read partial download record.", e);
+            }
+            discardPartialDownload();
+            return null;
+        }
+
+        /**
+         * Returns the record to create for the package the server is sending, or {@code null} if
+         * the server sent no validator to resume it with.
+         */
+        private PartialDownloadRecord createPartialDownloadRecord(Source source) {
+            HttpURLConnection connection = source.mConnection;
+            PartialDownloadRecord.Builder record = PartialDownloadRecord.newBuilder()
+                    .setLocation(source.mLocation);
+            String etag = getStrongEtag(connection);
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (etag != null) {
+                record.setEtag(etag);
+            } else if (lastModified != null) {
+                record.setLastModified(lastModified);
+            } else {
+                return null;
+            }
+            return record.build();
+        }
+
+        private void discardPartialDownload() {
+            mPartialFile.delete();
+            mPartialRecordFile.delete();
+        }
+
+        private synchronized void finish(byte[] sha256, int failureReason) {
+            mFinished = true;
+            mSha256 = sha256;
+            mFailureReason = failureReason;
+            if (mCallback != null) {
+                deliverResult();
+            }
+        }
+
+        private void deliverResult() {
+            if (mCancelled) {
+                return;
+            }
+            Callback callback = mCallback;
+            byte[] sha256 = mSha256;
+            int failureReason = mFailureReason;
+            mHandler.post(() -> {
+                if (mCancelled) {
+                    return;
+                }
+                if (sha256 != null) {
+                    callback.onDownloadComplete(mDestination, sha256);
+                } else {
+                    callback.onDownloadFailed(failureReason);
+                }
+            });
+        }
+    }
+
+    /**
+     * A location the package is being downloaded from, whose first bytes arrived.
+     */
+    private static class Source {
+        final String mLocation;
+        final HttpURLConnection mConnection;
+        /** Whether the location continues the partial download, rather than sending it all. */
+        final boolean mResumed;
+        final long mStartMillis;
+        final long mFirstByteMillis;
+        /** The response body as received, before it is decoded. */
+        final CountingInputStream mWire;
+        /** The decoded response body, including the first bytes that were already read. */
+        final InputStream mInput;
+        long mBytesReceived;
+        boolean mCompleted;
+
+        Source(String location, HttpURLConnection connection, boolean resumed, long startMillis)
+                throws IOException {
+            mLocation = location;
+            mConnection = connection;
+            mResumed = resumed;
+            mStartMillis = startMillis;
+            mWire = new CountingInputStream(connection.getInputStream());
+            InputStream in = decode(connection, mWire);
+            byte[] firstBytes = new byte[BUFFER_SIZE];
+            int count = in.read(firstBytes);
+            mFirstByteMillis = SystemClock.elapsedRealtime();
+            mInput = count <= 0 ? in
+                    : new SequenceInputStream(new ByteArrayInputStream(firstBytes, 0, count), in);
+        }
+    }
+
+    /**
+     * Requests the package described by {@code downloadInfo} from
+     * {@link PackageDownloadInfo#location}, following redirects.
+     *
+     * @see #connect(PackageDownloadInfo, String, long, String, Consumer)
+     */
+    static HttpURLConnection connect(PackageDownloadInfo downloadInfo, long offset,
+            String validator) throws IOException {
+        return connect(downloadInfo, downloadInfo.location, offset, validator, connection -> {});
+    }
+
+    /**
+     * Requests the package described by {@code downloadInfo} from {@code location}, and follows
+     * up to {@link #MAX_REDIRECTS} redirects. Unlike {@link HttpURLConnection}, redirects between
+     * http and https are followed too, as DownloadManager did. Each hop is requested with the
+     * same headers, see {@link #openConnection}.
+     *
+     * @param onOpened called with the connection of each hop before its request is sent
+     * @return the connection whose response isn't a redirect, its response code was read
+     * @throws DownloadFailedException with the redirect status if there are too many redirects
+     */
+    static HttpURLConnection connect(PackageDownloadInfo downloadInfo, String location,
+            long offset, String validator, Consumer<HttpURLConnection> onOpened)
+            throws IOException {
+        URL url = new URL(location);
+        for (int redirects = 0; ; redirects++) {
+            HttpURLConnection connection =
+                    openConnection(downloadInfo, url.toString(), offset, validator);
+            onOpened.accept(connection);
+            int status;
+            String target;
+            try {
+                status = connection.getResponseCode();
+                if (!isRedirect(status)) {
+                    return connection;
+                }
+                target = connection.getHeaderField("Location");
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+            connection.disconnect();
+            if (target == null || redirects >= MAX_REDIRECTS) {
+                ProvisionLogger.loge("Not following redirect from " + url + " after " + redirects
+                        + " redirects");
+                throw new DownloadFailedException(status);
+            }
+            url = new URL(url, target);
+            if (Globals.DEBUG) {
+                ProvisionLogger.logd("Redirected to " + url);
+            }
+        }
+    }
+
+    private static boolean isRedirect(int status) {
+        switch (status) {
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case HTTP_TEMPORARY_REDIRECT:
+            case HTTP_PERMANENT_REDIRECT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Opens a connection to download the package described by {@code downloadInfo} from
+     * {@code location}.
+     *
+     * @param offset the offset to resume the download at, or 0 to download the whole package
+     * @param validator the strong ETag or Last-Modified date the server sent for the package
+     * before, which the server sends the whole package instead if it doesn't match. Ignored if
+     * {@code offset} is 0.
+     */
+    private static HttpURLConnection openConnection(PackageDownloadInfo downloadInfo,
+            String location, long offset, String validator) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+        // Redirects are followed by connect(), including those across protocols.
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (downloadInfo.cookieHeader != null) {
+            connection.setRequestProperty("Cookie", downloadInfo.cookieHeader);
+            if (Globals.DEBUG) {
+                ProvisionLogger.logd("Downloading with http cookie header: "
+                        + downloadInfo.cookieHeader);
+            }
+        }
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            connection.setRequestProperty("If-Range", validator);
+            // A range of an encoded response is a range of the encoded bytes, while what was
+            // downloaded so far is decoded.
+            connection.setRequestProperty("Accept-Encoding", ENCODING_IDENTITY);
+        } else {
+            // Setting this also keeps the connection from decoding the response itself, so that
+            // the bytes received can be counted.
+            connection.setRequestProperty("Accept-Encoding", ENCODING_GZIP);
+        }
+        return connection;
+    }
+
+    /**
+     * Returns whether the response body of {@code connection} has a content encoding, which
+     * {@link #decode} removes.
+     */
+    static boolean isEncoded(HttpURLConnection connection) {
+        String encoding = connection.getContentEncoding();
+        return encoding != null && !ENCODING_IDENTITY.equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Returns the length of the decoded response body of {@code connection}, or -1 if it isn't
+     * known.
+     */
+    static long getDecodedContentLength(HttpURLConnection connection) {
+        // The content length of an encoded response is the length of the encoded bytes.
+        return isEncoded(connection) ? -1 : connection.getContentLengthLong();
+    }
+
+    /**
+     * Returns a stream decoding the response body of {@code connection} read from {@code in} as
+     * it is read. The integrity of a gzip encoded body is checked once it was read to the end.
+     *
+     * @throws IOException if the content encoding isn't supported
+     */
+    static InputStream decode(HttpURLConnection connection, InputStream in) throws IOException {
+        if (!isEncoded(connection)) {
+            return in;
+        }
+        String encoding = connection.getContentEncoding();
+        if (ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+
+    /**
+     * Stream counting the bytes read from the wrapped stream, and how long reading them took.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+        private long mNanos;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startNanos = System.nanoTime();
+            int b = super.read();
+            mNanos += System.nanoTime() - startNanos;
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long startNanos = System.nanoTime();
+            int count = super.read(buffer, offset, length);
+            mNanos += System.nanoTime() - startNanos;
+            if (count > 0) {
+                mCount += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long startNanos = System.nanoTime();
+            long skipped = super.skip(n);
+            mNanos += System.nanoTime() - startNanos;
+            mCount += skipped;
+            return skipped;
+        }
+
+        /** Returns the number of bytes read. */
+        long getCount() {
+            return mCount;
+        }
+
+        /** Returns the time spent reading. */
+        long getNanos() {
+            return mNanos;
+        }
+    }
+
+    /**
+     * Returns the validator of the package the server is sending to resume its download with, or
+     * {@code null} if there is none.
+     */
+    static String getValidator(HttpURLConnection connection) {
+        String etag = getStrongEtag(connection);
+        return etag != null ? etag : connection.getHeaderField("Last-Modified");
+    }
+
+    private static String getStrongEtag(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        // Weak validators can't be used with If-Range.
+        return etag == null || etag.startsWith(WEAK_ETAG_PREFIX) ? null : etag;
+    }
+
+    /**
+     * Returns the offset of the first byte sent in a partial response, or {@code -1} if it can't
+     * be parsed.
+     */
+    static long getRangeStart(HttpURLConnection connection) {
+        // E.g. "bytes 1000-1999/2000"
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int end = contentRange.indexOf('-');
+        try {
+            return end < 0 ? -1 : Long.parseLong(contentRange.substring(6, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns whether a download that failed with the given
+     * {@link Callback#onDownloadFailed reason} may succeed if it is tried again.
+     */
+    static boolean isTransientFailure(int reason) {
+        switch (reason) {
+            case REASON_IO_ERROR:
+            case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+            case HTTP_TOO_MANY_REQUESTS:
+                return true;
+            default:
+                return reason >= HttpURLConnection.HTTP_INTERNAL_ERROR && reason < 600;
+        }
+    }
+
+    static MessageDigest createSha256Digest() {
+        try {
+            return MessageDigest.getInstance(Utils.SHA256_TYPE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Thrown when the server didn't send the range of the package that was requested.
+     */
+    private static class RangeNotSatisfiedException extends IOException {
+        RangeNotSatisfiedException(int status) {
+            super("Unexpected range response " + status);
+        }
+    }
+
+    /**
+     * Thrown when the server replied with an HTTP error status.
+     */
+    static class DownloadFailedException extends IOException {
+        private final int mReason;
+
+        DownloadFailedException(int reason) {
+            super("HTTP status " + reason);
+            mReason = reason;
+        }
+
+        int getReason() {
+            return mReason;
+        }
+    }
+}
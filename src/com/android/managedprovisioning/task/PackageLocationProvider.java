@@ -20,4 +20,12 @@ import java.io.File;
 
 interface PackageLocationProvider {
     File getPackageLocation();
+
+    /**
+     * Returns the SHA-256 digest of the file at {@link #getPackageLocation()} if it was computed
+     * when the file was written, {@code null} otherwise.
+     */
+    default byte[] getPackageSha256() {
+        return null;
+    }
 }
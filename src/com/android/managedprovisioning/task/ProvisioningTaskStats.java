@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static java.util.Objects.requireNonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * What the provisioning tasks of a provisioning flow did: how many times they retried a failed
+ * operation, how much of its deadline each task used, how often the package was found in the
+ * {@link PackageCache}, and how the package downloads went.
+ *
+ * <p>Each failed attempt, cache lookup and download is reported through the
+ * {@link ProvisioningAnalyticsTracker} as it happens. The counts and the last few downloads are
+ * kept for the dump.
+ *
+ * <p>The manager of a provisioning flow owns an instance, which its controllers hand to their
+ * tasks and watchdog. It is kept across the provisioning sessions of the flow for the dump of
+ * {@code ProvisioningService}.
+ */
+public class ProvisioningTaskStats {
+
+    private static final int MAX_RECENT_DOWNLOADS = 5;
+
+    private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
+    private final Map<String, Integer> mRetries = new TreeMap<>();
+    private final Map<String, Integer> mMaxDeadlinePercentages = new TreeMap<>();
+    private final Deque<PackageDownloadStats> mRecentDownloads = new ArrayDeque<>();
+    private int mCacheHits;
+    private int mCacheMisses;
+    private long mCacheBytesSaved;
+
+    public ProvisioningTaskStats(ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+        mProvisioningAnalyticsTracker = requireNonNull(provisioningAnalyticsTracker);
+    }
+
+    /**
+     * Records that {@code task} retries an operation whose attempt failed.
+     *
+     * @param errorCode the error the attempt failed with
+     * @param attempt the number of the attempt that failed, 0 for the first one
+     * @param latencyMillis how long the attempt took before it failed
+     */
+    void onRetry(AbstractProvisioningTask task, int errorCode, int attempt, long latencyMillis) {
+        mProvisioningAnalyticsTracker.logTaskAttemptFailed(task, errorCode, attempt,
+                latencyMillis);
+        synchronized (this) {
+            mRetries.merge(task.getClass().getSimpleName(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Records that the package was looked up in the {@link PackageCache}.
+     *
+     * @param hit whether the package was cached
+     * @param bytesSaved the size of the cached package, which wasn't downloaded
+     */
+    void onPackageCacheLookup(boolean hit, long bytesSaved) {
+        mProvisioningAnalyticsTracker.logPackageCacheLookup(hit, bytesSaved);
+        synchronized (this) {
+            if (hit) {
+                mCacheHits++;
+                mCacheBytesSaved += bytesSaved;
+            } else {
+                mCacheMisses++;
+            }
+        }
+    }
+
+    /**
+     * Records a finished download of a package.
+     *
+     * @param attempt the number of the attempt of the task that ran the download, 0 for the
+     *                first one
+     */
+    void onPackageDownloadFinished(PackageDownloadStats stats, int attempt) {
+        mProvisioningAnalyticsTracker.logPackageDownloadStats(stats, attempt);
+        synchronized (this) {
+            if (mRecentDownloads.size() == MAX_RECENT_DOWNLOADS) {
+                mRecentDownloads.removeFirst();
+            }
+            mRecentDownloads.addLast(stats);
+        }
+    }
+
+    /**
+     * Records that {@code task} finished after using {@code deadlinePercentage} percent of its
+     * deadline.
+     */
+    public synchronized void onTaskFinished(
+            AbstractProvisioningTask task, int deadlinePercentage) {
+        mMaxDeadlinePercentages.merge(
+                task.getClass().getSimpleName(), deadlinePercentage, Math::max);
+    }
+
+    /**
+     * Prints how many times the tasks of each class retried, the highest share of its deadline
+     * that a task of each class used before finishing, how often the package was cached, and the
+     * last few downloads, the most recent last.
+     *
+     * @param nowMillis the current time, in {@link android.os.SystemClock#elapsedRealtime} time
+     *                  base
+     */
+    public synchronized void dump(PrintWriter pw, long nowMillis) {
+        pw.println("Task retries: " + join(mRetries, ""));
+        pw.println("Task deadlines used: " + join(mMaxDeadlinePercentages, "%"));
+        pw.println("Package cache: " + mCacheHits + " hits, " + mCacheMisses + " misses, "
+                + mCacheBytesSaved + " bytes not downloaded");
+        pw.println("Recent package downloads: " + mRecentDownloads.size());
+        for (PackageDownloadStats download : mRecentDownloads) {
+            download.dump(pw, "  ", nowMillis);
+        }
+    }
+
+    /** Returns how many times the tasks of the given class retried a failed operation. */
+    @VisibleForTesting
+    synchronized int getRetries(Class<? extends AbstractProvisioningTask> clazz) {
+        return mRetries.getOrDefault(clazz.getSimpleName(), 0);
+    }
+
+    private static String join(Map<String, Integer> values, String unit) {
+        return values.entrySet().stream()
+                .map(entry -> entry.getKey() + " " + entry.getValue() + unit)
+                .collect(Collectors.joining(", "));
+    }
+}
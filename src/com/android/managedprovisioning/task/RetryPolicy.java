@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import com.google.auto.value.AutoValue;
+
+import java.util.Random;
+
+/**
+ * Describes how a provisioning task retries an operation that failed transiently.
+ *
+ * <p>The delay before the {@code n}-th retry is {@code initialDelay * backoffMultiplier^n}, capped
+ * at {@code maxDelay}, and randomly varied by up to {@code jitterFraction} of itself in either
+ * direction so that devices provisioned together don't retry in lockstep.
+ *
+ * @see AbstractProvisioningTask#retry(int, Runnable)
+ */
+@AutoValue
+public abstract class RetryPolicy {
+
+    /** Policy of the tasks that give up on the first failure. */
+    public static final RetryPolicy NO_RETRIES = builder().setMaxRetries(0).build();
+
+    /** Maximum number of retries after the first attempt. */
+    public abstract int getMaxRetries();
+
+    /** Delay before the first retry. */
+    public abstract long getInitialDelayMillis();
+
+    /** Factor applied to the delay after every retry. */
+    public abstract float getBackoffMultiplier();
+
+    /** Upper bound of the delay before a retry, before jitter is applied. */
+    public abstract long getMaxDelayMillis();
+
+    /** Maximum random variation of the delay, as a fraction of it. */
+    public abstract float getJitterFraction();
+
+    /**
+     * Returns the delay before the retry with the given 0-based index.
+     */
+    long getDelayMillis(int retryIndex, Random random) {
+        double delay = Math.min(
+                getInitialDelayMillis() * Math.pow(getBackoffMultiplier(), retryIndex),
+                getMaxDelayMillis());
+        double jitter = delay * getJitterFraction() * (2 * random.nextDouble() - 1);
+        return Math.max(0, Math.round(delay + jitter));
+    }
+
+    /**
+     * Returns a builder whose defaults are a 500 ms initial delay doubled on every retry, up to
+     * 30 s, with 20% jitter. The number of retries must be set.
+     */
+    public static Builder builder() {
+        return new AutoValue_RetryPolicy.Builder()
+                .setInitialDelayMillis(500)
+                .setBackoffMultiplier(2)
+                .setMaxDelayMillis(30_000)
+                .setJitterFraction(0.2f);
+    }
+
+    @AutoValue.Builder
+    public abstract static class Builder {
+        public abstract Builder setMaxRetries(int maxRetries);
+        public abstract Builder setInitialDelayMillis(long initialDelayMillis);
+        public abstract Builder setBackoffMultiplier(float backoffMultiplier);
+        public abstract Builder setMaxDelayMillis(long maxDelayMillis);
+        public abstract Builder setJitterFraction(float jitterFraction);
+        public abstract RetryPolicy build();
+    }
+}
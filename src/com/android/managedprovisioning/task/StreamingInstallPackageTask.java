@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static android.app.PendingIntent.FLAG_MUTABLE;
+import static android.app.PendingIntent.FLAG_ONE_SHOT;
+import static android.app.PendingIntent.FLAG_UPDATE_CURRENT;
+import static android.content.pm.PackageManager.INSTALL_REPLACE_EXISTING;
+
+import static com.android.internal.logging.nano.MetricsProto.MetricsEvent.PROVISIONING_INSTALL_PACKAGE_TASK_MS;
+
+import static java.util.Objects.requireNonNull;
+
+import android.app.PendingIntent;
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.MetricsWriterFactory;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads, verifies and installs the management app in a single pass, in place of
+ * {@link DownloadPackageTask}, {@link VerifyPackageTask} and {@link InstallPackageTask}.
+ *
+ * <p>The package is written to the {@link PackageInstaller.Session} as it is downloaded, while
+ * its SHA-256 digest is computed. The session is only committed if the digest matches
+ * {@link PackageDownloadInfo#packageChecksum}, and abandoned otherwise. The package is never
+ * written to the app's storage, and it is not read again to be verified or installed.
+ *
+ * <p>A download that fails part way through is resumed with an HTTP range request where it
+ * stopped. The device admin receiver is looked up in the manifest written to the session before
+ * it is committed. If {@link ApkArchiveReader} can't read that manifest, the package is copied out
+ * of the session for {@link PackageManager#getPackageArchiveInfo} to parse, as
+ * {@link VerifyPackageTask} does. A package whose receiver can't be found either way is never
+ * committed, so that it can't replace an installed version of the management app.
+ *
+ * <p>This mode is opt-in, with the {@link #PROPERTY_STREAMING_ENABLED} system property, and only
+ * applies to packages verified by their package checksum, see {@link #isEnabled}.
+ */
+public class StreamingInstallPackageTask extends AbstractProvisioningTask {
+    public static final int ERROR_DOWNLOAD_FAILED = 0;
+    public static final int ERROR_HASH_MISMATCH = 1;
+    public static final int ERROR_DEVICE_ADMIN_MISSING = 2;
+    public static final int ERROR_INSTALLATION_FAILED = 3;
+
+    @VisibleForTesting
+    static final String PROPERTY_STREAMING_ENABLED =
+            "persist.managed_provisioning.stream_dpc_install";
+
+    private static final String ACTION_INSTALL_DONE =
+            StreamingInstallPackageTask.class.getName() + ".DONE.";
+    private static final String SESSION_FILE_NAME = "base.apk";
+
+    private static final int MAX_RETRIES = 3;
+    private static final int RETRY_DELAY_BASE_MS = 2000;
+
+    private static final int SUCCESS_INSTALLED_BROADCAST = 1;
+    private static final int SUCCESS_INSTALLED_CALLBACK = 2;
+
+    private static final Executor sExecutor = Executors.newCachedThreadPool();
+
+    private final Utils mUtils;
+    private final ApkArchiveReader mApkArchiveReader;
+    private final Executor mExecutor;
+    private final PackageManager mPm;
+    private final DevicePolicyManager mDpm;
+    private final String mPackageName;
+    private final PackageDownloadInfo mDownloadInfo;
+    private final PackageInstaller.SessionCallback mSessionCallback = new SessionCallback();
+    private final Set<Integer> mSuccessCodes = new HashSet<>();
+
+    private Handler mHandler;
+    private BroadcastReceiver mPackageAddedReceiver;
+    private PackageInstaller.Session mSession;
+    private volatile int mSessionId;
+
+    // Written by the transfer thread, read on the task's thread once the transfer is over.
+    private MessageDigest mDigest;
+    private long mBytesWritten;
+    private String mValidator;
+
+    /**
+     * Returns whether the management app should be installed with this task for the given
+     * provisioning params.
+     */
+    public static boolean isEnabled(ProvisioningParams params) {
+        return params.deviceAdminDownloadInfo != null
+                && params.deviceAdminDownloadInfo.packageChecksum.length > 0
+                // Only a single apk can be streamed.
+                && params.deviceAdminDownloadInfo.splits.isEmpty()
+                && SystemProperties.getBoolean(PROPERTY_STREAMING_ENABLED, false)
+                // A prefetched package is already on disk, it is installed from there.
+                && !PackageDownloadPrefetcher.getInstance().isEnabled();
+    }
+
+    public StreamingInstallPackageTask(
+            Context context,
+            ProvisioningParams params,
+            Callback callback) {
+        this(new Utils(), context, params, callback,
+                new ProvisioningAnalyticsTracker(
+                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
+                        new ManagedProvisioningSharedPreferences(context)),
+                new ApkArchiveReader(),
+                sExecutor);
+    }
+
+    @VisibleForTesting
+    StreamingInstallPackageTask(
+            Utils utils,
+            Context context,
+            ProvisioningParams params,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            ApkArchiveReader apkArchiveReader,
+            Executor executor) {
+        super(context, params, callback, provisioningAnalyticsTracker);
+
+        mUtils = requireNonNull(utils);
+        mApkArchiveReader = requireNonNull(apkArchiveReader);
+        mExecutor = requireNonNull(executor);
+        mPm = context.getPackageManager();
+        mDpm = context.getSystemService(DevicePolicyManager.class);
+        mPackageName = requireNonNull(params.inferDeviceAdminPackageName());
+        mDownloadInfo = requireNonNull(params.deviceAdminDownloadInfo);
+        setRetryPolicy(RetryPolicy.builder()
+                .setMaxRetries(MAX_RETRIES)
+                .setInitialDelayMillis(RETRY_DELAY_BASE_MS)
+                .build());
+    }
+
+    @Override
+    public void run(int userId) {
+        startTaskTimer();
+        if (!mUtils.packageRequiresUpdate(mPackageName, mDownloadInfo.minVersion, mContext)) {
+            success();
+            return;
+        }
+        if (!mUtils.isConnectedToNetwork(mContext)) {
+            ProvisionLogger.loge("StreamingInstallPackageTask: not connected to the network, can't"
+                    + " download the package");
+            error(ERROR_DOWNLOAD_FAILED);
+            return;
+        }
+        DownloadPackageTask.setDpcDownloadedSetting(mContext);
+
+        PackageInstaller packageInstaller = mPm.getPackageInstaller();
+        try {
+            mSessionId = packageInstaller.createSession(createSessionParams());
+            mSession = packageInstaller.openSession(mSessionId);
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to create install session for " + mPackageName, e);
+            error(ERROR_INSTALLATION_FAILED);
+            return;
+        }
+        packageInstaller.registerSessionCallback(mSessionCallback);
+        mPackageAddedReceiver = new PackageAddedReceiver();
+        mContext.registerReceiver(mPackageAddedReceiver, createPackageAddedIntentFilter());
+
+        // The transfer result is handled on this thread.
+        mHandler = new Handler(Looper.myLooper());
+        startAttempt();
+        startTransfer();
+    }
+
+    private PackageInstaller.SessionParams createSessionParams() {
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.installFlags |= INSTALL_REPLACE_EXISTING;
+        // See InstallPackageTask: a test-only device owner can only be replaced by a test-only
+        // package.
+        if (mDpm.isDeviceOwnerApp(mPackageName)) {
+            params.installFlags |= PackageManager.INSTALL_ALLOW_TEST;
+        }
+        return params;
+    }
+
+    private void startTransfer() {
+        mExecutor.execute(() -> {
+            int failureReason;
+            try {
+                transfer();
+                mHandler.post(this::onTransferComplete);
+                return;
+            } catch (PackageDownloader.DownloadFailedException e) {
+                failureReason = e.getReason();
+            } catch (IOException e) {
+                failureReason = PackageDownloader.REASON_IO_ERROR;
+            }
+            if (!isCancelled()) {
+                ProvisionLogger.loge("Streaming package into install session failed after "
+                        + mBytesWritten + " bytes, reason: " + failureReason);
+            }
+            final int reason = failureReason;
+            mHandler.post(() -> onTransferFailed(reason));
+        });
+    }
+
+    /**
+     * Downloads the package into the install session, resuming an earlier attempt if possible.
+     * Runs on a background thread.
+     */
+    private void transfer() throws IOException {
+        if (mValidator == null) {
+            // Without a validator, a resumed download could mix two versions of the package.
+            mBytesWritten = 0;
+        }
+        HttpURLConnection connection = PackageDownloader.connect(
+                mDownloadInfo, mBytesWritten, mValidator);
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_PARTIAL && mBytesWritten > 0
+                    && PackageDownloader.getRangeStart(connection) == mBytesWritten
+                    && !PackageDownloader.isEncoded(connection)) {
+                ProvisionLogger.logi("Resuming package download at offset " + mBytesWritten);
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                // Either the first attempt or the package changed, the session is overwritten.
+                mBytesWritten = 0;
+                mDigest = PackageDownloader.createSha256Digest();
+                mValidator = PackageDownloader.getValidator(connection);
+            } else {
+                mBytesWritten = 0;
+                throw status == HttpURLConnection.HTTP_PARTIAL
+                        ? new IOException("Unexpected range response")
+                        : new PackageDownloader.DownloadFailedException(status);
+            }
+            long contentLength = PackageDownloader.getDecodedContentLength(connection);
+            long totalLength = contentLength < 0 ? -1 : mBytesWritten + contentLength;
+            try (InputStream in =
+                         PackageDownloader.decode(connection, connection.getInputStream());
+                 OutputStream out =
+                         mSession.openWrite(SESSION_FILE_NAME, mBytesWritten, totalLength)) {
+                byte[] buffer = new byte[PackageDownloader.BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    if (isCancelled()) {
+                        throw new IOException("Cancelled");
+                    }
+                    // The digest only covers what was written, so that a resumed attempt can
+                    // carry on with it.
+                    out.write(buffer, 0, count);
+                    mDigest.update(buffer, 0, count);
+                    mBytesWritten += count;
+                }
+                if (totalLength >= 0 && mBytesWritten != totalLength) {
+                    throw new IOException("Connection closed after " + mBytesWritten
+                            + " bytes out of " + totalLength);
+                }
+                mSession.fsync(out);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void onTransferComplete() {
+        if (isCancelled()) {
+            return;
+        }
+        byte[] sha256 = mDigest.digest();
+        if (!Arrays.equals(sha256, mDownloadInfo.packageChecksum)) {
+            ProvisionLogger.loge("Provided hash does not match file hash.");
+            ProvisionLogger.loge("Hash provided by programmer: "
+                    + StoreUtils.byteArrayToString(mDownloadInfo.packageChecksum));
+            ProvisionLogger.loge("Hash computed from file: "
+                    + StoreUtils.byteArrayToString(sha256));
+            abandonSession();
+            error(ERROR_HASH_MISMATCH);
+            return;
+        }
+        if (!containsDeviceAdmin()) {
+            ProvisionLogger.loge("No device admin receiver in the downloaded package.");
+            abandonSession();
+            error(ERROR_DEVICE_ADMIN_MISSING);
+            return;
+        }
+        ProvisionLogger.logi("Downloaded " + mBytesWritten + " bytes with a matching hash,"
+                + " committing install session.");
+        String action = ACTION_INSTALL_DONE + mSessionId;
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                mContext,
+                mSessionId,
+                new Intent(action),
+                FLAG_ONE_SHOT | FLAG_UPDATE_CURRENT | FLAG_MUTABLE);
+        mSession.commit(pendingIntent.getIntentSender());
+        mSession.close();
+    }
+
+    /**
+     * Looks up the device admin receiver in the manifest written to the install session.
+     *
+     * @return whether the receiver was found, {@code false} if the manifest can't be read
+     */
+    private boolean containsDeviceAdmin() {
+        PackageInfo packageInfo = readSessionManifest();
+        if (packageInfo == null) {
+            ProvisionLogger.loge("Failed to read the manifest of " + mPackageName
+                    + " in install session " + mSessionId);
+            return false;
+        }
+        return mUtils.findDeviceAdminInPackageInfo(mPackageName,
+                mProvisioningParams.deviceAdminComponentName, packageInfo) != null;
+    }
+
+    private PackageInfo readSessionManifest() {
+        try (InputStream in = mSession.openRead(SESSION_FILE_NAME)) {
+            PackageInfo packageInfo = mApkArchiveReader.getManifestInfo(in);
+            if (packageInfo != null) {
+                return packageInfo;
+            }
+        } catch (IOException e) {
+            ProvisionLogger.logw("Failed to read install session " + mSessionId, e);
+            return null;
+        }
+        // Rare, e.g. resource references in the manifest: the package manager needs a file.
+        ProvisionLogger.logi("Copying " + mPackageName + " out of install session " + mSessionId
+                + " to read its manifest.");
+        File apk = null;
+        try {
+            apk = File.createTempFile("streamed", ".apk", mContext.getCacheDir());
+            try (InputStream in = mSession.openRead(SESSION_FILE_NAME);
+                 OutputStream out = new FileOutputStream(apk)) {
+                StoreUtils.copyStream(in, out);
+            }
+            return mPm.getPackageArchiveInfo(apk.getAbsolutePath(),
+                    PackageManager.GET_RECEIVERS);
+        } catch (IOException e) {
+            ProvisionLogger.logw("Failed to copy install session " + mSessionId, e);
+            return null;
+        } finally {
+            if (apk != null) {
+                apk.delete();
+            }
+        }
+    }
+
+    private void onTransferFailed(int reason) {
+        if (isCancelled()) {
+            return;
+        }
+        if (PackageDownloader.isTransientFailure(reason)
+                && retry(ERROR_DOWNLOAD_FAILED, this::startTransfer)) {
+            return;
+        }
+        abandonSession();
+        error(ERROR_DOWNLOAD_FAILED);
+    }
+
+    @Override
+    protected void onCancelled() {
+        if (mSession != null) {
+            abandonSession();
+        }
+    }
+
+    private void abandonSession() {
+        mPm.getPackageInstaller().unregisterSessionCallback(mSessionCallback);
+        unregisterPackageAddedReceiver();
+        try {
+            mSession.abandon();
+            ProvisionLogger.logd("Abandoned install session " + mSessionId);
+        } catch (SecurityException | IllegalStateException e) {
+            // The session is already finished, there is nothing left to abort.
+            ProvisionLogger.logd("Install session " + mSessionId + " can't be abandoned.");
+        }
+    }
+
+    private void unregisterPackageAddedReceiver() {
+        if (mPackageAddedReceiver != null) {
+            mContext.unregisterReceiver(mPackageAddedReceiver);
+            mPackageAddedReceiver = null;
+        }
+    }
+
+    private IntentFilter createPackageAddedIntentFilter() {
+        IntentFilter intentFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addDataScheme("package");
+        return intentFilter;
+    }
+
+    @Override
+    protected int getMetricsCategory() {
+        return PROVISIONING_INSTALL_PACKAGE_TASK_MS;
+    }
+
+    private void addSuccessStatus(int successStatus) {
+        mSuccessCodes.add(successStatus);
+        if (mSuccessCodes.contains(SUCCESS_INSTALLED_BROADCAST)
+                && mSuccessCodes.contains(SUCCESS_INSTALLED_CALLBACK)) {
+            ProvisionLogger.logd("Package " + mPackageName + " is successfully installed.");
+            stopTaskTimer();
+            success();
+        }
+    }
+
+    private class PackageAddedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String dataString = intent.getDataString();
+            if (dataString == null
+                    || !mPackageName.equals(dataString.substring("package:".length()))) {
+                return;
+            }
+            unregisterPackageAddedReceiver();
+            addSuccessStatus(SUCCESS_INSTALLED_BROADCAST);
+        }
+    }
+
+    private class SessionCallback extends PackageInstaller.SessionCallback {
+
+        @Override
+        public void onCreated(int sessionId) {}
+
+        @Override
+        public void onBadgingChanged(int sessionId) {}
+
+        @Override
+        public void onActiveChanged(int sessionId, boolean active) {}
+
+        @Override
+        public void onProgressChanged(int sessionId, float progress) {}
+
+        @Override
+        public void onFinished(int sessionId, boolean success) {
+            if (sessionId != mSessionId) {
+                return;
+            }
+            mPm.getPackageInstaller().unregisterSessionCallback(mSessionCallback);
+            if (!success) {
+                unregisterPackageAddedReceiver();
+                if (mUtils.isPackageInstalled(mPackageName, mPm)) {
+                    ProvisionLogger.logd("Current version of " + mPackageName
+                            + " higher than the version to be installed. It was not reinstalled.");
+                    success();
+                } else {
+                    ProvisionLogger.logd("Installing package " + mPackageName + " failed.");
+                    error(ERROR_INSTALLATION_FAILED);
+                }
+                return;
+            }
+            ProvisionLogger.logd("Install package callback received for " + mPackageName);
+            addSuccessStatus(SUCCESS_INSTALLED_CALLBACK);
+        }
+    }
+}
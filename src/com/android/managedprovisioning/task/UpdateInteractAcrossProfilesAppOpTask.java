@@ -27,13 +27,14 @@ import android.content.pm.CrossProfileApps;
 import android.content.pm.PackageManager;
 import android.os.UserHandle;
 import android.os.UserManager;
-import android.util.ArraySet;
 
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.PackageNameSet;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.interactacrossprofiles.CrossProfileAppsSnapshot;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -65,22 +66,22 @@ public class UpdateInteractAcrossProfilesAppOpTask extends AbstractProvisioningT
 
     @Override
     public void run(int userId) {
-        Set<String> previousCrossProfileApps =
+        PackageNameSet previousCrossProfileApps =
                 mCrossProfileAppsSnapshot.hasSnapshot(userId) ?
                         mCrossProfileAppsSnapshot.getSnapshot(userId) :
-                        new ArraySet<>();
+                        PackageNameSet.EMPTY;
         mCrossProfileAppsSnapshot.takeNewSnapshot(userId);
-        Set<String> currentCrossProfileApps = mCrossProfileAppsSnapshot.getSnapshot(userId);
+        PackageNameSet currentCrossProfileApps = mCrossProfileAppsSnapshot.getSnapshot(userId);
 
         updateAfterOtaChanges(previousCrossProfileApps, currentCrossProfileApps);
     }
 
-    private void updateAfterOtaChanges(
-            Set<String> previousCrossProfilePackages, Set<String> currentCrossProfilePackages) {
+    private void updateAfterOtaChanges(PackageNameSet previousCrossProfilePackages,
+            PackageNameSet currentCrossProfilePackages) {
         mCrossProfileApps.resetInteractAcrossProfilesAppOps(
                 previousCrossProfilePackages, currentCrossProfilePackages);
-        Set<String> newCrossProfilePackages = new HashSet<>(currentCrossProfilePackages);
-        newCrossProfilePackages.removeAll(previousCrossProfilePackages);
+        Set<String> newCrossProfilePackages =
+                currentCrossProfilePackages.minus(previousCrossProfilePackages);
 
         grantNewConfigurableDefaultCrossProfilePackages(newCrossProfilePackages);
         reapplyCrossProfileAppsPermission();
@@ -133,8 +134,9 @@ public class UpdateInteractAcrossProfilesAppOpTask extends AbstractProvisioningT
         return uids;
     }
 
-    private Set<ApplicationInfo> getAllInstalledApps() {
-        final Set<ApplicationInfo> apps = new HashSet<>();
+    private List<ApplicationInfo> getAllInstalledApps() {
+        // ApplicationInfo doesn't override equals(), a set wouldn't drop any duplicates.
+        final List<ApplicationInfo> apps = new ArrayList<>();
         List<UserHandle> profiles = mUserManager.getAllProfiles();
         for (UserHandle profile : profiles) {
             if (profile.getIdentifier() != mContext.getUserId()
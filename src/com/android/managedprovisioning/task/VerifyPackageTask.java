@@ -59,6 +59,8 @@ public class VerifyPackageTask extends AbstractProvisioningTask {
     private final PackageLocationProvider mDownloadLocationProvider;
     private final PackageManager mPackageManager;
     private final PackageDownloadInfo mDownloadInfo;
+    private final PackageCache mPackageCache;
+    private final ApkArchiveReader mApkArchiveReader;
 
     public VerifyPackageTask(
             PackageLocationProvider downloadLocationProvider,
@@ -68,7 +70,9 @@ public class VerifyPackageTask extends AbstractProvisioningTask {
         this(new Utils(), downloadLocationProvider, context, params, callback,
                 new ProvisioningAnalyticsTracker(
                         MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                        new ManagedProvisioningSharedPreferences(context)),
+                new PackageCache(context),
+                new ApkArchiveReader());
     }
 
     @VisibleForTesting
@@ -78,11 +82,15 @@ public class VerifyPackageTask extends AbstractProvisioningTask {
             Context context,
             ProvisioningParams params,
             Callback callback,
-            ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            PackageCache packageCache,
+            ApkArchiveReader apkArchiveReader) {
         super(context, params, callback, provisioningAnalyticsTracker);
 
         mUtils = checkNotNull(utils);
         mDownloadLocationProvider = checkNotNull(downloadLocationProvider);
+        mPackageCache = checkNotNull(packageCache);
+        mApkArchiveReader = checkNotNull(apkArchiveReader);
         mPackageManager = mContext.getPackageManager();
         mDownloadInfo = checkNotNull(params.deviceAdminDownloadInfo);
     }
@@ -98,39 +106,58 @@ public class VerifyPackageTask extends AbstractProvisioningTask {
         ProvisionLogger.logi("Verifying package from location " + packageLocation.getAbsolutePath()
                 + " for user " + userId);
 
-        PackageInfo packageInfo = mPackageManager.getPackageArchiveInfo(
-                packageLocation.getAbsolutePath(),
-                PackageManager.GET_SIGNATURES | PackageManager.GET_RECEIVERS);
+        PackageInfo packageInfo = getPackageInfo(packageLocation);
         String packageName = mProvisioningParams.inferDeviceAdminPackageName();
         // Device admin package name can't be null
         if (packageInfo == null || packageName == null) {
             ProvisionLogger.loge("Device admin package info or name is null");
-            error(ERROR_DEVICE_ADMIN_MISSING);
+            verificationFailed(ERROR_DEVICE_ADMIN_MISSING);
             return;
         }
 
         if (mUtils.findDeviceAdminInPackageInfo(packageName,
                 mProvisioningParams.deviceAdminComponentName, packageInfo) == null) {
-            error(ERROR_DEVICE_ADMIN_MISSING);
+            verificationFailed(ERROR_DEVICE_ADMIN_MISSING);
             return;
         }
 
         if (mDownloadInfo.packageChecksum.length > 0) {
-            if (!doesPackageHashMatch(
-                    packageLocation.getAbsolutePath(), mDownloadInfo.packageChecksum)) {
-                error(ERROR_HASH_MISMATCH);
+            if (!doesPackageHashMatch(packageLocation.getAbsolutePath(),
+                    mDownloadLocationProvider.getPackageSha256(), mDownloadInfo.packageChecksum)) {
+                verificationFailed(ERROR_HASH_MISMATCH);
                 return;
             }
         } else {
             if (!doesASignatureHashMatch(packageInfo, mDownloadInfo.signatureChecksum)) {
-                error(ERROR_HASH_MISMATCH);
+                verificationFailed(ERROR_HASH_MISMATCH);
                 return;
             }
         }
 
+        // Only verified packages are cached, so that the next provisioning can skip the download.
+        mPackageCache.put(mDownloadInfo, packageLocation);
         success();
     }
 
+    /**
+     * Returns the package name, receivers and signatures of the apk, only reading these from it
+     * unless it can't be read that way.
+     */
+    private PackageInfo getPackageInfo(File packageLocation) {
+        PackageInfo packageInfo = mApkArchiveReader.getPackageInfo(packageLocation);
+        if (packageInfo != null) {
+            return packageInfo;
+        }
+        return mPackageManager.getPackageArchiveInfo(packageLocation.getAbsolutePath(),
+                PackageManager.GET_SIGNATURES | PackageManager.GET_RECEIVERS);
+    }
+
+    private void verificationFailed(int errorCode) {
+        // The package may have come from the cache.
+        mPackageCache.remove(mDownloadInfo);
+        error(errorCode);
+    }
+
     private List<byte[]> computeHashesOfAllSignatures(Signature[] signatures) {
         if (signatures == null) {
             return null;
@@ -176,12 +203,21 @@ public class VerifyPackageTask extends AbstractProvisioningTask {
     /**
      * Check whether package hash of downloaded file matches the hash given in PackageDownloadInfo.
      * By default, SHA-256 is used to verify the file hash.
+     *
+     * @param downloadedSha256 the hash of the file computed while it was downloaded, or
+     * {@code null} if the file needs to be hashed
      */
-    private boolean doesPackageHashMatch(String downloadLocation, byte[] packageChecksum) {
+    private boolean doesPackageHashMatch(String downloadLocation, byte[] downloadedSha256,
+            byte[] packageChecksum) {
         byte[] packageSha256Hash = null;
 
-        ProvisionLogger.logd("Checking file hash of entire apk file.");
-        packageSha256Hash = mUtils.computeHashOfFile(downloadLocation, Utils.SHA256_TYPE);
+        if (downloadedSha256 != null) {
+            ProvisionLogger.logd("Checking file hash computed during the download.");
+            packageSha256Hash = downloadedSha256;
+        } else {
+            ProvisionLogger.logd("Checking file hash of entire apk file.");
+            packageSha256Hash = mUtils.computeHashOfFile(downloadLocation, Utils.SHA256_TYPE);
+        }
         if (Arrays.equals(packageChecksum, packageSha256Hash)) {
             return true;
         }
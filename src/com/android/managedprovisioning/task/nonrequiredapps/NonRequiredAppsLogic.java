@@ -27,6 +27,7 @@ import android.content.pm.IPackageManager;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.common.IllegalProvisioningArgumentException;
+import com.android.managedprovisioning.common.PackageNameSet;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
@@ -114,21 +115,21 @@ public class NonRequiredAppsLogic {
         if (mNewProfile) {
             return packagesToDelete;
         }
-        filterOutSystemAppsFromOta(packagesToDelete, userId);
-        return packagesToDelete;
+        return filterOutSystemAppsFromOta(packagesToDelete, userId);
     }
 
     /**
-     * Modifies the given set of packages by removing system apps added explicitly from the OTA.
+     * Returns the given set of packages without the system apps that were already present before
+     * the OTA.
      */
-    private void filterOutSystemAppsFromOta(Set<String> packagesToDelete, int userId) {
+    private Set<String> filterOutSystemAppsFromOta(Set<String> packagesToDelete, int userId) {
         // Start with all system apps
-        Set<String> newSystemApps = mUtils.getCurrentSystemApps(mIPackageManager, userId);
+        PackageNameSet newSystemApps = mUtils.getCurrentSystemApps(mIPackageManager, userId);
 
         // Remove the ones that were already present in the last snapshot
-        newSystemApps.removeAll(mSnapshot.getSnapshot(userId));
+        newSystemApps = newSystemApps.minus(mSnapshot.getSnapshot(userId));
 
-        packagesToDelete.retainAll(newSystemApps);
+        return PackageNameSet.of(packagesToDelete).intersect(newSystemApps);
     }
 
     public void maybeTakeSystemAppsSnapshot(int userId) {
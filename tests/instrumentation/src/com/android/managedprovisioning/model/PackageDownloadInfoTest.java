@@ -26,6 +26,7 @@ import com.android.managedprovisioning.model.PackageDownloadInfo;
 import junit.framework.Assert;
 
 import java.lang.Exception;
+import java.util.Arrays;
 
 /** Tests for {@link PackageDownloadInfo} */
 public class PackageDownloadInfoTest extends AndroidTestCase {
@@ -36,6 +37,8 @@ public class PackageDownloadInfoTest extends AndroidTestCase {
     private static final byte[] TEST_PACKAGE_CHECKSUM = new byte[] { '1', '2', '3', '4', '5' };
     private static final byte[] TEST_SIGNATURE_CHECKSUM = new byte[] { '5', '4', '3', '2', '1' };
     private static final int TEST_MIN_SUPPORT_VERSION = 7689;
+    private static final String TEST_MIRROR_LOCATION_1 = "http://mirror1/dpc.apk";
+    private static final String TEST_MIRROR_LOCATION_2 = "http://mirror2/dpc.apk";
 
     @SmallTest
     public void testBuilderWriteAndReadBack() {
@@ -173,4 +176,76 @@ public class PackageDownloadInfoTest extends AndroidTestCase {
         // THEN the same PackageDownloadInfo is obtained.
         assertEquals(expectedDownloadInfo, actualDownloadInfo);
     }
+
+    @SmallTest
+    public void testParceableWithMirrorLocations() {
+        // GIVEN a PackageDownloadInfo object with mirror locations.
+        PackageDownloadInfo expectedDownloadInfo = PackageDownloadInfo.Builder.builder()
+                .setLocation(TEST_DOWNLOAD_LOCATION)
+                .setMirrorLocations(Arrays.asList(TEST_MIRROR_LOCATION_1, TEST_MIRROR_LOCATION_2))
+                .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                .build();
+
+        // WHEN the PackageDownloadInfo is written to parcel and then read back.
+        Parcel parcel = Parcel.obtain();
+        expectedDownloadInfo.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        PackageDownloadInfo actualDownloadInfo =
+                PackageDownloadInfo.CREATOR.createFromParcel(parcel);
+
+        // THEN the same PackageDownloadInfo is obtained, with the location tried first.
+        assertEquals(expectedDownloadInfo, actualDownloadInfo);
+        assertEquals(Arrays.asList(TEST_DOWNLOAD_LOCATION, TEST_MIRROR_LOCATION_1,
+                TEST_MIRROR_LOCATION_2), actualDownloadInfo.getLocations());
+    }
+
+    @SmallTest
+    public void testParseMirrorLocations() {
+        assertEquals(Arrays.asList(TEST_MIRROR_LOCATION_1, TEST_MIRROR_LOCATION_2),
+                PackageDownloadInfo.parseMirrorLocations(
+                        " " + TEST_MIRROR_LOCATION_1 + "\n" + TEST_MIRROR_LOCATION_2 + " "));
+        assertTrue(PackageDownloadInfo.parseMirrorLocations(null).isEmpty());
+        assertTrue(PackageDownloadInfo.parseMirrorLocations(" ").isEmpty());
+    }
+
+    @SmallTest
+    public void testParceableWithSplits() {
+        // GIVEN a PackageDownloadInfo object with splits.
+        PackageDownloadInfo expectedDownloadInfo = PackageDownloadInfo.Builder.builder()
+                .setLocation(TEST_DOWNLOAD_LOCATION)
+                .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                .setSplits(Arrays.asList(
+                        new PackageDownloadInfo.Split(TEST_MIRROR_LOCATION_1,
+                                TEST_PACKAGE_CHECKSUM),
+                        new PackageDownloadInfo.Split(TEST_MIRROR_LOCATION_2,
+                                TEST_SIGNATURE_CHECKSUM)))
+                .build();
+
+        // WHEN the PackageDownloadInfo is written to parcel and then read back.
+        Parcel parcel = Parcel.obtain();
+        expectedDownloadInfo.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        PackageDownloadInfo actualDownloadInfo =
+                PackageDownloadInfo.CREATOR.createFromParcel(parcel);
+
+        // THEN the same PackageDownloadInfo is obtained.
+        assertEquals(expectedDownloadInfo, actualDownloadInfo);
+        assertEquals(expectedDownloadInfo.splits, actualDownloadInfo.splits);
+    }
+
+    @SmallTest
+    public void testParseSplits() {
+        // WHEN splits are parsed from their checksum and url.
+        PackageDownloadInfo.Split split = new PackageDownloadInfo.Split(TEST_MIRROR_LOCATION_1,
+                TEST_PACKAGE_CHECKSUM);
+
+        // THEN the url keeps its colons, and the split is given back in the same format.
+        assertEquals(Arrays.asList(split), PackageDownloadInfo.parseSplits(" " + split + " "));
+        assertTrue(PackageDownloadInfo.parseSplits(null).isEmpty());
+        try {
+            PackageDownloadInfo.parseSplits(TEST_MIRROR_LOCATION_1.substring("http:".length()));
+            fail("A split without checksum must not be parsed");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
 }
@@ -43,6 +43,7 @@ import android.test.AndroidTestCase;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.managedprovisioning.ProvisioningParamsProtos.ProvisioningParamsFile;
 import com.android.managedprovisioning.common.IllegalProvisioningArgumentException;
 import com.android.managedprovisioning.common.Utils;
 
@@ -50,6 +51,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -118,6 +120,7 @@ public class ProvisioningParamsTest extends AndroidTestCase {
     protected void setUp() throws Exception {
         super.setUp();
         MockitoAnnotations.initMocks(this);
+        ProvisioningParamsCache.clear();
     }
 
     @SmallTest
@@ -218,11 +221,105 @@ public class ProvisioningParamsTest extends AndroidTestCase {
         // WHEN the ProvisioningParams is written to xml and then read back
         File file = new File(mContext.getFilesDir(), "test_store.xml");
         original.save(file);
+        // Read the file rather than the instance cached when saving.
+        ProvisioningParamsCache.clear();
         ProvisioningParams copy = ProvisioningParams.load(file);
         // THEN the same ProvisioningParams is obtained
         assertThat(original).isEqualTo(copy);
     }
 
+    @SmallTest
+    public void testLoad_legacyXmlFile() throws Exception {
+        // GIVEN a ProvisioningParams object saved in the XML format of earlier versions
+        ProvisioningParams original = getCompleteProvisioningParams();
+        File file = new File(mContext.getFilesDir(), "test_store_legacy.xml");
+        original.saveAsXml(file);
+
+        // WHEN it is read back
+        ProvisioningParams copy = ProvisioningParams.load(file);
+
+        // THEN the same ProvisioningParams is obtained
+        assertThat(original).isEqualTo(copy);
+    }
+
+    @SmallTest
+    public void testSave_smallerThanXml() throws Exception {
+        ProvisioningParams params = getCompleteProvisioningParams();
+        File file = new File(mContext.getFilesDir(), "test_store.bin");
+        File xmlFile = new File(mContext.getFilesDir(), "test_store_legacy.xml");
+
+        params.save(file);
+        params.saveAsXml(xmlFile);
+
+        assertThat(file.length()).isLessThan(xmlFile.length());
+    }
+
+    @SmallTest
+    public void testLoad_newerFormatVersion_returnsNull() throws Exception {
+        // GIVEN a file saved by a newer version, e.g. before a downgrade
+        File file = new File(mContext.getFilesDir(), "test_store.bin");
+        writeParamsFile(file, ProvisioningParams.FILE_FORMAT_VERSION + 1,
+                getCompleteProvisioningParams());
+
+        // THEN it is ignored
+        assertThat(ProvisioningParams.load(file)).isNull();
+    }
+
+    @SmallTest
+    public void testLoad_emptyFile_returnsNull() throws Exception {
+        File file = new File(mContext.getFilesDir(), "test_store.bin");
+        new FileOutputStream(file).close();
+
+        assertThat(ProvisioningParams.load(file)).isNull();
+    }
+
+    @SmallTest
+    public void testLoad_afterSave_returnsCachedParams() throws Exception {
+        ProvisioningParams original = getCompleteProvisioningParams();
+        File file = new File(mContext.getFilesDir(), "test_store.bin");
+        original.save(file);
+
+        assertThat(ProvisioningParams.load(file)).isSameInstanceAs(original);
+        assertThat(ProvisioningParams.load(file)).isSameInstanceAs(original);
+        assertThat(ProvisioningParamsCache.getHits()).isEqualTo(2);
+    }
+
+    @SmallTest
+    public void testLoad_fileChangedAfterSave_readsFile() throws Exception {
+        File file = new File(mContext.getFilesDir(), "test_store.bin");
+        getCompleteProvisioningParams().save(file);
+        ProvisioningParams changed = createDefaultProvisioningParamsBuilder().build();
+        // Written without going through the cache.
+        writeParamsFile(file, ProvisioningParams.FILE_FORMAT_VERSION, changed);
+
+        ProvisioningParams loaded = ProvisioningParams.load(file);
+
+        assertThat(loaded).isEqualTo(changed);
+        assertThat(ProvisioningParamsCache.getHits()).isEqualTo(0);
+    }
+
+    @SmallTest
+    public void testLoad_fileDeleted_returnsNull() throws Exception {
+        File file = new File(mContext.getFilesDir(), "test_store.bin");
+        getCompleteProvisioningParams().save(file);
+
+        file.delete();
+
+        assertThat(ProvisioningParams.load(file)).isNull();
+    }
+
+    private static void writeParamsFile(File file, int version, ProvisioningParams params)
+            throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            ProvisioningParamsFile.newBuilder()
+                    .setVersion(version)
+                    .setParams(PersistableBundleProtoConverter.toProto(
+                            params.toPersistableBundle()))
+                    .build()
+                    .writeTo(out);
+        }
+    }
+
     @SmallTest
     public void testParceable() {
         // GIVEN a ProvisioningParams object.
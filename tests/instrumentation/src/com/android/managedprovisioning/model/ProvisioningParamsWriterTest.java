@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.DevicePolicyManager;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import androidx.test.filters.SmallTest;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Tests for {@link ProvisioningParamsWriter} */
+public class ProvisioningParamsWriterTest extends AndroidTestCase {
+    private static final String TEST_PACKAGE_NAME = "com.afwsamples.testdpc";
+    private static final long FLUSH_TIMEOUT_SECONDS = 5;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(mContext.getFilesDir(), "test_writer_store.bin");
+        ProvisioningParamsWriter.delete(mFile);
+        ProvisioningParamsCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ProvisioningParamsWriter.delete(mFile);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSaveAsync_loadBeforeFlush_returnsQueuedParams() {
+        ProvisioningParams params = createParams(/* localTime= */ 1);
+
+        ProvisioningParamsWriter.saveAsync(params, mFile);
+
+        assertThat(ProvisioningParams.load(mFile)).isSameInstanceAs(params);
+    }
+
+    @SmallTest
+    public void testSaveAsync_flush_writesFile() {
+        ProvisioningParams params = createParams(/* localTime= */ 1);
+
+        ProvisioningParamsWriter.saveAsync(params, mFile);
+        ProvisioningParamsWriter.flush();
+
+        ProvisioningParamsCache.clear();
+        assertThat(ProvisioningParams.load(mFile)).isEqualTo(params);
+    }
+
+    @SmallTest
+    public void testFlush_runsOnMainThreadOnceWritten() throws Exception {
+        ProvisioningParams params = createParams(/* localTime= */ 1);
+        CountDownLatch flushed = new CountDownLatch(1);
+        AtomicBoolean written = new AtomicBoolean();
+
+        ProvisioningParamsWriter.saveAsync(params, mFile);
+        ProvisioningParamsWriter.flush(() -> {
+            written.set(Looper.myLooper() == Looper.getMainLooper() && mFile.exists());
+            flushed.countDown();
+        });
+
+        assertThat(flushed.await(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(written.get()).isTrue();
+    }
+
+    @SmallTest
+    public void testSaveAsync_severalSaves_writesLatest() {
+        ProvisioningParams latest = null;
+        for (int i = 0; i < 10; i++) {
+            latest = createParams(/* localTime= */ i);
+            ProvisioningParamsWriter.saveAsync(latest, mFile);
+        }
+
+        assertThat(ProvisioningParams.load(mFile)).isSameInstanceAs(latest);
+        ProvisioningParamsWriter.flush();
+        ProvisioningParamsCache.clear();
+        assertThat(ProvisioningParams.load(mFile)).isEqualTo(latest);
+    }
+
+    @SmallTest
+    public void testDelete_dropsQueuedParams() {
+        ProvisioningParamsWriter.saveAsync(createParams(/* localTime= */ 1), mFile);
+
+        ProvisioningParamsWriter.delete(mFile);
+        ProvisioningParamsWriter.flush();
+
+        assertThat(mFile.exists()).isFalse();
+        assertThat(ProvisioningParams.load(mFile)).isNull();
+    }
+
+    private static ProvisioningParams createParams(long localTime) {
+        return ProvisioningParams.Builder.builder()
+                .setProvisioningAction(DevicePolicyManager.ACTION_PROVISION_MANAGED_PROFILE)
+                .setDeviceAdminPackageName(TEST_PACKAGE_NAME)
+                .setLocalTime(localTime)
+                .build();
+    }
+}
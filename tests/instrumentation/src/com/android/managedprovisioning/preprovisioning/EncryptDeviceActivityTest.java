@@ -28,6 +28,7 @@ import static androidx.test.espresso.matcher.ViewMatchers.withText;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 
 import android.app.Activity;
@@ -51,6 +52,7 @@ import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -132,7 +134,12 @@ public class EncryptDeviceActivityTest {
         onView(withText(R.string.encrypt)).perform(click());
 
         // THEN encryption reminder should be set
-        verify(mController).setEncryptionReminder(PROFILE_OWNER_PARAMS);
+        ArgumentCaptor<Runnable> onReminderSet = ArgumentCaptor.forClass(Runnable.class);
+        verify(mController).setEncryptionReminder(
+                eq(PROFILE_OWNER_PARAMS), onReminderSet.capture());
+
+        // WHEN the params are on disk
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(onReminderSet.getValue());
 
         // THEN encryption activity should be started
         assertEquals(ACTION_START_ENCRYPTION,
@@ -153,7 +160,12 @@ public class EncryptDeviceActivityTest {
         onView(withText(R.string.encrypt)).perform(click());
 
         // THEN encryption reminder should be set
-        verify(mController).setEncryptionReminder(DEVICE_OWNER_PARAMS);
+        ArgumentCaptor<Runnable> onReminderSet = ArgumentCaptor.forClass(Runnable.class);
+        verify(mController).setEncryptionReminder(
+                eq(DEVICE_OWNER_PARAMS), onReminderSet.capture());
+
+        // WHEN the params are on disk
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(onReminderSet.getValue());
 
         // THEN encryption activity should be started
         assertEquals(ACTION_START_ENCRYPTION,
@@ -177,7 +177,7 @@ public class EncryptionControllerTest extends AndroidTestCase {
     }
 
     private void setReminder(ProvisioningParams params) {
-        mController.setEncryptionReminder(params);
+        mController.setEncryptionReminder(params, () -> {});
     }
 
     private void verifyStartPreProvisioningActivity(ProvisioningParams params) throws Exception {
@@ -176,6 +176,28 @@ public class DeviceOwnerProvisioningControllerTest extends ProvisioningControlle
         verify(mCallback).error(anyInt(), anyInt(), eq(true));
     }
 
+    @SmallTest
+    public void testErrorTimedOut() throws Exception {
+        // GIVEN device owner provisioning was invoked with a wifi and download info
+        createController(createProvisioningParamsBuilder().build());
+
+        // WHEN starting the test run
+        mController.start(mHandler);
+
+        // THEN the add wifi task should be run
+        taskSucceeded(AddWifiNetworkTask.class);
+
+        // THEN the download package task should be run
+        AbstractProvisioningTask task = verifyTaskRun(DownloadPackageTask.class);
+
+        // WHEN the task times out
+        mController.onTaskTimedOut(task);
+
+        // THEN the onError callback should have been called with the timeout message
+        verify(mCallback).error(eq(R.string.cant_set_up_device), eq(R.string.error_timed_out),
+                eq(true));
+    }
+
     @SmallTest
     public void testStart_useMobileDataTrueAndNoWifiInfo_runsConnectMobileNetworkTask()
             throws Exception {
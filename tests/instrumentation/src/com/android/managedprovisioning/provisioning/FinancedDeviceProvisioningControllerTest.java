@@ -64,6 +64,9 @@ public class FinancedDeviceProvisioningControllerTest extends ProvisioningContro
         // THEN the initialization task is run first
         taskSucceeded(DeviceOwnerInitializeProvisioningTask.class);
 
+        // THEN the disallow add user task is run along with it, as it doesn't need the admin
+        taskSucceeded(DisallowAddUserTask.class);
+
         // THEN the download package task should be run
         taskSucceeded(DownloadPackageTask.class);
 
@@ -76,9 +79,6 @@ public class FinancedDeviceProvisioningControllerTest extends ProvisioningContro
         // THEN the set device policy task should be run
         taskSucceeded(SetDeviceOwnerPolicyTask.class);
 
-        // THEN the disallow add user task should be run
-        taskSucceeded(DisallowAddUserTask.class);
-
         // THEN the provisioning complete callback should have happened
         verify(mCallback).provisioningTasksCompleted();
     }
@@ -96,12 +96,12 @@ public class FinancedDeviceProvisioningControllerTest extends ProvisioningContro
         // THEN the initialization task is run first
         taskSucceeded(DeviceOwnerInitializeProvisioningTask.class);
 
+        // THEN the disallow add user task is run along with it
+        taskSucceeded(DisallowAddUserTask.class);
+
         // THEN the set device policy task should be run
         taskSucceeded(SetDeviceOwnerPolicyTask.class);
 
-        // THEN the disallow add user task should be run
-        taskSucceeded(DisallowAddUserTask.class);
-
         // THEN the provisioning complete callback should have happened
         verify(mCallback).provisioningTasksCompleted();
     }
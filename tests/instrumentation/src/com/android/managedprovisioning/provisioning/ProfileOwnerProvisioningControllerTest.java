@@ -136,6 +136,25 @@ public class ProfileOwnerProvisioningControllerTest extends ProvisioningControll
                 R.string.managed_provisioning_error_text, false);
     }
 
+    @SmallTest
+    public void testErrorTimedOut() throws Exception {
+        // GIVEN device profile owner provisioning was invoked
+        createController();
+
+        // WHEN starting the test run
+        mController.start(mHandler);
+
+        // THEN the create and provision managed profile task is run
+        AbstractProvisioningTask task = verifyTaskRun(CreateAndProvisionManagedProfileTask.class);
+
+        // WHEN the task times out
+        mController.onTaskTimedOut(task);
+
+        // THEN the activity should be informed about the timeout
+        verify(mCallback).error(R.string.cant_set_up_profile,
+                R.string.managed_provisioning_error_timed_out, false);
+    }
+
     private void createController() {
         ProvisioningParams params = new ProvisioningParams.Builder()
                 .setDeviceAdminComponentName(TEST_ADMIN)
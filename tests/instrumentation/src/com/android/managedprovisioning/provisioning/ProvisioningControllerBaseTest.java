@@ -32,8 +32,8 @@ import com.android.managedprovisioning.task.InstallPackageTask;
 
 import org.mockito.MockitoAnnotations;
 
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -93,8 +93,9 @@ public abstract class ProvisioningControllerBaseTest extends AndroidTestCase {
             super(looper);
         }
 
+        // Tasks that don't depend on each other are run at the same time.
         private BlockingQueue<AbstractProvisioningTask> mBlockingQueue
-                = new ArrayBlockingQueue<>(1);
+                = new LinkedBlockingQueue<>();
 
         public AbstractProvisioningTask getLastTask() throws Exception {
             return mBlockingQueue.poll(10, TimeUnit.SECONDS);
@@ -20,10 +20,15 @@ import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_PRO
 
 import static com.android.managedprovisioning.task.AddWifiNetworkTask.ADD_NETWORK_FAIL;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.content.ComponentName;
@@ -31,8 +36,12 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
+import android.os.CancellationSignal;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.Message;
 
+import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
 
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
@@ -76,7 +85,6 @@ public class AddWifiNetworkTaskTest {
     @Mock private AbstractProvisioningTask.Callback mCallback;
     @Mock private Utils mUtils;
     @Mock private android.net.wifi.WifiInfo mWifiInfo;
-    @Mock private AddWifiNetworkTask.Injector mTestInjector;
     @Mock private ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
 
     private AddWifiNetworkTask mTask;
@@ -95,7 +103,7 @@ public class AddWifiNetworkTaskTest {
     public void testNoWifiInfo() {
         // GIVEN that no wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                NO_WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector,
+                NO_WIFI_INFO_PARAMS, mCallback, mUtils,
                 mProvisioningAnalyticsTracker);
 
         // WHEN running the task
@@ -109,7 +117,7 @@ public class AddWifiNetworkTaskTest {
     public void testWifiManagerNull() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that mWifiManager is null
         when(mContext.getSystemService(Context.WIFI_SERVICE)).thenReturn(null);
@@ -125,7 +133,7 @@ public class AddWifiNetworkTaskTest {
     public void testFailToEnableWifi() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is not enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(false);
@@ -144,7 +152,7 @@ public class AddWifiNetworkTaskTest {
     public void testIsConnectedToSpecifiedWifiTrue() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -167,7 +175,7 @@ public class AddWifiNetworkTaskTest {
     public void testNoWifiInfoInProvider() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -195,7 +203,7 @@ public class AddWifiNetworkTaskTest {
 
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -214,18 +222,76 @@ public class AddWifiNetworkTaskTest {
         // GIVEN addNetwork always fail
         when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_FAIL);
 
+        // GIVEN retries are run right away
+        mTask.setRetryHandler(new ImmediateHandler());
+
         // WHEN running the task
         runTask();
 
+        // THEN adding the network should be retried 6 times
+        verify(mWifiManager, times(7)).addNetwork(any());
+
         // THEN error should be called
         verify(mCallback).onError(mTask, 0);
     }
 
+    @Test
+    public void testAddingNetworkSucceedsAfterRetry() {
+        // GIVEN that wifi info was passed in the parameter
+        mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
+
+        // GIVEN that wifi is enabled
+        when(mWifiManager.isWifiEnabled()).thenReturn(true);
+
+        // GIVEN connected to wifi
+        when(mUtils.isNetworkTypeConnected(mContext, ConnectivityManager.TYPE_WIFI)).thenReturn(true);
+
+        // GIVEN the connected SSID is different from the one in wifi param
+        when(mWifiManager.getConnectionInfo()).thenReturn(mWifiInfo);
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID_2);
+
+        // GIVEN WifiConfiguration is not empty
+        when(mWifiConfigurationProvider.generateWifiConfiguration(any()))
+                .thenReturn(new WifiConfiguration());
+
+        // GIVEN addNetwork fails once, then succeeds
+        when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_FAIL, ADD_NETWORK_OK);
+
+        // GIVEN reconnect ok after adding network
+        when(mWifiManager.reconnect()).thenReturn(true);
+
+        // GIVEN retries are run right away
+        mTask.setRetryHandler(new ImmediateHandler());
+
+        // GIVEN the task records its retries
+        ProvisioningTaskStats taskStats =
+                new ProvisioningTaskStats(mProvisioningAnalyticsTracker);
+        mTask.setTaskStats(taskStats);
+
+        // WHEN running the task
+        runTask();
+
+        // THEN the retry should be counted
+        assertEquals(1, taskStats.getRetries(AddWifiNetworkTask.class));
+        verify(mProvisioningAnalyticsTracker).logTaskAttemptFailed(eq(mTask), eq(0), eq(0),
+                anyLong());
+
+        // GIVEN it connect back to the specified network
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID);
+
+        // WHEN network is re-connected
+        mTask.onNetworkConnected();
+
+        // THEN success should be called
+        verify(mCallback).onSuccess(mTask);
+    }
+
     @Test
     public void testFailingToReconnectAfterAddingNetwork() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -261,7 +327,7 @@ public class AddWifiNetworkTaskTest {
     public void testReconnectAfterAddingNetworkSuccess() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -296,10 +362,69 @@ public class AddWifiNetworkTaskTest {
         verify(mCallback).onSuccess(mTask);
     }
 
+    @Test
+    public void testCancelWhileWaitingForConnection() {
+        // GIVEN that wifi info was passed in the parameter
+        mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
+                WIFI_INFO_PARAMS, mCallback, mUtils, mProvisioningAnalyticsTracker);
+
+        // GIVEN that wifi is enabled
+        when(mWifiManager.isWifiEnabled()).thenReturn(true);
+
+        // GIVEN connected to wifi
+        when(mUtils.isNetworkTypeConnected(mContext, ConnectivityManager.TYPE_WIFI)).thenReturn(true);
+
+        // GIVEN the connected SSID is different from the one in wifi param
+        when(mWifiManager.getConnectionInfo()).thenReturn(mWifiInfo);
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID_2);
+
+        // GIVEN WifiConfiguration is not empty
+        when(mWifiConfigurationProvider.generateWifiConfiguration(any()))
+                .thenReturn(new WifiConfiguration());
+
+        // GIVEN addNetwork OK
+        when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_OK);
+
+        // GIVEN reconnect ok after adding network
+        when(mWifiManager.reconnect()).thenReturn(true);
+
+        // WHEN running the task on the main thread
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                () -> mTask.run(TEST_USER_ID, cancellationSignal));
+
+        // WHEN the task is cancelled
+        cancellationSignal.cancel();
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        // THEN the network monitor should be stopped
+        verify(mNetworkMonitor).stopListening();
+
+        // WHEN network is re-connected afterwards
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID);
+        mTask.onNetworkConnected();
+
+        // THEN no result should be reported
+        verifyNoMoreInteractions(mCallback);
+    }
+
     private void runTask() {
         if (Looper.myLooper() == null) {
             Looper.prepare();
         }
         mTask.run(TEST_USER_ID);
     }
+
+    /** Runs posted messages right away instead of after their delay. */
+    private static class ImmediateHandler extends Handler {
+        ImmediateHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            msg.getCallback().run();
+            return true;
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that {@link ApkArchiveReader} reads the same package name, receivers and signatures as
+ * {@link PackageManager#getPackageArchiveInfo}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ApkArchiveReaderTest {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ApkArchiveReader mApkArchiveReader = new ApkArchiveReader();
+
+    @Test
+    public void getPackageInfo_managedProvisioningApk_matchesPackageManager() {
+        assertMatchesPackageManager(new File(mContext.getPackageCodePath()));
+    }
+
+    @Test
+    public void getPackageInfo_testApk_matchesPackageManager() {
+        assertMatchesPackageManager(new File(
+                InstrumentationRegistry.getContext().getPackageCodePath()));
+    }
+
+    @Test
+    public void getPackageInfo_notAnApk_returnsNull() throws Exception {
+        File file = File.createTempFile("not_an_apk", ".apk", mContext.getCacheDir());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[1000]);
+        }
+
+        assertThat(mApkArchiveReader.getPackageInfo(file)).isNull();
+    }
+
+    @Test
+    public void getPackageInfo_modifiedApk_returnsNull() throws Exception {
+        File apk = File.createTempFile("modified", ".apk", mContext.getCacheDir());
+        Files.copy(new File(mContext.getPackageCodePath()).toPath(), apk.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        try (RandomAccessFile file = new RandomAccessFile(apk, "rw")) {
+            // Changes the contents the signatures cover, without changing the zip structure.
+            file.seek(file.length() / 2);
+            int value = file.read();
+            file.seek(file.length() / 2);
+            file.write(value ^ 0xff);
+        }
+
+        assertThat(mApkArchiveReader.getPackageInfo(apk)).isNull();
+    }
+
+    @Test
+    public void getPackageInfo_missingFile_returnsNull() {
+        assertThat(mApkArchiveReader.getPackageInfo(
+                new File(mContext.getCacheDir(), "missing.apk"))).isNull();
+    }
+
+    @Test
+    public void getManifestInfo_managedProvisioningApk_matchesPackageManager() throws Exception {
+        File apk = new File(mContext.getPackageCodePath());
+        PackageInfo expected = mContext.getPackageManager().getPackageArchiveInfo(
+                apk.getAbsolutePath(), PackageManager.GET_RECEIVERS);
+
+        PackageInfo actual;
+        try (InputStream in = new FileInputStream(apk)) {
+            actual = mApkArchiveReader.getManifestInfo(in);
+        }
+
+        assertThat(actual).isNotNull();
+        assertThat(actual.packageName).isEqualTo(expected.packageName);
+        assertThat(getReceiverPermissions(actual)).isEqualTo(getReceiverPermissions(expected));
+    }
+
+    @Test
+    public void getManifestInfo_notAnApk_returnsNull() throws Exception {
+        try (InputStream in = new FileInputStream(
+                File.createTempFile("not_an_apk", ".apk", mContext.getCacheDir()))) {
+            assertThat(mApkArchiveReader.getManifestInfo(in)).isNull();
+        }
+    }
+
+    private void assertMatchesPackageManager(File apk) {
+        PackageInfo expected = mContext.getPackageManager().getPackageArchiveInfo(
+                apk.getAbsolutePath(),
+                PackageManager.GET_SIGNATURES | PackageManager.GET_RECEIVERS);
+
+        PackageInfo actual = mApkArchiveReader.getPackageInfo(apk);
+
+        assertThat(actual).isNotNull();
+        assertThat(actual.packageName).isEqualTo(expected.packageName);
+        assertThat(actual.signatures).isEqualTo(expected.signatures);
+        assertThat(getReceiverPermissions(actual)).isEqualTo(getReceiverPermissions(expected));
+    }
+
+    private static Map<String, String> getReceiverPermissions(PackageInfo packageInfo) {
+        Map<String, String> permissions = new HashMap<>();
+        if (packageInfo.receivers != null) {
+            for (ActivityInfo receiver : packageInfo.receivers) {
+                permissions.put(receiver.name, receiver.permission);
+            }
+        }
+        return permissions;
+    }
+}
@@ -21,23 +21,19 @@ import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEV
 import static com.android.managedprovisioning.task.DownloadPackageTask.ERROR_DOWNLOAD_FAILED;
 import static com.android.managedprovisioning.task.DownloadPackageTask.ERROR_OTHER;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.nullable;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
-import android.app.DownloadManager;
-import android.app.DownloadManager.Query;
-import android.app.DownloadManager.Request;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.database.MatrixCursor;
 import android.os.Handler;
 import android.os.Looper;
 
@@ -56,21 +52,29 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
 @SmallTest
 @FlakyTest // TODO: http://b/34117742
 public class DownloadPackageTaskTest {
     @Mock private Context mContext;
     @Mock private AbstractProvisioningTask.Callback mCallback;
-    @Mock private DownloadManager mDownloadManager;
+    @Mock private PackageDownloader mDownloader;
+    @Mock private PackageDownloader.Download mDownload;
+    @Mock private PackageDownloadPrefetcher mPrefetcher;
+    @Mock private PackageCache mPackageCache;
     @Mock private Utils mUtils;
 
     private static final String TEST_PACKAGE_NAME = "sample.package.name";
     private static final String TEST_PACKAGE_LOCATION = "http://www.some.uri.com";
-    private static final String TEST_LOCAL_FILENAME = "/local/filename";
+    private static final File TEST_LOCAL_FILE = new File("/local/filename");
     private static final int TEST_USER_ID = 123;
     private static final byte[] TEST_SIGNATURE = new byte[] {'a', 'b', 'c', 'd'};
+    private static final byte[] TEST_SHA256 = new byte[] {'e', 'f', 'g', 'h'};
 
-    private static final long TEST_DOWNLOAD_ID = 1234;
     private static final int PACKAGE_VERSION = 43;
     private static final PackageDownloadInfo TEST_DOWNLOAD_INFO = new PackageDownloadInfo.Builder()
             .setLocation(TEST_PACKAGE_LOCATION)
@@ -89,16 +93,21 @@ public class DownloadPackageTaskTest {
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
 
-        when(mContext.getSystemService(Context.DOWNLOAD_SERVICE)).thenReturn(mDownloadManager);
         when(mUtils.packageRequiresUpdate(TEST_PACKAGE_NAME, PACKAGE_VERSION, mContext))
                 .thenReturn(true);
+        when(mDownloader.start(eq(TEST_DOWNLOAD_INFO), any(File.class))).thenReturn(mDownload);
+        when(mDownload.getStats()).thenReturn(
+                new PackageDownloadStats(TEST_PACKAGE_LOCATION, /* startMillis= */ 0));
 
         mTask = new DownloadPackageTask(
                 mUtils,
                 mContext,
                 PARAMS,
                 mCallback,
-                mock(ProvisioningAnalyticsTracker.class));
+                mock(ProvisioningAnalyticsTracker.class),
+                mPrefetcher,
+                mDownloader,
+                mPackageCache);
     }
 
     @Test
@@ -131,19 +140,16 @@ public class DownloadPackageTaskTest {
     @Ignore("b/171307633")
     @Test
     public void testDownloadFailed() throws Exception {
-        // GIVEN the download succeeds
-        mockSuccessfulDownload(DownloadManager.STATUS_FAILED);
+        // GIVEN we're connected to a network
+        doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
 
         // WHEN running the download package task
         runTask();
 
-        // THEN a download receiver was registered
-        BroadcastReceiver receiver = verifyDownloadReceiver();
-
-        // WHEN invoking download complete
-        receiver.onReceive(mContext, new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        // WHEN the download fails with a non transient error
+        verifyDownloadObserved().onDownloadFailed(404);
 
-        // THEN we get a success callback
+        // THEN we get an error callback
         verify(mCallback).onError(mTask, ERROR_DOWNLOAD_FAILED);
         verifyNoMoreInteractions(mCallback);
     }
@@ -151,72 +157,75 @@ public class DownloadPackageTaskTest {
     @Ignore("b/171307633")
     @Test
     public void testDownloadSucceeded() throws Exception {
-        // GIVEN the download succeeds
-        mockSuccessfulDownload(DownloadManager.STATUS_SUCCESSFUL);
+        // GIVEN we're connected to a network
+        doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
 
         // WHEN running the download package task
         runTask();
 
-        // THEN a download receiver was registered
-        BroadcastReceiver receiver = verifyDownloadReceiver();
-
-        // WHEN invoking download complete
-        receiver.onReceive(mContext, new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        // WHEN the download completes
+        verifyDownloadObserved().onDownloadComplete(TEST_LOCAL_FILE, TEST_SHA256);
 
         // THEN we get a success callback
-        verifyOnTaskFinished(TEST_LOCAL_FILENAME);
+        verifyOnTaskFinished(TEST_LOCAL_FILE);
+        assertArrayEquals(TEST_SHA256, mTask.getPackageSha256());
         verifyNoMoreInteractions(mCallback);
     }
 
-    /** Test that it works fine even if DownloadManager sends the broadcast twice */
+    /** Test that it works fine even if the download completion is reported twice */
     @Ignore("b/171307633")
     @Test
-    public void testSendBroadcastTwice() throws Exception {
-        // GIVEN the download succeeds
-        mockSuccessfulDownload(DownloadManager.STATUS_SUCCESSFUL);
+    public void testDownloadCompletedTwice() throws Exception {
+        // GIVEN we're connected to a network
+        doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
 
         // WHEN running the download package task
         runTask();
 
-        // THEN a download receiver was registered
-        BroadcastReceiver receiver = verifyDownloadReceiver();
-
-        // WHEN invoking download complete twice
-        receiver.onReceive(mContext, new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
-        receiver.onReceive(mContext, new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        // WHEN the download completion is reported twice
+        PackageDownloader.Callback callback = verifyDownloadObserved();
+        callback.onDownloadComplete(TEST_LOCAL_FILE, TEST_SHA256);
+        callback.onDownloadComplete(TEST_LOCAL_FILE, TEST_SHA256);
 
         // THEN we still get only one success callback
-        verifyOnTaskFinished(TEST_LOCAL_FILENAME);
+        verifyOnTaskFinished(TEST_LOCAL_FILE);
         verifyNoMoreInteractions(mCallback);
     }
 
-    private void mockSuccessfulDownload(int downloadStatus) {
+    @Test
+    public void testRestoreOutputs_digestIsComputedAgain() throws Exception {
+        // GIVEN a package downloaded before a restart
+        File file = File.createTempFile("downloaded", ".apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(TEST_SHA256);
+        }
         doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
-        when(mDownloadManager.enqueue(any(Request.class))).thenReturn(TEST_DOWNLOAD_ID);
-        MatrixCursor cursor = new MatrixCursor(new String[]{
-                DownloadManager.COLUMN_STATUS,
-                DownloadManager.COLUMN_LOCAL_FILENAME});
-        cursor.addRow(new Object[]{downloadStatus, TEST_LOCAL_FILENAME});
-        when(mDownloadManager.query(any(Query.class))).thenReturn(cursor);
+        runTask();
+        verifyDownloadObserved().onDownloadComplete(file, TEST_SHA256);
+        Map<String, String> outputs = new HashMap<>();
+        mTask.saveOutputs(outputs);
+
+        // WHEN the outputs are restored after the restart
+        DownloadPackageTask restoredTask = new DownloadPackageTask(mUtils, mContext, PARAMS,
+                mCallback, mock(ProvisioningAnalyticsTracker.class), mPrefetcher, mDownloader,
+                mPackageCache);
+        boolean restored = restoredTask.restoreOutputs(outputs);
+
+        // THEN the file is reused, but its digest isn't, so that it is hashed again
+        assertTrue(restored);
+        assertEquals(file, restoredTask.getPackageLocation());
+        assertNull(restoredTask.getPackageSha256());
+        file.delete();
     }
 
-    private BroadcastReceiver verifyDownloadReceiver() {
-        verify(mDownloadManager).setAccessFilename(true);
-        ArgumentCaptor<BroadcastReceiver> receiverCaptor = ArgumentCaptor.forClass(
-                BroadcastReceiver.class);
-        ArgumentCaptor<IntentFilter> filterCaptor = ArgumentCaptor.forClass(
-                IntentFilter.class);
-        verify(mContext).registerReceiver(
-                receiverCaptor.capture(),
-                filterCaptor.capture(),
-                nullable(String.class),
-                any(Handler.class));
-        assertEquals(filterCaptor.getValue().getAction(0),
-                DownloadManager.ACTION_DOWNLOAD_COMPLETE);
-        return receiverCaptor.getValue();
+    private PackageDownloader.Callback verifyDownloadObserved() {
+        ArgumentCaptor<PackageDownloader.Callback> callbackCaptor =
+                ArgumentCaptor.forClass(PackageDownloader.Callback.class);
+        verify(mDownload).observe(callbackCaptor.capture(), any(Handler.class));
+        return callbackCaptor.getValue();
     }
 
-    private void verifyOnTaskFinished(String location) {
+    private void verifyOnTaskFinished(File location) {
         verify(mCallback).onSuccess(mTask);
         assertEquals(location, mTask.getPackageLocation());
     }
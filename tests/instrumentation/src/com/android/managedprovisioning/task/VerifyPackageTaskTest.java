@@ -22,7 +22,11 @@ import static com.android.managedprovisioning.task.VerifyPackageTask.ERROR_DEVIC
 import static com.android.managedprovisioning.task.VerifyPackageTask.ERROR_HASH_MISMATCH;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -71,6 +75,8 @@ public class VerifyPackageTaskTest {
     @Mock private Context mContext;
     @Mock private DownloadPackageTask mDownloadPackageTask;
     @Mock private AbstractProvisioningTask.Callback mCallback;
+    @Mock private PackageCache mPackageCache;
+    @Mock private ApkArchiveReader mApkArchiveReader;
     @Mock private PackageManager mPackageManager;
     @Mock private Utils mUtils;
     @Mock private PackageInfo mPackageInfo;
@@ -124,6 +130,22 @@ public class VerifyPackageTaskTest {
         verifyNoMoreInteractions(mCallback);
     }
 
+    @Test
+    public void testPackageReadWithoutPackageManager_archiveNotParsed() throws Exception {
+        // GIVEN the apk can be read without parsing it
+        when(mApkArchiveReader.getPackageInfo(TEST_LOCAL_FILE)).thenReturn(mPackageInfo);
+        when(mUtils.computeHashOfFile(TEST_LOCAL_FILENAME, Utils.SHA256_TYPE))
+                .thenReturn(TEST_PACKAGE_CHECKSUM_HASH);
+
+        // WHEN running the VerifyPackageTask
+        runWithDownloadInfo(TEST_PACKAGE_CHECKSUM_HASH, EMPTY_BYTE_ARRAY);
+
+        // THEN success should be called without the package manager parsing the apk
+        verify(mCallback).onSuccess(mTask);
+        verify(mPackageManager, never()).getPackageArchiveInfo(anyString(), anyInt());
+        verifyNoMoreInteractions(mCallback);
+    }
+
     @Test
     public void testPackageChecksumSha256_success() throws Exception {
         // GIVEN the hash of the downloaded file matches the parameter value
@@ -138,6 +160,63 @@ public class VerifyPackageTaskTest {
         verifyNoMoreInteractions(mCallback);
     }
 
+    @Test
+    public void testPackageChecksumSha256_computedDuringDownload_fileNotReadAgain()
+            throws Exception {
+        // GIVEN the hash computed while downloading matches the parameter value
+        when(mDownloadPackageTask.getPackageSha256()).thenReturn(TEST_PACKAGE_CHECKSUM_HASH);
+
+        // WHEN running the VerifyPackageTask
+        runWithDownloadInfo(TEST_PACKAGE_CHECKSUM_HASH, EMPTY_BYTE_ARRAY);
+
+        // THEN success should be called without hashing the file again
+        verify(mCallback).onSuccess(mTask);
+        verify(mUtils, never()).computeHashOfFile(anyString(), anyString());
+        verifyNoMoreInteractions(mCallback);
+    }
+
+    @Test
+    public void testPackageChecksumSha256_computedDuringDownload_mismatch() throws Exception {
+        // GIVEN the hash computed while downloading does not match the parameter value
+        when(mDownloadPackageTask.getPackageSha256()).thenReturn(TEST_BAD_HASH);
+
+        // WHEN running the VerifyPackageTask
+        runWithDownloadInfo(TEST_PACKAGE_CHECKSUM_HASH, EMPTY_BYTE_ARRAY);
+
+        // THEN hash mismatch error should be called
+        verify(mCallback).onError(mTask, ERROR_HASH_MISMATCH);
+        verifyNoMoreInteractions(mCallback);
+    }
+
+    @Test
+    public void testVerifiedPackage_isCached() throws Exception {
+        // GIVEN the hash of the downloaded file matches the parameter value
+        when(mUtils.computeHashOfFile(TEST_LOCAL_FILENAME, Utils.SHA256_TYPE))
+                .thenReturn(TEST_PACKAGE_CHECKSUM_HASH);
+
+        // WHEN running the VerifyPackageTask
+        runWithDownloadInfo(TEST_PACKAGE_CHECKSUM_HASH, EMPTY_BYTE_ARRAY);
+
+        // THEN the package should be added to the package cache
+        verify(mPackageCache).put(any(PackageDownloadInfo.class), eq(TEST_LOCAL_FILE));
+        verify(mCallback).onSuccess(mTask);
+    }
+
+    @Test
+    public void testPackageFailingVerification_isRemovedFromCache() throws Exception {
+        // GIVEN the hash of the downloaded file does not match the parameter value
+        when(mUtils.computeHashOfFile(TEST_LOCAL_FILENAME, Utils.SHA256_TYPE))
+                .thenReturn(TEST_BAD_HASH);
+
+        // WHEN running the VerifyPackageTask
+        runWithDownloadInfo(TEST_PACKAGE_CHECKSUM_HASH, EMPTY_BYTE_ARRAY);
+
+        // THEN the package should not be cached, and removed if it came from the cache
+        verify(mPackageCache).remove(any(PackageDownloadInfo.class));
+        verify(mPackageCache, never()).put(any(PackageDownloadInfo.class), any(File.class));
+        verify(mCallback).onError(mTask, ERROR_HASH_MISMATCH);
+    }
+
     @Test
     public void testSignatureHash_success() throws Exception {
         // GIVEN the hash of the signature matches the parameter value
@@ -204,7 +283,7 @@ public class VerifyPackageTaskTest {
                 .setDeviceAdminDownloadInfo(downloadInfo)
                 .build();
         mTask = new VerifyPackageTask(mUtils, mDownloadPackageTask, mContext, params, mCallback,
-                mock(ProvisioningAnalyticsTracker.class));
+                mock(ProvisioningAnalyticsTracker.class), mPackageCache, mApkArchiveReader);
         mTask.run(TEST_USER_ID);
     }
 }
@@ -34,6 +34,7 @@ import android.content.pm.IPackageManager;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.managedprovisioning.common.PackageNameSet;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
@@ -219,11 +220,12 @@ public class NonRequiredAppsLogicTest {
     }
 
     private void setCurrentSystemApps(Set<String> set) {
-        when(mUtils.getCurrentSystemApps(mIPackageManager, TEST_USER_ID)).thenReturn(set);
+        when(mUtils.getCurrentSystemApps(mIPackageManager, TEST_USER_ID))
+                .thenReturn(PackageNameSet.of(set));
     }
 
     private void setLastSnapshot(Set<String> set) {
-        when(mSnapshot.getSnapshot(TEST_USER_ID)).thenReturn(set);
+        when(mSnapshot.getSnapshot(TEST_USER_ID)).thenReturn(PackageNameSet.of(set));
         when(mSnapshot.hasSnapshot(TEST_USER_ID)).thenReturn(true);
     }
 
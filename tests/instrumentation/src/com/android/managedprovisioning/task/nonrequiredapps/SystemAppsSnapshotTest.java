@@ -29,6 +29,8 @@ import android.os.UserManager;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
 
+import com.android.managedprovisioning.common.PackageNameSet;
+import com.android.managedprovisioning.common.UserAppStateStore;
 import com.android.managedprovisioning.common.Utils;
 
 import org.junit.After;
@@ -38,9 +40,13 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Unit-tests for {@link SystemAppsSnapshot}.
@@ -51,6 +57,7 @@ public class SystemAppsSnapshotTest {
     private static final String TEST_PACKAGE_NAME_2 = "com.test.packageb";
     private static final int TEST_USER_ID = 123;
     private static final int TEST_USER_SERIAL_NUMBER = 456;
+    private static final int SYSTEM_APP_COUNT = 600;
 
     @Mock private IPackageManager mockIPackageManager;
     @Mock private Context mContext;
@@ -75,6 +82,8 @@ public class SystemAppsSnapshotTest {
     public void tearDown() {
         File folder = SystemAppsSnapshot.getFolder(mContext);
         FileUtils.deleteContentsAndDir(folder);
+        FileUtils.deleteContentsAndDir(getSnapshotFile().getParentFile());
+        UserAppStateStore.clear();
     }
 
     @Test
@@ -108,9 +117,105 @@ public class SystemAppsSnapshotTest {
                 TEST_PACKAGE_NAME_1, TEST_PACKAGE_NAME_2);
     }
 
+    @Test
+    public void testGetSnapshot_legacyXmlSnapshot() throws Exception {
+        // GIVEN a snapshot stored as XML by an earlier version
+        File xmlFile = SystemAppsSnapshot.getSystemAppsFile(mContext, TEST_USER_ID);
+        xmlFile.getParentFile().mkdirs();
+        Files.write(xmlFile.toPath(), ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>"
+                + "<system-apps><item value=\"" + TEST_PACKAGE_NAME_1 + "\" /></system-apps>")
+                .getBytes(StandardCharsets.UTF_8));
+
+        // THEN it is read
+        assertTrue(mSystemAppsSnapshot.hasSnapshot(TEST_USER_ID));
+        assertSetEquals(mSystemAppsSnapshot.getSnapshot(TEST_USER_ID), TEST_PACKAGE_NAME_1);
+
+        // WHEN taking a new snapshot
+        setCurrentSystemApps(TEST_PACKAGE_NAME_1, TEST_PACKAGE_NAME_2);
+        mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+
+        // THEN it replaces the XML snapshot
+        assertFalse(xmlFile.exists());
+        assertSetEquals(mSystemAppsSnapshot.getSnapshot(TEST_USER_ID),
+                TEST_PACKAGE_NAME_1, TEST_PACKAGE_NAME_2);
+    }
+
+    @Test
+    public void testTakeNewSnapshot_afterOta_appendsChanges() throws Exception {
+        // GIVEN a snapshot of a full system image
+        Set<String> systemApps = createSystemApps(SYSTEM_APP_COUNT);
+        setCurrentSystemApps(systemApps);
+        mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+        File file = getSnapshotFile();
+        long fullLength = file.length();
+
+        // WHEN an OTA adds and removes a system app
+        systemApps.remove("com.test.system0");
+        systemApps.add(TEST_PACKAGE_NAME_1);
+        setCurrentSystemApps(systemApps);
+        mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+
+        // THEN only the changes are appended
+        assertTrue(file.length() - fullLength < 100);
+        assertEquals(systemApps, mSystemAppsSnapshot.getSnapshot(TEST_USER_ID));
+    }
+
+    @Test
+    public void testGetSnapshot_incompleteChanges_returnsPreviousSnapshot() throws Exception {
+        // GIVEN a snapshot, and the changes of an OTA only partly written
+        Set<String> systemApps = createSystemApps(SYSTEM_APP_COUNT);
+        setCurrentSystemApps(new HashSet<>(systemApps));
+        mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+        setCurrentSystemApps(TEST_PACKAGE_NAME_1);
+        mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+        File file = getSnapshotFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 1);
+        }
+
+        // THEN the previous snapshot is read
+        assertEquals(systemApps, mSystemAppsSnapshot.getSnapshot(TEST_USER_ID));
+
+        // WHEN taking a new snapshot
+        setCurrentSystemApps(TEST_PACKAGE_NAME_2);
+        mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+
+        // THEN the incomplete changes are dropped
+        assertSetEquals(mSystemAppsSnapshot.getSnapshot(TEST_USER_ID), TEST_PACKAGE_NAME_2);
+    }
+
+    @Test
+    public void testTakeNewSnapshot_manyOtas_rewritesSnapshot() throws Exception {
+        Set<String> systemApps = createSystemApps(SYSTEM_APP_COUNT);
+        for (int i = 0; i < 3 * UserAppStateStore.MAX_DELTA_RECORDS; i++) {
+            systemApps.add("com.test.ota" + i);
+            setCurrentSystemApps(systemApps);
+            mSystemAppsSnapshot.takeNewSnapshot(TEST_USER_ID);
+        }
+
+        assertEquals(systemApps, mSystemAppsSnapshot.getSnapshot(TEST_USER_ID));
+    }
+
+    private File getSnapshotFile() {
+        return UserAppStateStore.getFile(mContext, TEST_USER_SERIAL_NUMBER);
+    }
+
+    private static Set<String> createSystemApps(int count) {
+        Set<String> systemApps = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            systemApps.add("com.test.system" + i);
+        }
+        return systemApps;
+    }
+
+    private void setCurrentSystemApps(Set<String> packages) throws Exception {
+        when(mUtils.getCurrentSystemApps(mockIPackageManager, TEST_USER_ID))
+                .thenReturn(PackageNameSet.of(packages));
+    }
+
     private void setCurrentSystemApps(String... packages) throws Exception {
         when(mUtils.getCurrentSystemApps(mockIPackageManager, TEST_USER_ID))
-                .thenReturn(new HashSet<>(Arrays.asList(packages)));
+                .thenReturn(PackageNameSet.of(Arrays.asList(packages)));
     }
 
     private void assertSetEquals(Collection<String> result, String... expected) {
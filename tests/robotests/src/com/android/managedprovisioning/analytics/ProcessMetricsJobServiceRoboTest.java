@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.DevicePolicyEventLogger;
+import android.content.Context;
+
+import com.android.managedprovisioning.DevicePolicyProtos.DevicePolicyEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Robolectric tests for {@link ProcessMetricsJobService}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProcessMetricsJobServiceRoboTest {
+
+    private static final int EVENT_COUNT = 5000;
+    private static final double EVENTS_PER_SECOND = 100;
+    private static final int BATCH_SIZE = 20;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final FakeTicker mTicker = new FakeTicker();
+    private final List<Integer> mEventIds = new ArrayList<>();
+    private int mLargestBatch;
+    private File mFile;
+    private File mReplayFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(mContext.getFilesDir(), "deferred_metrics_test");
+        mReplayFile = ProcessMetricsJobService.getReplayFile(mFile);
+        writeEvents(mFile, EVENT_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        DeferredMetricsAppender.rotate(mFile, mReplayFile);
+        mFile.delete();
+        mReplayFile.delete();
+        ProcessMetricsJobService.getCheckpointFile(mFile).delete();
+    }
+
+    @Test
+    public void replay_thousandsOfEvents_writesAllAtLimitedRate() {
+        ProcessMetricsJobService service = createService(/* stopAfterEvents= */ -1);
+
+        replay(service);
+
+        assertThat(mEventIds).containsExactlyElementsIn(range(EVENT_COUNT)).inOrder();
+        assertThat(mLargestBatch).isAtMost(BATCH_SIZE);
+        // The first batch doesn't wait, then each batch waits for the tokens it takes.
+        long minimumNanos = (long) ((EVENT_COUNT - BATCH_SIZE) / EVENTS_PER_SECOND * 1e9);
+        assertThat(mTicker.mNowNanos).isAtLeast(minimumNanos);
+        // Waits are per batch, not per event.
+        assertThat(mTicker.mSleeps).isAtMost(2 * EVENT_COUNT / BATCH_SIZE);
+        assertThat(mFile.exists()).isFalse();
+        assertThat(mReplayFile.exists()).isFalse();
+        assertThat(ProcessMetricsJobService.getCheckpointFile(mFile).exists()).isFalse();
+    }
+
+    @Test
+    public void replay_jobStopped_resumesFromCheckpoint() {
+        ProcessMetricsJobService service = createService(/* stopAfterEvents= */ 1234);
+
+        replay(service);
+
+        int replayedBeforeStop = mEventIds.size();
+        assertThat(replayedBeforeStop).isLessThan(EVENT_COUNT);
+        assertThat(mReplayFile.exists()).isTrue();
+        assertThat(ProcessMetricsJobService.getCheckpointFile(mFile).exists()).isTrue();
+
+        replay(createService(/* stopAfterEvents= */ -1));
+
+        assertThat(mEventIds).containsExactlyElementsIn(range(EVENT_COUNT)).inOrder();
+        assertThat(mReplayFile.exists()).isFalse();
+        assertThat(ProcessMetricsJobService.getCheckpointFile(mFile).exists()).isFalse();
+    }
+
+    @Test
+    public void replay_eventsAppendedAfterStop_replaysThemToo() throws Exception {
+        replay(createService(/* stopAfterEvents= */ 100));
+        appendEvents(mFile, EVENT_COUNT, /* count= */ 10);
+
+        replay(createService(/* stopAfterEvents= */ -1));
+
+        assertThat(mEventIds).containsExactlyElementsIn(range(EVENT_COUNT + 10)).inOrder();
+        assertThat(mFile.exists()).isFalse();
+        assertThat(mReplayFile.exists()).isFalse();
+    }
+
+    @Test
+    public void replay_eventsAppendedDuringReplay_keepsThem() throws Exception {
+        DeferredMetricsAppender appender = DeferredMetricsAppender.forFile(mFile);
+        final MetricsWriter writer = loggers -> {
+            if (mEventIds.isEmpty()) {
+                appender.append(Collections.singletonList(
+                        DevicePolicyEvent.newBuilder().setEventId(EVENT_COUNT).build()));
+            }
+            for (DevicePolicyEventLogger logger : loggers) {
+                mEventIds.add(logger.getEventId());
+            }
+        };
+
+        replay(new ProcessMetricsJobService(
+                writer, new TokenBucket(EVENTS_PER_SECOND, BATCH_SIZE, mTicker)));
+        DeferredMetricsAppender.flush(mFile);
+
+        assertThat(mEventIds).containsExactlyElementsIn(range(EVENT_COUNT)).inOrder();
+        assertThat(mFile.exists()).isTrue();
+        assertThat(mReplayFile.exists()).isFalse();
+    }
+
+    private ProcessMetricsJobService createService(int stopAfterEvents) {
+        final ProcessMetricsJobService[] service = new ProcessMetricsJobService[1];
+        final MetricsWriter writer = loggers -> {
+            mLargestBatch = Math.max(mLargestBatch, loggers.length);
+            for (DevicePolicyEventLogger logger : loggers) {
+                mEventIds.add(logger.getEventId());
+            }
+            if (stopAfterEvents >= 0 && mEventIds.size() >= stopAfterEvents) {
+                service[0].onStopJob(/* params= */ null);
+            }
+        };
+        service[0] = new ProcessMetricsJobService(
+                writer, new TokenBucket(EVENTS_PER_SECOND, BATCH_SIZE, mTicker));
+        return service[0];
+    }
+
+    private void replay(ProcessMetricsJobService service) {
+        service.executeReadDeferredMetrics(/* params= */ null, mFile);
+        Robolectric.flushBackgroundThreadScheduler();
+    }
+
+    private static void writeEvents(File file, int count) throws IOException {
+        file.delete();
+        appendEvents(file, /* firstId= */ 0, count);
+    }
+
+    private static void appendEvents(File file, int firstId, int count) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, /* append= */ true)) {
+            for (int i = firstId; i < firstId + count; i++) {
+                DevicePolicyEvent.newBuilder()
+                        .setEventId(i)
+                        .setAdminPackageName("com.test.admin")
+                        .addStringListValue("value" + i)
+                        .build()
+                        .writeDelimitedTo(out);
+            }
+        }
+    }
+
+    private static List<Integer> range(int count) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    /** Ticker whose time only moves when sleeping. */
+    private static class FakeTicker implements TokenBucket.Ticker {
+        long mNowNanos;
+        int mSleeps;
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return mNowNanos;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            mNowNanos += nanos;
+            mSleeps++;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Robolectric tests for {@link PackageNameSet}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageNameSetTest {
+    private static final String PACKAGE_A = "com.test.packagea";
+    private static final String PACKAGE_B = "com.test.packageb";
+    private static final String PACKAGE_C = "com.test.packagec";
+    private static final String PACKAGE_D = "com.test.packaged";
+
+    @Test
+    public void of_duplicateNames_keepsOne() {
+        PackageNameSet set = PackageNameSet.of(Arrays.asList(PACKAGE_A, PACKAGE_B, PACKAGE_A));
+
+        assertThat(set.size()).isEqualTo(2);
+        assertThat(set)).containsExactly(PACKAGE_A, PACKAGE_B);
+    }
+
+    @Test
+    public void of_emptyCollection_returnsEmpty() {
+        assertThat(PackageNameSet.of(Collections.emptySet()))
+                .isSameInstanceAs(PackageNameSet.EMPTY);
+    }
+
+    @Test
+    public void of_packageNameSet_returnsSameInstance() {
+        PackageNameSet set = PackageNameSet.of(Arrays.asList(PACKAGE_A));
+
+        assertThat(PackageNameSet.of(set)).isSameInstanceAs(set);
+    }
+
+    @Test
+    public void contains_unknownName_returnsFalse() {
+        PackageNameSet set = PackageNameSet.of(Arrays.asList(PACKAGE_A));
+
+        assertThat(set.contains(PACKAGE_A)).isTrue();
+        assertThat(set.contains("com.test.neverseen")).isFalse();
+    }
+
+    @Test
+    public void union_returnsPackagesInEither() {
+        PackageNameSet result = PackageNameSet.of(Arrays.asList(PACKAGE_A, PACKAGE_B))
+                .union(PackageNameSet.of(Arrays.asList(PACKAGE_B, PACKAGE_C)));
+
+        assertThat(result)).containsExactly(PACKAGE_A, PACKAGE_B, PACKAGE_C);
+    }
+
+    @Test
+    public void intersect_returnsPackagesInBoth() {
+        PackageNameSet result = PackageNameSet.of(Arrays.asList(PACKAGE_A, PACKAGE_B, PACKAGE_C))
+                .intersect(PackageNameSet.of(Arrays.asList(PACKAGE_B, PACKAGE_C, PACKAGE_D)));
+
+        assertThat(result)).containsExactly(PACKAGE_B, PACKAGE_C);
+    }
+
+    @Test
+    public void minus_returnsPackagesOnlyInFirst() {
+        PackageNameSet result = PackageNameSet.of(Arrays.asList(PACKAGE_A, PACKAGE_B, PACKAGE_C))
+                .minus(PackageNameSet.of(Arrays.asList(PACKAGE_B, PACKAGE_D)));
+
+        assertThat(result)).containsExactly(PACKAGE_A, PACKAGE_C);
+    }
+
+    @Test
+    public void setOperations_manyPackages_matchHashSetOperations() {
+        Set<String> first = new HashSet<>();
+        Set<String> second = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                first.add("com.test.package" + i);
+            }
+            if (i % 3 == 0) {
+                second.add("com.test.package" + i);
+            }
+        }
+        PackageNameSet firstNames = PackageNameSet.of(first);
+        PackageNameSet secondNames = PackageNameSet.of(second);
+
+        Set<String> union = new HashSet<>(first);
+        union.addAll(second);
+        Set<String> intersection = new HashSet<>(first);
+        intersection.retainAll(second);
+        Set<String> difference = new HashSet<>(first);
+        difference.removeAll(second);
+        assertThat(firstNames.union(secondNames))).isEqualTo(union);
+        assertThat(firstNames.intersect(secondNames))).isEqualTo(intersection);
+        assertThat(firstNames.minus(secondNames))).isEqualTo(difference);
+    }
+
+    @Test
+    public void equals_sameNamesInOtherOrder_returnsTrue() {
+        assertThat(PackageNameSet.of(Arrays.asList(PACKAGE_A, PACKAGE_B)))
+                .isEqualTo(PackageNameSet.of(Arrays.asList(PACKAGE_B, PACKAGE_A)));
+    }
+
+    @Test
+    public void equals_hashSetOfSameNames_returnsTrue() {
+        Set<String> names = new HashSet<>(Arrays.asList(PACKAGE_A, PACKAGE_B));
+        PackageNameSet set = PackageNameSet.of(Arrays.asList(PACKAGE_A, PACKAGE_B));
+
+        assertThat(set).isEqualTo(names);
+        assertThat(names).isEqualTo(set);
+        assertThat(set.hashCode()).isEqualTo(names.hashCode());
+    }
+
+    @Test
+    public void of_equalNames_sharesOneInstance() {
+        String name = new String(PACKAGE_A);
+        PackageNameSet first = PackageNameSet.of(Arrays.asList(PACKAGE_A));
+        PackageNameSet second = PackageNameSet.of(Arrays.asList(name));
+
+        assertThat(second.iterator().next()).isSameInstanceAs(first.iterator().next());
+    }
+}
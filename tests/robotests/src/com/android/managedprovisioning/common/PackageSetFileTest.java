@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.android.managedprovisioning.common.PackageSetFile.MAX_DELTA_RECORDS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Robolectric tests for {@link PackageSetFile}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageSetFileTest {
+
+    /** Set this system property to run {@link #writeAndRead_benchmark}. */
+    private static final String PROPERTY_RUN_BENCHMARK = "managedprovisioning.benchmark";
+    private static final int BENCHMARK_ITERATIONS = 200;
+    private static final int[] BENCHMARK_PACKAGE_COUNTS = {300, 600};
+    /** How many packages an OTA adds and removes in the benchmark. */
+    private static final int BENCHMARK_CHANGED_PACKAGES = 10;
+
+    private static final String TEST_KEY = "system_apps";
+    private static final String TEST_FINGERPRINT = "test/fingerprint";
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final File mFile = new File(mContext.getFilesDir(), "test.packages");
+    private final File mXmlFile = new File(mContext.getFilesDir(), "test.xml");
+
+    @After
+    public void tearDown() {
+        new PackageSetFile(mFile).delete();
+        mXmlFile.delete();
+    }
+
+    @Test
+    public void read_afterFullWrite_returnsSets() throws Exception {
+        PackageSetFile.Content content = createContent(/* first= */ 0, /* count= */ 10);
+        new PackageSetFile(mFile).write(/* previous= */ null, content);
+
+        PackageSetFile.Content read = new PackageSetFile(mFile).read();
+
+        assertThat(read.mSets).isEqualTo(content.mSets);
+        assertThat(read.mFingerprint).isEqualTo(TEST_FINGERPRINT);
+    }
+
+    @Test
+    public void read_afterDeltaAppends_returnsLatestSets() throws Exception {
+        PackageSetFile file = new PackageSetFile(mFile);
+        PackageSetFile.Content first = createContent(/* first= */ 0, /* count= */ 10);
+        PackageSetFile.Content second = createContent(/* first= */ 5, /* count= */ 10);
+        file.write(/* previous= */ null, first);
+        long fullLength = mFile.length();
+
+        file.write(first, second);
+
+        assertThat(mFile.length()).isGreaterThan(fullLength);
+        assertThat(new PackageSetFile(mFile).read().mSets).isEqualTo(second.mSets);
+    }
+
+    @Test
+    public void read_tornDeltaRecord_returnsSetsBeforeIt() throws Exception {
+        PackageSetFile file = new PackageSetFile(mFile);
+        PackageSetFile.Content first = createContent(/* first= */ 0, /* count= */ 10);
+        file.write(/* previous= */ null, first);
+        file.write(first, createContent(/* first= */ 5, /* count= */ 10));
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        assertThat(new PackageSetFile(mFile).read().mSets).isEqualTo(first.mSets);
+    }
+
+    /**
+     * Compares writing a full record, appending a delta record and reading the file with writing
+     * and reading the XML files used before, at the numbers of system apps of typical devices.
+     * The delta records add and remove {@link #BENCHMARK_CHANGED_PACKAGES} packages, as an OTA
+     * would, and the file is read with {@link PackageSetFile#MAX_DELTA_RECORDS} of them.
+     */
+    @Test
+    public void writeAndRead_benchmark() throws Exception {
+        assumeTrue("Benchmark not requested", Boolean.getBoolean(PROPERTY_RUN_BENCHMARK));
+        for (int packageCount : BENCHMARK_PACKAGE_COUNTS) {
+            runBenchmark(packageCount);
+        }
+    }
+
+    private void runBenchmark(int packageCount) throws IOException {
+        PackageSetFile.Content before = createContent(/* first= */ 0, packageCount);
+        PackageSetFile.Content after =
+                createContent(BENCHMARK_CHANGED_PACKAGES, packageCount);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            new PackageSetFile(mFile).write(/* previous= */ null, before);
+        }
+        long fullWriteNanos = System.nanoTime() - start;
+        long fullLength = mFile.length();
+
+        // Each append is timed on its own, the full writes that start over aren't.
+        long appendNanos = 0;
+        PackageSetFile file = new PackageSetFile(mFile);
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (i % MAX_DELTA_RECORDS == 0) {
+                file.write(/* previous= */ null, before);
+            }
+            boolean odd = i % 2 == 1;
+            start = System.nanoTime();
+            file.write(odd ? after : before, odd ? before : after);
+            appendNanos += System.nanoTime() - start;
+        }
+
+        // The file ends up with the most delta records it can have.
+        file.write(/* previous= */ null, before);
+        for (int i = 0; i < MAX_DELTA_RECORDS; i++) {
+            boolean odd = i % 2 == 1;
+            file.write(odd ? after : before, odd ? before : after);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            new PackageSetFile(mFile).read();
+        }
+        long readNanos = System.nanoTime() - start;
+        long deltasLength = mFile.length();
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            writeLegacyXml(before.mSets.get(TEST_KEY));
+        }
+        long xmlWriteNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            UserAppStateStore.readPackageListXml(mXmlFile);
+        }
+        long xmlReadNanos = System.nanoTime() - start;
+        assertThat(UserAppStateStore.readPackageListXml(mXmlFile))
+                .containsExactlyElementsIn(before.mSets.get(TEST_KEY));
+
+        System.out.println(String.format("%d packages: full write %.1f us, %d bytes;"
+                        + " delta append %.1f us; read with %d deltas %.1f us, %d bytes",
+                packageCount, toMicrosPerIteration(fullWriteNanos), fullLength,
+                toMicrosPerIteration(appendNanos), MAX_DELTA_RECORDS,
+                toMicrosPerIteration(readNanos), deltasLength));
+        System.out.println(String.format("%d packages: XML write %.1f us, read %.1f us, %d bytes",
+                packageCount, toMicrosPerIteration(xmlWriteNanos),
+                toMicrosPerIteration(xmlReadNanos), mXmlFile.length()));
+    }
+
+    /** Writes {@code packageNames} the way the system apps snapshot used to. */
+    private void writeLegacyXml(PackageNameSet packageNames) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(mXmlFile, /* append= */ false)) {
+            XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(stream, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            serializer.startTag(null, "system-apps");
+            for (String packageName : packageNames) {
+                serializer.startTag(null, "item");
+                serializer.attribute(null, "value", packageName);
+                serializer.endTag(null, "item");
+            }
+            serializer.endTag(null, "system-apps");
+            serializer.endDocument();
+        }
+    }
+
+    private static double toMicrosPerIteration(long nanos) {
+        return nanos / 1e3 / BENCHMARK_ITERATIONS;
+    }
+
+    private static PackageSetFile.Content createContent(int first, int count) {
+        List<String> packageNames = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            packageNames.add(String.format("com.android.vendor.systemapp%04d", i));
+        }
+        Map<String, PackageNameSet> sets = new HashMap<>();
+        sets.put(TEST_KEY, PackageNameSet.of(packageNames));
+        sets.put("cross_profile_apps", PackageNameSet.of(Collections.singletonList(
+                "com.android.vendor.systemapp0000")));
+        return new PackageSetFile.Content(TEST_FINGERPRINT, /* timestampMillis= */ 0, sets);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Robolectric tests for {@link StoreUtils}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StoreUtilsRoboTest {
+
+    /** Set this system property to run {@link #copyStream_benchmark}. */
+    private static final String PROPERTY_RUN_BENCHMARK = "managedprovisioning.benchmark";
+    private static final int BENCHMARK_FILE_SIZE = 64 * 1024 * 1024;
+    private static final int BENCHMARK_ITERATIONS = 5;
+
+    private final Context mContext = RuntimeEnvironment.application;
+
+    @Test
+    public void copyStream_fileToFile_copiesContent() throws Exception {
+        byte[] content = createContent(100_000);
+        File source = createFile(content);
+        File target = new File(mContext.getFilesDir(), "target");
+
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(target)) {
+            StoreUtils.copyStream(in, out);
+        }
+
+        assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+    }
+
+    @Test
+    public void copyStream_fileAlreadyPartlyRead_copiesRemainingContent() throws Exception {
+        byte[] content = createContent(100_000);
+        File source = createFile(content);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(content, 1000, content.length - 1000);
+        File target = new File(mContext.getFilesDir(), "target");
+
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(target)) {
+            in.skip(1000);
+            StoreUtils.copyStream(in, out);
+        }
+
+        assertThat(Files.readAllBytes(target.toPath())).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    public void copyStream_fileToOtherStream_copiesContent() throws Exception {
+        byte[] content = createContent(100_000);
+        File source = createFile(content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (FileInputStream in = new FileInputStream(source)) {
+            StoreUtils.copyStream(in, out);
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    public void copyStream_otherStreamToFile_copiesContent() throws Exception {
+        byte[] content = createContent(100_000);
+        File target = new File(mContext.getFilesDir(), "target");
+
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            StoreUtils.copyStream(new ByteArrayInputStream(content), out);
+        }
+
+        assertThat(Files.readAllBytes(target.toPath())).isEqualTo(content);
+    }
+
+    /**
+     * Compares the heap buffer copy the package install and {@link StoreUtils#copyStream} used to
+     * do with the current {@link StoreUtils#copyStream}, in throughput and garbage collections.
+     */
+    @Test
+    public void copyStream_benchmark() throws Exception {
+        assumeTrue("Benchmark not requested", Boolean.getBoolean(PROPERTY_RUN_BENCHMARK));
+        File source = createFile(createContent(BENCHMARK_FILE_SIZE));
+        File target = new File(mContext.getFilesDir(), "target");
+
+        runBenchmark("16 KB heap buffer", source, target, (in, out) -> {
+            byte[] buffer = new byte[16 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        });
+        runBenchmark("copyStream", source, target, StoreUtils::copyStream);
+    }
+
+    private void runBenchmark(String name, File source, File target, Copier copier)
+            throws IOException {
+        long bestNanos = Long.MAX_VALUE;
+        long gcCountBefore = getGcCount();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            try (FileInputStream in = new FileInputStream(source);
+                 FileOutputStream out = new FileOutputStream(target)) {
+                copier.copy(in, out);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        long gcCount = getGcCount() - gcCountBefore;
+        assertThat(target.length()).isEqualTo(source.length());
+        System.out.println(String.format("%s: %.1f MB/s, %d GCs over %d copies", name,
+                source.length() * 1e3 / bestNanos, gcCount, BENCHMARK_ITERATIONS));
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private File createFile(byte[] content) throws IOException {
+        File file = File.createTempFile("source", null, mContext.getCacheDir());
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(/* seed= */ 0).nextBytes(content);
+        return content;
+    }
+
+    private interface Copier {
+        void copy(InputStream in, OutputStream out) throws IOException;
+    }
+}
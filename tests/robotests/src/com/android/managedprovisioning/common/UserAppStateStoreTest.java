@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.android.managedprovisioning.common.UserAppStateStore.KEY_CROSS_PROFILE_APPS;
+import static com.android.managedprovisioning.common.UserAppStateStore.KEY_SYSTEM_APPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.UserManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Robolectric tests for {@link UserAppStateStore}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UserAppStateStoreTest {
+    private static final String TEST_PACKAGE_NAME_1 = "com.test.packagea";
+    private static final String TEST_PACKAGE_NAME_2 = "com.test.packageb";
+    private static final int TEST_USER_ID = 123;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final UserManager mUserManager = mContext.getSystemService(UserManager.class);
+
+    @Before
+    public void setUp() {
+        shadowOf(mUserManager).addUser(TEST_USER_ID, "Username", /* flags= */ 0);
+        UserAppStateStore.clear();
+    }
+
+    @After
+    public void tearDown() {
+        UserAppStateStore.clear();
+    }
+
+    @Test
+    public void putPackages_severalSets_storedInOneFile() {
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_SYSTEM_APPS, setOf(TEST_PACKAGE_NAME_1));
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS, setOf(TEST_PACKAGE_NAME_2));
+
+        UserAppStateStore.clear();
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_1);
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_2);
+        assertThat(UserAppStateStore.getReads()).isEqualTo(1);
+    }
+
+    @Test
+    public void hasPackages_onlyOtherSetStored_returnsFalse() {
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_SYSTEM_APPS, setOf(TEST_PACKAGE_NAME_1));
+
+        assertThat(UserAppStateStore.hasPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .isTrue();
+        assertThat(UserAppStateStore.hasPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS))
+                .isFalse();
+    }
+
+    @Test
+    public void getPackages_severalTimes_readsFileOnce() {
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_SYSTEM_APPS, setOf(TEST_PACKAGE_NAME_1));
+        UserAppStateStore.clear();
+
+        for (int i = 0; i < 10; i++) {
+            UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS);
+            UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS);
+        }
+
+        assertThat(UserAppStateStore.getReads()).isEqualTo(1);
+    }
+
+    @Test
+    public void commitBatch_writesAllUpdatesOnce() {
+        UserAppStateStore.beginBatch();
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_SYSTEM_APPS, setOf(TEST_PACKAGE_NAME_1));
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS, setOf(TEST_PACKAGE_NAME_2));
+
+        assertThat(UserAppStateStore.getWrites()).isEqualTo(0);
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_1);
+
+        UserAppStateStore.commitBatch();
+
+        assertThat(UserAppStateStore.getWrites()).isEqualTo(1);
+        UserAppStateStore.clear();
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_2);
+    }
+
+    @Test
+    public void getPackages_legacyXmlFiles_readsThem() throws Exception {
+        int serial = mUserManager.getUserSerialNumber(TEST_USER_ID);
+        File systemAppsFile = writeLegacyFile("system_apps_v2", serial, TEST_PACKAGE_NAME_1);
+        File crossProfileAppsFile =
+                writeLegacyFile("cross_profile_apps", serial, TEST_PACKAGE_NAME_2);
+
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_1);
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_2);
+
+        UserAppStateStore.putPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS,
+                setOf(TEST_PACKAGE_NAME_1, TEST_PACKAGE_NAME_2));
+
+        assertThat(systemAppsFile.exists()).isFalse();
+        assertThat(crossProfileAppsFile.exists()).isFalse();
+        UserAppStateStore.clear();
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_1, TEST_PACKAGE_NAME_2);
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_2);
+    }
+
+    @Test
+    public void getPackages_corruptFile_returnsEmptySet() throws Exception {
+        File file = UserAppStateStore.getFile(
+                mContext, mUserManager.getUserSerialNumber(TEST_USER_ID));
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[] {1, 2, 3});
+
+        assertThat(UserAppStateStore.hasPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .isFalse();
+
+        UserAppStateStore.putPackages(
+                mContext, TEST_USER_ID, KEY_SYSTEM_APPS, setOf(TEST_PACKAGE_NAME_1));
+        UserAppStateStore.clear();
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_1);
+    }
+
+    @Test
+    public void putPackages_manyUpdates_keepsAllSets() {
+        Set<String> systemApps = new HashSet<>();
+        for (int i = 0; i < 3 * PackageSetFile.MAX_DELTA_RECORDS; i++) {
+            systemApps.add("com.test.ota" + i);
+            UserAppStateStore.putPackages(
+                    mContext, TEST_USER_ID, KEY_SYSTEM_APPS, PackageNameSet.of(systemApps));
+            if (i == 0) {
+                UserAppStateStore.putPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS,
+                        setOf(TEST_PACKAGE_NAME_2));
+            }
+        }
+
+        UserAppStateStore.clear();
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_SYSTEM_APPS))
+                .isEqualTo(systemApps);
+        assertThat(UserAppStateStore.getPackages(mContext, TEST_USER_ID, KEY_CROSS_PROFILE_APPS))
+                .containsExactly(TEST_PACKAGE_NAME_2);
+    }
+
+    private File writeLegacyFile(String folderName, int serial, String packageName)
+            throws Exception {
+        File file = new File(new File(mContext.getFilesDir(), folderName), serial + ".xml");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>"
+                + "<packages><item value=\"" + packageName + "\" /></packages>")
+                .getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static PackageNameSet setOf(String... packageNames) {
+        return PackageNameSet.of(Arrays.asList(packageNames));
+    }
+}
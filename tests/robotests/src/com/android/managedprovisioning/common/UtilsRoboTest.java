@@ -26,6 +26,7 @@ import static android.app.admin.DevicePolicyManager.FLAG_SUPPORTED_MODES_PERSONA
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assume.assumeTrue;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.app.admin.DevicePolicyManager;
@@ -45,6 +46,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Random;
+
 @RunWith(RobolectricTestRunner.class)
 public class UtilsRoboTest {
     private static final String TEST_MDM_PACKAGE_NAME = "mdm.package.name";
@@ -72,6 +83,13 @@ public class UtilsRoboTest {
                     .build();
     private static final ProvisioningParams PARAMS_NON_TRUSTED_SOURCE =
             PARAMS_PROVISION_MANAGED_PROFILE;
+    private static final String SHA1_TYPE = "SHA-1";
+
+    /** Set this system property to run {@link #computeHashOfFile_benchmark}. */
+    private static final String PROPERTY_RUN_BENCHMARK = "managedprovisioning.benchmark";
+    private static final long[] BENCHMARK_FILE_SIZES =
+            {10L * 1024 * 1024, 100L * 1024 * 1024, 500L * 1024 * 1024};
+    private static final int BENCHMARK_ITERATIONS = 3;
 
     private final Context mContext = ApplicationProvider.getApplicationContext();
     private Utils mUtils = new Utils();
@@ -222,6 +240,143 @@ public class UtilsRoboTest {
                 .isPackageInstalled("com.example.package", mContext.getPackageManager())).isFalse();
     }
 
+    @Test
+    public void computeHashesOfFile_computesEachHash() throws Exception {
+        byte[] content = createContent(3 * Utils.HASH_BUFFER_SIZE + 1);
+        File file = createFile(content);
+
+        Map<String, byte[]> hashes =
+                mUtils.computeHashesOfFile(file.getPath(), Utils.SHA256_TYPE, SHA1_TYPE);
+
+        assertThat(hashes.get(Utils.SHA256_TYPE))
+                .isEqualTo(MessageDigest.getInstance(Utils.SHA256_TYPE).digest(content));
+        assertThat(hashes.get(SHA1_TYPE))
+                .isEqualTo(MessageDigest.getInstance(SHA1_TYPE).digest(content));
+    }
+
+    @Test
+    public void computeHashesOfFile_sameHashTypeTwice_computesItOnce() throws Exception {
+        byte[] content = createContent(1000);
+        File file = createFile(content);
+
+        Map<String, byte[]> hashes =
+                mUtils.computeHashesOfFile(file.getPath(), Utils.SHA256_TYPE, Utils.SHA256_TYPE);
+
+        assertThat(hashes).hasSize(1);
+        assertThat(hashes.get(Utils.SHA256_TYPE))
+                .isEqualTo(MessageDigest.getInstance(Utils.SHA256_TYPE).digest(content));
+    }
+
+    @Test
+    public void computeHashesOfFile_unsupportedHashType_returnsNull() throws Exception {
+        File file = createFile(createContent(1000));
+
+        assertThat(mUtils.computeHashesOfFile(file.getPath(), "unsupported")).isNull();
+    }
+
+    @Test
+    public void computeHashesOfFile_missingFile_returnsNull() {
+        File file = new File(mContext.getCacheDir(), "missing");
+
+        assertThat(mUtils.computeHashesOfFile(file.getPath(), Utils.SHA256_TYPE)).isNull();
+    }
+
+    @Test
+    public void computeHashOfFile_afterFailedRead_digestNotAffected() throws Exception {
+        byte[] content = createContent(1000);
+        File file = createFile(content);
+        mUtils.computeHashOfFile(new File(mContext.getCacheDir(), "missing").getPath(),
+                Utils.SHA256_TYPE);
+
+        assertThat(mUtils.computeHashOfFile(file.getPath(), Utils.SHA256_TYPE))
+                .isEqualTo(MessageDigest.getInstance(Utils.SHA256_TYPE).digest(content));
+    }
+
+    @Test
+    public void computeHashOfByteArray_calledTwice_returnsSameHash() throws Exception {
+        byte[] content = createContent(1000);
+        byte[] expected = MessageDigest.getInstance(Utils.SHA256_TYPE).digest(content);
+
+        assertThat(mUtils.computeHashOfByteArray(content)).isEqualTo(expected);
+        assertThat(mUtils.computeHashOfByteArray(content)).isEqualTo(expected);
+    }
+
+    /**
+     * Compares hashing a file with SHA-256 then SHA-1 the way {@link Utils#computeHashOfFile} used
+     * to, one pass with a 256 byte buffer per hash, with {@link Utils#computeHashesOfFile}.
+     */
+    @Test
+    public void computeHashOfFile_benchmark() throws Exception {
+        assumeTrue("Benchmark not requested", Boolean.getBoolean(PROPERTY_RUN_BENCHMARK));
+        for (long size : BENCHMARK_FILE_SIZES) {
+            File file = createFile(size);
+            try {
+                runBenchmark("256 byte buffer, one pass per hash", file, () -> {
+                    hashWithSmallBuffer(file, Utils.SHA256_TYPE);
+                    hashWithSmallBuffer(file, SHA1_TYPE);
+                });
+                runBenchmark("computeHashesOfFile", file, () ->
+                        mUtils.computeHashesOfFile(file.getPath(), Utils.SHA256_TYPE, SHA1_TYPE));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private void runBenchmark(String name, File file, HashRunner runner) throws Exception {
+        // Warm up.
+        runner.run();
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            runner.run();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%s, %d MB: %.1f MB/s", name,
+                file.length() / (1024 * 1024), file.length() * 1e3 / bestNanos));
+    }
+
+    private static byte[] hashWithSmallBuffer(File file, String hashType) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(hashType);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[256];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return md.digest();
+    }
+
+    private File createFile(byte[] content) throws IOException {
+        File file = File.createTempFile("hashed", null, mContext.getCacheDir());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    private File createFile(long size) throws IOException {
+        File file = File.createTempFile("hashed", null, mContext.getCacheDir());
+        byte[] chunk = createContent(Utils.HASH_BUFFER_SIZE);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(/* seed= */ 0).nextBytes(content);
+        return content;
+    }
+
+    private interface HashRunner {
+        void run() throws Exception;
+    }
+
     private static ProvisioningParams.Builder createTrustedSourceParamsBuilder() {
         return ProvisioningParams.Builder.builder()
                 .setProvisioningAction(ACTION_PROVISION_MANAGED_DEVICE_FROM_TRUSTED_SOURCE)
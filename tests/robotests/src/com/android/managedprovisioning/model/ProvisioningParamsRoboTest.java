@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+
+import com.android.managedprovisioning.ProvisioningParamsProtos.ProvisioningParamsFile;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Robolectric tests for {@link ProvisioningParams}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningParamsRoboTest {
+
+    /** Set this system property to run {@link #saveAndLoad_benchmark}. */
+    private static final String PROPERTY_RUN_BENCHMARK = "managedprovisioning.benchmark";
+    private static final int BENCHMARK_ITERATIONS = 1_000;
+
+    private static final ComponentName TEST_COMPONENT_NAME = ComponentName.unflattenFromString(
+            "com.afwsamples.testdpc/com.afwsamples.testdpc.DeviceAdminReceiver");
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final File mFile = new File(mContext.getFilesDir(), "params.bin");
+    private final File mXmlFile = new File(mContext.getFilesDir(), "params.xml");
+
+    @After
+    public void tearDown() {
+        ProvisioningParamsCache.clear();
+        mFile.delete();
+        mXmlFile.delete();
+    }
+
+    @Test
+    public void load_savedAsProto_returnsSameParams() {
+        ProvisioningParams params = createProvisioningParams();
+        params.save(mFile);
+        ProvisioningParamsCache.invalidate(mFile);
+
+        assertThat(ProvisioningParams.load(mFile)).isEqualTo(params);
+    }
+
+    @Test
+    public void load_savedAsXml_returnsSameParams() {
+        ProvisioningParams params = createProvisioningParams();
+        params.saveAsXml(mXmlFile);
+
+        assertThat(ProvisioningParams.load(mXmlFile)).isEqualTo(params);
+    }
+
+    /**
+     * Compares saving and loading the params in the {@link ProvisioningParamsFile} format with the
+     * XML format used before, in time per operation and file size. The params are loaded from the
+     * file each time, not from the {@link ProvisioningParamsCache}.
+     */
+    @Test
+    public void saveAndLoad_benchmark() {
+        assumeTrue("Benchmark not requested", Boolean.getBoolean(PROPERTY_RUN_BENCHMARK));
+        ProvisioningParams params = createProvisioningParams();
+
+        runBenchmark("proto", params, mFile, params::save);
+        runBenchmark("XML", params, mXmlFile, params::saveAsXml);
+    }
+
+    private static void runBenchmark(String name, ProvisioningParams params, File file,
+            Consumer<File> saver) {
+        // Warms up both paths before they are timed.
+        saver.accept(file);
+        ProvisioningParamsCache.invalidate(file);
+        assertThat(ProvisioningParams.load(file)).isEqualTo(params);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            saver.accept(file);
+        }
+        long saveNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            ProvisioningParamsCache.invalidate(file);
+            ProvisioningParams.load(file);
+        }
+        long loadNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%s: save %.1f us, load %.1f us, %d bytes", name,
+                saveNanos / 1e3 / BENCHMARK_ITERATIONS, loadNanos / 1e3 / BENCHMARK_ITERATIONS,
+                file.length()));
+    }
+
+    private static ProvisioningParams createProvisioningParams() {
+        PersistableBundle adminExtras = new PersistableBundle();
+        adminExtras.putString("enrollment_token", "0123456789abcdef0123456789abcdef");
+        adminExtras.putInt("policy_version", 42);
+        adminExtras.putStringArray("allowed_apps",
+                new String[] {"com.example.mail", "com.example.calendar", "com.example.vpn"});
+        PersistableBundle nested = new PersistableBundle();
+        nested.putBoolean("kiosk", true);
+        nested.putLong("deadline", 1456939524713L);
+        adminExtras.putPersistableBundle("settings", nested);
+
+        return ProvisioningParams.Builder.builder()
+                .setProvisioningAction(DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE)
+                .setDeviceAdminComponentName(TEST_COMPONENT_NAME)
+                .setDeviceAdminDownloadInfo(PackageDownloadInfo.Builder.builder()
+                        .setLocation("http://example/dpc.apk")
+                        .setCookieHeader("Set-Cookie: sessionToken=foobar")
+                        .setPackageChecksum(new byte[] {'1', '2', '3', '4', '5'})
+                        .setMinVersion(17689)
+                        .build())
+                .setWifiInfo(WifiInfo.Builder.builder()
+                        .setSsid("TestWifi")
+                        .setSecurityType("WPA2")
+                        .setPassword("TestPassword")
+                        .setProxyHost("proxy.example.com")
+                        .setProxyPort(7689)
+                        .build())
+                .setLocalTime(1456939524713L)
+                .setLocale(Locale.UK)
+                .setTimeZone("GMT")
+                .setAdminExtrasBundle(adminExtras)
+                .setIsOrganizationOwnedProvisioning(true)
+                .build();
+    }
+}
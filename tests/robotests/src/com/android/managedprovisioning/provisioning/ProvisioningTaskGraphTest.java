@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertThrows;
+
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Robolectric tests for {@link ProvisioningTaskGraph}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningTaskGraphTest {
+
+    private final AbstractProvisioningTask mWifiTask = mock(AbstractProvisioningTask.class);
+    private final AbstractProvisioningTask mDownloadTask = mock(AbstractProvisioningTask.class);
+    private final AbstractProvisioningTask mVerifyTask = mock(AbstractProvisioningTask.class);
+    private final AbstractProvisioningTask mPolicyTask = mock(AbstractProvisioningTask.class);
+
+    private final ProvisioningTaskGraph mGraph = new ProvisioningTaskGraph();
+
+    @Test
+    public void getReadyTasks_emptyGraph_isComplete() {
+        assertThat(mGraph.getReadyTasks()).isEmpty();
+        assertThat(mGraph.isComplete()).isTrue();
+    }
+
+    @Test
+    public void getReadyTasks_tasksWithoutDependencies_allReadyInOrder() {
+        mGraph.addTask(mWifiTask);
+        mGraph.addTask(mPolicyTask);
+
+        assertThat(mGraph.getReadyTasks()).containsExactly(mWifiTask, mPolicyTask).inOrder();
+    }
+
+    @Test
+    public void getReadyTasks_dependencyNotCompleted_notReady() {
+        mGraph.addTask(mWifiTask);
+        mGraph.addTask(mDownloadTask, mWifiTask);
+
+        mGraph.markStarted(mWifiTask);
+
+        assertThat(mGraph.getReadyTasks()).isEmpty();
+        assertThat(mGraph.getRunningTaskCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getReadyTasks_dependencyCompleted_becomesReady() {
+        mGraph.addTask(mWifiTask);
+        mGraph.addTask(mDownloadTask, mWifiTask);
+
+        mGraph.markStarted(mWifiTask);
+        mGraph.markCompleted(mWifiTask);
+
+        assertThat(mGraph.getReadyTasks()).containsExactly(mDownloadTask);
+        assertThat(mGraph.getRunningTaskCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void getReadyTasks_multipleDependencies_waitsForAll() {
+        mGraph.addTask(mDownloadTask);
+        mGraph.addTask(mPolicyTask);
+        mGraph.addTask(mVerifyTask, mDownloadTask, mPolicyTask);
+        mGraph.markStarted(mDownloadTask);
+        mGraph.markStarted(mPolicyTask);
+
+        mGraph.markCompleted(mDownloadTask);
+        assertThat(mGraph.getReadyTasks()).isEmpty();
+
+        mGraph.markCompleted(mPolicyTask);
+        assertThat(mGraph.getReadyTasks()).containsExactly(mVerifyTask);
+    }
+
+    @Test
+    public void isComplete_allTasksCompleted_returnsTrue() {
+        mGraph.addTask(mDownloadTask);
+        mGraph.addTask(mVerifyTask, mDownloadTask);
+
+        mGraph.markStarted(mDownloadTask);
+        mGraph.markCompleted(mDownloadTask);
+        assertThat(mGraph.isComplete()).isFalse();
+
+        mGraph.markStarted(mVerifyTask);
+        mGraph.markCompleted(mVerifyTask);
+        assertThat(mGraph.isComplete()).isTrue();
+    }
+
+    @Test
+    public void addTask_unknownDependency_throwsException() {
+        assertThrows(IllegalArgumentException.class,
+                () -> mGraph.addTask(mVerifyTask, mDownloadTask));
+    }
+
+    @Test
+    public void addTask_addedTwice_throwsException() {
+        mGraph.addTask(mDownloadTask);
+
+        assertThrows(IllegalArgumentException.class, () -> mGraph.addTask(mDownloadTask));
+    }
+
+    @Test
+    public void markCompleted_notStarted_throwsException() {
+        mGraph.addTask(mDownloadTask);
+
+        assertThrows(IllegalArgumentException.class, () -> mGraph.markCompleted(mDownloadTask));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences.DEFAULT_PROVISIONING_ID;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Robolectric tests for {@link ProvisioningTaskJournal}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningTaskJournalTest {
+
+    private static final long PROVISIONING_ID = 42;
+    private static final long OTHER_PROVISIONING_ID = 43;
+    private static final String TASK_KEY = "1/DownloadPackageTask";
+    private static final String OTHER_TASK_KEY = "2/VerifyPackageTask";
+    private static final Map<String, String> OUTPUTS =
+            Collections.singletonMap("package_location", "/data/test.apk");
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private File mJournalDir;
+
+    @Before
+    public void setUp() {
+        mJournalDir = new File(mContext.getFilesDir(), ProvisioningTaskJournal.JOURNAL_DIR);
+    }
+
+    @Test
+    public void getCompletedTaskOutputs_nothingRecorded_returnsNull() {
+        ProvisioningTaskJournal journal = new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID);
+
+        assertThat(journal.getCompletedTaskOutputs(TASK_KEY)).isNull();
+    }
+
+    @Test
+    public void recordTaskCompleted_readByNewInstance() {
+        new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID)
+                .recordTaskCompleted(TASK_KEY, OUTPUTS);
+
+        ProvisioningTaskJournal journal = new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID);
+
+        assertThat(journal.getCompletedTaskOutputs(TASK_KEY)).isEqualTo(OUTPUTS);
+        assertThat(journal.getCompletedTaskOutputs(OTHER_TASK_KEY)).isNull();
+    }
+
+    @Test
+    public void getCompletedTaskOutputs_otherProvisioningSession_returnsNull() {
+        new ProvisioningTaskJournal(mJournalDir, OTHER_PROVISIONING_ID)
+                .recordTaskCompleted(TASK_KEY, OUTPUTS);
+
+        ProvisioningTaskJournal journal = new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID);
+
+        assertThat(journal.getCompletedTaskOutputs(TASK_KEY)).isNull();
+    }
+
+    @Test
+    public void getCompletedTaskOutputs_truncatedRecord_keepsPreviousRecords() throws IOException {
+        new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID)
+                .recordTaskCompleted(TASK_KEY, OUTPUTS);
+        File journalFile = new File(mJournalDir, Long.toString(PROVISIONING_ID));
+        long validLength = journalFile.length();
+        try (FileOutputStream out = new FileOutputStream(journalFile, /* append= */ true)) {
+            // Size prefix of a record whose body was never written.
+            out.write(new byte[] {20, 10});
+        }
+
+        ProvisioningTaskJournal journal = new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID);
+
+        assertThat(journal.getCompletedTaskOutputs(TASK_KEY)).isEqualTo(OUTPUTS);
+        assertThat(journalFile.length()).isEqualTo(validLength);
+    }
+
+    @Test
+    public void delete_recordsAreGone() {
+        ProvisioningTaskJournal journal = new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID);
+        journal.recordTaskCompleted(TASK_KEY, OUTPUTS);
+
+        journal.delete();
+
+        assertThat(journal.getCompletedTaskOutputs(TASK_KEY)).isNull();
+        assertThat(new ProvisioningTaskJournal(mJournalDir, PROVISIONING_ID)
+                .getCompletedTaskOutputs(TASK_KEY)).isNull();
+    }
+
+    @Test
+    public void recordTaskCompleted_defaultProvisioningId_isNotRecorded() {
+        new ProvisioningTaskJournal(mJournalDir, DEFAULT_PROVISIONING_ID)
+                .recordTaskCompleted(TASK_KEY, OUTPUTS);
+
+        ProvisioningTaskJournal journal =
+                new ProvisioningTaskJournal(mJournalDir, DEFAULT_PROVISIONING_ID);
+
+        assertThat(journal.getCompletedTaskOutputs(TASK_KEY)).isNull();
+    }
+}
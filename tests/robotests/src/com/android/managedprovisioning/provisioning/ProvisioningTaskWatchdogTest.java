@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.managedprovisioning.analytics.AnalyticsUtils;
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+import com.android.managedprovisioning.task.ProvisioningTaskStats;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Robolectric tests for {@link ProvisioningTaskWatchdog}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningTaskWatchdogTest {
+
+    private static final long DEADLINE_MILLIS = 1000;
+
+    private final AbstractProvisioningTask mTask = mock(AbstractProvisioningTask.class);
+    private final ProvisioningTaskWatchdog.Callback mCallback =
+            mock(ProvisioningTaskWatchdog.Callback.class);
+    private final ProvisioningTaskStats mTaskStats = mock(ProvisioningTaskStats.class);
+    private final AnalyticsUtils mAnalyticsUtils = mock(AnalyticsUtils.class);
+    private final ProvisioningTaskWatchdog mWatchdog = new ProvisioningTaskWatchdog(
+            new Handler(Looper.getMainLooper()),
+            new ProvisioningTaskWatchdog.DeadlinePolicy(DEADLINE_MILLIS),
+            mCallback,
+            mTaskStats,
+            mAnalyticsUtils);
+
+    @Test
+    public void deadlineExceeded_reportsTimeout() {
+        when(mAnalyticsUtils.elapsedRealTime()).thenReturn(0L);
+        mWatchdog.startWatching(mTask);
+
+        ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+
+        verify(mCallback).onTaskTimedOut(mTask);
+    }
+
+    @Test
+    public void stopWatching_beforeDeadline_doesNotReportTimeout() {
+        when(mAnalyticsUtils.elapsedRealTime()).thenReturn(0L);
+        mWatchdog.startWatching(mTask);
+
+        mWatchdog.stopWatching(mTask);
+        ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+
+        verify(mCallback, never()).onTaskTimedOut(mTask);
+    }
+
+    @Test
+    public void stopWatching_recordsDeadlinePercentage() {
+        when(mAnalyticsUtils.elapsedRealTime()).thenReturn(0L);
+        mWatchdog.startWatching(mTask);
+
+        when(mAnalyticsUtils.elapsedRealTime()).thenReturn(DEADLINE_MILLIS / 4);
+        mWatchdog.stopWatching(mTask);
+
+        verify(mTaskStats).onTaskFinished(mTask, 25);
+    }
+
+    @Test
+    public void stopWatchingAll_doesNotReportTimeout() {
+        when(mAnalyticsUtils.elapsedRealTime()).thenReturn(0L);
+        mWatchdog.startWatching(mTask);
+
+        mWatchdog.stopWatchingAll();
+        ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+
+        verify(mCallback, never()).onTaskTimedOut(mTask);
+        verify(mTaskStats, never()).onTaskFinished(eq(mTask), anyInt());
+    }
+
+    @Test
+    public void deadlinePolicy_perTaskDeadline_overridesDefault() {
+        ProvisioningTaskWatchdog.DeadlinePolicy policy =
+                new ProvisioningTaskWatchdog.DeadlinePolicy(DEADLINE_MILLIS)
+                        .setDeadline(mTask.getClass(), 2 * DEADLINE_MILLIS);
+
+        assertThat(policy.getDeadlineMillis(mTask)).isEqualTo(2 * DEADLINE_MILLIS);
+    }
+}
@@ -20,7 +20,16 @@ import static android.provider.Settings.Secure.MANAGED_PROVISIONING_DPC_DOWNLOAD
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.content.ComponentName;
@@ -28,15 +37,23 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
+import android.os.Handler;
 import android.provider.Settings;
 
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.net.HttpURLConnection;
 
 /** Test class for {@link DownloadPackaageTask}. */
 @RunWith(RobolectricTestRunner.class)
@@ -47,6 +64,8 @@ public class DownloadPackageTaskRoboTest {
             new ComponentName("test", "test");
     private static final String TEST_PACKAGE_LOCATION = "http://test.location/test.apk";
     private static final byte[] TEST_PACKAGE_CHECKSUM = new byte[]{1};
+    private static final byte[] TEST_SHA256 = new byte[]{2};
+    private static final File TEST_DOWNLOADED_FILE = new File("/test/downloaded.apk");
 
     private final Context mContext = RuntimeEnvironment.application;
     private final PackageManager mPackageManager = mContext.getPackageManager();
@@ -54,6 +73,8 @@ public class DownloadPackageTaskRoboTest {
             mContext.getSystemService(ConnectivityManager.class);
     private final AbstractProvisioningTask.Callback mCallback =
             mock(AbstractProvisioningTask.Callback.class);
+    private final PackageDownloader mDownloader = mock(PackageDownloader.class);
+    private final PackageDownloader.Download mDownload = mock(PackageDownloader.Download.class);
 
     @Test
     public void run_doesSetManagedProvisioningDpcDownloaded() {
@@ -116,6 +137,161 @@ public class DownloadPackageTaskRoboTest {
         assertManagedProvisioningDpcDownloadedSetTo(0);
     }
 
+    @Test
+    public void run_downloadCompletes_exposesLocationAndSha256() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final DownloadPackageTask downloadPackageTask = createTaskWithMockDownloader(params);
+
+        downloadPackageTask.run(USER_ID);
+        captureDownloadCallback().onDownloadComplete(TEST_DOWNLOADED_FILE, TEST_SHA256);
+
+        verify(mCallback).onSuccess(downloadPackageTask);
+        assertThat(downloadPackageTask.getPackageLocation()).isEqualTo(TEST_DOWNLOADED_FILE);
+        assertThat(downloadPackageTask.getPackageSha256()).isEqualTo(TEST_SHA256);
+    }
+
+    @Test
+    public void run_transientFailure_retriesDownload() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final DownloadPackageTask downloadPackageTask = createTaskWithMockDownloader(params);
+
+        downloadPackageTask.run(USER_ID);
+        captureDownloadCallback().onDownloadFailed(HttpURLConnection.HTTP_UNAVAILABLE);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        verify(mDownloader, times(2)).start(any(PackageDownloadInfo.class), any(File.class));
+        verify(mCallback, never()).onError(any(), anyInt());
+    }
+
+    @Test
+    public void run_transientFailure_retryResumesSameDestination() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final DownloadPackageTask downloadPackageTask = createTaskWithMockDownloader(params);
+        downloadPackageTask.run(USER_ID);
+        ArgumentCaptor<File> destinationCaptor = ArgumentCaptor.forClass(File.class);
+        verify(mDownloader).start(any(PackageDownloadInfo.class), destinationCaptor.capture());
+        final File destination = destinationCaptor.getValue();
+        when(mDownload.getDestination()).thenReturn(destination);
+
+        captureDownloadCallback().onDownloadFailed(PackageDownloader.REASON_IO_ERROR);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        verify(mDownloader, times(2)).start(any(PackageDownloadInfo.class), eq(destination));
+    }
+
+    @Test
+    public void run_permanentFailure_reportsError() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final DownloadPackageTask downloadPackageTask = createTaskWithMockDownloader(params);
+
+        downloadPackageTask.run(USER_ID);
+        captureDownloadCallback().onDownloadFailed(HttpURLConnection.HTTP_NOT_FOUND);
+
+        verify(mCallback).onError(downloadPackageTask, DownloadPackageTask.ERROR_DOWNLOAD_FAILED);
+        verify(mDownloader, times(1)).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    @Test
+    public void run_prefetchedDownload_isAdopted() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final PackageDownloader prefetchDownloader = mock(PackageDownloader.class);
+        final PackageDownloader.Download prefetchedDownload =
+                mock(PackageDownloader.Download.class);
+        when(prefetchDownloader.start(any(PackageDownloadInfo.class), any(File.class)))
+                .thenReturn(prefetchedDownload);
+        when(prefetchedDownload.getDownloadInfo()).thenReturn(params.deviceAdminDownloadInfo);
+        final PackageDownloadPrefetcher prefetcher =
+                new PackageDownloadPrefetcher(prefetchDownloader, Runnable::run);
+        final Utils utils = mock(Utils.class);
+        when(utils.packageRequiresUpdate(eq(TEST_COMPONENT_NAME.getPackageName()), anyInt(),
+                eq(mContext))).thenReturn(true);
+        when(utils.isConnectedToNetwork(mContext)).thenReturn(true);
+        prefetcher.prefetch(mContext, params.deviceAdminDownloadInfo,
+                TEST_COMPONENT_NAME.getPackageName(), utils);
+        final DownloadPackageTask downloadPackageTask = new DownloadPackageTask(new Utils(),
+                mContext, params, mCallback, mock(ProvisioningAnalyticsTracker.class), prefetcher,
+                mDownloader, mock(PackageCache.class));
+
+        downloadPackageTask.run(USER_ID);
+
+        verify(prefetchedDownload).observe(eq(downloadPackageTask), any(Handler.class));
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    @Test
+    public void run_packageCached_doesNotDownload() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final PackageCache packageCache = mock(PackageCache.class);
+        when(packageCache.get(eq(params.deviceAdminDownloadInfo), any(File.class)))
+                .thenReturn(true);
+        final ProvisioningTaskStats taskStats = mock(ProvisioningTaskStats.class);
+        final DownloadPackageTask downloadPackageTask = new DownloadPackageTask(new Utils(),
+                mContext, params, mCallback, mock(ProvisioningAnalyticsTracker.class),
+                createIdlePrefetcher(), mDownloader, packageCache);
+        downloadPackageTask.setTaskStats(taskStats);
+
+        downloadPackageTask.run(USER_ID);
+
+        verify(mCallback).onSuccess(downloadPackageTask);
+        verify(taskStats).onPackageCacheLookup(eq(true), anyLong());
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+        assertThat(downloadPackageTask.getPackageLocation()).isNotNull();
+        // The cached package is verified again.
+        assertThat(downloadPackageTask.getPackageSha256()).isNull();
+    }
+
+    @Test
+    public void run_packageNotCached_downloadsPackage() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final ProvisioningTaskStats taskStats = mock(ProvisioningTaskStats.class);
+        final DownloadPackageTask downloadPackageTask = createTaskWithMockDownloader(params);
+        downloadPackageTask.setTaskStats(taskStats);
+
+        downloadPackageTask.run(USER_ID);
+
+        verify(mDownloader).start(any(PackageDownloadInfo.class), any(File.class));
+        verify(taskStats).onPackageCacheLookup(false, 0);
+    }
+
+    @Test
+    public void run_downloadFailedThenCompleted_recordsStatsOfEachAttempt() {
+        final ProvisioningParams params = createDefaultProvisioningParamsBuilder().build();
+        final ProvisioningTaskStats taskStats = mock(ProvisioningTaskStats.class);
+        final DownloadPackageTask downloadPackageTask = createTaskWithMockDownloader(params);
+        downloadPackageTask.setTaskStats(taskStats);
+        final PackageDownloadStats stats = mDownload.getStats();
+
+        downloadPackageTask.run(USER_ID);
+        captureDownloadCallback().onDownloadFailed(HttpURLConnection.HTTP_UNAVAILABLE);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        captureDownloadCallback().onDownloadComplete(TEST_DOWNLOADED_FILE, TEST_SHA256);
+
+        verify(taskStats).onPackageDownloadFinished(stats, 0);
+        verify(taskStats).onPackageDownloadFinished(stats, 1);
+    }
+
+    private DownloadPackageTask createTaskWithMockDownloader(ProvisioningParams params) {
+        when(mDownloader.start(any(PackageDownloadInfo.class), any(File.class)))
+                .thenReturn(mDownload);
+        when(mDownload.getStats()).thenReturn(
+                new PackageDownloadStats(TEST_PACKAGE_LOCATION, /* startMillis= */ 0));
+        return new DownloadPackageTask(new Utils(), mContext, params, mCallback,
+                mock(ProvisioningAnalyticsTracker.class),
+                createIdlePrefetcher(), mDownloader,
+                mock(PackageCache.class));
+    }
+
+    private static PackageDownloadPrefetcher createIdlePrefetcher() {
+        return new PackageDownloadPrefetcher(mock(PackageDownloader.class), Runnable::run);
+    }
+
+    private PackageDownloader.Callback captureDownloadCallback() {
+        ArgumentCaptor<PackageDownloader.Callback> callbackCaptor =
+                ArgumentCaptor.forClass(PackageDownloader.Callback.class);
+        verify(mDownload, atLeastOnce()).observe(callbackCaptor.capture(), any(Handler.class));
+        return callbackCaptor.getValue();
+    }
+
     private void assertManagedProvisioningDpcDownloadedSetTo(int value) {
         int dpcInstalledSetting =
                 Settings.Secure.getInt(
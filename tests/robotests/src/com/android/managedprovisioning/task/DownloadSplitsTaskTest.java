@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Robolectric tests for {@link DownloadSplitsTask}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSplitsTaskTest {
+
+    private static final int USER_ID = 0;
+    private static final ComponentName TEST_COMPONENT_NAME =
+            new ComponentName("test", "test");
+    private static final String TEST_PACKAGE_LOCATION = "http://test.location/test.apk";
+    private static final int SPLIT_COUNT = 5;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final Utils mUtils = mock(Utils.class);
+    private final PackageDownloader mDownloader = mock(PackageDownloader.class);
+    private final AbstractProvisioningTask.Callback mCallback =
+            mock(AbstractProvisioningTask.Callback.class);
+    private final List<PackageDownloader.Download> mDownloads = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        when(mUtils.packageRequiresUpdate(anyString(), anyInt(), any(Context.class)))
+                .thenReturn(true);
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(true);
+        when(mDownloader.start(any(PackageDownloadInfo.class), any(File.class)))
+                .thenAnswer(invocation -> {
+                    PackageDownloader.Download download = mock(PackageDownloader.Download.class);
+                    when(download.getDestination()).thenReturn(invocation.getArgument(1));
+                    mDownloads.add(download);
+                    return download;
+                });
+    }
+
+    @Test
+    public void run_noSplits_succeedsWithoutDownloading() {
+        DownloadSplitsTask task = createTask(/* splitCount= */ 0);
+
+        task.run(USER_ID);
+
+        verify(mCallback).onSuccess(task);
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    @Test
+    public void run_startsBoundedNumberOfDownloads() {
+        DownloadSplitsTask task = createTask(SPLIT_COUNT);
+
+        task.run(USER_ID);
+
+        assertThat(mDownloads).hasSize(DownloadSplitsTask.MAX_PARALLEL_DOWNLOADS);
+    }
+
+    @Test
+    public void run_allSplitsDownloaded_succeedsWithSplitsInOrder() {
+        DownloadSplitsTask task = createTask(SPLIT_COUNT);
+        task.run(USER_ID);
+
+        // Complete the downloads in reverse order of start, each completion starts the next.
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < SPLIT_COUNT; i++) {
+            files.add(new File("split_" + i + ".apk"));
+        }
+        captureCallback(1).onDownloadComplete(files.get(1), checksum(1));
+        captureCallback(0).onDownloadComplete(files.get(0), checksum(0));
+        assertThat(mDownloads).hasSize(SPLIT_COUNT);
+        captureCallback(4).onDownloadComplete(files.get(4), checksum(4));
+        captureCallback(3).onDownloadComplete(files.get(3), checksum(3));
+        verify(mCallback, never()).onSuccess(task);
+        captureCallback(2).onDownloadComplete(files.get(2), checksum(2));
+
+        verify(mCallback).onSuccess(task);
+        assertThat(task.getSplitLocations()).isEqualTo(files);
+    }
+
+    @Test
+    public void run_splitHashMismatch_reportsError() {
+        DownloadSplitsTask task = createTask(SPLIT_COUNT);
+        task.run(USER_ID);
+
+        captureCallback(0).onDownloadComplete(new File("split_0.apk"), checksum(1));
+
+        verify(mCallback).onError(task, DownloadSplitsTask.ERROR_HASH_MISMATCH);
+        verify(mDownloads.get(1)).cancel();
+        assertThat(task.getSplitLocations()).isEmpty();
+    }
+
+    @Test
+    public void run_permanentFailure_reportsError() {
+        DownloadSplitsTask task = createTask(SPLIT_COUNT);
+        task.run(USER_ID);
+
+        captureCallback(2).onDownloadFailed(HttpURLConnection.HTTP_NOT_FOUND);
+
+        verify(mCallback).onError(task, DownloadSplitsTask.ERROR_DOWNLOAD_FAILED);
+    }
+
+    @Test
+    public void run_notConnected_reportsError() {
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(false);
+        DownloadSplitsTask task = createTask(SPLIT_COUNT);
+
+        task.run(USER_ID);
+
+        verify(mCallback).onError(eq(task), eq(DownloadSplitsTask.ERROR_DOWNLOAD_FAILED));
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    private PackageDownloader.Callback captureCallback(int index) {
+        ArgumentCaptor<PackageDownloader.Callback> callbackCaptor =
+                ArgumentCaptor.forClass(PackageDownloader.Callback.class);
+        verify(mDownloads.get(index)).observe(callbackCaptor.capture(), any(Handler.class));
+        return callbackCaptor.getValue();
+    }
+
+    private DownloadSplitsTask createTask(int splitCount) {
+        List<PackageDownloadInfo.Split> splits = new ArrayList<>();
+        for (int i = 0; i < splitCount; i++) {
+            splits.add(new PackageDownloadInfo.Split(
+                    "http://test.location/split_" + i + ".apk", checksum(i)));
+        }
+        ProvisioningParams params = new ProvisioningParams.Builder()
+                .setDeviceAdminComponentName(TEST_COMPONENT_NAME)
+                .setProvisioningAction("")
+                .setDeviceAdminDownloadInfo(new PackageDownloadInfo.Builder()
+                        .setLocation(TEST_PACKAGE_LOCATION)
+                        .setPackageChecksum(new byte[] {1})
+                        .setSplits(splits)
+                        .build())
+                .build();
+        return new DownloadSplitsTask(mUtils, mContext, params, mCallback,
+                mock(ProvisioningAnalyticsTracker.class), mDownloader);
+    }
+
+    private static byte[] checksum(int index) {
+        return new byte[] {(byte) index, 1, 2, 3};
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Robolectric tests for {@link PackageCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageCacheTest {
+
+    private static final int MAX_ENTRIES = 2;
+    private static final long MAX_SIZE_BYTES = 100;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final File mCacheDir = new File(mContext.getFilesDir(), "test_package_cache");
+    private final File mDestination = new File(mContext.getFilesDir(), "package.apk");
+    private final PackageCache mPackageCache =
+            new PackageCache(mCacheDir, MAX_ENTRIES, MAX_SIZE_BYTES);
+
+    // Entries marked as used get increasing modification times, all before the entries put next.
+    private long mLastModifiedMillis = System.currentTimeMillis() - 1_000_000;
+
+    @Before
+    public void setUp() {
+        mDestination.delete();
+    }
+
+    @Test
+    public void get_notCached_returnsFalse() {
+        assertThat(mPackageCache.get(createDownloadInfo(1), mDestination)).isFalse();
+        assertThat(mDestination.exists()).isFalse();
+    }
+
+    @Test
+    public void get_cached_providesPackageAtDestination() throws Exception {
+        mPackageCache.put(createDownloadInfo(1), createPackage("package", 10));
+
+        assertThat(mPackageCache.get(createDownloadInfo(1), mDestination)).isTrue();
+        assertThat(readFile(mDestination)).isEqualTo("package");
+    }
+
+    @Test
+    public void get_destinationDeleted_packageStaysCached() throws Exception {
+        mPackageCache.put(createDownloadInfo(1), createPackage("package", 10));
+        mPackageCache.get(createDownloadInfo(1), mDestination);
+
+        mDestination.delete();
+
+        assertThat(mPackageCache.get(createDownloadInfo(1), mDestination)).isTrue();
+    }
+
+    @Test
+    public void get_signatureChecksum_keyedByMinVersion() throws Exception {
+        PackageDownloadInfo version1 = createSignatureDownloadInfo(1);
+        mPackageCache.put(version1, createPackage("package", 10));
+
+        assertThat(mPackageCache.get(createSignatureDownloadInfo(1), mDestination)).isTrue();
+        assertThat(mPackageCache.get(createSignatureDownloadInfo(2), mDestination)).isFalse();
+    }
+
+    @Test
+    public void put_tooManyEntries_evictsLeastRecentlyUsed() throws Exception {
+        mPackageCache.put(createDownloadInfo(1), createPackage("package1", 10));
+        setLastModified(createDownloadInfo(1));
+        mPackageCache.put(createDownloadInfo(2), createPackage("package2", 10));
+        setLastModified(createDownloadInfo(2));
+        // Using the first package makes the second the least recently used.
+        setLastModified(createDownloadInfo(1));
+
+        mPackageCache.put(createDownloadInfo(3), createPackage("package3", 10));
+
+        assertThat(mPackageCache.get(createDownloadInfo(1), mDestination)).isTrue();
+        assertThat(mPackageCache.get(createDownloadInfo(2), mDestination)).isFalse();
+        assertThat(mPackageCache.get(createDownloadInfo(3), mDestination)).isTrue();
+    }
+
+    @Test
+    public void put_tooLarge_evictsLeastRecentlyUsed() throws Exception {
+        mPackageCache.put(createDownloadInfo(1), createPackage("package1", 60));
+        setLastModified(createDownloadInfo(1));
+
+        mPackageCache.put(createDownloadInfo(2), createPackage("package2", 60));
+
+        assertThat(mPackageCache.get(createDownloadInfo(1), mDestination)).isFalse();
+        assertThat(mPackageCache.get(createDownloadInfo(2), mDestination)).isTrue();
+    }
+
+    @Test
+    public void remove_packageNoLongerCached() throws Exception {
+        mPackageCache.put(createDownloadInfo(1), createPackage("package", 10));
+
+        mPackageCache.remove(createDownloadInfo(1));
+
+        assertThat(mPackageCache.get(createDownloadInfo(1), mDestination)).isFalse();
+    }
+
+    private void setLastModified(PackageDownloadInfo downloadInfo) {
+        mLastModifiedMillis += 1000;
+        new File(mCacheDir, PackageCache.getKey(downloadInfo)).setLastModified(mLastModifiedMillis);
+    }
+
+    private File createPackage(String content, int size) throws IOException {
+        File file = File.createTempFile("package", ".apk", mContext.getCacheDir());
+        byte[] bytes = new byte[size];
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(contentBytes, 0, bytes, 0, contentBytes.length);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    private static PackageDownloadInfo createDownloadInfo(int packageChecksum) {
+        return new PackageDownloadInfo.Builder()
+                .setLocation("http://test.location/test.apk")
+                .setPackageChecksum(new byte[] {(byte) packageChecksum})
+                .build();
+    }
+
+    private static PackageDownloadInfo createSignatureDownloadInfo(int minVersion) {
+        return new PackageDownloadInfo.Builder()
+                .setLocation("http://test.location/test.apk")
+                .setSignatureChecksum(new byte[] {1})
+                .setMinVersion(minVersion)
+                .build();
+    }
+}
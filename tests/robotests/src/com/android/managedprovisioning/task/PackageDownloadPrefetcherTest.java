@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Robolectric tests for {@link PackageDownloadPrefetcher}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageDownloadPrefetcherTest {
+
+    private static final PackageDownloadInfo DOWNLOAD_INFO = new PackageDownloadInfo.Builder()
+            .setLocation("http://test.location/test.apk")
+            .setPackageChecksum(new byte[] {1})
+            .build();
+    private static final PackageDownloadInfo OTHER_DOWNLOAD_INFO = new PackageDownloadInfo.Builder()
+            .setLocation("http://test.location/other.apk")
+            .setPackageChecksum(new byte[] {1})
+            .build();
+
+    private static final String PACKAGE_NAME = "com.test.admin";
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final Utils mUtils = mock(Utils.class);
+    private final PackageDownloader mDownloader = mock(PackageDownloader.class);
+    private final PackageDownloader.Download mDownload = mock(PackageDownloader.Download.class);
+    private final List<Runnable> mPendingChecks = new ArrayList<>();
+    // Runs the checks when runPendingChecks() is called.
+    private final PackageDownloadPrefetcher mPrefetcher =
+            new PackageDownloadPrefetcher(mDownloader, mPendingChecks::add);
+
+    @Before
+    public void setUp() {
+        when(mUtils.packageRequiresUpdate(PACKAGE_NAME, DOWNLOAD_INFO.minVersion, mContext))
+                .thenReturn(true);
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(true);
+        when(mDownloader.start(eq(DOWNLOAD_INFO), any(File.class))).thenReturn(mDownload);
+        when(mDownload.getDownloadInfo()).thenReturn(DOWNLOAD_INFO);
+    }
+
+    @Test
+    public void adopt_nothingPrefetched_returnsNull() {
+        assertThat(mPrefetcher.adopt(mContext, DOWNLOAD_INFO)).isNull();
+    }
+
+    @Test
+    public void adopt_samePackage_returnsDownloadOnce() {
+        prefetch();
+
+        assertThat(mPrefetcher.adopt(mContext, DOWNLOAD_INFO)).isSameInstanceAs(mDownload);
+        assertThat(mPrefetcher.adopt(mContext, DOWNLOAD_INFO)).isNull();
+        verify(mDownload, never()).cancel();
+    }
+
+    @Test
+    public void adopt_otherPackage_cancelsDownload() {
+        prefetch();
+
+        assertThat(mPrefetcher.adopt(mContext, OTHER_DOWNLOAD_INFO)).isNull();
+        verify(mDownload).cancel();
+    }
+
+    @Test
+    public void prefetch_samePackageTwice_downloadsOnce() {
+        mPrefetcher.prefetch(mContext, DOWNLOAD_INFO, PACKAGE_NAME, mUtils);
+        prefetch();
+
+        verify(mDownloader, times(1)).start(eq(DOWNLOAD_INFO), any(File.class));
+    }
+
+    @Test
+    public void prefetch_notConnected_doesNotDownload() {
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(false);
+
+        prefetch();
+
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+        assertThat(mPrefetcher.adopt(mContext, DOWNLOAD_INFO)).isNull();
+    }
+
+    @Test
+    public void prefetch_packageUpToDate_doesNotDownload() {
+        when(mUtils.packageRequiresUpdate(PACKAGE_NAME, DOWNLOAD_INFO.minVersion, mContext))
+                .thenReturn(false);
+
+        prefetch();
+
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    @Test
+    public void prefetch_queriesPackageManagerOffCallingThread() {
+        mPrefetcher.prefetch(mContext, DOWNLOAD_INFO, PACKAGE_NAME, mUtils);
+
+        verify(mUtils, never()).packageRequiresUpdate(any(), anyInt(), any());
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    @Test
+    public void discard_beforeChecksRan_doesNotDownload() {
+        mPrefetcher.prefetch(mContext, DOWNLOAD_INFO, PACKAGE_NAME, mUtils);
+
+        mPrefetcher.discard(mContext);
+        runPendingChecks();
+
+        verify(mDownloader, never()).start(any(PackageDownloadInfo.class), any(File.class));
+    }
+
+    @Test
+    public void discard_cancelsDownload() {
+        prefetch();
+
+        mPrefetcher.discard(mContext);
+
+        verify(mDownload).cancel();
+        assertThat(mPrefetcher.adopt(mContext, DOWNLOAD_INFO)).isNull();
+    }
+
+    private void prefetch() {
+        mPrefetcher.prefetch(mContext, DOWNLOAD_INFO, PACKAGE_NAME, mUtils);
+        runPendingChecks();
+    }
+
+    private void runPendingChecks() {
+        for (Runnable check : mPendingChecks) {
+            check.run();
+        }
+        mPendingChecks.clear();
+    }
+}
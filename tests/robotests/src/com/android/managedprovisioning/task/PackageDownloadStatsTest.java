@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.android.managedprovisioning.task.PackageDownloadStats.SAMPLE_INTERVAL_MILLIS;
+import static com.android.managedprovisioning.task.PackageDownloadStats.STALL_THRESHOLD_MILLIS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Robolectric tests for {@link PackageDownloadStats}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageDownloadStatsTest {
+
+    private static final String TEST_LOCATION = "http://test.location/test.apk";
+    private static final long START_MILLIS = 1_000;
+
+    private final PackageDownloadStats mStats =
+            new PackageDownloadStats(TEST_LOCATION, START_MILLIS);
+
+    @Test
+    public void onConnected_recordsTimeToFirstByteOfFirstConnection() {
+        mStats.onConnected(START_MILLIS + 300);
+        mStats.onConnected(START_MILLIS + 5_000);
+
+        assertThat(mStats.getTimeToFirstByteMillis()).isEqualTo(300);
+        assertThat(mStats.getConnections()).isEqualTo(2);
+    }
+
+    @Test
+    public void onRead_samplesThroughputPerInterval() {
+        mStats.onConnected(START_MILLIS);
+        // 10 windows at 1, 2, ..., 10 KB per interval.
+        long now = START_MILLIS;
+        for (int i = 1; i <= 10; i++) {
+            now += SAMPLE_INTERVAL_MILLIS;
+            mStats.onRead(i * 1024, i * 1024, /* networkNanos= */ 0, /* decodeNanos= */ 0, now);
+        }
+
+        assertThat(mStats.getSampleCount()).isEqualTo(10);
+        long bytesPerSecondPerKb = 1024 * 1000 / SAMPLE_INTERVAL_MILLIS;
+        assertThat(mStats.getThroughputPercentile(10)).isEqualTo(bytesPerSecondPerKb);
+        assertThat(mStats.getThroughputPercentile(50)).isEqualTo(5 * bytesPerSecondPerKb);
+        assertThat(mStats.getThroughputPercentile(90)).isEqualTo(9 * bytesPerSecondPerKb);
+        assertThat(mStats.getBytes()).isEqualTo(55 * 1024);
+    }
+
+    @Test
+    public void getThroughputPercentile_noSamples_returnsZero() {
+        assertThat(mStats.getThroughputPercentile(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void onRead_longRead_countsStall() {
+        long stallNanos = TimeUnit.MILLISECONDS.toNanos(STALL_THRESHOLD_MILLIS);
+        mStats.onRead(100, 100, /* networkNanos= */ 1_000, /* decodeNanos= */ 0, START_MILLIS);
+        mStats.onRead(100, 100, stallNanos, /* decodeNanos= */ 0, START_MILLIS);
+        mStats.onRead(100, 100, 2 * stallNanos, /* decodeNanos= */ 0, START_MILLIS);
+
+        assertThat(mStats.getStalls()).isEqualTo(2);
+        assertThat(mStats.getStalledMillis()).isEqualTo(3 * STALL_THRESHOLD_MILLIS);
+    }
+
+    @Test
+    public void onReadAndWrite_splitsNetworkDecodingAndStorageTime() {
+        mStats.onRead(100, 40, TimeUnit.MILLISECONDS.toNanos(30),
+                TimeUnit.MILLISECONDS.toNanos(10), START_MILLIS);
+        mStats.onWrite(TimeUnit.MILLISECONDS.toNanos(70));
+        mStats.onWrite(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertThat(mStats.getNetworkMillis()).isEqualTo(30);
+        assertThat(mStats.getDecodeMillis()).isEqualTo(10);
+        assertThat(mStats.getStorageMillis()).isEqualTo(75);
+        assertThat(mStats.getBytes()).isEqualTo(100);
+        assertThat(mStats.getWireBytes()).isEqualTo(40);
+    }
+
+    @Test
+    public void onSourceFinished_keepsSourcesInOrder() {
+        mStats.onSourceFinished(new PackageDownloadStats.SourceStats(/* locationIndex= */ 0,
+                /* bytes= */ 1000, /* durationMillis= */ 500, /* completed= */ false));
+        mStats.onSourceFinished(new PackageDownloadStats.SourceStats(/* locationIndex= */ 1,
+                /* bytes= */ 3000, /* durationMillis= */ 0, /* completed= */ true));
+
+        List<PackageDownloadStats.SourceStats> sources = mStats.getSources();
+        assertThat(sources).hasSize(2);
+        assertThat(sources.get(0).getLocationIndex()).isEqualTo(0);
+        assertThat(sources.get(0).getThroughput()).isEqualTo(2000);
+        assertThat(sources.get(1).getLocationIndex()).isEqualTo(1);
+        assertThat(sources.get(1).getThroughput()).isEqualTo(0);
+        assertThat(sources.get(1).isCompleted()).isTrue();
+    }
+
+    @Test
+    public void onFinished_addsPartialSample() {
+        mStats.onConnected(START_MILLIS);
+        mStats.onRead(1000, 1000, /* networkNanos= */ 0, /* decodeNanos= */ 0,
+                START_MILLIS + 100);
+        mStats.onFinished(/* succeeded= */ true, START_MILLIS + 200);
+
+        assertThat(mStats.getSampleCount()).isEqualTo(1);
+        assertThat(mStats.getThroughputPercentile(50)).isEqualTo(5000);
+        assertThat(mStats.getDurationMillis(START_MILLIS + 10_000)).isEqualTo(200);
+        assertThat(mStats.isSucceeded()).isTrue();
+    }
+}
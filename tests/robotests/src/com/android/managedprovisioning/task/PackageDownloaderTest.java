@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Robolectric tests for {@link PackageDownloader}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageDownloaderTest {
+
+    private static final int PACKAGE_SIZE = 200_000;
+    private static final int INTERRUPTED_AT = 50_000;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final PackageDownloader.Callback mCallback = mock(PackageDownloader.Callback.class);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Runs the download on the calling thread.
+    private final PackageDownloader mDownloader = new PackageDownloader(Runnable::run);
+    private final File mDestination = new File(mContext.getFilesDir(), "downloaded.apk");
+
+    private FakePackageServer mServer;
+    private FakePackageServer mMirror;
+    private PackageDownloadInfo mDownloadInfo;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakePackageServer(createPackage(/* seed= */ 0), "\"v1\"");
+        mDownloadInfo = new PackageDownloadInfo.Builder()
+                .setLocation(mServer.getUrl())
+                .setPackageChecksum(new byte[] {1})
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        if (mMirror != null) {
+            mMirror.close();
+        }
+        PackageDownloader.delete(mDestination);
+    }
+
+    @Test
+    public void start_downloadsPackageAndComputesSha256() throws Exception {
+        startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(Files.readAllBytes(mDestination.toPath())).isEqualTo(mServer.mBody);
+        assertThat(PackageDownloader.getPartialFile(mDestination).exists()).isFalse();
+    }
+
+    @Test
+    public void start_recordsStats() {
+        PackageDownloader.Download download = startAndObserve();
+
+        PackageDownloadStats stats = download.getStats();
+        assertThat(stats.isSucceeded()).isTrue();
+        assertThat(stats.getBytes()).isEqualTo(PACKAGE_SIZE);
+        assertThat(stats.getConnections()).isEqualTo(1);
+        assertThat(stats.getTimeToFirstByteMillis()).isAtLeast(0L);
+        assertThat(stats.getSampleCount()).isAtLeast(1);
+    }
+
+    @Test
+    public void cancel_readBlocked_abortsWithoutWaitingForReadTimeout() throws Exception {
+        mServer.mStallAfterBytes = INTERRUPTED_AT;
+        List<Thread> threads = new ArrayList<>();
+        PackageDownloader downloader = new PackageDownloader(command -> {
+            Thread thread = new Thread(command);
+            synchronized (threads) {
+                threads.add(thread);
+            }
+            thread.start();
+        });
+        PackageDownloader.Download download = downloader.start(mDownloadInfo, mDestination);
+        download.observe(mCallback, mHandler);
+        assertThat(mServer.mStalled.await(10, TimeUnit.SECONDS)).isTrue();
+
+        download.cancel();
+        Thread downloadThread;
+        synchronized (threads) {
+            downloadThread = threads.get(0);
+        }
+        // Well below the read timeout of the connection.
+        downloadThread.join(TimeUnit.SECONDS.toMillis(10));
+        ShadowLooper.idleMainLooper();
+
+        assertThat(downloadThread.isAlive()).isFalse();
+        verify(mCallback, never()).onDownloadFailed(anyInt());
+        verify(mCallback, never()).onDownloadComplete(any(), any());
+        assertThat(PackageDownloader.getPartialFile(mDestination).exists()).isFalse();
+    }
+
+    @Test
+    public void start_redirected_followsRedirectWithSameHeaders() throws Exception {
+        mMirror = new FakePackageServer(mServer.mBody, mServer.mEtag);
+        mServer.mRedirectLocation = mMirror.getUrl();
+        mDownloadInfo = new PackageDownloadInfo.Builder()
+                .setLocation(mServer.getUrl())
+                .setCookieHeader("session=1")
+                .setPackageChecksum(new byte[] {1})
+                .build();
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(mMirror.getLastRequestHeaders().get("cookie")).isEqualTo("session=1");
+    }
+
+    @Test
+    public void start_redirectLoop_reportsRedirectStatus() throws Exception {
+        mServer.mRedirectLocation = mServer.getUrl();
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadFailed(302);
+    }
+
+    @Test
+    public void start_interrupted_keepsPartialDownload() throws Exception {
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadFailed(PackageDownloader.REASON_IO_ERROR);
+        assertThat(mDestination.exists()).isFalse();
+        assertThat(PackageDownloader.getPartialFile(mDestination).length())
+                .isEqualTo(INTERRUPTED_AT);
+    }
+
+    @Test
+    public void start_afterInterruption_resumesWithRangeRequest() throws Exception {
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+        startAndObserve();
+        reset(mCallback);
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(Files.readAllBytes(mDestination.toPath())).isEqualTo(mServer.mBody);
+        Map<String, String> resumeRequest = mServer.getLastRequestHeaders();
+        assertThat(resumeRequest.get("range")).isEqualTo("bytes=" + INTERRUPTED_AT + "-");
+        assertThat(resumeRequest.get("if-range")).isEqualTo("\"v1\"");
+        assertThat(mServer.mBytesSent).isEqualTo(PACKAGE_SIZE);
+    }
+
+    @Test
+    public void start_packageChangedAfterInterruption_startsOver() throws Exception {
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+        startAndObserve();
+        reset(mCallback);
+        mServer.mBody = createPackage(/* seed= */ 1);
+        mServer.mEtag = "\"v2\"";
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(Files.readAllBytes(mDestination.toPath())).isEqualTo(mServer.mBody);
+    }
+
+    @Test
+    public void start_interruptedWithoutValidator_startsOver() throws Exception {
+        mServer.mEtag = null;
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+        startAndObserve();
+        reset(mCallback);
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(mServer.getLastRequestHeaders()).doesNotContainKey("range");
+    }
+
+    @Test
+    public void start_httpError_reportsStatus() throws Exception {
+        mServer.mStatus = 404;
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadFailed(404);
+        verify(mCallback, never()).onDownloadComplete(any(File.class), any(byte[].class));
+    }
+
+    @Test
+    public void delete_removesPartialDownload() {
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+        startAndObserve();
+
+        PackageDownloader.delete(mDestination);
+
+        assertThat(PackageDownloader.getPartialFile(mDestination).exists()).isFalse();
+        reset(mCallback);
+        startAndObserve();
+        assertThat(mServer.getLastRequestHeaders()).doesNotContainKey("range");
+        verify(mCallback, never()).onDownloadFailed(anyInt());
+        verify(mCallback).onDownloadComplete(eq(mDestination), any(byte[].class));
+    }
+
+    @Test
+    public void start_interruptedWithMirror_resumesFromMirror() throws Exception {
+        setUpMirror();
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+
+        PackageDownloader.Download download = startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(Files.readAllBytes(mDestination.toPath())).isEqualTo(mServer.mBody);
+        assertThat(mMirror.getLastRequestHeaders().get("range"))
+                .isEqualTo("bytes=" + INTERRUPTED_AT + "-");
+        List<PackageDownloadStats.SourceStats> stats = download.getStats().getSources();
+        assertThat(stats).hasSize(2);
+        assertThat(stats.get(0).getLocationIndex()).isEqualTo(0);
+        assertThat(stats.get(0).getBytes()).isEqualTo(INTERRUPTED_AT);
+        assertThat(stats.get(0).isCompleted()).isFalse();
+        assertThat(stats.get(1).getLocationIndex()).isEqualTo(1);
+        assertThat(stats.get(1).getBytes()).isEqualTo(PACKAGE_SIZE - INTERRUPTED_AT);
+        assertThat(stats.get(1).isCompleted()).isTrue();
+    }
+
+    @Test
+    public void start_httpErrorWithMirror_downloadsFromMirror() throws Exception {
+        setUpMirror();
+        mServer.mStatus = 503;
+
+        PackageDownloader.Download download = startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(download.getStats().getSources()).hasSize(1);
+        assertThat(download.getStats().getSources().get(0).getLocationIndex()).isEqualTo(1);
+    }
+
+    @Test
+    public void start_allLocationsFail_reportsStatus() throws Exception {
+        setUpMirror();
+        mServer.mStatus = 404;
+        mMirror.mStatus = 404;
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadFailed(404);
+        verify(mCallback, never()).onDownloadComplete(any(File.class), any(byte[].class));
+    }
+
+    @Test
+    public void start_gzipEncoded_decodesPackage() throws Exception {
+        mServer.mBody = createCompressiblePackage();
+        mServer.mGzip = true;
+
+        PackageDownloader.Download download = startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(Files.readAllBytes(mDestination.toPath())).isEqualTo(mServer.mBody);
+        assertThat(mServer.getLastRequestHeaders().get("accept-encoding")).isEqualTo("gzip");
+        PackageDownloadStats stats = download.getStats();
+        assertThat(stats.getBytes()).isEqualTo(PACKAGE_SIZE);
+        assertThat(stats.getWireBytes()).isEqualTo(mServer.mBytesSent);
+        assertThat(stats.getWireBytes()).isLessThan((long) PACKAGE_SIZE);
+    }
+
+    @Test
+    public void start_identityEncoded_countsSameWireBytes() {
+        PackageDownloader.Download download = startAndObserve();
+
+        assertThat(download.getStats().getWireBytes()).isEqualTo(PACKAGE_SIZE);
+    }
+
+    @Test
+    public void start_gzipEncodedAfterInterruption_resumesWithoutEncoding() throws Exception {
+        // Random bytes don't compress, so that the interruption happens part way through.
+        mServer.mGzip = true;
+        mServer.mInterruptAfterBytes = INTERRUPTED_AT;
+        startAndObserve();
+        verify(mCallback).onDownloadFailed(PackageDownloader.REASON_IO_ERROR);
+        long downloaded = PackageDownloader.getPartialFile(mDestination).length();
+        assertThat(downloaded).isGreaterThan(0L);
+        reset(mCallback);
+
+        startAndObserve();
+
+        verify(mCallback).onDownloadComplete(mDestination, sha256(mServer.mBody));
+        assertThat(Files.readAllBytes(mDestination.toPath())).isEqualTo(mServer.mBody);
+        Map<String, String> resumeRequest = mServer.getLastRequestHeaders();
+        assertThat(resumeRequest.get("range")).isEqualTo("bytes=" + downloaded + "-");
+        assertThat(resumeRequest.get("accept-encoding")).isEqualTo("identity");
+    }
+
+    private void setUpMirror() throws Exception {
+        mMirror = new FakePackageServer(mServer.mBody, mServer.mEtag);
+        mDownloadInfo = new PackageDownloadInfo.Builder()
+                .setLocation(mServer.getUrl())
+                .setMirrorLocations(Arrays.asList(mMirror.getUrl()))
+                .setPackageChecksum(new byte[] {1})
+                .build();
+    }
+
+    private PackageDownloader.Download startAndObserve() {
+        PackageDownloader.Download download = mDownloader.start(mDownloadInfo, mDestination);
+        download.observe(mCallback, mHandler);
+        ShadowLooper.idleMainLooper();
+        return download;
+    }
+
+    private static byte[] createPackage(long seed) {
+        byte[] body = new byte[PACKAGE_SIZE];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    private static byte[] createCompressiblePackage() {
+        byte[] body = new byte[PACKAGE_SIZE];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i % 64);
+        }
+        return body;
+    }
+
+    private static byte[] sha256(byte[] bytes) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+
+    /**
+     * Minimal HTTP server serving a single package, with support for range requests, for gzip
+     * encoding full responses and for dropping the connection part way through a response.
+     */
+    private static class FakePackageServer implements AutoCloseable {
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+        private final List<Map<String, String>> mRequestHeaders = new ArrayList<>();
+
+        volatile byte[] mBody;
+        volatile String mEtag;
+        volatile int mStatus = 200;
+        volatile boolean mGzip;
+        volatile int mInterruptAfterBytes = -1;
+        volatile int mStallAfterBytes = -1;
+        volatile String mRedirectLocation;
+        volatile int mBytesSent;
+        final CountDownLatch mStalled = new CountDownLatch(1);
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+
+        FakePackageServer(byte[] body, String etag) throws IOException {
+            mBody = body;
+            mEtag = etag;
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            mThread = new Thread(this::serve);
+            mThread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/package.apk";
+        }
+
+        synchronized Map<String, String> getLastRequestHeaders() {
+            return mRequestHeaders.get(mRequestHeaders.size() - 1);
+        }
+
+        @Override
+        public void close() throws Exception {
+            mClosed.countDown();
+            mServerSocket.close();
+            mThread.join();
+        }
+
+        private void serve() {
+            while (!mServerSocket.isClosed()) {
+                try (Socket socket = mServerSocket.accept()) {
+                    respond(socket, readRequestHeaders(socket));
+                } catch (IOException e) {
+                    // Closed, or the client went away.
+                }
+            }
+        }
+
+        private Map<String, String> readRequestHeaders(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            Map<String, String> headers = new HashMap<>();
+            reader.readLine(); // Request line.
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+            synchronized (this) {
+                mRequestHeaders.add(headers);
+            }
+            return headers;
+        }
+
+        private void respond(Socket socket, Map<String, String> requestHeaders)
+                throws IOException {
+            byte[] body = mBody;
+            int start = 0;
+            StringBuilder response = new StringBuilder();
+            String range = requestHeaders.get("range");
+            if (mRedirectLocation != null) {
+                response.append("HTTP/1.1 302 Found\r\n")
+                        .append("Location: " + mRedirectLocation + "\r\n");
+                body = new byte[0];
+            } else if (mStatus != 200) {
+                response.append("HTTP/1.1 " + mStatus + " Error\r\n");
+                body = new byte[0];
+            } else if (range != null && mEtag != null
+                    && mEtag.equals(requestHeaders.get("if-range"))) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                response.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes " + start + "-" + (body.length - 1) + "/"
+                                + body.length + "\r\n");
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+                String acceptEncoding = requestHeaders.get("accept-encoding");
+                if (mGzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    body = gzip(body);
+                    response.append("Content-Encoding: gzip\r\n");
+                }
+            }
+            if (mEtag != null) {
+                response.append("ETag: " + mEtag + "\r\n");
+            }
+            response.append("Content-Length: " + (body.length - start) + "\r\n")
+                    .append("Connection: close\r\n\r\n");
+
+            int end = body.length;
+            if (mInterruptAfterBytes >= 0) {
+                end = Math.min(end, start + mInterruptAfterBytes);
+                mInterruptAfterBytes = -1;
+            }
+            boolean stall = mStallAfterBytes >= 0;
+            if (stall) {
+                end = Math.min(end, start + mStallAfterBytes);
+                mStallAfterBytes = -1;
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(Arrays.copyOfRange(body, start, end));
+            out.flush();
+            mBytesSent += end - start;
+            if (stall) {
+                // Keep the connection open without sending anything until the server is closed.
+                mStalled.countDown();
+                try {
+                    mClosed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private static byte[] gzip(byte[] bytes) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(bytes);
+            }
+            return out.toByteArray();
+        }
+    }
+}
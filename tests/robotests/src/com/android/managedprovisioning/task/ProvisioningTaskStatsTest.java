@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker.PROVISIONING_PACKAGE_CACHE_LOOKUP;
+import static com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker.PROVISIONING_PACKAGE_DOWNLOAD_STATS;
+import static com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker.PROVISIONING_TASK_ATTEMPT_FAILED;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.app.admin.DevicePolicyEventLogger;
+
+import com.android.managedprovisioning.analytics.MetricsWriter;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Robolectric tests for {@link ProvisioningTaskStats}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningTaskStatsTest {
+
+    private static final String TEST_LOCATION = "http://test.location/test.apk";
+
+    private final AbstractProvisioningTask mTask = mock(AbstractProvisioningTask.class);
+    private final MetricsWriter mMetricsWriter = mock(MetricsWriter.class);
+    private final ProvisioningTaskStats mTaskStats = new ProvisioningTaskStats(
+            new ProvisioningAnalyticsTracker(mMetricsWriter,
+                    mock(ManagedProvisioningSharedPreferences.class)));
+
+    @Test
+    public void onRetry_countsRetriesPerTaskClass() {
+        mTaskStats.onRetry(mTask, /* errorCode= */ 0, /* attempt= */ 0, /* latencyMillis= */ 10);
+        mTaskStats.onRetry(mTask, /* errorCode= */ 0, /* attempt= */ 1, /* latencyMillis= */ 10);
+
+        assertThat(mTaskStats.getRetries(mTask.getClass())).isEqualTo(2);
+        assertThat(mTaskStats.getRetries(DownloadPackageTask.class)).isEqualTo(0);
+    }
+
+    @Test
+    public void onRetry_logsFailedAttemptWithItsLatency() {
+        mTaskStats.onRetry(mTask, /* errorCode= */ 3, /* attempt= */ 1, /* latencyMillis= */ 1500);
+
+        DevicePolicyEventLogger event = getWrittenEvent();
+        assertThat(event.getEventId()).isEqualTo(PROVISIONING_TASK_ATTEMPT_FAILED);
+        assertThat(event.getStringArray())
+                .asList().containsExactly(mTask.getClass().getSimpleName() + ":3");
+        assertThat(event.getInt()).isEqualTo(1);
+        assertThat(event.getTimePeriod()).isEqualTo(1500);
+    }
+
+    @Test
+    public void onPackageCacheLookup_logsHitWithBytesSaved() {
+        mTaskStats.onPackageCacheLookup(/* hit= */ true, /* bytesSaved= */ 2048);
+
+        DevicePolicyEventLogger event = getWrittenEvent();
+        assertThat(event.getEventId()).isEqualTo(PROVISIONING_PACKAGE_CACHE_LOOKUP);
+        assertThat(event.getBoolean()).isTrue();
+        assertThat(event.getInt()).isEqualTo(2);
+    }
+
+    @Test
+    public void dump_printsPackageCacheHitsAndMisses() {
+        mTaskStats.onPackageCacheLookup(/* hit= */ true, /* bytesSaved= */ 10);
+        mTaskStats.onPackageCacheLookup(/* hit= */ false, /* bytesSaved= */ 0);
+
+        assertThat(dump()).contains("Package cache: 1 hits, 1 misses, 10 bytes not downloaded");
+    }
+
+    @Test
+    public void onPackageDownloadFinished_logsThroughputAndStalls() {
+        PackageDownloadStats stats = new PackageDownloadStats(TEST_LOCATION, /* startMillis= */ 0);
+        stats.onConnected(/* firstByteMillis= */ 0);
+        stats.onRead(200 * 1024, 200 * 1024, /* networkNanos= */ 0, /* decodeNanos= */ 0,
+                /* nowMillis= */ 0);
+        stats.onRead(100, 100, TimeUnit.MILLISECONDS.toNanos(
+                PackageDownloadStats.STALL_THRESHOLD_MILLIS), /* decodeNanos= */ 0,
+                /* nowMillis= */ 0);
+        stats.onFinished(/* succeeded= */ true, /* nowMillis= */ 1000);
+
+        mTaskStats.onPackageDownloadFinished(stats, /* attempt= */ 1);
+
+        DevicePolicyEventLogger event = getWrittenEvent();
+        assertThat(event.getEventId()).isEqualTo(PROVISIONING_PACKAGE_DOWNLOAD_STATS);
+        assertThat(event.getBoolean()).isTrue();
+        assertThat(event.getInt()).isEqualTo(200);
+        assertThat(event.getStringArray()).asList().containsAtLeast(
+                "attempt=1", "throughput_p50_kbps=200", "stalls=1", "kb=200");
+    }
+
+    @Test
+    public void onPackageDownloadFinished_logsThroughputPerMirror() {
+        PackageDownloadStats stats = new PackageDownloadStats(TEST_LOCATION, /* startMillis= */ 0);
+        stats.onSourceFinished(new PackageDownloadStats.SourceStats(/* locationIndex= */ 0,
+                /* bytes= */ 100 * 1024, /* durationMillis= */ 1000, /* completed= */ false));
+        stats.onSourceFinished(new PackageDownloadStats.SourceStats(/* locationIndex= */ 1,
+                /* bytes= */ 600 * 1024, /* durationMillis= */ 2000, /* completed= */ true));
+        stats.onFinished(/* succeeded= */ true, /* nowMillis= */ 3000);
+
+        mTaskStats.onPackageDownloadFinished(stats, /* attempt= */ 0);
+
+        assertThat(getWrittenEvent().getStringArray()).asList().containsAtLeast(
+                "mirror_0_kbps=100", "mirror_0_completed=false",
+                "mirror_1_kbps=300", "mirror_1_completed=true").inOrder();
+    }
+
+    @Test
+    public void dump_printsLastFewDownloads() {
+        for (int i = 0; i < 10; i++) {
+            PackageDownloadStats stats =
+                    new PackageDownloadStats(TEST_LOCATION, /* startMillis= */ 0);
+            stats.onFinished(/* succeeded= */ false, /* nowMillis= */ 0);
+            mTaskStats.onPackageDownloadFinished(stats, /* attempt= */ i);
+        }
+
+        String dump = dump();
+
+        assertThat(dump).contains("Recent package downloads: 5");
+        assertThat(dump).contains(TEST_LOCATION + ": failed");
+    }
+
+    @Test
+    public void dump_printsRetriesAndHighestDeadlinePercentage() {
+        mTaskStats.onRetry(mTask, /* errorCode= */ 0, /* attempt= */ 0, /* latencyMillis= */ 10);
+        mTaskStats.onTaskFinished(mTask, 50);
+        mTaskStats.onTaskFinished(mTask, 25);
+
+        String dump = dump();
+
+        String taskName = mTask.getClass().getSimpleName();
+        assertThat(dump).contains("Task retries: " + taskName + " 1");
+        assertThat(dump).contains("Task deadlines used: " + taskName + " 50%");
+    }
+
+    private DevicePolicyEventLogger getWrittenEvent() {
+        ArgumentCaptor<DevicePolicyEventLogger> event =
+                ArgumentCaptor.forClass(DevicePolicyEventLogger.class);
+        verify(mMetricsWriter).write(event.capture());
+        return event.getValue();
+    }
+
+    private String dump() {
+        StringWriter output = new StringWriter();
+        mTaskStats.dump(new PrintWriter(output), /* nowMillis= */ 0);
+        return output.toString();
+    }
+}
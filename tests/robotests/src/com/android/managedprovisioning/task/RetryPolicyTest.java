@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+
+/**
+ * Robolectric tests for {@link RetryPolicy}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RetryPolicyTest {
+
+    private static final RetryPolicy POLICY_WITHOUT_JITTER = RetryPolicy.builder()
+            .setMaxRetries(5)
+            .setInitialDelayMillis(100)
+            .setBackoffMultiplier(3)
+            .setMaxDelayMillis(1000)
+            .setJitterFraction(0)
+            .build();
+
+    private final Random mRandom = new Random(/* seed= */ 0);
+
+    @Test
+    public void getDelayMillis_growsExponentially() {
+        assertThat(POLICY_WITHOUT_JITTER.getDelayMillis(0, mRandom)).isEqualTo(100);
+        assertThat(POLICY_WITHOUT_JITTER.getDelayMillis(1, mRandom)).isEqualTo(300);
+        assertThat(POLICY_WITHOUT_JITTER.getDelayMillis(2, mRandom)).isEqualTo(900);
+    }
+
+    @Test
+    public void getDelayMillis_isCappedAtMaxDelay() {
+        assertThat(POLICY_WITHOUT_JITTER.getDelayMillis(3, mRandom)).isEqualTo(1000);
+        assertThat(POLICY_WITHOUT_JITTER.getDelayMillis(10, mRandom)).isEqualTo(1000);
+    }
+
+    @Test
+    public void getDelayMillis_withJitter_staysWithinJitterRange() {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setMaxRetries(1)
+                .setInitialDelayMillis(1000)
+                .setJitterFraction(0.2f)
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            long delayMillis = policy.getDelayMillis(0, mRandom);
+            assertThat(delayMillis).isAtLeast(800L);
+            assertThat(delayMillis).isAtMost(1200L);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.SystemProperties;
+
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Robolectric tests for {@link StreamingInstallPackageTask}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StreamingInstallPackageTaskTest {
+
+    private static final int USER_ID = 0;
+    private static final ComponentName TEST_COMPONENT_NAME =
+            new ComponentName("test", "test");
+    private static final String TEST_PACKAGE_LOCATION = "http://test.location/test.apk";
+    private static final byte[] TEST_PACKAGE_CHECKSUM = new byte[] {1};
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final Utils mUtils = mock(Utils.class);
+    private final Executor mExecutor = mock(Executor.class);
+    private final AbstractProvisioningTask.Callback mCallback =
+            mock(AbstractProvisioningTask.Callback.class);
+
+    @After
+    public void tearDown() {
+        SystemProperties.set(StreamingInstallPackageTask.PROPERTY_STREAMING_ENABLED, "");
+    }
+
+    @Test
+    public void isEnabled_propertyNotSet_returnsFalse() {
+        assertThat(StreamingInstallPackageTask.isEnabled(
+                createProvisioningParams(TEST_PACKAGE_CHECKSUM))).isFalse();
+    }
+
+    @Test
+    public void isEnabled_propertySet_returnsTrue() {
+        SystemProperties.set(StreamingInstallPackageTask.PROPERTY_STREAMING_ENABLED, "true");
+
+        assertThat(StreamingInstallPackageTask.isEnabled(
+                createProvisioningParams(TEST_PACKAGE_CHECKSUM))).isTrue();
+    }
+
+    @Test
+    public void isEnabled_noPackageChecksum_returnsFalse() {
+        SystemProperties.set(StreamingInstallPackageTask.PROPERTY_STREAMING_ENABLED, "true");
+
+        assertThat(StreamingInstallPackageTask.isEnabled(
+                createProvisioningParams(new byte[0]))).isFalse();
+    }
+
+    @Test
+    public void run_packageUpToDate_succeedsWithoutDownloading() {
+        when(mUtils.packageRequiresUpdate(anyString(), anyInt(), any(Context.class)))
+                .thenReturn(false);
+        StreamingInstallPackageTask task = createTask();
+
+        task.run(USER_ID);
+
+        verify(mCallback).onSuccess(task);
+        verify(mExecutor, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void run_notConnected_reportsDownloadFailed() {
+        when(mUtils.packageRequiresUpdate(anyString(), anyInt(), any(Context.class)))
+                .thenReturn(true);
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(false);
+        StreamingInstallPackageTask task = createTask();
+
+        task.run(USER_ID);
+
+        verify(mCallback).onError(eq(task), eq(StreamingInstallPackageTask.ERROR_DOWNLOAD_FAILED));
+        verify(mExecutor, never()).execute(any(Runnable.class));
+    }
+
+    private StreamingInstallPackageTask createTask() {
+        return new StreamingInstallPackageTask(mUtils, mContext,
+                createProvisioningParams(TEST_PACKAGE_CHECKSUM), mCallback,
+                mock(ProvisioningAnalyticsTracker.class), new ApkArchiveReader(), mExecutor);
+    }
+
+    private static ProvisioningParams createProvisioningParams(byte[] packageChecksum) {
+        PackageDownloadInfo.Builder downloadInfo = new PackageDownloadInfo.Builder()
+                .setLocation(TEST_PACKAGE_LOCATION);
+        if (packageChecksum.length > 0) {
+            downloadInfo.setPackageChecksum(packageChecksum);
+        } else {
+            downloadInfo.setSignatureChecksum(new byte[] {2});
+        }
+        return new ProvisioningParams.Builder()
+                .setDeviceAdminComponentName(TEST_COMPONENT_NAME)
+                .setProvisioningAction("")
+                .setDeviceAdminDownloadInfo(downloadInfo.build())
+                .build();
+    }
+}